@@ -0,0 +1,31 @@
+package com.fmaritato.dbutil;
+
+/**
+ * The dialects that ship with dbutils. The DBUtil classes are only loaded
+ * when one of them is actually created.
+ */
+public class BuiltinDialects implements DialectProvider {
+
+    public String[] getNames() {
+        return new String[]{"oracle", "sqlserver", "sybase", "mysql", "generic"};
+    }
+
+    public DBUtil create(String name) {
+        if ("oracle".equals(name)) {
+            return new OracleDBUtil();
+        }
+        else if ("sqlserver".equals(name)) {
+            return new SQLServerDBUtil();
+        }
+        else if ("sybase".equals(name)) {
+            return new SybaseDBUtil();
+        }
+        else if ("mysql".equals(name)) {
+            return new MySQLDBUtil();
+        }
+        else if ("generic".equals(name)) {
+            return new GenericDBUtil();
+        }
+        throw new IllegalArgumentException("Unknown dialect: " + name);
+    }
+}
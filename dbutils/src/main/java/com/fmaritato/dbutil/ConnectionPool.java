@@ -0,0 +1,349 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.LinkedList;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Small bounded connection pool so a single db invocation logs in once and
+ * reuses that session for every statement it runs.
+ * <p/>
+ * Connections are validated when they are borrowed; at most maxIdle
+ * connections are kept around between borrows and at most maxActive are
+ * handed out at the same time (borrow blocks until one is released).
+ * <p/>
+ * Sizing comes from these system properties:
+ * -Ddb.pool.maxActive          max connections open at once (default 8)
+ * -Ddb.pool.maxIdle            max idle connections kept (default 4)
+ * -Ddb.pool.validationTimeout  seconds to wait on Connection.isValid (default 5)
+ * -Ddb.statementCache.size     prepared statements cached per connection
+ *                              (default 32, 0 turns the cache off)
+ */
+public class ConnectionPool {
+
+    private final static Log log =
+            LogFactory.getLog(ConnectionPool.class);
+
+    public static final String PROP_MAX_ACTIVE = "db.pool.maxActive";
+    public static final String PROP_MAX_IDLE = "db.pool.maxIdle";
+    public static final String PROP_VALIDATION_TIMEOUT = "db.pool.validationTimeout";
+    public static final String PROP_STATEMENT_CACHE_SIZE = "db.statementCache.size";
+
+    private final String dbUrl;
+    private final Properties props;
+
+    private int maxActive = 8;
+    private int maxIdle = 4;
+    private int validationTimeout = 5;
+    private int statementCacheSize = 32;
+
+    private final LinkedList<Connection> idle = new LinkedList<Connection>();
+    private final Map<Connection, Boolean> active = new IdentityHashMap<Connection, Boolean>();
+    private final Map<Connection, StatementCache> caches =
+            new IdentityHashMap<Connection, StatementCache>();
+    private int opening = 0;
+    private boolean closed = false;
+
+    private int created = 0;
+    private int borrowed = 0;
+    private long cacheHits = 0;
+    private long cacheMisses = 0;
+    private long cacheEvictions = 0;
+
+    public ConnectionPool(String dbDriver, String dbUrl, Properties props) throws Exception {
+        Class.forName(dbDriver);
+        this.dbUrl = dbUrl;
+        this.props = props;
+        maxActive = getIntProperty(PROP_MAX_ACTIVE, maxActive);
+        maxIdle = getIntProperty(PROP_MAX_IDLE, maxIdle);
+        validationTimeout = getIntProperty(PROP_VALIDATION_TIMEOUT, validationTimeout);
+        statementCacheSize = getIntProperty(PROP_STATEMENT_CACHE_SIZE, statementCacheSize);
+    }
+
+    public int getMaxActive() {
+        return maxActive;
+    }
+
+    public synchronized void setMaxActive(int aValue) {
+        maxActive = aValue;
+        notifyAll();
+    }
+
+    public int getMaxIdle() {
+        return maxIdle;
+    }
+
+    public void setMaxIdle(int aValue) {
+        maxIdle = aValue;
+    }
+
+    public int getValidationTimeout() {
+        return validationTimeout;
+    }
+
+    public void setValidationTimeout(int aValue) {
+        validationTimeout = aValue;
+    }
+
+    public int getStatementCacheSize() {
+        return statementCacheSize;
+    }
+
+    public void setStatementCacheSize(int aValue) {
+        statementCacheSize = aValue;
+    }
+
+    /**
+     * @param c a connection borrowed from this pool
+     * @return the statement cache of c, null if c doesn't belong to the
+     *         pool or caching is off
+     */
+    public synchronized StatementCache getStatementCache(Connection c) {
+        if (statementCacheSize <= 0 || !active.containsKey(c)) {
+            return null;
+        }
+        StatementCache cache = caches.get(c);
+        if (cache == null) {
+            cache = new StatementCache(c, statementCacheSize);
+            caches.put(c, cache);
+        }
+        return cache;
+    }
+
+    public synchronized long getCacheHits() {
+        long n = cacheHits;
+        for (StatementCache cache : caches.values()) {
+            n += cache.getHits();
+        }
+        return n;
+    }
+
+    public synchronized long getCacheMisses() {
+        long n = cacheMisses;
+        for (StatementCache cache : caches.values()) {
+            n += cache.getMisses();
+        }
+        return n;
+    }
+
+    public synchronized long getCacheEvictions() {
+        long n = cacheEvictions;
+        for (StatementCache cache : caches.values()) {
+            n += cache.getEvictions();
+        }
+        return n;
+    }
+
+    /**
+     * Borrow a connection, reusing an idle one when it is still valid.
+     * Every borrowed connection must be handed back with release().
+     *
+     * @return an open connection
+     * @throws Exception if a new connection can't be opened
+     */
+    public Connection borrow() throws Exception {
+        Connection c;
+        synchronized (this) {
+            while (true) {
+                if (closed) {
+                    throw new SQLException("Connection pool is closed");
+                }
+                c = idle.poll();
+                if (c != null) {
+                    break;
+                }
+                if (active.size() + opening < maxActive) {
+                    break;
+                }
+                wait();
+            }
+            borrowed++;
+            if (c != null) {
+                active.put(c, Boolean.TRUE);
+            }
+            else {
+                // reserve the slot while we log in so we never exceed maxActive
+                opening++;
+            }
+        }
+
+        if (c != null && !isValid(c)) {
+            log.debug("discarding invalid connection");
+            synchronized (this) {
+                active.remove(c);
+                opening++;
+            }
+            closeQuietly(c);
+            c = null;
+        }
+        if (c == null) {
+            try {
+                c = open();
+            }
+            finally {
+                synchronized (this) {
+                    opening--;
+                    if (c != null) {
+                        active.put(c, Boolean.TRUE);
+                    }
+                    notifyAll();
+                }
+            }
+        }
+        return c;
+    }
+
+    /**
+     * Hand a connection back to the pool. Connections that are closed,
+     * or that would push the idle list past maxIdle, are closed instead.
+     *
+     * @param c connection obtained from borrow()
+     */
+    public void release(Connection c) {
+        if (c == null) {
+            return;
+        }
+        boolean keep = false;
+        try {
+            if (!c.isClosed()) {
+                if (!c.getAutoCommit()) {
+                    c.rollback();
+                    c.setAutoCommit(true);
+                }
+                keep = true;
+            }
+        }
+        catch (SQLException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(e);
+            }
+        }
+        synchronized (this) {
+            active.remove(c);
+            if (keep && !closed && idle.size() < maxIdle) {
+                idle.addFirst(c);
+                c = null;
+            }
+            notifyAll();
+        }
+        if (c != null) {
+            closeQuietly(c);
+        }
+    }
+
+    /**
+     * Close every idle connection and refuse further borrows. Connections
+     * still borrowed are closed when they are released.
+     */
+    public void close() {
+        LinkedList<Connection> toClose;
+        synchronized (this) {
+            closed = true;
+            toClose = new LinkedList<Connection>(idle);
+            idle.clear();
+            notifyAll();
+        }
+        for (Connection c : toClose) {
+            closeQuietly(c);
+        }
+        if (log.isDebugEnabled()) {
+            log.debug("pool closed: " + created + " connections opened for " +
+                      borrowed + " borrows");
+        }
+        long hits = getCacheHits();
+        long misses = getCacheMisses();
+        if (hits > 0 && log.isInfoEnabled()) {
+            log.info("statement cache: " + hits + " hits, " + misses + " misses, " +
+                     getCacheEvictions() + " evictions");
+        }
+    }
+
+    protected Connection open() throws Exception {
+        long start = System.currentTimeMillis();
+        Connection c = DriverManager.getConnection(dbUrl, props);
+        try {
+            initConnection(c);
+        }
+        catch (SQLException e) {
+            closeQuietly(c);
+            throw e;
+        }
+        long end = System.currentTimeMillis();
+        log.debug("getConnection: " + (end - start));
+        synchronized (this) {
+            created++;
+        }
+        return c;
+    }
+
+    /**
+     * Hook for session settings, called once for every new connection.
+     *
+     * @param c the new connection
+     * @throws SQLException if a setting fails
+     */
+    protected void initConnection(Connection c) throws SQLException {
+    }
+
+    protected boolean isValid(Connection c) {
+        try {
+            return !c.isClosed() && c.isValid(validationTimeout);
+        }
+        catch (SQLException e) {
+            return false;
+        }
+        catch (AbstractMethodError e) {
+            // pre JDBC 4 driver, trust isClosed()
+            try {
+                return !c.isClosed();
+            }
+            catch (SQLException e1) {
+                return false;
+            }
+        }
+    }
+
+    private void closeQuietly(Connection c) {
+        StatementCache cache;
+        synchronized (this) {
+            cache = caches.remove(c);
+            if (cache != null) {
+                cacheHits += cache.getHits();
+                cacheMisses += cache.getMisses();
+                cacheEvictions += cache.getEvictions();
+            }
+        }
+        if (cache != null) {
+            cache.close();
+        }
+        try {
+            c.close();
+        }
+        catch (Exception e) {
+            if (log.isWarnEnabled()) {
+                log.warn(e);
+            }
+        }
+    }
+
+    private static int getIntProperty(String name, int defaultValue) {
+        String s = System.getProperty(name);
+        if (s == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(s.trim());
+        }
+        catch (NumberFormatException e) {
+            log.warn("bad value for " + name + ": " + s);
+            return defaultValue;
+        }
+    }
+}
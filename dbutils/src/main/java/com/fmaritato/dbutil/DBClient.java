@@ -0,0 +1,55 @@
+package com.fmaritato.dbutil;
+
+import java.io.File;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.Socket;
+
+/**
+ * Thin client for a db --daemon --port process. Takes the same options as
+ * DBUtil.main, runs them in the daemon and copies the output to stdout.
+ * It authenticates with the secret the daemon wrote to
+ * DBDaemon.getTokenFile(port), so it has to run as the daemon's owner.
+ * <p/>
+ * Usage: java -Ddb.daemon.port=7001 -cp dbutils.jar com.fmaritato.dbutil.DBClient [options]
+ */
+public class DBClient {
+
+    public static final String PROP_PORT = "db.daemon.port";
+
+    public static void main(String[] args) throws Exception {
+        int port = Integer.getInteger(PROP_PORT, 7001);
+        File tokenFile = DBDaemon.getTokenFile(port);
+        String token = DBDaemon.readToken(tokenFile);
+        Socket socket = new Socket(InetAddress.getByName("127.0.0.1"), port);
+        try {
+            StringBuilder line = new StringBuilder(token).append('\n');
+            int start = line.length();
+            for (String arg : args) {
+                if (line.length() > start) {
+                    line.append(' ');
+                }
+                line.append(DBDaemon.quote(arg));
+            }
+            line.append('\n');
+            Writer w = new OutputStreamWriter(socket.getOutputStream(), "UTF-8");
+            w.write(line.toString());
+            w.flush();
+
+            InputStream in = socket.getInputStream();
+            OutputStream out = System.out;
+            byte[] buf = new byte[8192];
+            int n;
+            while ((n = in.read(buf)) >= 0) {
+                out.write(buf, 0, n);
+            }
+            out.flush();
+        }
+        finally {
+            socket.close();
+        }
+    }
+}
@@ -0,0 +1,348 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Long running db process. It keeps the JDBC driver and a pool of logged in
+ * connections around, so each command only pays for the statement itself.
+ * <p/>
+ * Each command is one line holding the same options DBUtil.main takes, split
+ * like a shell would: '...' is taken literally and "..." understands \n, \"
+ * and \\ escapes. For example:
+ * <p/>
+ * -q "select * from some_table where rownum<10" --formatter=csv
+ * <p/>
+ * db --daemon reads commands from stdin (an interactive session when run
+ * from a terminal). db --daemon --port 7001 serves them on 127.0.0.1:7001,
+ * one command per connection with the output streamed back; DBClient is the
+ * matching client and plain nc works too.
+ * <p/>
+ * Anyone on the machine can reach the loopback interface, so the port
+ * daemon makes up a random secret at startup and writes it to
+ * ~/.dbutil-daemon.&lt;port&gt; (db.daemon.tokenFile to put it elsewhere),
+ * readable by its owner only. Every connection has to send the secret as
+ * its first line; a connection that doesn't is dropped without running
+ * anything.
+ */
+public class DBDaemon {
+
+    private final static Log log =
+            LogFactory.getLog(DBDaemon.class);
+
+    public static final String PROP_TOKEN_FILE = "db.daemon.tokenFile";
+
+    private ConnectionPool pool;
+    private byte[] token;
+
+    public DBDaemon() throws Exception {
+        // log in once up front, every command borrows from this pool
+        DBUtil u = DialectRegistry.createDetected();
+        pool = u.getPool();
+        pool.release(pool.borrow());
+    }
+
+    /**
+     * Read commands from in until it ends or a line says quit/exit.
+     *
+     * @param in  commands, one per line
+     * @param out where the output goes
+     * @throws IOException if in can't be read
+     */
+    public void serve(Reader in, Writer out) throws IOException {
+        BufferedReader reader = new BufferedReader(in);
+        boolean interactive = System.console() != null;
+        try {
+            while (true) {
+                if (interactive) {
+                    out.write("db> ");
+                    out.flush();
+                }
+                String line = reader.readLine();
+                if (line == null) {
+                    break;
+                }
+                line = line.trim();
+                if ("quit".equalsIgnoreCase(line) || "exit".equalsIgnoreCase(line)) {
+                    break;
+                }
+                if (line.length() > 0) {
+                    execute(line, out);
+                }
+            }
+        }
+        finally {
+            shutdown();
+        }
+    }
+
+    /**
+     * Serve commands on a local TCP port until the process is killed. Only
+     * the loopback interface is bound, and only connections that start with
+     * the secret from getTokenFile(port) are served.
+     *
+     * @param port port to listen on
+     * @throws IOException if the port can't be bound or the secret can't be
+     *                     written
+     */
+    public void serve(int port) throws IOException {
+        ServerSocket server = new ServerSocket(port, 50, InetAddress.getByName("127.0.0.1"));
+        File tokenFile = getTokenFile(port);
+        token = writeToken(tokenFile).getBytes("UTF-8");
+        ExecutorService workers = Executors.newCachedThreadPool();
+        log.info("listening on 127.0.0.1:" + port + ", secret in " + tokenFile);
+        try {
+            while (true) {
+                final Socket socket = server.accept();
+                workers.execute(new Runnable() {
+                    public void run() {
+                        handle(socket);
+                    }
+                });
+            }
+        }
+        finally {
+            workers.shutdown();
+            server.close();
+            tokenFile.delete();
+            shutdown();
+        }
+    }
+
+    /**
+     * @param port the daemon's port
+     * @return the file the daemon on that port keeps its secret in
+     */
+    public static File getTokenFile(int port) {
+        String name = System.getProperty(PROP_TOKEN_FILE);
+        if (name != null) {
+            return new File(name);
+        }
+        return new File(System.getProperty("user.home"), ".dbutil-daemon." + port);
+    }
+
+    /**
+     * @param tokenFile file written by a daemon
+     * @return the secret in it
+     * @throws IOException if it can't be read, e.g. no daemon is running
+     */
+    public static String readToken(File tokenFile) throws IOException {
+        BufferedReader in = new BufferedReader
+                (new InputStreamReader(new FileInputStream(tokenFile), "UTF-8"));
+        try {
+            String line = in.readLine();
+            if (line == null) {
+                throw new IOException(tokenFile + " is empty");
+            }
+            return line.trim();
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    /**
+     * Make up a new secret and write it to tokenFile, which is made
+     * readable and writable by its owner only before the secret goes in.
+     */
+    private static String writeToken(File tokenFile) throws IOException {
+        byte[] bytes = new byte[32];
+        new SecureRandom().nextBytes(bytes);
+        StringBuilder buf = new StringBuilder(bytes.length * 2);
+        for (byte b : bytes) {
+            buf.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        // start from an empty file so the old mode and secret don't linger
+        if (tokenFile.exists() && !tokenFile.delete()) {
+            throw new IOException("can't replace " + tokenFile);
+        }
+        if (!tokenFile.createNewFile()
+            || !tokenFile.setReadable(false, false) || !tokenFile.setWritable(false, false)
+            || !tokenFile.setExecutable(false, false)
+            || !tokenFile.setReadable(true, true) || !tokenFile.setWritable(true, true)) {
+            throw new IOException("can't make " + tokenFile + " private to its owner");
+        }
+        tokenFile.deleteOnExit();
+        Writer out = new OutputStreamWriter(new FileOutputStream(tokenFile), "UTF-8");
+        try {
+            out.write(buf.toString());
+            out.write('\n');
+        }
+        finally {
+            out.close();
+        }
+        return buf.toString();
+    }
+
+    /**
+     * @return whether line is the secret, compared in constant time
+     */
+    private boolean authenticate(String line) throws IOException {
+        return line != null && MessageDigest.isEqual(token, line.trim().getBytes("UTF-8"));
+    }
+
+    private void handle(Socket socket) {
+        try {
+            BufferedReader in = new BufferedReader
+                    (new InputStreamReader(socket.getInputStream(), "UTF-8"));
+            Writer out = new BufferedWriter
+                    (new OutputStreamWriter(socket.getOutputStream(), "UTF-8"));
+            // don't let a client that never sends the secret hold a thread
+            socket.setSoTimeout(30000);
+            if (!authenticate(in.readLine())) {
+                log.warn("dropped a connection from " + socket.getRemoteSocketAddress() +
+                         " without the daemon's secret");
+                return;
+            }
+            socket.setSoTimeout(0);
+            String line = in.readLine();
+            if (line != null) {
+                execute(line.trim(), out);
+            }
+            out.flush();
+        }
+        catch (IOException e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            try {
+                socket.close();
+            }
+            catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(e);
+                }
+            }
+        }
+    }
+
+    private void execute(String line, Writer out) throws IOException {
+        String[] args;
+        try {
+            args = split(line);
+        }
+        catch (IllegalArgumentException e) {
+            out.write(e.getMessage() + "\n");
+            out.flush();
+            return;
+        }
+        long start = System.currentTimeMillis();
+        DBUtil.run(pool, args, out);
+        long end = System.currentTimeMillis();
+        log.debug("command: " + (end - start));
+    }
+
+    public synchronized void shutdown() {
+        if (pool != null) {
+            pool.close();
+            pool = null;
+        }
+    }
+
+    /**
+     * Split a command line into arguments like a shell would.
+     *
+     * @param line the command line
+     * @return the arguments
+     * @throws IllegalArgumentException on an unterminated quote
+     */
+    public static String[] split(String line) {
+        List<String> args = new ArrayList<String>();
+        StringBuilder arg = new StringBuilder();
+        boolean inArg = false;
+        char quote = 0;
+        for (int i = 0; i < line.length(); i++) {
+            char c = line.charAt(i);
+            if (quote == '\'') {
+                if (c == '\'') {
+                    quote = 0;
+                }
+                else {
+                    arg.append(c);
+                }
+            }
+            else if (quote == '"') {
+                if (c == '"') {
+                    quote = 0;
+                }
+                else if (c == '\\' && i + 1 < line.length()) {
+                    char next = line.charAt(++i);
+                    arg.append(next == 'n' ? '\n' : next);
+                }
+                else {
+                    arg.append(c);
+                }
+            }
+            else if (Character.isWhitespace(c)) {
+                if (inArg) {
+                    args.add(arg.toString());
+                    arg.setLength(0);
+                    inArg = false;
+                }
+            }
+            else {
+                inArg = true;
+                if (c == '\'' || c == '"') {
+                    quote = c;
+                }
+                else if (c == '\\' && i + 1 < line.length()) {
+                    arg.append(line.charAt(++i));
+                }
+                else {
+                    arg.append(c);
+                }
+            }
+        }
+        if (quote != 0) {
+            throw new IllegalArgumentException("unterminated " + quote + " in: " + line);
+        }
+        if (inArg) {
+            args.add(arg.toString());
+        }
+        return args.toArray(new String[args.size()]);
+    }
+
+    /**
+     * Quote an argument so split() gives it back unchanged.
+     *
+     * @param arg argument
+     * @return the quoted argument
+     */
+    public static String quote(String arg) {
+        StringBuilder buf = new StringBuilder(arg.length() + 2);
+        buf.append('"');
+        for (int i = 0; i < arg.length(); i++) {
+            char c = arg.charAt(i);
+            if (c == '"' || c == '\\') {
+                buf.append('\\').append(c);
+            }
+            else if (c == '\n') {
+                buf.append("\\n");
+            }
+            else {
+                buf.append(c);
+            }
+        }
+        return buf.append('"').toString();
+    }
+}
@@ -1,8 +1,23 @@
 package com.fmaritato.dbutil;
 
+import com.fmaritato.dbutil.dump.CsvImport;
+import com.fmaritato.dbutil.dump.DatasetLoader;
+import com.fmaritato.dbutil.export.IncrementalExport;
+import com.fmaritato.dbutil.dump.Restore;
+import com.fmaritato.dbutil.export.PartitionedExport;
+import com.fmaritato.dbutil.export.TableCopy;
+import com.fmaritato.dbutil.pipeline.Pipeline;
+import com.fmaritato.dbutil.script.BatchExecutor;
+import com.fmaritato.dbutil.script.ParallelExecutor;
+import com.fmaritato.dbutil.script.PrefetchingStatementSource;
+import com.fmaritato.dbutil.script.ScriptStatement;
+import com.fmaritato.dbutil.script.SqlScriptReader;
+import com.fmaritato.dbutil.script.StatementSource;
+import com.fmaritato.dbutil.sink.OutputSink;
+import com.fmaritato.dbutil.text.DatasetFormatter;
 import com.fmaritato.dbutil.text.Formatter;
+import com.fmaritato.dbutil.text.FormatterRegistry;
 import com.fmaritato.dbutil.text.SimpleFormatter;
-import com.fmaritato.dbutil.text.TabularFormatter;
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
 import org.apache.commons.cli.HelpFormatter;
@@ -12,20 +27,18 @@ import org.apache.commons.cli.PosixParser;
 import org.apache.commons.lang.StringUtils;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
-import org.springframework.context.ApplicationContext;
-import org.springframework.context.support.ClassPathXmlApplicationContext;
 
-import java.io.BufferedReader;
-import java.io.BufferedWriter;
-import java.io.FileReader;
+import java.io.File;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
+import java.io.InputStreamReader;
+import java.io.PrintWriter;
 import java.io.Writer;
 import java.sql.Connection;
 import java.sql.DatabaseMetaData;
 import java.sql.DriverManager;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.util.HashMap;
 import java.util.Map;
 import java.util.Properties;
@@ -48,6 +61,9 @@ import java.util.Properties;
  * -l             list all tables.
  * -s <procName>  Display the text of the stored procedure.
  * -p <filename>  file containing above properties.
+ * <p/>
+ * Connections come from a pool that is shared by every command, see
+ * {@link ConnectionPool} for the db.pool.* sizing properties.
  */
 public abstract class DBUtil {
 
@@ -59,10 +75,32 @@ public abstract class DBUtil {
     public static final String PROP_DB_USER = "db.username";
     public static final String PROP_DB_PASS = "db.password";
     public static final String PROP_FETCH_SIZE = "db.fetchSize";
+    public static final String PROP_BATCH_SIZE = "db.batchSize";
+    public static final String PROP_COMMIT_INTERVAL = "db.commitInterval";
+    public static final String PROP_PARALLEL = "db.parallel";
+    public static final String PROP_CONNECTION_PREFIX = "db.connection.";
+    public static final String PROP_PIPELINE = "db.pipeline";
+    public static final String PROP_LOB_PREFETCH = "db.lob.prefetch";
+    public static final String PROP_TARGET_URL = "db.target.url";
+    public static final String PROP_TARGET_DRIVER = "db.target.driver";
+    public static final String PROP_TARGET_USER = "db.target.username";
+    public static final String PROP_TARGET_PASS = "db.target.password";
 
     private Formatter formatter;
-    private int fetchSize = 100;
+    private String formatterName;
+    private String tableName;
+    private int fetchSize = 0;
+    private FetchSizer fetchSizer;
+    private boolean pipelined = Boolean.getBoolean(PROP_PIPELINE);
     private Map bindVariables;
+    private ConnectionPool pool;
+    private boolean ownsPool = false;
+    // sets up the pool's new connections, another dialect after handOver()
+    private volatile DBUtil initializer = this;
+    private Writer out;
+    private int batchSize = Integer.getInteger(PROP_BATCH_SIZE, 0);
+    private int commitInterval = Integer.getInteger(PROP_COMMIT_INTERVAL, 0);
+    private int parallel = Integer.getInteger(PROP_PARALLEL, 1);
 
     public Map getBindVariables() {
         return bindVariables;
@@ -72,14 +110,101 @@ public abstract class DBUtil {
         bindVariables = aValue;
     }
 
+    /**
+     * @return the fetch size set with -f or db.fetchSize, or the dialect's
+     *         default when neither was given
+     */
     public int getFetchSize() {
-        return fetchSize;
+        return fetchSize != 0 ? fetchSize : getDefaultFetchSize();
     }
 
     public void setFetchSize(int aValue) {
         fetchSize = aValue;
     }
 
+    /**
+     * @param aValue a number of rows, or "auto" to size every result from
+     *               the width of its rows (see {@link FetchSizer})
+     */
+    public void setFetchSize(String aValue) {
+        if ("auto".equalsIgnoreCase(aValue.trim())) {
+            fetchSizer = new FetchSizer();
+        }
+        else {
+            fetchSizer = null;
+            setFetchSize(Integer.parseInt(aValue.trim()));
+        }
+    }
+
+    public FetchSizer getFetchSizer() {
+        return fetchSizer;
+    }
+
+    public void setFetchSizer(FetchSizer aValue) {
+        fetchSizer = aValue;
+    }
+
+    /**
+     * @return where command output goes, stdout unless setOut() was called
+     */
+    public synchronized Writer getOut() {
+        if (out == null) {
+            out = OutputSink.stdout();
+        }
+        return out;
+    }
+
+    public synchronized void setOut(Writer aValue) {
+        out = aValue;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    /**
+     * @param aValue number of DML statements per JDBC batch when running
+     *               an --input script, 0 runs them one at a time
+     */
+    public void setBatchSize(int aValue) {
+        batchSize = aValue;
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    /**
+     * @param aValue number of batched statements between commits, 0 commits
+     *               after every batch
+     */
+    public void setCommitInterval(int aValue) {
+        commitInterval = aValue;
+    }
+
+    public int getParallel() {
+        return parallel;
+    }
+
+    /**
+     * @param aValue number of connections an --input script runs on
+     */
+    public void setParallel(int aValue) {
+        parallel = aValue;
+    }
+
+    public boolean isPipelined() {
+        return pipelined;
+    }
+
+    /**
+     * @param aValue true to fetch, format and write results on separate
+     *               threads, see {@link Pipeline}
+     */
+    public void setPipelined(boolean aValue) {
+        pipelined = aValue;
+    }
+
     public Formatter getFormatter() {
         return formatter;
     }
@@ -88,29 +213,224 @@ public abstract class DBUtil {
         formatter = aValue;
     }
 
-    public DBUtil() {
-        try {
-            setFetchSize(Integer.parseInt(System.getProperty(PROP_FETCH_SIZE)));
+    public String getFormatterName() {
+        return formatterName;
+    }
+
+    /**
+     * Pick the formatter by name, see createFormatter().
+     *
+     * @param aValue formatter name, null for the default tabular output
+     * @throws Exception if the formatter can't be created
+     */
+    public void setFormatterName(String aValue) throws Exception {
+        formatterName = aValue;
+        setFormatter(newFormatter());
+    }
+
+    public String getTableName() {
+        return tableName;
+    }
+
+    public void setTableName(String aValue) {
+        tableName = aValue;
+        if (formatter != null) {
+            formatter.setTableName(aValue);
+        }
+    }
+
+    /**
+     * @return a new instance of the configured formatter, for commands that
+     *         format several result sets at the same time
+     * @throws Exception if the formatter can't be created
+     */
+    public Formatter newFormatter() throws Exception {
+        Formatter f = createFormatter(formatterName);
+        if (tableName != null) {
+            f.setTableName(tableName);
         }
-        catch (NumberFormatException e) {
-            if (log.isWarnEnabled()) {
-                log.warn(e);
+        return f;
+    }
+
+    /**
+     * @param name a formatter name (csv, tab, tabular...), a fully qualified
+     *             Formatter class name, or null for the default tabular output
+     * @return a new formatter
+     * @throws Exception if the formatter can't be created
+     * @see FormatterRegistry
+     */
+    public static Formatter createFormatter(String name) throws Exception {
+        return FormatterRegistry.create(name);
+    }
+
+    public DBUtil() {
+        String s = System.getProperty(PROP_FETCH_SIZE);
+        if (s != null) {
+            try {
+                setFetchSize(s);
+            }
+            catch (NumberFormatException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(e);
+                }
             }
         }
     }
 
+    /**
+     * @return the name this dialect is registered under, e.g. "oracle"
+     */
+    public abstract String getDialectName();
+
+    /**
+     * @return rows per round trip when neither -f nor db.fetchSize is given
+     */
+    protected int getDefaultFetchSize() {
+        return 100;
+    }
+
+    /**
+     * Called once for every new pooled connection, for session settings.
+     *
+     * @param c the new connection
+     * @throws SQLException if a setting fails
+     */
+    protected void initConnection(Connection c) throws SQLException {
+    }
+
+    /**
+     * Borrow a connection from the pool, creating the pool from the db.*
+     * properties the first time. Hand it back with releaseConnection().
+     *
+     * @return a pooled connection
+     * @throws Exception if a connection can't be opened
+     */
     public Connection getConnection() throws Exception {
-        final String dbUrl = System.getProperty(PROP_DB_URL);
-        final String dbDriver = System.getProperty(PROP_DB_DRIVER);
-        final String dbUser = System.getProperty(PROP_DB_USER);
-        final String dbPass = System.getProperty(PROP_DB_PASS);
+        return getPool().borrow();
+    }
+
+    /**
+     * Return a connection obtained from getConnection() to the pool.
+     *
+     * @param c the connection, may be null
+     */
+    public void releaseConnection(Connection c) {
+        if (c != null && pool != null) {
+            pool.release(c);
+        }
+    }
+
+    public synchronized ConnectionPool getPool() throws Exception {
+        if (pool == null) {
+            openPool(System.getProperty(PROP_DB_DRIVER),
+                     System.getProperty(PROP_DB_URL),
+                     System.getProperty(PROP_DB_USER),
+                     System.getProperty(PROP_DB_PASS));
+        }
+        return pool;
+    }
+
+    private synchronized void openPool(String dbDriver, String dbUrl, String dbUser, String dbPass)
+            throws Exception {
         if (log.isDebugEnabled()) {
             log.debug("dbUrl: " + dbUrl +
                       " dbDriver: " + dbDriver +
                       " dbUser: " + dbUser +
                       " dbPass: " + dbPass);
         }
-        return getConnection(dbDriver, dbUrl, dbUser, dbPass);
+        pool = new ConnectionPool(dbDriver, dbUrl,
+                                  getConnectionProperties(dbUser, dbPass)) {
+            protected void initConnection(Connection c) throws SQLException {
+                initializer.initConnection(c);
+            }
+        };
+        ownsPool = true;
+    }
+
+    /**
+     * Give this instance's pool, and a connection borrowed from it, to
+     * another dialect, for when the dialect is only known once logged in.
+     * New connections are set up for that dialect from then on, and its
+     * close() closes the pool; this instance is left without one.
+     *
+     * @param to the dialect taking over
+     * @param c  the connection borrowed from the pool, set up for to here
+     * @throws SQLException if the dialect's session settings fail
+     */
+    synchronized void handOver(DBUtil to, Connection c) throws SQLException {
+        to.initConnection(c);
+        initializer = to;
+        to.setPool(pool);
+        to.ownsPool = ownsPool;
+        pool = null;
+        ownsPool = false;
+    }
+
+    /**
+     * A DBUtil for the database in db.target.url, with db.target.driver,
+     * db.target.username and db.target.password, and the dialect the url
+     * belongs to (generic if it isn't one of ours). Close it when done.
+     *
+     * @return the target database
+     * @throws Exception if db.target.url isn't set or the pool can't be made
+     */
+    public static DBUtil createTarget() throws Exception {
+        String url = System.getProperty(PROP_TARGET_URL);
+        if (url == null) {
+            throw new IllegalArgumentException("no target database, set -D" + PROP_TARGET_URL);
+        }
+        String name = DialectRegistry.fromUrl(url);
+        DBUtil target = DialectRegistry.create(name != null ? name : DialectRegistry.GENERIC_DIALECT);
+        target.openPool(System.getProperty(PROP_TARGET_DRIVER), url,
+                        System.getProperty(PROP_TARGET_USER),
+                        System.getProperty(PROP_TARGET_PASS));
+        return target;
+    }
+
+    /**
+     * Make room for n connections used at once, by workers that each hold
+     * one. A pool of this instance's own is grown to n. A shared one (the
+     * daemon's) keeps its limit, since it is every client's limit: raising
+     * it for one run would raise it for good, so fewer workers run instead.
+     *
+     * @param n connections wanted
+     * @return how many workers to run, between 1 and n
+     * @throws Exception if the pool can't be made
+     */
+    public synchronized int reserveConnections(int n) throws Exception {
+        ConnectionPool p = getPool();
+        if (ownsPool) {
+            if (p.getMaxActive() < n) {
+                p.setMaxActive(n);
+            }
+            return n;
+        }
+        int limit = Math.max(1, Math.min(n, p.getMaxActive()));
+        if (limit < n) {
+            log.info("running " + limit + " workers instead of " + n + ", the shared pool's limit (-D" +
+                     ConnectionPool.PROP_MAX_ACTIVE + ")");
+        }
+        return limit;
+    }
+
+    /**
+     * Share a pool owned by someone else (the daemon); close() leaves it open.
+     *
+     * @param aValue pool to borrow connections from
+     */
+    public synchronized void setPool(ConnectionPool aValue) {
+        pool = aValue;
+        ownsPool = false;
+    }
+
+    /**
+     * Close the pooled connections. Call when done with this instance.
+     */
+    public synchronized void close() {
+        if (pool != null && ownsPool) {
+            pool.close();
+        }
+        pool = null;
     }
 
     public Connection getConnection(String dbDriver,
@@ -120,10 +440,7 @@ public abstract class DBUtil {
 
         Class.forName(dbDriver);
 
-        Properties props = new Properties();
-        props.put("user", username);
-        props.put("password", password);
-        props.put("SetBigStringTryClob", "true");
+        Properties props = getConnectionProperties(username, password);
 
         long start = System.currentTimeMillis();
         Connection c = DriverManager.getConnection(dbUrl, props);
@@ -132,6 +449,38 @@ public abstract class DBUtil {
         return c;
     }
 
+    /**
+     * Driver properties for new connections. Dialects add their defaults;
+     * any -Ddb.connection.<name>=<value> system property is passed on to the
+     * driver as <name>=<value> and wins over those defaults.
+     *
+     * @param username db username
+     * @param password db password
+     * @return the driver properties
+     */
+    protected Properties getConnectionProperties(String username, String password) {
+        Properties props = new Properties();
+        props.put("user", username);
+        props.put("password", password);
+        props.put("SetBigStringTryClob", "true");
+        for (String name : System.getProperties().stringPropertyNames()) {
+            if (name.startsWith(PROP_CONNECTION_PREFIX)) {
+                props.put(name.substring(PROP_CONNECTION_PREFIX.length()),
+                          System.getProperty(name));
+            }
+        }
+        return props;
+    }
+
+    /**
+     * Put a driver property unless the user already set it.
+     */
+    protected static void setDefault(Properties props, String name, String value) {
+        if (!props.containsKey(name)) {
+            props.put(name, value);
+        }
+    }
+
     /**
      * List all tables in the input schema
      */
@@ -141,23 +490,14 @@ public abstract class DBUtil {
             c = getConnection();
             DatabaseMetaData meta = c.getMetaData();
             ResultSet rs = meta.getTables(null, null, null, null);
-            Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
+            Writer out = getOut();
             formatter.format(rs, out);
         }
         catch (Exception e) {
             log.error(e.getMessage(), e);
         }
         finally {
-            if (c != null) {
-                try {
-                    c.close();
-                }
-                catch (Exception e) {
-                    if (log.isWarnEnabled()) {
-                        log.warn(e);
-                    }
-                }
-            }
+            releaseConnection(c);
         }
     }
 
@@ -168,28 +508,52 @@ public abstract class DBUtil {
      */
     public void query(String queryString) {
         Connection c = null;
-        PreparedStatement stmt = null;
         try {
             c = getConnection();
+            Writer out = getOut();
+            query(c, queryString, out);
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            releaseConnection(c);
+        }
+    }
 
+    /**
+     * Run a query/update command on a connection the caller holds.
+     *
+     * @param c           connection to run on
+     * @param queryString The SQL query to run.
+     * @param out         where the results or update count are written
+     * @throws Exception if the statement fails
+     */
+    public void query(Connection c, String queryString, Writer out) throws Exception {
+        query(c, queryString, out, formatter);
+    }
+
+    /**
+     * Run a query/update command on a connection the caller holds. Pooled
+     * connections reuse the statement from an earlier run of the same sql.
+     *
+     * @param c           connection to run on
+     * @param queryString The SQL query to run.
+     * @param out         where the results or update count are written
+     * @param formatter   formatter for the results
+     * @throws Exception if the statement fails
+     */
+    public void query(Connection c, String queryString, Writer out, Formatter formatter)
+            throws Exception {
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        StatementCache cache = pool != null ? pool.getStatementCache(c) : null;
+        try {
             log.debug(queryString);
-            stmt = c.prepareStatement(queryString);
-            stmt.setFetchSize(getFetchSize());
-
-            if (bindVariables != null && bindVariables.size() > 0) {
-                for (Object o : bindVariables.keySet()) {
-                    String key = (String) o;
-                    int position = Integer.parseInt(key);
-                    log.debug("position: " + position);
-                    String value = (String) bindVariables.get(key);
-                    log.debug("setting value: " + value);
-                    stmt.setString(position, value);
-                }
-            }
+            stmt = cache != null ? cache.prepare(queryString) : c.prepareStatement(queryString);
+            bind(stmt);
 
-            Writer out = new BufferedWriter(new OutputStreamWriter(System.out));
-            if (!queryString.toLowerCase().startsWith("select") ||
-                queryString.toLowerCase().indexOf("into") > 0) {
+            if (isUpdate(queryString)) {
                 long start = System.currentTimeMillis();
                 int num = stmt.executeUpdate();
                 long end = System.currentTimeMillis();
@@ -198,28 +562,26 @@ public abstract class DBUtil {
                 out.flush();
             }
             else {
-                long start = System.currentTimeMillis();
-                ResultSet rs = stmt.executeQuery();
-                long end = System.currentTimeMillis();
-                log.debug("query: " + (end - start));
-                formatter.format(rs, out);
+                rs = executeQuery(stmt, queryString);
+                format(rs, formatter, out, true);
             }
         }
-        catch (Exception e) {
-            log.error(e.getMessage(), e);
-        }
         finally {
-            if (stmt != null) {
+            if (rs != null) {
                 try {
-                    stmt.close();
+                    // a cached statement stays open, its results mustn't
+                    rs.close();
                 }
                 catch (Exception e) {
                     log.error(e.getMessage(), e);
                 }
             }
-            if (c != null) {
+            if (stmt != null && cache != null) {
+                cache.release(queryString, stmt);
+            }
+            else if (stmt != null) {
                 try {
-                    c.close();
+                    stmt.close();
                 }
                 catch (Exception e) {
                     log.error(e.getMessage(), e);
@@ -228,6 +590,273 @@ public abstract class DBUtil {
         }
     }
 
+    /**
+     * Export a query in ranges of a column, each range on its own
+     * connection.
+     *
+     * @param queryString the query
+     * @param column      column to split the query by, or rowid
+     * @param partitions  number of ranges
+     * @param filePattern per range file names, null for one merged output
+     * @see PartitionedExport
+     */
+    public void export(String queryString, String column, int partitions, String filePattern) {
+        try {
+            PartitionedExport export = new PartitionedExport(this, queryString, column, partitions);
+            export.setFilePattern(filePattern);
+            export.export(getOut());
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Export the rows of a query above the watermark saved in the state
+     * file. The new watermark is only saved by the returned export's
+     * save(), to be called once the output is closed.
+     *
+     * @param queryString the query
+     * @param column      column that only grows: a timestamp, a sequence
+     * @param stateFile   where the watermark is kept
+     * @param writeHeader false when adding to an earlier run's output
+     * @return the export to save, null if it failed
+     * @see IncrementalExport
+     */
+    public IncrementalExport incremental(String queryString, String column, String stateFile,
+                                         boolean writeHeader) {
+        try {
+            IncrementalExport export = new IncrementalExport(this, queryString, column, stateFile);
+            export.export(getOut(), writeHeader);
+            return export;
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return null;
+        }
+    }
+
+    /**
+     * Copy the rows of a query into a table of the db.target.* database,
+     * streamed from one connection to the other in JDBC batches of
+     * batchSize rows, committed every commitInterval rows.
+     *
+     * @param queryString rows to copy
+     * @param table       target table
+     * @param column      split column for parallel copies, null for none
+     * @param partitions  number of --split-by ranges
+     * @see TableCopy
+     */
+    public void copy(String queryString, String table, String column, int partitions) {
+        DBUtil target = null;
+        try {
+            target = createTarget();
+            TableCopy copy = new TableCopy(this, target, queryString, table);
+            copy.setSplit(column, partitions);
+            if (batchSize > 0) {
+                copy.setBatchSize(batchSize);
+            }
+            if (commitInterval > 0) {
+                copy.setCommitInterval(commitInterval);
+            }
+            copy.copy(getOut());
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            if (target != null) {
+                target.close();
+            }
+        }
+    }
+
+    /**
+     * Write several tables into one DBUnit dataset, each read once with
+     * select * on the same connection.
+     *
+     * @param tables comma separated table names
+     * @see DatasetFormatter
+     */
+    public void dataset(String tables) {
+        Connection c = null;
+        try {
+            c = getConnection();
+            Writer out = getOut();
+            DatasetFormatter dataset = new DatasetFormatter();
+            dataset.start(out);
+            for (String table : tables.split(",")) {
+                table = table.trim();
+                String sql = "select * from " + table;
+                log.debug(sql);
+                PreparedStatement stmt = c.prepareStatement(sql);
+                try {
+                    ResultSet rs = executeQuery(stmt, sql);
+                    dataset.format(rs, table, out);
+                    rs.close();
+                }
+                finally {
+                    stmt.close();
+                }
+            }
+            dataset.end(out);
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Load a DBUnit flat XML dataset on one connection, in JDBC batches of
+     * batchSize rows with a commit every commitInterval rows.
+     *
+     * @param filename the dataset
+     * @see DatasetLoader
+     */
+    public void loadDataset(String filename) {
+        Connection c = null;
+        try {
+            c = getConnection();
+            DatasetLoader loader = new DatasetLoader(c, getOut());
+            if (batchSize > 0) {
+                loader.setBatchSize(batchSize);
+            }
+            loader.setCommitInterval(commitInterval > 0 ? commitInterval : loader.getBatchSize());
+            loader.load(filename);
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Import a CSV or TSV file into the table, split into ranges loaded on
+     * parallel connections in JDBC batches of batchSize rows, committed
+     * every commitInterval rows.
+     *
+     * @param filename the file
+     * @see CsvImport
+     */
+    public void importFile(String filename) {
+        try {
+            CsvImport csv = new CsvImport(this, filename);
+            csv.setTable(tableName);
+            csv.setThreads(parallel);
+            if (batchSize > 0) {
+                csv.setBatchSize(batchSize);
+            }
+            if (commitInterval > 0) {
+                csv.setCommitInterval(commitInterval);
+            }
+            csv.load(getOut());
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Load a --formatter=binary dump into a table, on parallel connections
+     * in JDBC batches of batchSize rows.
+     *
+     * @param filename the dump
+     * @see Restore
+     */
+    public void restore(String filename) {
+        try {
+            Restore restore = new Restore(this, filename);
+            restore.setTable(tableName);
+            restore.setThreads(parallel);
+            if (batchSize > 0) {
+                restore.setBatchSize(batchSize);
+            }
+            restore.restore(getOut());
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+    }
+
+    /**
+     * Format a result, through the fetch/format/write pipeline if it is on.
+     *
+     * @param rs          the result
+     * @param formatter   formatter to use
+     * @param out         where the output goes
+     * @param writeHeader passed on to the formatter
+     * @throws Exception if fetching, formatting or writing fails
+     */
+    public void format(ResultSet rs, Formatter formatter, Writer out, boolean writeHeader)
+            throws Exception {
+        if (pipelined) {
+            new Pipeline().format(rs, formatter, out, writeHeader);
+        }
+        else {
+            formatter.format(rs, out, writeHeader);
+        }
+    }
+
+    /**
+     * Set the --bind variables on a statement.
+     *
+     * @param stmt statement to bind
+     * @throws SQLException if a value can't be set
+     */
+    public void bind(PreparedStatement stmt) throws SQLException {
+        if (bindVariables != null && bindVariables.size() > 0) {
+            for (Object o : bindVariables.keySet()) {
+                String key = (String) o;
+                int position = Integer.parseInt(key);
+                log.debug("position: " + position);
+                String value = (String) bindVariables.get(key);
+                log.debug("setting value: " + value);
+                stmt.setString(position, value);
+            }
+        }
+    }
+
+    /**
+     * Execute a prepared, bound query with the configured fetch size.
+     *
+     * @param stmt        statement to run
+     * @param queryString its sql text
+     * @return the results
+     * @throws SQLException if the query fails
+     */
+    public ResultSet executeQuery(PreparedStatement stmt, String queryString) throws SQLException {
+        int size = getFetchSize();
+        if (fetchSizer != null && size > 0 && fetchSizer.getFetchSize(queryString) > 0) {
+            size = fetchSizer.getFetchSize(queryString);
+        }
+        stmt.setFetchSize(size);
+        long start = System.currentTimeMillis();
+        ResultSet rs = stmt.executeQuery();
+        long end = System.currentTimeMillis();
+        log.debug("query: " + (end - start));
+        if (fetchSizer != null && size > 0) {
+            // the first round trip already happened, this sizes the rest
+            // (and the first one, the next time this sql runs)
+            rs.setFetchSize(fetchSizer.getFetchSize(queryString, rs.getMetaData()));
+        }
+        return rs;
+    }
+
+    /**
+     * @param queryString sql text
+     * @return true if the statement doesn't return rows, i.e. should be run
+     *         with executeUpdate
+     */
+    public static boolean isUpdate(String queryString) {
+        String lower = queryString.trim().toLowerCase();
+        return !lower.startsWith("select") || lower.indexOf("into") > 0;
+    }
+
     /**
      * Print the column names and data types for the given table.
      *
@@ -270,7 +899,7 @@ public abstract class DBUtil {
         try {
             c = getConnection();
             DatabaseMetaData meta = c.getMetaData();
-            out = new BufferedWriter(new OutputStreamWriter(System.out));
+            out = getOut();
             formatter.format(meta, schema, table, out);
         }
         catch (Exception e) {
@@ -279,49 +908,142 @@ public abstract class DBUtil {
         finally {
             if (out != null) {
                 try {
-                    out.close();
+                    out.flush();
                 }
                 catch (IOException e) {
                     log.error(e.getMessage(), e);
                 }
             }
-            if (c != null) {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Run every statement of a sql script. The script is parsed on a
+     * background thread while the statements run, see SqlScriptReader for
+     * how it is split into statements.
+     *
+     * @param filename script to run, "-" reads stdin
+     */
+    public void processFile(String filename) {
+        if (parallel > 1) {
+            processFileParallel(filename);
+            return;
+        }
+        if (batchSize > 0) {
+            processFileBatched(filename);
+            return;
+        }
+        Connection c = null;
+        StatementSource in = null;
+        try {
+            c = getConnection();
+            Writer out = getOut();
+            in = openScript(filename);
+            ScriptStatement statement;
+            while ((statement = in.next()) != null) {
+                if (statement.isBarrier()) {
+                    continue;
+                }
+                log.info(statement);
                 try {
-                    c.close();
+                    query(c, statement.getSql(), out);
                 }
                 catch (Exception e) {
-                    if (log.isWarnEnabled()) {
-                        log.warn(e);
-                    }
+                    log.error(e.getMessage(), e);
                 }
             }
         }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            closeScript(in);
+            releaseConnection(c);
+        }
     }
 
-    public void processFile(String filename) {
+    /**
+     * Run an --input script on parallel connections, see ParallelExecutor.
+     *
+     * @param filename script to run, "-" reads stdin
+     */
+    public void processFileParallel(String filename) {
+        StatementSource in = null;
+        ParallelExecutor executor = null;
         try {
-            BufferedReader in = new BufferedReader(new FileReader(filename));
-            StringBuffer command = new StringBuffer();
-            String line;
-            while ((line = in.readLine()) != null) {
-                line = line.trim();
-                command.append(line).append(" ");
-                if (line.indexOf(";") >= 0) {
-                    String cmd = command.toString();
-                    log.error(cmd);
-                    query(cmd);
-                    command.delete(0, command.length());
+            Writer out = getOut();
+            executor = new ParallelExecutor(this, parallel, out);
+            in = openScript(filename);
+            ScriptStatement statement;
+            while ((statement = in.next()) != null) {
+                executor.execute(statement);
+            }
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+        }
+        finally {
+            closeScript(in);
+            if (executor != null) {
+                try {
+                    executor.finish();
+                }
+                catch (Exception e) {
+                    log.error(e.getMessage(), e);
                 }
             }
-            if (command.length() > 0) {
-                String cmd = command.toString();
-                log.error(cmd);
-                query(cmd);
+        }
+    }
+
+    /**
+     * Run an --input script on a single connection, sending DML through
+     * JDBC batches of batchSize statements with a commit every
+     * commitInterval statements.
+     *
+     * @param filename script to run, "-" reads stdin
+     */
+    public void processFileBatched(String filename) {
+        Connection c = null;
+        StatementSource in = null;
+        try {
+            c = getConnection();
+            Writer out = getOut();
+            BatchExecutor executor = new BatchExecutor(this, c, out);
+            executor.setBatchSize(batchSize);
+            executor.setCommitInterval(commitInterval > 0 ? commitInterval : batchSize);
+
+            in = openScript(filename);
+            ScriptStatement statement;
+            while ((statement = in.next()) != null) {
+                executor.execute(statement);
             }
+            executor.finish();
         }
         catch (Exception e) {
             log.error(e.getMessage(), e);
         }
+        finally {
+            closeScript(in);
+            releaseConnection(c);
+        }
+    }
+
+    protected StatementSource openScript(String filename) throws IOException {
+        return new PrefetchingStatementSource(new SqlScriptReader(filename));
+    }
+
+    private void closeScript(StatementSource in) {
+        if (in != null) {
+            try {
+                in.close();
+            }
+            catch (IOException e) {
+                if (log.isWarnEnabled()) {
+                    log.warn(e);
+                }
+            }
+        }
     }
 
     /**
@@ -366,12 +1088,39 @@ public abstract class DBUtil {
             throws Exception;
 
     public static void main(String[] args) {
-        ApplicationContext ctx =
-                new ClassPathXmlApplicationContext("spring.cfg.xml");
+        Writer out = OutputSink.stdout();
+        try {
+            CommandLine line = new PosixParser().parse(createOptions(), args);
+            if (line.hasOption("daemon")) {
+                DBDaemon daemon = new DBDaemon();
+                if (line.hasOption("port")) {
+                    daemon.serve(Integer.parseInt(line.getOptionValue("port")));
+                }
+                else {
+                    daemon.serve(new InputStreamReader(System.in), out);
+                }
+                return;
+            }
+        }
+        catch (Exception e) {
+            log.error(e.getMessage(), e);
+            return;
+        }
+        run(null, args, out);
+    }
+
+    /**
+     * @return the --incremental state file, dbutil.state if not given
+     */
+    private static String getStateFile(CommandLine line) {
+        String state = line.getOptionValue("state");
+        return state == null ? "dbutil.state" : state;
+    }
 
+    public static Options createOptions() {
         Options options = new Options();
         options.addOption("l", false, "List all tables/views");
-        options.addOption("f", true, "Set the fetch size");
+        options.addOption("f", true, "Set the fetch size, or auto to size it from the row width");
         options.addOption("d", true, "Describe a table/view");
         options.addOption("q", true, "Execute a query");
         options.addOption("s", true, "Show the text of a stored procedure");
@@ -397,6 +1146,97 @@ public abstract class DBUtil {
                                        .withValueSeparator()
                                        .withDescription("file containing sql commands")
                                        .create());
+        options.addOption(OptionBuilder.withLongOpt("batch")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("run --input DML (or --import, --copy, --restore, --load-dataset rows) in JDBC batches of this size")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("commit")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("statements (or --import, --copy, --load-dataset rows) between commits in --batch mode")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("parallel")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("run --input statements (or --import ranges, --restore blocks) on this many connections")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("pipeline")
+                                       .withDescription("fetch, format and write results on separate threads")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("split-by")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("export (or --copy) -q in ranges of this column (or rowid) on several connections")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("partitions")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("number of --split-by ranges (default 4)")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("partition-file")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("write each --split-by range to its own file, e.g. part-%02d.csv")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("out")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("write the output to this file (.gz, .zst, .lz4 are compressed)")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("append")
+                                       .withDescription("add to the end of the --out file instead of replacing it")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("compress")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("--out compression: gzip, zstd, lz4 or none")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("roll-size")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("start a new --out file after this many bytes, e.g. 512m")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("roll-rows")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("start a new --out file after this many lines")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("dataset")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("write these comma separated tables into one DBUnit dataset")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("load-dataset")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("insert the rows of a DBUnit flat XML dataset")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("incremental")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("export only the rows of -q above the last run's max of this column")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("state")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("--incremental state file (default dbutil.state)")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("copy")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("copy the rows of -q into this table of the -Ddb.target.url database")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("import")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("load a CSV (or .tsv) file into -t, bad rows go to <file>.rejects")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("restore")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("load a --formatter=binary dump into -t, or the table it was dumped from")
+                                       .create());
         options.addOption(OptionBuilder.withLongOpt("sqlserver")
                                        .withDescription("Force SQLServer implementation")
                                        .create());
@@ -406,45 +1246,116 @@ public abstract class DBUtil {
         options.addOption(OptionBuilder.withLongOpt("oracle")
                                        .withDescription("Force Oracle implementation")
                                        .create());
+        options.addOption(OptionBuilder.withLongOpt("mysql")
+                                       .withDescription("Force MySQL implementation")
+                                       .create());
         options.addOption(OptionBuilder.withLongOpt("ddl")
                                        .hasArg()
                                        .withValueSeparator()
                                        .withDescription("dump the ddl for an object,type")
                                        .create());
+        options.addOption(OptionBuilder.withLongOpt("daemon")
+                                       .withDescription("keep running, reading commands from stdin")
+                                       .create());
+        options.addOption(OptionBuilder.withLongOpt("port")
+                                       .hasArg()
+                                       .withValueSeparator()
+                                       .withDescription("with --daemon, serve commands on this local port")
+                                       .create());
         options.addOption(OptionBuilder.withLongOpt("help")
                                        .withDescription("Another option to show help msg")
                                        .create());
 
-        DBUtil u;
+        return options;
+    }
+
+    /**
+     * Parse the command line and run the command it asks for.
+     *
+     * @param pool pool to share, or null to open (and close) one for this command
+     * @param args command line options, see createOptions()
+     * @param out  where the command output goes
+     */
+    public static void run(ConnectionPool pool, String[] args, Writer out) {
+        long start = System.currentTimeMillis();
+        Options options = createOptions();
+        DBUtil u = null;
+        OutputSink file = null;
+        // --out already has rows, don't repeat the header
+        boolean appending = false;
+        // the single --out file, null for stdout or rolled files
+        File single = null;
+        IncrementalExport incremental = null;
 
         CommandLineParser parser = new PosixParser();
         try {
             CommandLine line = parser.parse(options, args);
 
             if (line.hasOption("sqlserver")) {
-                u = (DBUtil) ctx.getBean("SQLServerDBUtil");
+                u = DialectRegistry.create("sqlserver");
             }
             else if (line.hasOption("oracle")) {
-                u = (DBUtil) ctx.getBean("OracleDBUtil");
+                u = DialectRegistry.create("oracle");
             }
             else if (line.hasOption("sybase")) {
-                u = (DBUtil) ctx.getBean("SybaseDBUtil");
+                u = DialectRegistry.create("sybase");
+            }
+            else if (line.hasOption("mysql")) {
+                u = DialectRegistry.create("mysql");
             }
             else {
-                u = (DBUtil) ctx.getBean("DBUtil");
+                u = DialectRegistry.createDetected();
+            }
+            if (pool != null) {
+                u.setPool(pool);
             }
+            if (line.hasOption("out")) {
+                String rollRows = line.getOptionValue("roll-rows");
+                long rollBytes = FetchSizer.parseBytes("--roll-size", line.getOptionValue("roll-size"), 0);
+                long rollLines = rollRows == null ? 0 : Long.parseLong(rollRows);
+                if (rollBytes == 0 && rollLines == 0) {
+                    single = new File(line.getOptionValue("out"));
+                }
+                if (line.hasOption("append") && line.hasOption("incremental") && single != null) {
+                    // a failed run's rows would be appended a second time
+                    IncrementalExport.truncate(getStateFile(line), line.getOptionValue("out"));
+                }
+                appending = line.hasOption("append") && new File(line.getOptionValue("out")).length() > 0;
+                file = new OutputSink(line.getOptionValue("out"),
+                                      line.getOptionValue("compress"),
+                                      rollBytes,
+                                      rollLines,
+                                      line.hasOption("append"));
+            }
+            u.setOut(file != null ? file : out);
 
             /**
              * Options that affect behavior
              */
             if (line.hasOption("f")) {
-                u.setFetchSize(Integer.parseInt(line.getOptionValue("f")));
+                u.setFetchSize(line.getOptionValue("f"));
+            }
+            if (line.hasOption("batch")) {
+                u.setBatchSize(Integer.parseInt(line.getOptionValue("batch")));
+            }
+            if (line.hasOption("commit")) {
+                u.setCommitInterval(Integer.parseInt(line.getOptionValue("commit")));
+            }
+            if (line.hasOption("parallel")) {
+                u.setParallel(Integer.parseInt(line.getOptionValue("parallel")));
+            }
+            if (line.hasOption("pipeline")) {
+                u.setPipelined(true);
             }
 
 
             if (line.hasOption("h") || line.hasOption("help")) {
                 HelpFormatter formatter = new HelpFormatter();
-                formatter.printHelp("db", options);
+                PrintWriter pw = new PrintWriter(out);
+                formatter.printHelp(pw, HelpFormatter.DEFAULT_WIDTH, "db", null, options,
+                                    HelpFormatter.DEFAULT_LEFT_PAD,
+                                    HelpFormatter.DEFAULT_DESC_PAD, null);
+                pw.flush();
             }
 
             if (line.hasOption("bind")) {
@@ -459,36 +1370,16 @@ public abstract class DBUtil {
                 u.setBindVariables(map);
             }
 
-            if (line.hasOption("formatter")) {
-                String formatter = line.getOptionValue("formatter");
-                if ("csv".equals(formatter)) {
-                    u.setFormatter(new SimpleFormatter(","));
-                }
-                else if ("space".equals(formatter)) {
-                    SimpleFormatter f = new SimpleFormatter();
-                    f.setDelim(" ");
-                    u.setFormatter(f);
-                }
-                else if ("tab".equals(formatter)) {
-                    SimpleFormatter f = new SimpleFormatter();
-                    f.setDelim("	");
-                    u.setFormatter(f);
-                }
-                else {
-                    // assume its a fully qualified formatter name and use reflection.
-                    Class classdef = Class.forName(line.getOptionValue("formatter"));
-                    u.setFormatter((Formatter) classdef.newInstance());
-                }
-                log.debug("using formatter: " + u.getFormatter().getClass().getName());
-            }
-            else {
-                // Set the default formatter otherwise
-                u.setFormatter(new TabularFormatter());
-            }
+            u.setFormatterName(line.getOptionValue("formatter"));
+            log.debug("using formatter: " + u.getFormatter().getClass().getName());
 
             // Set the table name hack...
             if (line.hasOption("t")) {
-                u.getFormatter().setTableName(line.getOptionValue("t"));
+                u.setTableName(line.getOptionValue("t"));
+            }
+
+            if (log.isDebugEnabled()) {
+                log.debug("startup: " + (System.currentTimeMillis() - start) + " ms");
             }
 
             /**
@@ -503,6 +1394,26 @@ public abstract class DBUtil {
                 }
                 u.describe(line.getOptionValue("d"));
             }
+            else if (line.hasOption("q") && line.hasOption("incremental")) {
+                incremental = u.incremental(line.getOptionValue("q"),
+                                            line.getOptionValue("incremental"),
+                                            getStateFile(line),
+                                            !appending);
+            }
+            else if (line.hasOption("q") && line.hasOption("copy")) {
+                String partitions = line.getOptionValue("partitions");
+                u.copy(line.getOptionValue("q"),
+                       line.getOptionValue("copy"),
+                       line.getOptionValue("split-by"),
+                       partitions == null ? 4 : Integer.parseInt(partitions));
+            }
+            else if (line.hasOption("q") && line.hasOption("split-by")) {
+                String partitions = line.getOptionValue("partitions");
+                u.export(line.getOptionValue("q"),
+                         line.getOptionValue("split-by"),
+                         partitions == null ? 4 : Integer.parseInt(partitions),
+                         line.getOptionValue("partition-file"));
+            }
             else if (line.hasOption("q")) {
                 u.query(line.getOptionValue("q"));
             }
@@ -518,6 +1429,18 @@ public abstract class DBUtil {
             else if (line.hasOption("input")) {
                 u.processFile(line.getOptionValue("input"));
             }
+            else if (line.hasOption("dataset")) {
+                u.dataset(line.getOptionValue("dataset"));
+            }
+            else if (line.hasOption("load-dataset")) {
+                u.loadDataset(line.getOptionValue("load-dataset"));
+            }
+            else if (line.hasOption("import")) {
+                u.importFile(line.getOptionValue("import"));
+            }
+            else if (line.hasOption("restore")) {
+                u.restore(line.getOptionValue("restore"));
+            }
             else if (line.hasOption("ddl")) {
                 String s = line.getOptionValue("ddl");
                 if (StringUtils.isNotEmpty(s)) {
@@ -535,5 +1458,23 @@ public abstract class DBUtil {
         catch (Exception e) {
             log.error(e.getMessage(), e);
         }
+        finally {
+            try {
+                out.flush();
+                if (file != null) {
+                    file.close();
+                }
+                // only once the output is complete, compressed output included
+                if (incremental != null) {
+                    incremental.save(single);
+                }
+            }
+            catch (IOException e) {
+                log.error(e.getMessage(), e);
+            }
+            if (u != null) {
+                u.close();
+            }
+        }
     }
 }
@@ -0,0 +1,20 @@
+package com.fmaritato.dbutil;
+
+/**
+ * Supplies DBUtil implementations by name. Implementations are found with
+ * java.util.ServiceLoader through
+ * META-INF/services/com.fmaritato.dbutil.DialectProvider.
+ */
+public interface DialectProvider {
+
+    /**
+     * @return the dialect names this provider knows, e.g. "oracle"
+     */
+    public String[] getNames();
+
+    /**
+     * @param name one of getNames()
+     * @return a new DBUtil for the dialect
+     */
+    public DBUtil create(String name);
+}
@@ -0,0 +1,191 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Looks up DBUtil implementations by dialect name through the registered
+ * DialectProviders, without building an application context.
+ * <p/>
+ * -Ddb.springConfig=spring.cfg.xml switches back to looking the beans up in
+ * a Spring context (OracleDBUtil, SQLServerDBUtil, SybaseDBUtil and the
+ * DBUtil default), for setups that configure them there.
+ * <p/>
+ * When no dialect is forced on the command line, {@link #createDetected}
+ * works it out from db.url, and when the url doesn't give it away from the
+ * product name the database reports.
+ */
+public class DialectRegistry {
+
+    private final static Log log =
+            LogFactory.getLog(DialectRegistry.class);
+
+    public static final String PROP_SPRING_CONFIG = "db.springConfig";
+    public static final String PROP_DIALECT = "db.dialect";
+    public static final String DEFAULT_DIALECT = "oracle";
+    public static final String GENERIC_DIALECT = "generic";
+
+    private static Map<String, DialectProvider> providers;
+    private static final Map<String, String> detected = new HashMap<String, String>();
+
+    private DialectRegistry() {
+    }
+
+    /**
+     * @param name dialect name, null for the default one
+     * @return a new DBUtil for the dialect
+     * @throws Exception if there is no such dialect
+     */
+    public static DBUtil create(String name) throws Exception {
+        String config = System.getProperty(PROP_SPRING_CONFIG);
+        if (config != null) {
+            return SpringDialects.create(config, name);
+        }
+        if (name == null) {
+            name = DEFAULT_DIALECT;
+        }
+        DialectProvider provider = getProviders().get(name);
+        if (provider == null) {
+            throw new IllegalArgumentException("Unknown dialect: " + name +
+                                               ", known dialects: " + getProviders().keySet());
+        }
+        return provider.create(name);
+    }
+
+    /**
+     * A DBUtil for the dialect of the database in db.url. -Ddb.dialect wins
+     * if it is set, then the url's driver prefix. Otherwise the database is
+     * asked for its product name over a connection of a generic pool. If
+     * the detected dialect has driver defaults of its own that pool is
+     * closed and the dialect opens its own, at the cost of a second login;
+     * if not it takes the generic pool over, connection and all. The answer
+     * is remembered per url, so this only happens the first time.
+     *
+     * @return a new DBUtil for the dialect
+     * @throws Exception if the database has to be asked and can't be reached
+     */
+    public static DBUtil createDetected() throws Exception {
+        String name = System.getProperty(PROP_DIALECT);
+        if (name != null) {
+            return create(name);
+        }
+        String url = System.getProperty(DBUtil.PROP_DB_URL);
+        if (url == null) {
+            return create(DEFAULT_DIALECT);
+        }
+        synchronized (detected) {
+            name = detected.get(url);
+            if (name == null) {
+                name = fromUrl(url);
+                if (name != null) {
+                    log.info("dialect: " + name);
+                    detected.put(url, name);
+                }
+            }
+        }
+        if (name != null) {
+            return create(name);
+        }
+
+        DBUtil u = create(GENERIC_DIALECT);
+        Connection c = null;
+        try {
+            c = u.getConnection();
+            String product = c.getMetaData().getDatabaseProductName();
+            log.debug("database product: " + product);
+            name = fromProductName(product);
+            if (!GENERIC_DIALECT.equals(name)) {
+                DBUtil dialect = create(name);
+                String user = System.getProperty(DBUtil.PROP_DB_USER);
+                String pass = System.getProperty(DBUtil.PROP_DB_PASS);
+                if (dialect.getConnectionProperties(user, pass).equals(u.getConnectionProperties(user, pass))) {
+                    u.handOver(dialect, c);
+                }
+                else {
+                    // driver properties only apply when logging in
+                    u.releaseConnection(c);
+                    c = null;
+                    u.close();
+                }
+                u = dialect;
+            }
+        }
+        catch (Exception e) {
+            u.releaseConnection(c);
+            u.close();
+            throw e;
+        }
+        u.releaseConnection(c);
+        log.info("dialect: " + name);
+        synchronized (detected) {
+            detected.put(url, name);
+        }
+        return u;
+    }
+
+    /**
+     * @param url jdbc url
+     * @return the dialect the driver prefix belongs to, null if unknown
+     */
+    static String fromUrl(String url) {
+        String u = url.toLowerCase();
+        if (u.startsWith("jdbc:oracle:")) {
+            return "oracle";
+        }
+        if (u.startsWith("jdbc:sqlserver:") ||
+            u.startsWith("jdbc:microsoft:sqlserver:") ||
+            u.startsWith("jdbc:jtds:sqlserver:")) {
+            return "sqlserver";
+        }
+        if (u.startsWith("jdbc:sybase:") ||
+            u.startsWith("jdbc:jtds:sybase:")) {
+            return "sybase";
+        }
+        if (u.startsWith("jdbc:mysql:") ||
+            u.startsWith("jdbc:mariadb:")) {
+            return "mysql";
+        }
+        return null;
+    }
+
+    /**
+     * @param product DatabaseMetaData.getDatabaseProductName()
+     * @return the matching dialect, generic if there is none
+     */
+    public static String fromProductName(String product) {
+        String p = product == null ? "" : product.toLowerCase();
+        if (p.startsWith("oracle")) {
+            return "oracle";
+        }
+        if (p.startsWith("microsoft sql server")) {
+            return "sqlserver";
+        }
+        if (p.startsWith("sybase") || p.startsWith("adaptive server") || p.startsWith("ase")) {
+            return "sybase";
+        }
+        if (p.startsWith("mysql") || p.startsWith("mariadb")) {
+            return "mysql";
+        }
+        return GENERIC_DIALECT;
+    }
+
+    private static synchronized Map<String, DialectProvider> getProviders() {
+        if (providers == null) {
+            providers = new HashMap<String, DialectProvider>();
+            for (DialectProvider provider : ServiceLoader.load(DialectProvider.class)) {
+                for (String name : provider.getNames()) {
+                    providers.put(name, provider);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("dialects: " + providers.keySet());
+            }
+        }
+        return providers;
+    }
+}
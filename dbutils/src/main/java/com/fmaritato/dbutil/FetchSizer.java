@@ -0,0 +1,200 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Picks a fetch size for a result from the width of its rows, so that one
+ * round trip moves about the same number of bytes whether the rows are
+ * three narrow columns or a dozen VARCHAR2(4000)s.
+ * <p/>
+ * The row width is estimated from the declared types and precisions in the
+ * ResultSetMetaData, roughly the way drivers size their fetch buffers
+ * (character data counted at two bytes a character, LOBs as their locator).
+ * The result is remembered per sql text, so the next run of the same
+ * statement starts out with it.
+ * <p/>
+ * -Ddb.fetchBudget sets the bytes per round trip (default 1m, k and m
+ * suffixes are understood).
+ */
+public class FetchSizer {
+
+    private final static Log log =
+            LogFactory.getLog(FetchSizer.class);
+
+    public static final String PROP_FETCH_BUDGET = "db.fetchBudget";
+
+    public static final int MIN_FETCH_SIZE = 10;
+    public static final int MAX_FETCH_SIZE = 10000;
+
+    private static final int ROW_OVERHEAD = 16;
+    private static final int COLUMN_OVERHEAD = 8;
+    private static final int MAX_CHAR_PRECISION = 32767;
+    private static final int MAX_REMEMBERED = 256;
+
+    private final long budget;
+    private final Map<String, Integer> sizes =
+            new LinkedHashMap<String, Integer>(16, 0.75f, true) {
+                protected boolean removeEldestEntry(Map.Entry<String, Integer> eldest) {
+                    return size() > MAX_REMEMBERED;
+                }
+            };
+
+    public FetchSizer() {
+        this(parseBytes(PROP_FETCH_BUDGET, System.getProperty(PROP_FETCH_BUDGET), 1024 * 1024));
+    }
+
+    public FetchSizer(long budget) {
+        this.budget = budget;
+    }
+
+    public long getBudget() {
+        return budget;
+    }
+
+    /**
+     * @param sql statement text
+     * @return the fetch size worked out the last time sql ran, 0 if unknown
+     */
+    public synchronized int getFetchSize(String sql) {
+        Integer size = sizes.get(sql);
+        return size == null ? 0 : size;
+    }
+
+    /**
+     * Work out the fetch size for a result and remember it for sql.
+     *
+     * @param sql  statement text
+     * @param meta the result's metadata
+     * @return rows per round trip
+     * @throws SQLException if the metadata can't be read
+     */
+    public int getFetchSize(String sql, ResultSetMetaData meta) throws SQLException {
+        int width = getRowWidth(meta);
+        long rows = budget / width;
+        int size = (int) Math.max(MIN_FETCH_SIZE, Math.min(MAX_FETCH_SIZE, rows));
+        if (log.isDebugEnabled()) {
+            log.debug("row width ~" + width + " bytes, fetch size " + size);
+        }
+        synchronized (this) {
+            sizes.put(sql, size);
+        }
+        return size;
+    }
+
+    /**
+     * @param meta result metadata
+     * @return estimated bytes a row takes in the driver's fetch buffer
+     * @throws SQLException if the metadata can't be read
+     */
+    public static int getRowWidth(ResultSetMetaData meta) throws SQLException {
+        int width = ROW_OVERHEAD;
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            width += COLUMN_OVERHEAD + getColumnWidth(meta.getColumnType(i), getPrecision(meta, i));
+        }
+        return width;
+    }
+
+    static int getColumnWidth(int type, int precision) {
+        switch (type) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+            case Types.TINYINT:
+                return 1;
+            case Types.SMALLINT:
+                return 2;
+            case Types.INTEGER:
+            case Types.REAL:
+                return 4;
+            case Types.BIGINT:
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                return 8;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                // oracle NUMBER is up to 22 bytes whatever the precision
+                return 22;
+            case Types.DATE:
+            case Types.TIME:
+                return 8;
+            case Types.TIMESTAMP:
+                return 12;
+            case Types.CHAR:
+            case Types.VARCHAR:
+            case Types.NCHAR:
+            case Types.NVARCHAR:
+                return 2 * clamp(precision, 1, MAX_CHAR_PRECISION, 255);
+            case Types.BINARY:
+            case Types.VARBINARY:
+                return clamp(precision, 1, MAX_CHAR_PRECISION, 255);
+            case Types.CLOB:
+            case Types.NCLOB:
+            case Types.BLOB:
+                // a locator, the data itself is fetched separately
+                return 128;
+            case Types.LONGVARCHAR:
+            case Types.LONGNVARCHAR:
+            case Types.LONGVARBINARY:
+                // LONG and TEXT columns come inline, count them as 32K
+                return 2 * MAX_CHAR_PRECISION;
+            default:
+                return 32;
+        }
+    }
+
+    private static int getPrecision(ResultSetMetaData meta, int column) {
+        try {
+            return meta.getPrecision(column);
+        }
+        catch (Exception e) {
+            // some drivers throw for types without a precision
+            return 0;
+        }
+    }
+
+    private static int clamp(int value, int min, int max, int unknown) {
+        if (value <= 0) {
+            return unknown;
+        }
+        return Math.max(min, Math.min(max, value));
+    }
+
+    /**
+     * @param name         what s is the value of, for the warning if it is bad
+     * @param s            bytes, with an optional k, m or g suffix
+     * @param defaultValue returned if s is null or bad
+     * @return the number of bytes
+     */
+    public static long parseBytes(String name, String s, long defaultValue) {
+        if (s == null) {
+            return defaultValue;
+        }
+        String value = s.trim().toLowerCase();
+        long unit = 1;
+        if (value.endsWith("k")) {
+            unit = 1024;
+        }
+        else if (value.endsWith("m")) {
+            unit = 1024 * 1024;
+        }
+        else if (value.endsWith("g")) {
+            unit = 1024 * 1024 * 1024;
+        }
+        if (unit > 1) {
+            value = value.substring(0, value.length() - 1);
+        }
+        try {
+            return Long.parseLong(value.trim()) * unit;
+        }
+        catch (NumberFormatException e) {
+            log.warn("bad value for " + name + ": " + s);
+            return defaultValue;
+        }
+    }
+}
@@ -0,0 +1,69 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+
+/**
+ * Fallback for databases without a dialect of their own. Queries and
+ * scripts work as usual; the catalog commands only go as far as
+ * DatabaseMetaData does.
+ */
+public class GenericDBUtil extends DBUtil {
+
+    private static Log logger =
+            LogFactory.getLog(GenericDBUtil.class);
+
+    public GenericDBUtil() {
+        super();
+    }
+
+    public String getDialectName() {
+        return "generic";
+    }
+
+    public void listStoredProcs() {
+        Connection c = null;
+        ResultSet rs = null;
+        try {
+            c = getConnection();
+            rs = c.getMetaData().getProcedures(null, null, "%");
+            while (rs.next()) {
+                getOut().write(rs.getString("PROCEDURE_NAME"));
+                getOut().write("\n");
+            }
+            getOut().flush();
+        }
+        catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        finally {
+            if (rs != null) {
+                try {
+                    rs.close();
+                }
+                catch (Exception e) {
+                }
+            }
+            releaseConnection(c);
+        }
+    }
+
+    public void dumpStoredProcedure(String procName) {
+        logger.error("dumping stored procedures is not supported for this database");
+    }
+
+    public void dumpView(String viewName) {
+        logger.error("dumping views is not supported for this database");
+    }
+
+    public void dumpDDL(String schema, String obj, String type, String dir) throws Exception {
+        logger.error("dumping ddl is not supported for this database");
+    }
+
+    public void dumpDDL(String schema, String dir) throws Exception {
+        logger.error("dumping ddl is not supported for this database");
+    }
+}
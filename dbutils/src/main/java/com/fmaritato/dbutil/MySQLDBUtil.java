@@ -0,0 +1,201 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.Properties;
+
+/**
+ * MySQL and MariaDB. Results are streamed row by row by default (the driver
+ * reads the whole result into memory for any other fetch size unless
+ * useCursorFetch is on), and DDL comes from SHOW CREATE.
+ */
+public class MySQLDBUtil extends DBUtil {
+
+    private static Log logger =
+            LogFactory.getLog(MySQLDBUtil.class);
+
+    public MySQLDBUtil() {
+        super();
+    }
+
+    public String getDialectName() {
+        return "mysql";
+    }
+
+    /**
+     * Integer.MIN_VALUE is Connector/J's switch for streaming a forward only,
+     * read only result.
+     */
+    protected int getDefaultFetchSize() {
+        return Integer.MIN_VALUE;
+    }
+
+    protected Properties getConnectionProperties(String username, String password) {
+        Properties props = super.getConnectionProperties(username, password);
+        // send --batch inserts as multi row statements
+        setDefault(props, "rewriteBatchedStatements", "true");
+        setDefault(props, "cachePrepStmts", "true");
+        setDefault(props, "useServerPrepStmts", "false");
+        // don't ask the server for autocommit/isolation on every call
+        setDefault(props, "useLocalSessionState", "true");
+        return props;
+    }
+
+    public void listStoredProcs() {
+        query("select routine_name from information_schema.routines " +
+              "where routine_schema = database() order by routine_name");
+    }
+
+    public void dumpStoredProcedure(String procName) {
+        HashMap<String, String> m = new HashMap<String, String>();
+        m.put("1", procName);
+        setBindVariables(m);
+        query("select routine_definition from information_schema.routines " +
+              "where routine_schema = database() and routine_name = ?");
+    }
+
+    public void dumpView(String viewName) {
+        HashMap<String, String> m = new HashMap<String, String>();
+        m.put("1", viewName);
+        setBindVariables(m);
+        query("select view_definition from information_schema.views " +
+              "where table_schema = database() and table_name = ?");
+    }
+
+    public void dumpDDL(String schema, String obj, String type, String dir) throws Exception {
+        Connection c = null;
+        try {
+            c = getConnection();
+            dumpDDL(c, schema, obj, type, dir);
+        }
+        finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Write SHOW CREATE &lt;type&gt; for one object to dir/type/object.sql.
+     *
+     * @param type TABLE, VIEW, PROCEDURE, FUNCTION or TRIGGER
+     */
+    public void dumpDDL(Connection c,
+                        String schema,
+                        String object,
+                        String type,
+                        String directory) throws Exception {
+
+        String name = quote(object);
+        if (schema != null) {
+            name = quote(schema) + "." + name;
+        }
+        Statement stmt = null;
+        try {
+            stmt = c.createStatement();
+            ResultSet rs = stmt.executeQuery("show create " + type.toLowerCase() + " " + name);
+
+            File f = new File(directory + File.separator +
+                              type.toLowerCase());
+            if (!f.exists()) {
+                f.mkdirs();
+            }
+            // the statement is in the "Create Xxx" column, which isn't
+            // always the second one (views and triggers have more)
+            int column = 2;
+            for (int i = 1; i <= rs.getMetaData().getColumnCount(); i++) {
+                if (rs.getMetaData().getColumnLabel(i).toLowerCase().startsWith("create ")) {
+                    column = i;
+                    break;
+                }
+            }
+            Writer out = new BufferedWriter
+                    (new FileWriter(f.getAbsolutePath() + File.separator +
+                                    object.toLowerCase() + ".sql"));
+            try {
+                while (rs.next()) {
+                    out.write(rs.getString(column));
+                    out.write(";\n");
+                }
+            }
+            finally {
+                out.close();
+            }
+        }
+        catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+    }
+
+    public void dumpDDL(String schema, String dir) throws Exception {
+        Connection c = null;
+        try {
+            c = getConnection();
+            logger.info("Dumping tables and views");
+            dumpObjects(c, schema, dir,
+                        "select table_name, case table_type when 'VIEW' then 'VIEW' else 'TABLE' end " +
+                        "from information_schema.tables where table_schema = ?");
+            logger.info("Dumping routines");
+            dumpObjects(c, schema, dir,
+                        "select routine_name, routine_type " +
+                        "from information_schema.routines where routine_schema = ?");
+            logger.info("Dumping triggers");
+            dumpObjects(c, schema, dir,
+                        "select trigger_name, 'TRIGGER' " +
+                        "from information_schema.triggers where trigger_schema = ?");
+        }
+        catch (Exception e) {
+            logger.error(e.getMessage(), e);
+        }
+        finally {
+            releaseConnection(c);
+        }
+    }
+
+    private void dumpObjects(Connection c, String schema, String dir, String sql)
+            throws Exception {
+        if (schema == null) {
+            sql = sql.replace("= ?", "= database()");
+        }
+        PreparedStatement stmt = null;
+        ResultSet rs = null;
+        try {
+            stmt = c.prepareStatement(sql);
+            if (schema != null) {
+                stmt.setString(1, schema);
+            }
+            rs = stmt.executeQuery();
+            while (rs.next()) {
+                String name = rs.getString(1);
+                String type = rs.getString(2);
+                logger.debug(type.toLowerCase() + ": " + name);
+                dumpDDL(c, schema, name, type, dir);
+            }
+        }
+        finally {
+            if (rs != null) {
+                rs.close();
+            }
+            if (stmt != null) {
+                stmt.close();
+            }
+        }
+    }
+
+    private static String quote(String name) {
+        return "`" + name.replace("`", "``") + "`";
+    }
+}
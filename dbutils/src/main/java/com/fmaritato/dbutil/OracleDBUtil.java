@@ -11,6 +11,7 @@ import java.io.Writer;
 import java.sql.Connection;
 import java.sql.PreparedStatement;
 import java.sql.ResultSet;
+import java.util.Properties;
 
 public class OracleDBUtil extends DBUtil {
 
@@ -21,15 +22,55 @@ public class OracleDBUtil extends DBUtil {
         super();
     }
 
+    public String getDialectName() {
+        return "oracle";
+    }
+
+    /**
+     * The thin driver fetches 10 rows per round trip unless told otherwise.
+     */
+    protected int getDefaultFetchSize() {
+        return 500;
+    }
+
+    protected Properties getConnectionProperties(String username, String password) {
+        Properties props = super.getConnectionProperties(username, password);
+        // also covers statements the dialect runs without going through query()
+        setDefault(props, "defaultRowPrefetch", String.valueOf(getFetchSize()));
+        // the first bytes of each LOB come back with the row instead of
+        // costing a round trip per LOB (11.1 drivers and up)
+        setDefault(props, "oracle.jdbc.defaultLobPrefetchSize",
+                   String.valueOf(Integer.getInteger(PROP_LOB_PREFETCH, 32 * 1024)));
+        return props;
+    }
+
     public void dumpDDL(String schema,
                         String object,
                         String type,
                         String directory) throws Exception {
 
         Connection c = null;
-        PreparedStatement stmt = null;
         try {
             c = getConnection();
+            dumpDDL(c, schema, object, type, directory);
+        }
+        finally {
+            releaseConnection(c);
+        }
+    }
+
+    /**
+     * Dump the ddl for a specific object using a connection the caller
+     * already holds, so a whole schema dump runs on one session.
+     */
+    public void dumpDDL(Connection c,
+                        String schema,
+                        String object,
+                        String type,
+                        String directory) throws Exception {
+
+        PreparedStatement stmt = null;
+        try {
             stmt = c.prepareStatement("select DBMS_METADATA.GET_DDL(?,?) from dual");
             stmt.setString(1, type);
             stmt.setString(2, object);
@@ -55,9 +96,6 @@ public class OracleDBUtil extends DBUtil {
             if (stmt != null) {
                 stmt.close();
             }
-            if (c != null) {
-                c.close();
-            }
         }
     }
 
@@ -78,9 +116,7 @@ public class OracleDBUtil extends DBUtil {
             logger.error(e.getMessage(), e);
         }
         finally {
-            if (c != null) {
-                c.close();
-            }
+            releaseConnection(c);
         }
     }
 
@@ -93,7 +129,7 @@ public class OracleDBUtil extends DBUtil {
             while (rs.next()) {
                 String name = rs.getString("sequence_name");
                 logger.debug("sequence: " + name);
-                dumpDDL(null, name, "SEQUENCE", dir);
+                dumpDDL(c, null, name, "SEQUENCE", dir);
             }
         }
         finally {
@@ -117,7 +153,7 @@ public class OracleDBUtil extends DBUtil {
                 logger.debug("table: " + name);
                 if (name.indexOf("$") < 0 &&
                     !name.startsWith("SYS")) {
-                    dumpDDL(null, name, "TABLE", dir);
+                    dumpDDL(c, null, name, "TABLE", dir);
                 }
                 else {
                     logger.info("skipping table: " + name);
@@ -145,7 +181,7 @@ public class OracleDBUtil extends DBUtil {
                 logger.debug("view: " + name);
                 if (name.indexOf("$") < 0 &&
                     !name.startsWith("SYS")) {
-                    dumpDDL(null, name, "VIEW", dir);
+                    dumpDDL(c, null, name, "VIEW", dir);
                 }
                 else {
                     logger.info("skipping table: " + name);
@@ -171,7 +207,7 @@ public class OracleDBUtil extends DBUtil {
             while (rs.next()) {
                 String name = rs.getString("trigger_name");
                 logger.debug("trigger: " + name);
-                dumpDDL(null, name, "TRIGGER", dir);
+                dumpDDL(c, null, name, "TRIGGER", dir);
             }
         }
         finally {
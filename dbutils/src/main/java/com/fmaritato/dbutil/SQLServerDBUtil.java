@@ -6,6 +6,7 @@ import org.apache.commons.logging.LogFactory;
 import java.sql.Connection;
 import java.sql.ResultSet;
 import java.sql.Statement;
+import java.util.Properties;
 
 public class SQLServerDBUtil extends DBUtil {
 
@@ -16,6 +17,25 @@ public class SQLServerDBUtil extends DBUtil {
     super();
   }
 
+  public String getDialectName() {
+    return "sqlserver";
+  }
+
+  protected int getDefaultFetchSize() {
+    return 1000;
+  }
+
+  protected Properties getConnectionProperties(String username, String password) {
+    Properties props = super.getConnectionProperties(username, password);
+    // stream big results instead of reading them into memory up front
+    setDefault(props, "responseBuffering", "adaptive");
+    // sendStringParametersAsUnicode stays at the driver's true: false would
+    // mangle anything outside the code page bound to NVARCHAR columns. On a
+    // VARCHAR-only schema -Ddb.connection.sendStringParametersAsUnicode=false
+    // lets the server use its indexes instead of converting every row.
+    return props;
+  }
+
     public void dumpDDL(String schema, String obj, String type, String dir) throws Exception {
         //To change body of implemented methods use File | Settings | File Templates.
     }
@@ -34,15 +54,17 @@ public class SQLServerDBUtil extends DBUtil {
                                        viewName+"'");
       while (rs.next()) {
         String txt = rs.getString(1);
-        System.out.println(txt);
+        getOut().write(txt);
+        getOut().write("\n");
       }
+      getOut().flush();
     }
     catch (Exception e) {
       logger.error( e.getMessage(), e);
     }
     finally {
       if (stmt != null) { try { stmt.close(); } catch (Exception e) { } }
-      if (c != null) { try { c.close(); } catch (Exception e) { } }
+      releaseConnection(c);
     }
   }
 
@@ -56,15 +78,17 @@ public class SQLServerDBUtil extends DBUtil {
         ("select name StoredProcedures from sysobjects where xtype = 'P' order by name");
       while (rs.next()) {
         String txt = rs.getString(1);
-        System.out.println(txt);
+        getOut().write(txt);
+        getOut().write("\n");
       }
+      getOut().flush();
     }
     catch (Exception e) {
       logger.error( e.getMessage(), e);
     }
     finally {
       if (stmt != null) { try { stmt.close(); } catch (Exception e) { } }
-      if (c != null) { try { c.close(); } catch (Exception e) { } }
+      releaseConnection(c);
     }
   }
   public void dumpStoredProcedure(String procName) {
@@ -77,15 +101,17 @@ public class SQLServerDBUtil extends DBUtil {
                                        procName+"'");
       while (rs.next()) {
         String txt = rs.getString(1);
-        System.out.println(txt);
+        getOut().write(txt);
+        getOut().write("\n");
       }
+      getOut().flush();
     }
     catch (Exception e) {
       logger.error( e.getMessage(), e);
     }
     finally {
       if (stmt != null) { try { stmt.close(); } catch (Exception e) { } }
-      if (c != null) { try { c.close(); } catch (Exception e) { } }
+      releaseConnection(c);
     }
   }
 }
@@ -0,0 +1,42 @@
+package com.fmaritato.dbutil;
+
+import org.springframework.context.ApplicationContext;
+import org.springframework.context.support.ClassPathXmlApplicationContext;
+
+/**
+ * Spring lookup behind -Ddb.springConfig. Kept in its own class so the
+ * Spring classes are only loaded when that property is set.
+ */
+class SpringDialects {
+
+    private static ApplicationContext ctx;
+
+    private SpringDialects() {
+    }
+
+    static synchronized DBUtil create(String config, String name) {
+        if (ctx == null) {
+            ctx = new ClassPathXmlApplicationContext(config);
+        }
+        return (DBUtil) ctx.getBean(getBeanName(name));
+    }
+
+    private static String getBeanName(String name) {
+        if ("oracle".equals(name)) {
+            return "OracleDBUtil";
+        }
+        else if ("sqlserver".equals(name)) {
+            return "SQLServerDBUtil";
+        }
+        else if ("sybase".equals(name)) {
+            return "SybaseDBUtil";
+        }
+        else if ("mysql".equals(name)) {
+            return "MySQLDBUtil";
+        }
+        else if ("generic".equals(name)) {
+            return "GenericDBUtil";
+        }
+        return "DBUtil";
+    }
+}
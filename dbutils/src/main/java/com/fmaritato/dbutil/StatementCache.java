@@ -0,0 +1,135 @@
+package com.fmaritato.dbutil;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Least recently used cache of the PreparedStatements of one connection,
+ * keyed by sql text, so running the same statement again skips the parse
+ * round trip.
+ * <p/>
+ * A statement is taken out of the cache while it is in use and put back by
+ * release(), so the same sql can run nested on one connection and each
+ * caller still gets a statement of its own. Once the cache holds maxSize
+ * statements the least recently released one is closed to make room.
+ * <p/>
+ * Not thread safe, a connection is only used by one thread at a time.
+ */
+public class StatementCache {
+
+    private final static Log log =
+            LogFactory.getLog(StatementCache.class);
+
+    private final Connection connection;
+    private final int maxSize;
+    private final LinkedHashMap<String, PreparedStatement> statements;
+
+    private long hits = 0;
+    private long misses = 0;
+    private long evictions = 0;
+
+    public StatementCache(Connection connection, int maxSize) {
+        this.connection = connection;
+        this.maxSize = maxSize;
+        this.statements = new LinkedHashMap<String, PreparedStatement>(16, 0.75f, true) {
+            protected boolean removeEldestEntry(Map.Entry<String, PreparedStatement> eldest) {
+                if (size() > StatementCache.this.maxSize) {
+                    evictions++;
+                    closeQuietly(eldest.getValue());
+                    return true;
+                }
+                return false;
+            }
+        };
+    }
+
+    /**
+     * @param sql statement text
+     * @return a cached statement for sql, or a newly prepared one
+     * @throws SQLException if the statement can't be prepared
+     */
+    public PreparedStatement prepare(String sql) throws SQLException {
+        PreparedStatement stmt = statements.remove(sql);
+        if (stmt != null) {
+            hits++;
+            return stmt;
+        }
+        misses++;
+        return connection.prepareStatement(sql);
+    }
+
+    /**
+     * Put a statement from prepare() back. Its parameters are cleared; if
+     * that fails the statement is closed instead of cached.
+     *
+     * @param sql  the text it was prepared with
+     * @param stmt the statement
+     */
+    public void release(String sql, PreparedStatement stmt) {
+        if (maxSize <= 0) {
+            closeQuietly(stmt);
+            return;
+        }
+        try {
+            stmt.clearParameters();
+            stmt.clearWarnings();
+        }
+        catch (SQLException e) {
+            log.debug("not caching statement: " + e.getMessage());
+            closeQuietly(stmt);
+            return;
+        }
+        PreparedStatement old = statements.put(sql, stmt);
+        if (old != null && old != stmt) {
+            closeQuietly(old);
+        }
+    }
+
+    /**
+     * Close every cached statement.
+     */
+    public void close() {
+        for (Iterator<PreparedStatement> i = statements.values().iterator(); i.hasNext();) {
+            closeQuietly(i.next());
+            i.remove();
+        }
+    }
+
+    public int size() {
+        return statements.size();
+    }
+
+    public int getMaxSize() {
+        return maxSize;
+    }
+
+    public long getHits() {
+        return hits;
+    }
+
+    public long getMisses() {
+        return misses;
+    }
+
+    public long getEvictions() {
+        return evictions;
+    }
+
+    private static void closeQuietly(PreparedStatement stmt) {
+        try {
+            stmt.close();
+        }
+        catch (SQLException e) {
+            if (log.isWarnEnabled()) {
+                log.warn(e);
+            }
+        }
+    }
+}
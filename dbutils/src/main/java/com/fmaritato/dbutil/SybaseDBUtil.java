@@ -3,6 +3,9 @@ package com.fmaritato.dbutil;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.HashMap;
 
 /**
@@ -13,6 +16,27 @@ public class SybaseDBUtil extends DBUtil {
 
     private transient Log log = LogFactory.getLog(SybaseDBUtil.class);
 
+    public String getDialectName() {
+        return "sybase";
+    }
+
+    protected int getDefaultFetchSize() {
+        return 500;
+    }
+
+    /**
+     * syscomments and text columns get cut at 32K otherwise.
+     */
+    protected void initConnection(Connection c) throws SQLException {
+        Statement stmt = c.createStatement();
+        try {
+            stmt.execute("set textsize 2147483647");
+        }
+        finally {
+            stmt.close();
+        }
+    }
+
     public void dumpDDL(String schema, String obj, String type, String dir) throws Exception {
         //To change body of implemented methods use File | Settings | File Templates.
     }
@@ -0,0 +1,35 @@
+package com.fmaritato.dbutil;
+
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+
+/**
+ * Worker threads for the commands that run on several pooled connections
+ * at once (parallel scripts, partitioned exports, copies, restores and
+ * imports). Size them with {@link DBUtil#reserveConnections} so each can
+ * hold a connection.
+ */
+public class Workers {
+
+    private Workers() {
+    }
+
+    /**
+     * @param name    the threads are called name-0, name-1...
+     * @param threads number of threads
+     * @return a fixed pool of daemon threads, so a failed run doesn't keep
+     *         the JVM up; shut it down when done
+     */
+    public static ExecutorService start(final String name, int threads) {
+        return Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            private int count = 0;
+
+            public synchronized Thread newThread(Runnable r) {
+                Thread t = new Thread(r, name + "-" + (count++));
+                t.setDaemon(true);
+                return t;
+            }
+        });
+    }
+}
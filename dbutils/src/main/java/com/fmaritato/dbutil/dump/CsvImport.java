@@ -0,0 +1,935 @@
+package com.fmaritato.dbutil.dump;
+
+import com.fmaritato.dbutil.DBUtil;
+import com.fmaritato.dbutil.Workers;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Bulk loads a CSV or TSV file, as CsvFormatter writes it, into a table:
+ * RFC 4180 quoting, an empty field is null and "" an empty string.
+ * <p/>
+ * The file is split into byte ranges on record boundaries, found in one
+ * pass that follows the quotes as the parser does, so a quoted newline
+ * never splits a record and a stray quote inside an unquoted value doesn't
+ * open one. Each range is loaded on its own pooled connection with one
+ * prepared INSERT, in JDBC batches of batchSize rows committed every
+ * commitInterval rows. Records are parsed in place in a byte buffer read
+ * from the file and bound with typed setters for the column types
+ * DatabaseMetaData.getColumns gives; integers are parsed from the bytes
+ * without a String.
+ * <p/>
+ * A record that has the wrong number of fields or a value that doesn't
+ * convert, or that the database refuses, is written as it was read to the
+ * rejects file (after the header, so the file can be fixed and imported
+ * again) and its record number and reason are logged. When a batch fails,
+ * the rows since the last commit are rolled back and run again one at a
+ * time, each committed on its own, to find the bad ones.
+ */
+public class CsvImport {
+
+    private final static Log log =
+            LogFactory.getLog(CsvImport.class);
+
+    public static final String PROP_DELIM = "CsvImport.delimiter";
+    public static final String PROP_HEADER = "CsvImport.header";
+    public static final String PROP_NULL = "CsvImport.null";
+    public static final String PROP_REJECTS = "CsvImport.rejects";
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+    private static final byte QUOTE = '"';
+    /** smallest range worth its own connection */
+    private static final long MIN_RANGE = 1024 * 1024;
+    private static final int BUFFER_SIZE = 256 * 1024;
+
+    /** field quoting */
+    private static final byte PLAIN = 0;
+    private static final byte QUOTED = 1;
+    private static final byte ESCAPED = 2;
+    private static final byte MALFORMED = 3;
+
+    private final DBUtil dbUtil;
+    private final String file;
+    private String table;
+    private int threads = 1;
+    private int batchSize = 1000;
+    private int commitInterval = 10000;
+    private byte delimiter;
+    private boolean header = !"false".equalsIgnoreCase(System.getProperty(PROP_HEADER));
+    private byte[] nullText = System.getProperty(PROP_NULL, "").getBytes(UTF8);
+    private String rejectsFile;
+
+    private final AtomicBoolean stopped = new AtomicBoolean();
+    private Rejects rejects;
+
+    public CsvImport(DBUtil dbUtil, String file) {
+        this.dbUtil = dbUtil;
+        this.file = file;
+        String name = file.toLowerCase();
+        String delim = System.getProperty(PROP_DELIM);
+        if (delim != null) {
+            setDelimiter(delim.charAt(0));
+        }
+        else {
+            setDelimiter(name.endsWith(".tsv") || name.endsWith(".tab") ? '\t' : ',');
+        }
+        rejectsFile = System.getProperty(PROP_REJECTS, file + ".rejects");
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    public void setTable(String aValue) {
+        table = aValue;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int aValue) {
+        threads = Math.max(1, aValue);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int aValue) {
+        batchSize = Math.max(1, aValue);
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(int aValue) {
+        commitInterval = Math.max(1, aValue);
+    }
+
+    public void setDelimiter(char aValue) {
+        if (aValue > 127 || aValue == QUOTE || aValue == '\n' || aValue == '\r') {
+            throw new IllegalArgumentException("can't import with " + aValue + " as the delimiter");
+        }
+        delimiter = (byte) aValue;
+    }
+
+    /**
+     * @param aValue whether the first record names the columns; without
+     *               one the fields are the table's columns in order
+     */
+    public void setHeader(boolean aValue) {
+        header = aValue;
+    }
+
+    /**
+     * @param aValue unquoted text read as null, besides the empty field
+     */
+    public void setNullText(String aValue) {
+        nullText = aValue.getBytes(UTF8);
+    }
+
+    public String getRejectsFile() {
+        return rejectsFile;
+    }
+
+    public void setRejectsFile(String aValue) {
+        rejectsFile = aValue;
+    }
+
+    /**
+     * Run the import.
+     *
+     * @param out where the totals are reported
+     * @throws Exception if the file or the table can't be read, or a
+     *                   connection fails
+     */
+    public void load(Writer out) throws Exception {
+        if (table == null) {
+            throw new IllegalArgumentException("--import needs the table name (-t)");
+        }
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final FileChannel channel = raf.getChannel();
+        ExecutorService workers = null;
+        try {
+            long size = channel.size();
+            long dataStart = 0;
+            byte[] headerLine = null;
+            List<String> names = null;
+            if (header) {
+                RecordReader reader = new RecordReader(channel, 0, size);
+                if (!reader.next()) {
+                    throw new IllegalArgumentException(file + " is empty");
+                }
+                names = new ArrayList<String>();
+                for (int i = 0; i < reader.fields; i++) {
+                    names.add(reader.getString(i).trim());
+                }
+                headerLine = reader.getRecord();
+                dataStart = reader.position();
+            }
+            final Column[] columns = getColumns(names);
+            final String sql = getInsert(columns);
+            log.debug(sql);
+            rejects = new Rejects(headerLine);
+
+            List<long[]> ranges = split(channel, dataStart, size, header ? 2 : 1);
+            int n = dbUtil.reserveConnections(ranges.size());
+            workers = Workers.start("import", n);
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final long[] range : ranges) {
+                results.add(workers.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return new Worker(channel, range, columns).load(sql);
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> result : results) {
+                try {
+                    rows += result.get();
+                }
+                catch (ExecutionException e) {
+                    // the other workers stop at their next record
+                    stopped.set(true);
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            long end = System.currentTimeMillis();
+            out.write(rows + " rows imported into " + table + ", " + rejects.count + " rejected" +
+                      (rejects.count > 0 ? " to " + rejectsFile : "") + ", on " + n +
+                      " connections (" + (end - start) + " ms)\n");
+            out.flush();
+        }
+        finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            if (rejects != null) {
+                rejects.close();
+            }
+            raf.close();
+        }
+    }
+
+    /**
+     * Split the records from offset from into about as many ranges as
+     * there are threads, each at least MIN_RANGE bytes.
+     *
+     * @param record number of the first record, for the rejects log
+     * @return {start, end, first record number} for each range
+     */
+    private List<long[]> split(FileChannel channel, long from, long size, long record) throws IOException {
+        List<long[]> ranges = new ArrayList<long[]>();
+        int n = (int) Math.max(1, Math.min(threads, (size - from) / MIN_RANGE));
+        long step = (size - from) / n;
+        long target = from + step;
+        long rangeStart = from;
+        long rangeRecord = record;
+        // the same quoting rules as RecordReader.parse(): a quote only
+        // opens a value at its start, and "" inside one is a quote
+        boolean quoted = false;
+        boolean fieldStart = true;
+        boolean closed = false;
+        ByteBuffer buf = ByteBuffer.allocate(BUFFER_SIZE);
+        byte[] a = buf.array();
+        long pos = from;
+        while (ranges.size() < n - 1) {
+            buf.clear();
+            int read = channel.read(buf, pos);
+            if (read <= 0) {
+                break;
+            }
+            for (int i = 0; i < read && ranges.size() < n - 1; i++) {
+                byte b = a[i];
+                if (quoted) {
+                    if (b == QUOTE) {
+                        quoted = false;
+                        closed = true;
+                    }
+                    continue;
+                }
+                if (b == QUOTE && (fieldStart || closed)) {
+                    // opens the value, or is the second half of ""
+                    quoted = true;
+                    fieldStart = false;
+                    closed = false;
+                    continue;
+                }
+                closed = false;
+                fieldStart = b == delimiter || b == '\n';
+                if (b == '\n') {
+                    record++;
+                    long next = pos + i + 1;
+                    if (next >= target && next < size) {
+                        ranges.add(new long[]{rangeStart, next, rangeRecord});
+                        rangeStart = next;
+                        rangeRecord = record;
+                        target = next + step;
+                    }
+                }
+            }
+            pos += read;
+        }
+        ranges.add(new long[]{rangeStart, size, rangeRecord});
+        return ranges;
+    }
+
+    /**
+     * Look the columns up with DatabaseMetaData, trying the table name as
+     * given, then in upper and lower case.
+     *
+     * @param names the header's column names, null for all of them
+     */
+    private Column[] getColumns(List<String> names) throws Exception {
+        String schema = null;
+        String name = table;
+        int dot = table.lastIndexOf('.');
+        if (dot > 0) {
+            schema = table.substring(0, dot);
+            name = table.substring(dot + 1);
+        }
+        Map<String, Column> byName = new LinkedHashMap<String, Column>();
+        Connection c = dbUtil.getConnection();
+        try {
+            DatabaseMetaData meta = c.getMetaData();
+            String[][] tries = {
+                    {schema, name},
+                    {schema == null ? null : schema.toUpperCase(), name.toUpperCase()},
+                    {schema == null ? null : schema.toLowerCase(), name.toLowerCase()}
+            };
+            for (int i = 0; i < tries.length && byName.isEmpty(); i++) {
+                ResultSet rs = meta.getColumns(null, tries[i][0], tries[i][1], null);
+                try {
+                    String found = null;
+                    while (rs.next()) {
+                        // _ is a wildcard in the pattern, and without a
+                        // schema the same table can turn up in several
+                        String tableName = rs.getString("TABLE_NAME");
+                        String tableSchema = rs.getString("TABLE_SCHEM");
+                        if (!name.equalsIgnoreCase(tableName)) {
+                            continue;
+                        }
+                        if (found == null) {
+                            found = tableSchema + "." + tableName;
+                        }
+                        else if (!found.equals(tableSchema + "." + tableName)) {
+                            continue;
+                        }
+                        Column column = new Column();
+                        column.name = rs.getString("COLUMN_NAME");
+                        column.type = rs.getInt("DATA_TYPE");
+                        byName.put(column.name.toUpperCase(), column);
+                    }
+                }
+                finally {
+                    rs.close();
+                }
+            }
+        }
+        finally {
+            dbUtil.releaseConnection(c);
+        }
+        if (byName.isEmpty()) {
+            throw new IllegalArgumentException("no table " + table);
+        }
+        if (names == null) {
+            return byName.values().toArray(new Column[byName.size()]);
+        }
+        Column[] columns = new Column[names.size()];
+        for (int i = 0; i < columns.length; i++) {
+            Column column = byName.get(names.get(i).toUpperCase());
+            if (column == null) {
+                throw new IllegalArgumentException(table + " has no column " + names.get(i));
+            }
+            columns[i] = new Column();
+            columns[i].name = names.get(i);
+            columns[i].type = column.type;
+        }
+        return columns;
+    }
+
+    private String getInsert(Column[] columns) {
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(") values (");
+        for (int i = 0; i < columns.length; i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(columns[i].name);
+            values.append('?');
+        }
+        return sql.append(values).append(')').toString();
+    }
+
+    private static class Column {
+        String name;
+        int type;
+    }
+
+    /**
+     * Loads one range.
+     */
+    private class Worker {
+        private final RecordReader reader;
+        private final Column[] columns;
+        private Connection c;
+        private PreparedStatement stmt;
+        /** number of the current record */
+        private long record;
+        /** where the rows since the last commit start */
+        private long checkpoint;
+        private long checkpointRecord;
+        private int pending = 0;
+        private int uncommitted = 0;
+        private long rows = 0;
+
+        Worker(FileChannel channel, long[] range, Column[] columns) throws IOException {
+            this.reader = new RecordReader(channel, range[0], range[1]);
+            this.columns = columns;
+            record = range[2] - 1;
+            checkpoint = range[0];
+            checkpointRecord = record;
+        }
+
+        /**
+         * @return rows loaded
+         */
+        long load(String sql) throws Exception {
+            c = dbUtil.getConnection();
+            try {
+                c.setAutoCommit(false);
+                stmt = c.prepareStatement(sql);
+                long t0 = System.currentTimeMillis();
+                while (!stopped.get() && reader.next()) {
+                    record++;
+                    if (reader.isBlank()) {
+                        continue;
+                    }
+                    String reason = bind();
+                    if (reason != null) {
+                        rejects.write(reader, record, reason);
+                        continue;
+                    }
+                    stmt.addBatch();
+                    pending++;
+                    uncommitted++;
+                    if (uncommitted >= commitInterval) {
+                        flush(true);
+                    }
+                    else if (pending >= batchSize) {
+                        flush(false);
+                    }
+                }
+                flush(true);
+                if (log.isDebugEnabled()) {
+                    log.debug(rows + " rows up to record " + record + " (" +
+                              (System.currentTimeMillis() - t0) + " ms)");
+                }
+            }
+            finally {
+                if (stmt != null) {
+                    try {
+                        stmt.close();
+                    }
+                    catch (Exception e) {
+                        log.error(e.getMessage(), e);
+                    }
+                }
+                // rolls back whatever wasn't committed
+                dbUtil.releaseConnection(c);
+            }
+            return rows;
+        }
+
+        /**
+         * Send the pending batch, and commit if asked to. When the database
+         * refuses the batch the rows since the last commit are run again one
+         * at a time.
+         */
+        private void flush(boolean commit) throws Exception {
+            if (pending > 0) {
+                try {
+                    stmt.executeBatch();
+                }
+                catch (SQLException e) {
+                    log.debug("batch failed, running records " + (checkpointRecord + 1) + " to " + record +
+                              " one at a time: " + e.getMessage());
+                    stmt.clearBatch();
+                    c.rollback();
+                    replay();
+                    return;
+                }
+                pending = 0;
+            }
+            if (commit && uncommitted > 0) {
+                c.commit();
+                rows += uncommitted;
+                uncommitted = 0;
+                checkpoint = reader.position();
+                checkpointRecord = record;
+            }
+        }
+
+        private void replay() throws Exception {
+            long end = reader.position();
+            reader.seek(checkpoint);
+            record = checkpointRecord;
+            while (reader.position() < end && reader.next()) {
+                record++;
+                if (reader.isBlank() || bind() != null) {
+                    // rejected the first time round
+                    continue;
+                }
+                try {
+                    stmt.executeUpdate();
+                    c.commit();
+                    rows++;
+                }
+                catch (SQLException e) {
+                    c.rollback();
+                    rejects.write(reader, record, e.getMessage());
+                }
+            }
+            pending = 0;
+            uncommitted = 0;
+            checkpoint = reader.position();
+            checkpointRecord = record;
+        }
+
+        /**
+         * Bind the current record.
+         *
+         * @return why it can't be loaded, null if it can
+         */
+        private String bind() throws SQLException {
+            if (reader.fields != columns.length) {
+                return "expected " + columns.length + " fields, found " + reader.fields;
+            }
+            for (int i = 0; i < columns.length; i++) {
+                int index = i + 1;
+                int type = columns[i].type;
+                if (reader.quoting[i] == MALFORMED) {
+                    return columns[i].name + ": text after the closing quote, or no closing quote";
+                }
+                if (reader.isNull(i)) {
+                    stmt.setNull(index, type);
+                    continue;
+                }
+                try {
+                    switch (type) {
+                        case Types.TINYINT:
+                        case Types.SMALLINT:
+                        case Types.INTEGER:
+                        case Types.BIGINT:
+                            if (reader.parseLong(i)) {
+                                stmt.setLong(index, reader.longValue);
+                            }
+                            else {
+                                stmt.setBigDecimal(index, new BigDecimal(reader.getString(i).trim()));
+                            }
+                            break;
+                        case Types.NUMERIC:
+                        case Types.DECIMAL:
+                            stmt.setBigDecimal(index, reader.parseLong(i)
+                                                      ? BigDecimal.valueOf(reader.longValue)
+                                                      : new BigDecimal(reader.getString(i).trim()));
+                            break;
+                        case Types.REAL:
+                        case Types.FLOAT:
+                        case Types.DOUBLE:
+                            stmt.setDouble(index, Double.parseDouble(reader.getString(i)));
+                            break;
+                        case Types.BIT:
+                        case Types.BOOLEAN:
+                            String b = reader.getString(i).trim();
+                            if ("true".equalsIgnoreCase(b) || "1".equals(b)) {
+                                stmt.setBoolean(index, true);
+                            }
+                            else if ("false".equalsIgnoreCase(b) || "0".equals(b)) {
+                                stmt.setBoolean(index, false);
+                            }
+                            else {
+                                throw new IllegalArgumentException("not a boolean: " + b);
+                            }
+                            break;
+                        case Types.DATE:
+                        case Types.TIMESTAMP:
+                            String ts = reader.getString(i).trim();
+                            stmt.setTimestamp(index, ts.length() == 10
+                                                     ? new Timestamp(Date.valueOf(ts).getTime())
+                                                     : Timestamp.valueOf(ts.replace('T', ' ')));
+                            break;
+                        case Types.TIME:
+                            stmt.setTime(index, Time.valueOf(reader.getString(i).trim()));
+                            break;
+                        case Types.BINARY:
+                        case Types.VARBINARY:
+                        case Types.LONGVARBINARY:
+                        case Types.BLOB:
+                            stmt.setBytes(index, reader.getHex(i));
+                            break;
+                        default:
+                            stmt.setString(index, reader.getString(i));
+                    }
+                }
+                catch (IllegalArgumentException e) {
+                    // NumberFormatException too; Timestamp.valueOf() has no message
+                    return columns[i].name + ": " +
+                           (e.getMessage() != null ? e.getMessage() : "can't read " + reader.getString(i));
+                }
+            }
+            return null;
+        }
+    }
+
+    /**
+     * Reads the records of a range into a byte buffer and splits them into
+     * fields in place. A record starts in the range if its first byte is
+     * before the end, and may run on past it.
+     */
+    private class RecordReader {
+        private final FileChannel channel;
+        private final long end;
+        private final long size;
+        private byte[] buf = new byte[BUFFER_SIZE];
+        /** file offset of buf[0] */
+        private long bufStart;
+        /** start of the next record */
+        private int off = 0;
+        private int limit = 0;
+        private byte[] scratch = new byte[256];
+
+        int fields;
+        int[] starts = new int[16];
+        int[] ends = new int[16];
+        byte[] quoting = new byte[16];
+        int recordStart;
+        int recordEnd;
+        long longValue;
+
+        RecordReader(FileChannel channel, long start, long end) throws IOException {
+            this.channel = channel;
+            this.end = end;
+            this.size = channel.size();
+            bufStart = start;
+        }
+
+        long position() {
+            return bufStart + off;
+        }
+
+        void seek(long position) {
+            bufStart = position;
+            off = 0;
+            limit = 0;
+        }
+
+        /**
+         * @return false when there are no more records in the range
+         */
+        boolean next() throws IOException {
+            if (position() >= end) {
+                return false;
+            }
+            while (true) {
+                boolean eof = bufStart + limit >= size;
+                if (off >= limit && eof) {
+                    return false;
+                }
+                int next = parse(eof);
+                if (next >= 0) {
+                    recordStart = off;
+                    recordEnd = next;
+                    off = next;
+                    return true;
+                }
+                fill();
+            }
+        }
+
+        /**
+         * Move the partial record to the front of the buffer, growing it if
+         * the record fills it, and read more after it.
+         */
+        private void fill() throws IOException {
+            System.arraycopy(buf, off, buf, 0, limit - off);
+            bufStart += off;
+            limit -= off;
+            off = 0;
+            if (limit == buf.length) {
+                byte[] bigger = new byte[buf.length * 2];
+                System.arraycopy(buf, 0, bigger, 0, limit);
+                buf = bigger;
+            }
+            int n = channel.read(ByteBuffer.wrap(buf, limit, buf.length - limit), bufStart + limit);
+            if (n <= 0) {
+                throw new IOException(file + " ended before its last record, was it truncated?");
+            }
+            limit += n;
+        }
+
+        /**
+         * Split the record at off into fields.
+         *
+         * @param eof whether the file ends at limit
+         * @return where the next record starts, -1 if the record runs past
+         *         limit
+         */
+        private int parse(boolean eof) {
+            int p = off;
+            fields = 0;
+            while (true) {
+                if (fields == starts.length) {
+                    starts = copyOf(starts, fields * 2);
+                    ends = copyOf(ends, fields * 2);
+                    byte[] q = new byte[fields * 2];
+                    System.arraycopy(quoting, 0, q, 0, fields);
+                    quoting = q;
+                }
+                byte quote = PLAIN;
+                int start;
+                int fieldEnd;
+                if (p < limit && buf[p] == QUOTE) {
+                    quote = QUOTED;
+                    start = ++p;
+                    while (true) {
+                        if (p >= limit) {
+                            if (!eof) {
+                                return -1;
+                            }
+                            quote = MALFORMED;
+                            break;
+                        }
+                        if (buf[p] == QUOTE) {
+                            if (p + 1 >= limit && !eof) {
+                                return -1;
+                            }
+                            if (p + 1 < limit && buf[p + 1] == QUOTE) {
+                                quote = ESCAPED;
+                                p += 2;
+                                continue;
+                            }
+                            break;
+                        }
+                        p++;
+                    }
+                    fieldEnd = p;
+                    if (p < limit) {
+                        p++;
+                    }
+                    while (p < limit && buf[p] != delimiter && buf[p] != '\n') {
+                        if (buf[p] != '\r') {
+                            quote = MALFORMED;
+                        }
+                        p++;
+                    }
+                }
+                else {
+                    start = p;
+                    while (p < limit && buf[p] != delimiter && buf[p] != '\n') {
+                        p++;
+                    }
+                    fieldEnd = p;
+                    if (fieldEnd > start && buf[fieldEnd - 1] == '\r' && (p == limit || buf[p] == '\n')) {
+                        // CRLF line ends
+                        fieldEnd--;
+                    }
+                }
+                if (p >= limit && !eof) {
+                    return -1;
+                }
+                starts[fields] = start;
+                ends[fields] = fieldEnd;
+                quoting[fields] = quote;
+                fields++;
+                if (p >= limit) {
+                    return p;
+                }
+                if (buf[p] == '\n') {
+                    return p + 1;
+                }
+                p++;
+            }
+        }
+
+        boolean isBlank() {
+            return fields == 1 && quoting[0] == PLAIN && starts[0] == ends[0];
+        }
+
+        boolean isNull(int i) {
+            if (quoting[i] != PLAIN) {
+                return false;
+            }
+            int len = ends[i] - starts[i];
+            if (len == 0) {
+                return true;
+            }
+            if (len != nullText.length) {
+                return false;
+            }
+            for (int j = 0; j < len; j++) {
+                if (buf[starts[i] + j] != nullText[j]) {
+                    return false;
+                }
+            }
+            return true;
+        }
+
+        /**
+         * Parse the field as a long into longValue, if it is one that fits
+         * without any doubt.
+         */
+        boolean parseLong(int i) {
+            int p = starts[i];
+            int e = ends[i];
+            boolean negative = false;
+            if (p < e && (buf[p] == '-' || buf[p] == '+')) {
+                negative = buf[p] == '-';
+                p++;
+            }
+            if (p == e || e - p > 18) {
+                return false;
+            }
+            long value = 0;
+            for (; p < e; p++) {
+                int digit = buf[p] - '0';
+                if (digit < 0 || digit > 9) {
+                    return false;
+                }
+                value = value * 10 + digit;
+            }
+            longValue = negative ? -value : value;
+            return true;
+        }
+
+        String getString(int i) {
+            int len = ends[i] - starts[i];
+            if (quoting[i] != ESCAPED) {
+                return new String(buf, starts[i], len, UTF8);
+            }
+            if (scratch.length < len) {
+                scratch = new byte[Math.max(len, scratch.length * 2)];
+            }
+            int n = 0;
+            for (int p = starts[i]; p < ends[i]; p++) {
+                scratch[n++] = buf[p];
+                if (buf[p] == QUOTE) {
+                    // the other half of ""
+                    p++;
+                }
+            }
+            return new String(scratch, 0, n, UTF8);
+        }
+
+        /**
+         * @return the field's hex digits as bytes, with or without 0x
+         * @throws IllegalArgumentException if it isn't hex
+         */
+        byte[] getHex(int i) {
+            int p = starts[i];
+            int e = ends[i];
+            if (e - p >= 2 && buf[p] == '0' && (buf[p + 1] == 'x' || buf[p + 1] == 'X')) {
+                p += 2;
+            }
+            if ((e - p) % 2 != 0) {
+                throw new IllegalArgumentException("odd number of hex digits");
+            }
+            byte[] bytes = new byte[(e - p) / 2];
+            for (int j = 0; j < bytes.length; j++, p += 2) {
+                int hi = Character.digit(buf[p], 16);
+                int lo = Character.digit(buf[p + 1], 16);
+                if (hi < 0 || lo < 0) {
+                    throw new IllegalArgumentException("not hex: " + (char) buf[hi < 0 ? p : p + 1]);
+                }
+                bytes[j] = (byte) (hi << 4 | lo);
+            }
+            return bytes;
+        }
+
+        /**
+         * @return the current record as it was read, with its line end
+         */
+        byte[] getRecord() {
+            int len = recordEnd - recordStart;
+            boolean newline = len > 0 && buf[recordEnd - 1] == '\n';
+            byte[] record = new byte[newline ? len : len + 1];
+            System.arraycopy(buf, recordStart, record, 0, len);
+            record[record.length - 1] = '\n';
+            return record;
+        }
+    }
+
+    private static int[] copyOf(int[] a, int length) {
+        int[] b = new int[length];
+        System.arraycopy(a, 0, b, 0, Math.min(a.length, length));
+        return b;
+    }
+
+    /**
+     * The rejects file, opened on the first reject so a clean import
+     * leaves none behind.
+     */
+    private class Rejects {
+        private final byte[] headerLine;
+        private OutputStream out;
+        private long count = 0;
+
+        Rejects(byte[] headerLine) {
+            this.headerLine = headerLine;
+        }
+
+        synchronized void write(RecordReader reader, long record, String reason) throws IOException {
+            if (out == null) {
+                out = new BufferedOutputStream(new FileOutputStream(rejectsFile), 64 * 1024);
+                if (headerLine != null) {
+                    out.write(headerLine);
+                }
+            }
+            out.write(reader.getRecord());
+            count++;
+            log.warn("record " + record + " rejected: " + reason);
+        }
+
+        synchronized void close() throws IOException {
+            if (out != null) {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,356 @@
+package com.fmaritato.dbutil.dump;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLStreamConstants;
+import javax.xml.stream.XMLStreamReader;
+import java.io.BufferedInputStream;
+import java.io.FileInputStream;
+import java.io.InputStream;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Loads a DBUnit flat XML dataset, as written by DatasetFormatter, into
+ * its tables.
+ * <p/>
+ * The file is read with a StAX pull parser one row element at a time, so
+ * memory grows with the largest row, not with the file. Each table and set of columns gets a
+ * prepared INSERT, reused for every row like it; rows are sent in JDBC
+ * batches of batchSize and committed every commitInterval rows. The
+ * batch of one table is sent before rows of another are added, so rows go
+ * in in file order and parents listed before their children satisfy
+ * foreign keys.
+ * <p/>
+ * Attributes are converted to the column's type (looked up once per table)
+ * before they are bound: numbers, timestamps in Timestamp.toString() form,
+ * dates, times, booleans and base64 binaries. Columns missing from a row
+ * are left to their defaults, and empty elements are skipped.
+ */
+public class DatasetLoader {
+
+    private final static Log log =
+            LogFactory.getLog(DatasetLoader.class);
+
+    private static final int[] BASE64 = new int[128];
+
+    static {
+        String chars = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+        Arrays.fill(BASE64, -1);
+        for (int i = 0; i < chars.length(); i++) {
+            BASE64[chars.charAt(i)] = i;
+        }
+    }
+
+    private final Connection connection;
+    private final Writer out;
+
+    private int batchSize = 1000;
+    private int commitInterval = 1000;
+
+    /** prepared INSERT per table and column list */
+    private final Map<String, Insert> inserts = new HashMap<String, Insert>();
+    /** column name to jdbc type, per table */
+    private final Map<String, Map<String, Integer>> tableTypes = new HashMap<String, Map<String, Integer>>();
+    private final Map<String, Long> tableRows = new LinkedHashMap<String, Long>();
+    private Insert current;
+    private long uncommitted = 0;
+    private long rowCount = 0;
+    private int batchCount = 0;
+
+    public DatasetLoader(Connection connection, Writer out) throws SQLException {
+        this.connection = connection;
+        this.out = out;
+        connection.setAutoCommit(false);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int aValue) {
+        batchSize = Math.max(1, aValue);
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(int aValue) {
+        commitInterval = Math.max(1, aValue);
+    }
+
+    /**
+     * Load the dataset, rolling back what isn't committed if a row fails.
+     *
+     * @param filename the dataset
+     * @throws Exception if the file can't be parsed or a row can't be
+     *                   inserted
+     */
+    public void load(String filename) throws Exception {
+        long start = System.currentTimeMillis();
+        XMLInputFactory factory = XMLInputFactory.newInstance();
+        // a DOCTYPE naming the dataset's DTD is ignored, not fetched
+        factory.setProperty(XMLInputFactory.SUPPORT_DTD, Boolean.FALSE);
+        factory.setProperty(XMLInputFactory.IS_SUPPORTING_EXTERNAL_ENTITIES, Boolean.FALSE);
+        InputStream in = new BufferedInputStream(new FileInputStream(filename), 64 * 1024);
+        XMLStreamReader xml = null;
+        try {
+            xml = factory.createXMLStreamReader(in);
+            int depth = 0;
+            while (xml.hasNext()) {
+                int event = xml.next();
+                if (event == XMLStreamConstants.START_ELEMENT) {
+                    // rows are the children of <dataset>
+                    if (++depth == 2) {
+                        row(xml);
+                    }
+                }
+                else if (event == XMLStreamConstants.END_ELEMENT) {
+                    depth--;
+                }
+            }
+            executeBatch();
+            connection.commit();
+        }
+        catch (Exception e) {
+            connection.rollback();
+            if (xml != null && xml.getLocation() != null) {
+                log.error("loading stopped at line " + xml.getLocation().getLineNumber() + ", " +
+                          uncommitted + " uncommitted rows rolled back");
+            }
+            throw e;
+        }
+        finally {
+            for (Insert insert : inserts.values()) {
+                insert.stmt.close();
+            }
+            if (xml != null) {
+                xml.close();
+            }
+            in.close();
+        }
+        long end = System.currentTimeMillis();
+        for (Map.Entry<String, Long> entry : tableRows.entrySet()) {
+            out.write(entry.getKey() + ": " + entry.getValue() + " rows\n");
+        }
+        out.write(rowCount + " rows loaded into " + tableRows.size() + " tables in " +
+                  batchCount + " batches (" + (end - start) + " ms)\n");
+        out.flush();
+    }
+
+    private void row(XMLStreamReader xml) throws Exception {
+        String table = xml.getLocalName();
+        int n = xml.getAttributeCount();
+        if (n == 0) {
+            // DBUnit's way of listing an empty table
+            return;
+        }
+        StringBuilder key = new StringBuilder(table);
+        for (int i = 0; i < n; i++) {
+            key.append(',').append(xml.getAttributeLocalName(i));
+        }
+        Insert insert = inserts.get(key.toString());
+        if (insert == null) {
+            insert = prepare(table, xml);
+            inserts.put(key.toString(), insert);
+        }
+        if (insert != current) {
+            // keeps the file's row order across tables
+            executeBatch();
+            current = insert;
+        }
+        for (int i = 0; i < n; i++) {
+            bind(insert.stmt, i + 1, insert.types[i], xml.getAttributeValue(i));
+        }
+        insert.stmt.addBatch();
+        insert.pending++;
+        Long rows = tableRows.get(table);
+        tableRows.put(table, rows == null ? 1 : rows + 1);
+        rowCount++;
+        uncommitted++;
+        if (insert.pending >= batchSize) {
+            executeBatch();
+        }
+        if (uncommitted >= commitInterval) {
+            executeBatch();
+            connection.commit();
+            log.debug("commit after " + uncommitted + " rows");
+            uncommitted = 0;
+        }
+    }
+
+    private Insert prepare(String table, XMLStreamReader xml) throws Exception {
+        Map<String, Integer> types = getTypes(table);
+        int n = xml.getAttributeCount();
+        Insert insert = new Insert();
+        insert.table = table;
+        insert.types = new int[n];
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(") values (");
+        for (int i = 0; i < n; i++) {
+            String column = xml.getAttributeLocalName(i);
+            Integer type = types.get(column.toUpperCase());
+            if (type == null) {
+                throw new IllegalArgumentException(table + " has no column " + column);
+            }
+            insert.types[i] = type;
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(column);
+            values.append('?');
+        }
+        sql.append(values).append(')');
+        log.debug(sql);
+        insert.stmt = connection.prepareStatement(sql.toString());
+        return insert;
+    }
+
+    private Map<String, Integer> getTypes(String table) throws Exception {
+        Map<String, Integer> types = tableTypes.get(table);
+        if (types == null) {
+            types = new HashMap<String, Integer>();
+            PreparedStatement stmt = connection.prepareStatement("select * from " + table + " where 1 = 0");
+            try {
+                ResultSet rs = stmt.executeQuery();
+                ResultSetMetaData meta = rs.getMetaData();
+                for (int i = 1; i <= meta.getColumnCount(); i++) {
+                    types.put(meta.getColumnName(i).toUpperCase(), meta.getColumnType(i));
+                }
+                rs.close();
+            }
+            finally {
+                stmt.close();
+            }
+            tableTypes.put(table, types);
+        }
+        return types;
+    }
+
+    private void executeBatch() throws SQLException {
+        if (current == null || current.pending == 0) {
+            return;
+        }
+        long t0 = System.currentTimeMillis();
+        current.stmt.executeBatch();
+        batchCount++;
+        if (log.isDebugEnabled()) {
+            log.debug("batch " + batchCount + ": " + current.pending + " " + current.table + " rows (" +
+                      (System.currentTimeMillis() - t0) + " ms)");
+        }
+        current.pending = 0;
+    }
+
+    /**
+     * Bind an attribute value as the column's type, or as a string when
+     * it doesn't parse as one.
+     */
+    static void bind(PreparedStatement stmt, int index, int type, String value) throws SQLException {
+        try {
+            switch (type) {
+                case Types.TINYINT:
+                case Types.SMALLINT:
+                case Types.INTEGER:
+                case Types.BIGINT:
+                case Types.NUMERIC:
+                case Types.DECIMAL:
+                    stmt.setBigDecimal(index, new BigDecimal(value.trim()));
+                    return;
+                case Types.REAL:
+                case Types.FLOAT:
+                case Types.DOUBLE:
+                    stmt.setDouble(index, Double.parseDouble(value));
+                    return;
+                case Types.BIT:
+                case Types.BOOLEAN:
+                    stmt.setBoolean(index, "true".equalsIgnoreCase(value) || "1".equals(value));
+                    return;
+                case Types.DATE:
+                case Types.TIMESTAMP:
+                    stmt.setTimestamp(index, value.length() == 10
+                                             ? new Timestamp(Date.valueOf(value).getTime())
+                                             : Timestamp.valueOf(value.replace('T', ' ')));
+                    return;
+                case Types.TIME:
+                    stmt.setTime(index, Time.valueOf(value));
+                    return;
+                case Types.BINARY:
+                case Types.VARBINARY:
+                case Types.LONGVARBINARY:
+                case Types.BLOB:
+                    stmt.setBytes(index, decodeBase64(value));
+                    return;
+            }
+        }
+        catch (IllegalArgumentException e) {
+            // NumberFormatException too; the database gets to convert it
+        }
+        stmt.setString(index, value);
+    }
+
+    /**
+     * @param s base64, whitespace and padding allowed
+     * @return the bytes
+     * @throws IllegalArgumentException if s isn't base64
+     */
+    static byte[] decodeBase64(String s) {
+        byte[] bytes = new byte[s.length() * 3 / 4];
+        int n = 0;
+        int bits = 0;
+        int count = 0;
+        for (int i = 0; i < s.length(); i++) {
+            char c = s.charAt(i);
+            if (c == '=' || Character.isWhitespace(c)) {
+                continue;
+            }
+            int v = c < 128 ? BASE64[c] : -1;
+            if (v < 0) {
+                throw new IllegalArgumentException("not base64: " + c);
+            }
+            bits = bits << 6 | v;
+            if (++count % 4 == 0) {
+                bytes[n++] = (byte) (bits >> 16);
+                bytes[n++] = (byte) (bits >> 8);
+                bytes[n++] = (byte) bits;
+                bits = 0;
+            }
+        }
+        if (count % 4 == 3) {
+            bytes[n++] = (byte) (bits >> 10);
+            bytes[n++] = (byte) (bits >> 2);
+        }
+        else if (count % 4 == 2) {
+            bytes[n++] = (byte) (bits >> 4);
+        }
+        else if (count % 4 == 1) {
+            throw new IllegalArgumentException("truncated base64");
+        }
+        byte[] result = new byte[n];
+        System.arraycopy(bytes, 0, result, 0, n);
+        return result;
+    }
+
+    private static class Insert {
+        String table;
+        PreparedStatement stmt;
+        int[] types;
+        int pending = 0;
+    }
+}
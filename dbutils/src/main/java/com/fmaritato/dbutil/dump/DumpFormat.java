@@ -0,0 +1,326 @@
+package com.fmaritato.dbutil.dump;
+
+import java.nio.BufferUnderflowException;
+import java.nio.ByteBuffer;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * The binary dump format written by the "binary" formatter and read back by
+ * {@link Restore}. Everything is big endian.
+ * <pre>
+ * file    = magic header block* index trailer
+ * magic   = "DBUDUMP1"
+ * header  = int length, then: short version, string table, varint columns,
+ *           column*
+ * column  = string name, string type name, int jdbc type, byte type code,
+ *           int precision, int scale, byte nullable
+ * block   = int raw length, int stored length, byte codec, int rows,
+ *           stored length bytes of rows, deflated when codec is 1
+ * row     = null bitmap of (columns + 7) / 8 bytes, then each non null value
+ * index   = varint blocks, then per block: long offset, int rows
+ * trailer = long index offset, "DBUINDEX"
+ * </pre>
+ * Values by type code: booleans as a byte, INT and LONG as 4 and 8 bytes,
+ * FLOAT and DOUBLE as their IEEE bits, DECIMAL as a zigzag varint scale and
+ * a varint length of the unscaled value's two's complement bytes, STRING as
+ * a varint char count and the chars in modified UTF-8 (as DataOutput writes
+ * them, so any Java string comes back the same), BYTES as a varint length,
+ * DATE and TIME as epoch millis, TIMESTAMP as epoch millis and varint nanos.
+ * <p/>
+ * Blocks can be found without reading the ones before them, which is what
+ * lets a restore run them on several connections at once.
+ */
+public class DumpFormat {
+
+    public static final byte[] MAGIC = {'D', 'B', 'U', 'D', 'U', 'M', 'P', '1'};
+    public static final byte[] INDEX_MAGIC = {'D', 'B', 'U', 'I', 'N', 'D', 'E', 'X'};
+    public static final int VERSION = 1;
+
+    public static final int BLOCK_HEADER_SIZE = 13;
+    public static final int TRAILER_SIZE = 16;
+
+    public static final int CODEC_NONE = 0;
+    public static final int CODEC_DEFLATE = 1;
+
+    // type codes
+    public static final int BOOLEAN = 1;
+    public static final int INT = 2;
+    public static final int LONG = 3;
+    public static final int FLOAT = 4;
+    public static final int DOUBLE = 5;
+    public static final int DECIMAL = 6;
+    public static final int STRING = 7;
+    public static final int BYTES = 8;
+    public static final int DATE = 9;
+    public static final int TIME = 10;
+    public static final int TIMESTAMP = 11;
+
+    /**
+     * @return the type code a column is dumped as
+     */
+    public static int getType(ResultSetMetaData meta, int column) throws Exception {
+        String className = meta.getColumnClassName(column);
+        switch (meta.getColumnType(column)) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                // MySQL BIT(n) is a byte[]
+                return "[B".equals(className) ? BYTES : BOOLEAN;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+                return INT;
+            case Types.INTEGER:
+                // INT UNSIGNED doesn't fit an int
+                return "java.lang.Long".equals(className) ? LONG : INT;
+            case Types.BIGINT:
+                // nor BIGINT UNSIGNED a long
+                return "java.math.BigInteger".equals(className) ? DECIMAL : LONG;
+            case Types.REAL:
+                return FLOAT;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return DOUBLE;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                return DECIMAL;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                return BYTES;
+            case Types.DATE:
+                // Oracle DATEs have a time of day
+                return "java.sql.Timestamp".equals(className) ? TIMESTAMP : DATE;
+            case Types.TIME:
+                return TIME;
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            default:
+                return STRING;
+        }
+    }
+
+    /**
+     * A column as described by the header.
+     */
+    public static class Column {
+        public String name;
+        public String typeName;
+        public int jdbcType;
+        public int type;
+        public int precision;
+        public int scale;
+        public boolean nullable;
+    }
+
+    /**
+     * The table name and columns at the start of a dump.
+     */
+    public static class Header {
+        public String table;
+        public List<Column> columns = new ArrayList<Column>();
+
+        public static Header from(ResultSetMetaData meta, String table) throws Exception {
+            Header header = new Header();
+            header.table = table;
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                Column c = new Column();
+                c.name = meta.getColumnName(i);
+                c.typeName = meta.getColumnTypeName(i);
+                c.jdbcType = meta.getColumnType(i);
+                c.type = getType(meta, i);
+                c.precision = meta.getPrecision(i);
+                c.scale = meta.getScale(i);
+                c.nullable = meta.isNullable(i) != ResultSetMetaData.columnNoNulls;
+                header.columns.add(c);
+            }
+            return header;
+        }
+
+        /**
+         * @return magic and header, ready to be written
+         */
+        public ByteBuffer encode() {
+            ByteBuffer buf = ByteBuffer.allocate(1024);
+            buf.position(MAGIC.length + 4);
+            buf.putShort((short) VERSION);
+            buf = putString(buf, table);
+            buf = ensure(buf, 5);
+            putVarint(buf, columns.size());
+            for (Column c : columns) {
+                buf = putString(buf, c.name);
+                buf = putString(buf, c.typeName);
+                buf = ensure(buf, 14);
+                buf.putInt(c.jdbcType);
+                buf.put((byte) c.type);
+                buf.putInt(c.precision);
+                buf.putInt(c.scale);
+                buf.put((byte) (c.nullable ? 1 : 0));
+            }
+            buf.flip();
+            buf.put(MAGIC);
+            buf.putInt(buf.limit() - MAGIC.length - 4);
+            buf.rewind();
+            return buf;
+        }
+
+        /**
+         * @param buf positioned at the start of the file, left after the
+         *            header
+         */
+        public static Header decode(ByteBuffer buf) {
+            try {
+                byte[] magic = new byte[MAGIC.length];
+                buf.get(magic);
+                if (!Arrays.equals(magic, MAGIC)) {
+                    throw new IllegalArgumentException("not a binary dump (compressed with --compress?)");
+                }
+                buf.getInt();
+                int version = buf.getShort();
+                if (version != VERSION) {
+                    throw new IllegalArgumentException("unsupported dump version " + version);
+                }
+                Header header = new Header();
+                header.table = getString(buf, null);
+                int n = getVarint(buf);
+                for (int i = 0; i < n; i++) {
+                    Column c = new Column();
+                    c.name = getString(buf, null);
+                    c.typeName = getString(buf, null);
+                    c.jdbcType = buf.getInt();
+                    c.type = buf.get();
+                    c.precision = buf.getInt();
+                    c.scale = buf.getInt();
+                    c.nullable = buf.get() != 0;
+                    header.columns.add(c);
+                }
+                return header;
+            }
+            catch (BufferUnderflowException e) {
+                throw new IllegalArgumentException("truncated dump header");
+            }
+        }
+    }
+
+    /**
+     * @return buf, or a copy of it twice as big (or more) if it has less
+     *         than n bytes left
+     */
+    public static ByteBuffer ensure(ByteBuffer buf, int n) {
+        if (buf.remaining() >= n) {
+            return buf;
+        }
+        ByteBuffer bigger = ByteBuffer.allocate(Math.max(buf.capacity() * 2, buf.position() + n));
+        buf.flip();
+        bigger.put(buf);
+        return bigger;
+    }
+
+    public static void putVarint(ByteBuffer buf, int value) {
+        while ((value & ~0x7f) != 0) {
+            buf.put((byte) ((value & 0x7f) | 0x80));
+            value >>>= 7;
+        }
+        buf.put((byte) value);
+    }
+
+    public static int getVarint(ByteBuffer buf) {
+        int value = 0;
+        for (int shift = 0; ; shift += 7) {
+            byte b = buf.get();
+            value |= (b & 0x7f) << shift;
+            if (b >= 0) {
+                return value;
+            }
+        }
+    }
+
+    /**
+     * A signed int as a varint of its zigzag encoding, so small negative
+     * values take one byte as well.
+     */
+    public static void putZigzag(ByteBuffer buf, int value) {
+        putVarint(buf, (value << 1) ^ (value >> 31));
+    }
+
+    public static int getZigzag(ByteBuffer buf) {
+        int zigzag = getVarint(buf);
+        return (zigzag >>> 1) ^ -(zigzag & 1);
+    }
+
+    /**
+     * A string that may be null, as a varint of its length + 1 (0 for null)
+     * and the chars.
+     *
+     * @return buf, or a bigger copy of it
+     */
+    public static ByteBuffer putString(ByteBuffer buf, String s) {
+        if (s == null) {
+            buf = ensure(buf, 1);
+            putVarint(buf, 0);
+            return buf;
+        }
+        buf = ensure(buf, 5 + s.length() * 3);
+        putVarint(buf, s.length() + 1);
+        putChars(buf, s);
+        return buf;
+    }
+
+    /**
+     * @param chars scratch space, may be null
+     */
+    public static String getString(ByteBuffer buf, char[] chars) {
+        int n = getVarint(buf) - 1;
+        if (n < 0) {
+            return null;
+        }
+        return getChars(buf, n, chars);
+    }
+
+    /**
+     * Modified UTF-8, the caller has made room for 3 bytes a char.
+     */
+    public static void putChars(ByteBuffer buf, CharSequence s) {
+        for (int i = 0, n = s.length(); i < n; i++) {
+            char c = s.charAt(i);
+            if (c != 0 && c < 0x80) {
+                buf.put((byte) c);
+            }
+            else if (c < 0x800) {
+                buf.put((byte) (0xc0 | (c >> 6)))
+                   .put((byte) (0x80 | (c & 0x3f)));
+            }
+            else {
+                buf.put((byte) (0xe0 | (c >> 12)))
+                   .put((byte) (0x80 | ((c >> 6) & 0x3f)))
+                   .put((byte) (0x80 | (c & 0x3f)));
+            }
+        }
+    }
+
+    /**
+     * @param n     number of chars
+     * @param chars scratch space, used if it is big enough
+     */
+    public static String getChars(ByteBuffer buf, int n, char[] chars) {
+        if (chars == null || chars.length < n) {
+            chars = new char[n];
+        }
+        for (int i = 0; i < n; i++) {
+            int b = buf.get() & 0xff;
+            if (b < 0x80) {
+                chars[i] = (char) b;
+            }
+            else if (b < 0xe0) {
+                chars[i] = (char) (((b & 0x1f) << 6) | (buf.get() & 0x3f));
+            }
+            else {
+                chars[i] = (char) (((b & 0x0f) << 12) | ((buf.get() & 0x3f) << 6) | (buf.get() & 0x3f));
+            }
+        }
+        return new String(chars, 0, n);
+    }
+}
@@ -0,0 +1,350 @@
+package com.fmaritato.dbutil.dump;
+
+import com.fmaritato.dbutil.DBUtil;
+import com.fmaritato.dbutil.Workers;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Inflater;
+
+/**
+ * Loads a binary dump (see {@link DumpFormat}) into a table.
+ * <p/>
+ * The file is memory mapped, block by block, and the blocks are shared out
+ * to worker threads, each with its own pooled connection and prepared
+ * INSERT. Rows are bound with typed setters straight from the mapped bytes
+ * (or the inflated ones) and sent in JDBC batches; each block is committed
+ * on its own, so a failure leaves whole blocks loaded and the others not.
+ * <p/>
+ * The columns are matched by name, in the order they were dumped, so the
+ * target table can have other columns as long as they have defaults.
+ */
+public class Restore {
+
+    private final static Log log =
+            LogFactory.getLog(Restore.class);
+
+    private final DBUtil dbUtil;
+    private final String file;
+    private String table;
+    private int threads = 1;
+    private int batchSize = 1000;
+
+    public Restore(DBUtil dbUtil, String file) {
+        this.dbUtil = dbUtil;
+        this.file = file;
+    }
+
+    public String getTable() {
+        return table;
+    }
+
+    /**
+     * @param aValue table to load, null for the one named in the dump
+     */
+    public void setTable(String aValue) {
+        table = aValue;
+    }
+
+    public int getThreads() {
+        return threads;
+    }
+
+    public void setThreads(int aValue) {
+        threads = Math.max(1, aValue);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int aValue) {
+        batchSize = Math.max(1, aValue);
+    }
+
+    /**
+     * Run the restore.
+     *
+     * @param out where the totals are reported
+     * @throws Exception if the dump can't be read or a block fails to load
+     */
+    public void restore(Writer out) throws Exception {
+        long start = System.currentTimeMillis();
+        RandomAccessFile raf = new RandomAccessFile(file, "r");
+        final FileChannel channel = raf.getChannel();
+        ExecutorService workers = null;
+        try {
+            long size = channel.size();
+            if (size < DumpFormat.MAGIC.length + 4 + DumpFormat.TRAILER_SIZE) {
+                throw new IllegalArgumentException(file + " is not a binary dump");
+            }
+            ByteBuffer buf = channel.map(FileChannel.MapMode.READ_ONLY, 0, DumpFormat.MAGIC.length + 4);
+            int headerLength = buf.getInt(DumpFormat.MAGIC.length);
+            final DumpFormat.Header header = DumpFormat.Header.decode(
+                    channel.map(FileChannel.MapMode.READ_ONLY, 0,
+                                Math.min(size, DumpFormat.MAGIC.length + 4L + headerLength)));
+
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, size - DumpFormat.TRAILER_SIZE,
+                              DumpFormat.TRAILER_SIZE);
+            long indexOffset = buf.getLong();
+            byte[] magic = new byte[DumpFormat.INDEX_MAGIC.length];
+            buf.get(magic);
+            if (!Arrays.equals(magic, DumpFormat.INDEX_MAGIC)) {
+                throw new IllegalArgumentException(file + " has no block index, the dump is incomplete");
+            }
+            buf = channel.map(FileChannel.MapMode.READ_ONLY, indexOffset,
+                              size - DumpFormat.TRAILER_SIZE - indexOffset);
+            int count = DumpFormat.getVarint(buf);
+            // block i runs from offsets[i] to offsets[i + 1]
+            final long[] offsets = new long[count + 1];
+            long total = 0;
+            for (int i = 0; i < count; i++) {
+                offsets[i] = buf.getLong();
+                total += buf.getInt();
+            }
+            offsets[count] = indexOffset;
+
+            final String target = table != null ? table : header.table;
+            if (target == null) {
+                throw new IllegalArgumentException("the dump has no table name, give one with -t");
+            }
+            final String sql = getInsert(target, header);
+            log.info("restoring " + total + " rows in " + count + " blocks into " + target);
+            log.debug(sql);
+
+            int n = dbUtil.reserveConnections(Math.max(1, Math.min(threads, count)));
+            workers = Workers.start("restore", n);
+            final AtomicInteger next = new AtomicInteger();
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (int i = 0; i < n; i++) {
+                results.add(workers.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return load(channel, header, offsets, next, sql);
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> result : results) {
+                try {
+                    rows += result.get();
+                }
+                catch (ExecutionException e) {
+                    // stop the other workers at their next block
+                    next.set(count);
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+            }
+            long end = System.currentTimeMillis();
+            out.write(rows + " rows restored into " + target + " from " + count + " blocks on " +
+                      n + " connections (" + (end - start) + " ms)\n");
+            out.flush();
+        }
+        finally {
+            if (workers != null) {
+                workers.shutdownNow();
+            }
+            raf.close();
+        }
+    }
+
+    /**
+     * Load blocks until there are none left.
+     *
+     * @return rows loaded
+     */
+    private long load(FileChannel channel, DumpFormat.Header header, long[] offsets,
+                      AtomicInteger next, String sql) throws Exception {
+        Connection c = dbUtil.getConnection();
+        PreparedStatement stmt = null;
+        Inflater inflater = new Inflater();
+        RowReader reader = new RowReader(header);
+        long rows = 0;
+        try {
+            c.setAutoCommit(false);
+            stmt = c.prepareStatement(sql);
+            int i;
+            while ((i = next.getAndIncrement()) < offsets.length - 1) {
+                long t0 = System.currentTimeMillis();
+                ByteBuffer block = channel.map(FileChannel.MapMode.READ_ONLY, offsets[i],
+                                               offsets[i + 1] - offsets[i]);
+                int raw = block.getInt();
+                int stored = block.getInt();
+                int codec = block.get();
+                int count = block.getInt();
+                if (codec == DumpFormat.CODEC_DEFLATE) {
+                    block = inflate(block, stored, raw, inflater);
+                }
+                else if (codec != DumpFormat.CODEC_NONE) {
+                    throw new IllegalArgumentException("block " + i + " has an unknown codec " + codec);
+                }
+                int pending = 0;
+                for (int row = 0; row < count; row++) {
+                    reader.bind(block, stmt);
+                    stmt.addBatch();
+                    if (++pending >= batchSize) {
+                        stmt.executeBatch();
+                        pending = 0;
+                    }
+                }
+                if (pending > 0) {
+                    stmt.executeBatch();
+                }
+                c.commit();
+                rows += count;
+                if (log.isDebugEnabled()) {
+                    log.debug("block " + i + ": " + count + " rows (" +
+                              (System.currentTimeMillis() - t0) + " ms)");
+                }
+            }
+        }
+        finally {
+            inflater.end();
+            if (stmt != null) {
+                try {
+                    stmt.close();
+                }
+                catch (Exception e) {
+                    log.error(e.getMessage(), e);
+                }
+            }
+            // rolls back whatever wasn't committed
+            dbUtil.releaseConnection(c);
+        }
+        return rows;
+    }
+
+    private static ByteBuffer inflate(ByteBuffer block, int stored, int raw, Inflater inflater)
+            throws Exception {
+        // Inflater only takes arrays
+        byte[] in = new byte[stored];
+        block.get(in);
+        byte[] rows = new byte[raw];
+        inflater.reset();
+        inflater.setInput(in);
+        int n = 0;
+        while (n < raw && !inflater.finished()) {
+            int inflated = inflater.inflate(rows, n, raw - n);
+            if (inflated == 0 && (inflater.needsInput() || inflater.needsDictionary())) {
+                break;
+            }
+            n += inflated;
+        }
+        if (n != raw) {
+            throw new IllegalArgumentException("corrupt block, inflated " + n + " of " + raw + " bytes");
+        }
+        return ByteBuffer.wrap(rows);
+    }
+
+    static String getInsert(String table, DumpFormat.Header header) {
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(") values (");
+        for (int i = 0; i < header.columns.size(); i++) {
+            if (i > 0) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(header.columns.get(i).name);
+            values.append('?');
+        }
+        return sql.append(values).append(')').toString();
+    }
+
+    /**
+     * Binds the rows of a block, one at a time.
+     */
+    private static class RowReader {
+        private final int[] types;
+        private final int[] jdbcTypes;
+        private final int bitmapSize;
+        private char[] chars = new char[256];
+
+        RowReader(DumpFormat.Header header) {
+            types = new int[header.columns.size()];
+            jdbcTypes = new int[types.length];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = header.columns.get(i).type;
+                jdbcTypes[i] = header.columns.get(i).jdbcType;
+            }
+            bitmapSize = (types.length + 7) / 8;
+        }
+
+        void bind(ByteBuffer block, PreparedStatement stmt) throws Exception {
+            int nulls = block.position();
+            block.position(nulls + bitmapSize);
+            for (int i = 0; i < types.length; i++) {
+                int column = i + 1;
+                if ((block.get(nulls + (i >> 3)) & (1 << (i & 7))) != 0) {
+                    stmt.setNull(column, jdbcTypes[i]);
+                    continue;
+                }
+                switch (types[i]) {
+                    case DumpFormat.BOOLEAN:
+                        stmt.setBoolean(column, block.get() != 0);
+                        break;
+                    case DumpFormat.INT:
+                        stmt.setInt(column, block.getInt());
+                        break;
+                    case DumpFormat.LONG:
+                        stmt.setLong(column, block.getLong());
+                        break;
+                    case DumpFormat.FLOAT:
+                        stmt.setFloat(column, block.getFloat());
+                        break;
+                    case DumpFormat.DOUBLE:
+                        stmt.setDouble(column, block.getDouble());
+                        break;
+                    case DumpFormat.DECIMAL:
+                        int scale = DumpFormat.getZigzag(block);
+                        byte[] unscaled = new byte[DumpFormat.getVarint(block)];
+                        block.get(unscaled);
+                        stmt.setBigDecimal(column, new BigDecimal(new BigInteger(unscaled), scale));
+                        break;
+                    case DumpFormat.BYTES:
+                        byte[] bytes = new byte[DumpFormat.getVarint(block)];
+                        block.get(bytes);
+                        stmt.setBytes(column, bytes);
+                        break;
+                    case DumpFormat.DATE:
+                        stmt.setDate(column, new Date(block.getLong()));
+                        break;
+                    case DumpFormat.TIME:
+                        stmt.setTime(column, new Time(block.getLong()));
+                        break;
+                    case DumpFormat.TIMESTAMP:
+                        Timestamp ts = new Timestamp(block.getLong());
+                        ts.setNanos(DumpFormat.getVarint(block));
+                        stmt.setTimestamp(column, ts);
+                        break;
+                    default:
+                        int n = DumpFormat.getVarint(block);
+                        if (chars.length < n) {
+                            chars = new char[Math.max(n, chars.length * 2)];
+                        }
+                        stmt.setString(column, DumpFormat.getChars(block, n, chars));
+                }
+            }
+        }
+    }
+}
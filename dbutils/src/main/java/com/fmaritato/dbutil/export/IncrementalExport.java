@@ -0,0 +1,306 @@
+package com.fmaritato.dbutil.export;
+
+import com.fmaritato.dbutil.DBUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Properties;
+
+/**
+ * Exports only the rows a query gained since the last run, going by a
+ * column that only grows: a timestamp, a sequence number, or ORA_ROWSCN
+ * selected under an alias.
+ * <p/>
+ * The state file, a properties file, keeps the query, the column and the
+ * highest value exported so far (the watermark). Each run first looks up
+ * the column's current max, then exports
+ * <p/>
+ * select * from (query) p where column > ? and column <= ?
+ * <p/>
+ * from the watermark to that max, so rows that arrive during the export
+ * are left for the next run rather than being half seen. The new
+ * watermark is saved by save(), which the caller only calls once the
+ * output is closed; a run that fails is done over in full the next time.
+ * The first run, with no state file, exports everything up to the max.
+ * <p/>
+ * When the output is a single file, its length after the run is saved too,
+ * and truncate() cuts off whatever a failed run appended past it, so
+ * appending again doesn't repeat those rows.
+ */
+public class IncrementalExport {
+
+    private final static Log log =
+            LogFactory.getLog(IncrementalExport.class);
+
+    private static final String NUMBER = "number";
+    private static final String TIMESTAMP = "timestamp";
+    private static final String STRING = "string";
+
+    private final DBUtil dbUtil;
+    private final String query;
+    private final String column;
+    private final File stateFile;
+    /** the state to save once the output is closed, null if nothing was exported */
+    private Properties pending;
+
+    public IncrementalExport(DBUtil dbUtil, String query, String column, String stateFile) {
+        this.dbUtil = dbUtil;
+        this.query = query;
+        this.column = column;
+        this.stateFile = new File(stateFile);
+    }
+
+    /**
+     * Run the export. The new watermark is kept for save().
+     *
+     * @param out         where the rows go
+     * @param writeHeader passed on to the formatter; false when adding to
+     *                    the output of an earlier run
+     * @throws Exception if the state file doesn't belong to this query, or
+     *                   the query fails
+     */
+    public void export(Writer out, boolean writeHeader) throws Exception {
+        long start = System.currentTimeMillis();
+        Properties state = load();
+        String type = state.getProperty("type");
+        String watermark = state.getProperty("watermark");
+        String wrapped = "select * from (" + query + ") p";
+
+        Connection c = dbUtil.getConnection();
+        PreparedStatement stmt = null;
+        try {
+            // the new watermark, fixed before the rows are read
+            String sql = "select max(" + column + ") from (" + query + ") p";
+            stmt = c.prepareStatement(sql);
+            dbUtil.bind(stmt);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            ResultSetMetaData meta = rs.getMetaData();
+            String cast = "?";
+            if ("oracle".equals(dbUtil.getDialectName()) &&
+                "DATE".equalsIgnoreCase(meta.getColumnTypeName(1))) {
+                // a timestamp bind against a DATE column converts the
+                // column, which rules out its indexes and partition pruning
+                cast = "cast(? as date)";
+            }
+            String columnType = getType(meta.getColumnType(1));
+            if (type != null && !type.equals(columnType)) {
+                throw new IllegalArgumentException(stateFile + " has a " + type + " watermark, " +
+                                                   column + " is a " + columnType);
+            }
+            type = columnType;
+            String max = getValue(rs, type);
+            rs.close();
+            stmt.close();
+            stmt = null;
+
+            if (max == null || max.equals(watermark)) {
+                log.info("no rows above " + column + " " + watermark);
+                return;
+            }
+            if (watermark == null) {
+                sql = wrapped + " where " + column + " <= " + cast;
+            }
+            else {
+                sql = wrapped + " where " + column + " > " + cast + " and " + column + " <= " + cast;
+            }
+            log.debug(sql + " [" + watermark + ", " + max + "]");
+            stmt = c.prepareStatement(sql);
+            dbUtil.bind(stmt);
+            int position = dbUtil.getBindVariables() == null ? 1 : dbUtil.getBindVariables().size() + 1;
+            if (watermark != null) {
+                setValue(stmt, position++, type, watermark);
+            }
+            setValue(stmt, position, type, max);
+            rs = dbUtil.executeQuery(stmt, sql);
+            dbUtil.format(rs, dbUtil.newFormatter(), out, writeHeader);
+            out.flush();
+            rs.close();
+
+            state.setProperty("query", query);
+            state.setProperty("column", column);
+            state.setProperty("type", type);
+            state.setProperty("watermark", max);
+            state.setProperty("updated", new Timestamp(System.currentTimeMillis()).toString());
+            pending = state;
+            log.info("exported " + column + " " + (watermark == null ? "up" : "from " + watermark + " exclusive") +
+                     " to " + max + " in " + (System.currentTimeMillis() - start) + " ms");
+        }
+        finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            dbUtil.releaseConnection(c);
+        }
+    }
+
+    private static String getType(int type) {
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return NUMBER;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            default:
+                return STRING;
+        }
+    }
+
+    private static String getValue(ResultSet rs, String type) throws Exception {
+        if (NUMBER.equals(type)) {
+            BigDecimal value = rs.getBigDecimal(1);
+            return value == null ? null : value.toPlainString();
+        }
+        if (TIMESTAMP.equals(type)) {
+            Timestamp value = rs.getTimestamp(1);
+            return value == null ? null : value.toString();
+        }
+        return rs.getString(1);
+    }
+
+    private static void setValue(PreparedStatement stmt, int position, String type, String value)
+            throws Exception {
+        if (NUMBER.equals(type)) {
+            stmt.setBigDecimal(position, new BigDecimal(value));
+        }
+        else if (TIMESTAMP.equals(type)) {
+            stmt.setTimestamp(position, Timestamp.valueOf(value));
+        }
+        else {
+            stmt.setString(position, value);
+        }
+    }
+
+    /**
+     * Move the watermark up to what export() read, once the output is
+     * safely closed. Does nothing if export() found no new rows.
+     *
+     * @param output the file the rows went to, null if it wasn't a single
+     *               file (stdout, rolled files)
+     * @throws IOException if the state can't be written
+     */
+    public void save(File output) throws IOException {
+        if (pending == null) {
+            return;
+        }
+        if (output != null) {
+            pending.setProperty("output", output.getAbsolutePath());
+            pending.setProperty("length", String.valueOf(output.length()));
+        }
+        else {
+            pending.remove("output");
+            pending.remove("length");
+        }
+        save(pending);
+        pending = null;
+    }
+
+    /**
+     * Cut output back to the length saved with the last watermark, dropping
+     * what a run that failed after it appended. Call before opening output
+     * to append to it.
+     *
+     * @param stateFile the --state file
+     * @param output    the file about to be appended to
+     * @throws IOException if output can't be truncated
+     */
+    public static void truncate(String stateFile, String output) throws IOException {
+        File file = new File(output);
+        Properties state = read(new File(stateFile));
+        String length = state.getProperty("length");
+        if (length == null || !file.getAbsolutePath().equals(state.getProperty("output"))) {
+            return;
+        }
+        long saved = Long.parseLong(length);
+        if (file.length() <= saved) {
+            return;
+        }
+        log.warn("dropping " + (file.length() - saved) + " bytes of " + output +
+                 " a failed run left after the last watermark");
+        RandomAccessFile raf = new RandomAccessFile(file, "rw");
+        try {
+            raf.setLength(saved);
+        }
+        finally {
+            raf.close();
+        }
+    }
+
+    /**
+     * @return the saved state, empty before the first run
+     */
+    private static Properties read(File stateFile) throws IOException {
+        Properties state = new Properties();
+        if (!stateFile.exists()) {
+            return state;
+        }
+        InputStream in = new FileInputStream(stateFile);
+        try {
+            state.load(in);
+        }
+        finally {
+            in.close();
+        }
+        return state;
+    }
+
+    /**
+     * @return the saved state, empty before the first run
+     * @throws IllegalArgumentException if it was saved for another query
+     *                                  or column
+     */
+    private Properties load() throws IOException {
+        Properties state = read(stateFile);
+        if (state.isEmpty()) {
+            return state;
+        }
+        if (!query.equals(state.getProperty("query")) || !column.equals(state.getProperty("column"))) {
+            throw new IllegalArgumentException(stateFile + " is the state of another extract (" +
+                                               state.getProperty("column") + " of " +
+                                               state.getProperty("query") + "), use another --state");
+        }
+        return state;
+    }
+
+    /**
+     * Write the state next to the file and rename it over the old one, so
+     * a crash leaves the old state or the new one.
+     */
+    private void save(Properties state) throws IOException {
+        File tmp = new File(stateFile.getPath() + ".tmp");
+        OutputStream out = new FileOutputStream(tmp);
+        try {
+            state.store(out, "dbutil incremental export");
+        }
+        finally {
+            out.close();
+        }
+        // renameTo won't replace a file on Windows
+        if (!tmp.renameTo(stateFile) && !(stateFile.delete() && tmp.renameTo(stateFile))) {
+            throw new IOException("can't replace " + stateFile + " with " + tmp);
+        }
+    }
+}
@@ -0,0 +1,392 @@
+package com.fmaritato.dbutil.export;
+
+import com.fmaritato.dbutil.DBUtil;
+import com.fmaritato.dbutil.Workers;
+import com.fmaritato.dbutil.sink.OutputSink;
+import com.fmaritato.dbutil.text.Formatter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Reader;
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Exports one query as N disjoint slices that run on N connections at once.
+ * <p/>
+ * The split column's min and max are looked up and the range between them is
+ * cut into N equal parts; each part runs as
+ * <p/>
+ * select * from (query) p where column >= ? and column < ?
+ * <p/>
+ * with the first part also picking up the nulls and the last one everything
+ * from its lower bound up. Numeric and date/timestamp columns can be split.
+ * <p/>
+ * On Oracle the column can be "rowid": the table's extents (from
+ * user_extents, table given with -t) are grouped into N runs of about the
+ * same number of blocks and each part reads one rowid range, so every
+ * server process scans its own blocks. The query has to select from that
+ * one table for its rowid to be visible.
+ * <p/>
+ * Each part goes to its own file when a file name pattern is given (a
+ * String.format pattern that gets the 0 based part number), otherwise the
+ * parts are merged into one output in part order: the first part is written
+ * as it comes, the others are spooled to temp files until it is done. Only
+ * the first part writes a header.
+ */
+public class PartitionedExport {
+
+    private final static Log log =
+            LogFactory.getLog(PartitionedExport.class);
+
+    public static final String ROWID = "rowid";
+
+    private final DBUtil dbUtil;
+    private final String query;
+    private final String column;
+    private final int partitions;
+    private String filePattern;
+
+    public PartitionedExport(DBUtil dbUtil, String query, String column, int partitions) {
+        this.dbUtil = dbUtil;
+        this.query = query;
+        this.column = column;
+        this.partitions = partitions;
+    }
+
+    public String getFilePattern() {
+        return filePattern;
+    }
+
+    /**
+     * @param aValue String.format pattern for the per part files, e.g.
+     *               "orders-%02d.csv"; null merges the parts into one output
+     */
+    public void setFilePattern(String aValue) {
+        filePattern = aValue;
+    }
+
+    /**
+     * Run the export.
+     *
+     * @param out where merged output goes, unused with a file pattern
+     * @throws Exception if the bounds can't be found or a part fails
+     */
+    public void export(final Writer out) throws Exception {
+        long start = System.currentTimeMillis();
+        List<Partition> parts;
+        Connection c = dbUtil.getConnection();
+        try {
+            parts = getPartitions(c);
+        }
+        finally {
+            dbUtil.releaseConnection(c);
+        }
+        log.info("exporting " + parts.size() + " partitions of " + column);
+
+        ExecutorService workers = Workers.start("export", dbUtil.reserveConnections(parts.size()));
+        List<File> spools = new ArrayList<File>();
+        try {
+            List<Future<?>> results = new ArrayList<Future<?>>();
+            for (final Partition part : parts) {
+                final Writer w;
+                if (filePattern != null) {
+                    w = new OutputSink(String.format(filePattern, part.number), null, 0, 0);
+                }
+                else if (part.number == 0) {
+                    w = out;
+                }
+                else {
+                    File spool = File.createTempFile("dbutil-part-" + part.number + "-", ".tmp");
+                    spool.deleteOnExit();
+                    spools.add(spool);
+                    // UTF-8 like the output, whatever the platform charset
+                    w = new BufferedWriter(new OutputStreamWriter(new FileOutputStream(spool), "UTF-8"));
+                }
+                results.add(workers.submit(new Callable<Object>() {
+                    public Object call() throws Exception {
+                        try {
+                            run(part, w);
+                        }
+                        finally {
+                            if (w != out) {
+                                w.close();
+                            }
+                        }
+                        return null;
+                    }
+                }));
+            }
+            for (int i = 0; i < results.size(); i++) {
+                try {
+                    results.get(i).get();
+                }
+                catch (ExecutionException e) {
+                    if (e.getCause() instanceof Exception) {
+                        throw (Exception) e.getCause();
+                    }
+                    throw e;
+                }
+                if (filePattern == null && i > 0) {
+                    append(spools.get(i - 1), out);
+                }
+            }
+            out.flush();
+        }
+        finally {
+            workers.shutdownNow();
+            for (File spool : spools) {
+                spool.delete();
+            }
+        }
+        long end = System.currentTimeMillis();
+        log.info("exported " + parts.size() + " partitions in " + (end - start) + " ms");
+    }
+
+    private void run(Partition part, Writer w) throws Exception {
+        long start = System.currentTimeMillis();
+        Connection c = dbUtil.getConnection();
+        PreparedStatement stmt = null;
+        try {
+            stmt = prepare(c, part);
+            ResultSet rs = dbUtil.executeQuery(stmt, part.sql);
+            Formatter formatter = dbUtil.newFormatter();
+            dbUtil.format(rs, formatter, w, part.number == 0 || filePattern != null);
+            w.flush();
+            rs.close();
+        }
+        finally {
+            if (stmt != null) {
+                stmt.close();
+            }
+            dbUtil.releaseConnection(c);
+        }
+        long end = System.currentTimeMillis();
+        log.info("partition " + part.number + " done in " + (end - start) + " ms");
+    }
+
+    /**
+     * @return the rowid ranges or the split column's ranges
+     */
+    List<Partition> getPartitions(Connection c) throws Exception {
+        return ROWID.equalsIgnoreCase(column) ? getRowidPartitions(c) : getRangePartitions(c);
+    }
+
+    /**
+     * Prepare a partition's query with the --bind variables and its bounds.
+     */
+    PreparedStatement prepare(Connection c, Partition part) throws Exception {
+        log.debug("partition " + part.number + ": " + part.sql + " " + part.values);
+        PreparedStatement stmt = c.prepareStatement(part.sql);
+        dbUtil.bind(stmt);
+        int position = dbUtil.getBindVariables() == null ? 1 : dbUtil.getBindVariables().size() + 1;
+        for (Object value : part.values) {
+            stmt.setObject(position++, value);
+        }
+        return stmt;
+    }
+
+    /**
+     * Cut [min, max] of the split column into equal ranges.
+     */
+    List<Partition> getRangePartitions(Connection c) throws Exception {
+        String wrapped = "select * from (" + query + ") p";
+        String sql = "select min(" + column + "), max(" + column + ") from (" + query + ") p";
+        PreparedStatement stmt = c.prepareStatement(sql);
+        Object[] bounds;
+        String cast = "?";
+        try {
+            dbUtil.bind(stmt);
+            ResultSet rs = stmt.executeQuery();
+            rs.next();
+            ResultSetMetaData meta = rs.getMetaData();
+            int type = meta.getColumnType(1);
+            if ("oracle".equals(dbUtil.getDialectName()) &&
+                "DATE".equalsIgnoreCase(meta.getColumnTypeName(1))) {
+                // a timestamp bind against a DATE column converts the
+                // column, which rules out its indexes and partition pruning
+                cast = "cast(? as date)";
+            }
+            bounds = getBounds(rs, type);
+            rs.close();
+        }
+        finally {
+            stmt.close();
+        }
+
+        List<Partition> parts = new ArrayList<Partition>();
+        if (bounds == null || partitions < 2) {
+            parts.add(new Partition(0, wrapped));
+            return parts;
+        }
+        for (int i = 0; i < partitions; i++) {
+            if (i == 0) {
+                parts.add(new Partition(i, wrapped + " where " + column + " < " + cast +
+                                           " or " + column + " is null", bounds[1]));
+            }
+            else if (i == partitions - 1) {
+                parts.add(new Partition(i, wrapped + " where " + column + " >= " + cast, bounds[i]));
+            }
+            else {
+                parts.add(new Partition(i, wrapped + " where " + column + " >= " + cast +
+                                           " and " + column + " < " + cast,
+                                        bounds[i], bounds[i + 1]));
+            }
+        }
+        return parts;
+    }
+
+    /**
+     * @return partitions + 1 boundaries from min to max, null if the
+     *         column is all nulls
+     */
+    private Object[] getBounds(ResultSet rs, int type) throws Exception {
+        Object[] bounds = new Object[partitions + 1];
+        switch (type) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                BigDecimal min = rs.getBigDecimal(1);
+                BigDecimal max = rs.getBigDecimal(2);
+                if (min == null) {
+                    return null;
+                }
+                boolean whole = min.scale() <= 0 && max.scale() <= 0 ||
+                                type == Types.INTEGER || type == Types.BIGINT ||
+                                type == Types.SMALLINT || type == Types.TINYINT;
+                BigDecimal step = max.subtract(min).divide(BigDecimal.valueOf(partitions),
+                                                           MathContext.DECIMAL64);
+                for (int i = 0; i <= partitions; i++) {
+                    BigDecimal b = min.add(step.multiply(BigDecimal.valueOf(i)));
+                    bounds[i] = whole ? b.setScale(0, RoundingMode.FLOOR) : b;
+                }
+                return bounds;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                Timestamp from = rs.getTimestamp(1);
+                Timestamp to = rs.getTimestamp(2);
+                if (from == null) {
+                    return null;
+                }
+                long span = to.getTime() - from.getTime();
+                for (int i = 0; i <= partitions; i++) {
+                    bounds[i] = new Timestamp(from.getTime() + span / partitions * i);
+                }
+                return bounds;
+            default:
+                throw new IllegalArgumentException("can't split on " + column + ", " +
+                                                   "use a numeric or date column");
+        }
+    }
+
+    /**
+     * Group the table's extents into runs of about the same number of
+     * blocks, one rowid range per run.
+     */
+    List<Partition> getRowidPartitions(Connection c) throws Exception {
+        if (!"oracle".equals(dbUtil.getDialectName())) {
+            throw new IllegalArgumentException("--split-by rowid needs Oracle");
+        }
+        if (dbUtil.getTableName() == null) {
+            throw new IllegalArgumentException("--split-by rowid needs the table name (-t)");
+        }
+        List<String[]> extents = new ArrayList<String[]>();
+        List<Long> blocks = new ArrayList<Long>();
+        long total = 0;
+        PreparedStatement stmt = c.prepareStatement
+                ("select dbms_rowid.rowid_create(1, o.data_object_id, e.relative_fno, e.block_id, 0), " +
+                 "dbms_rowid.rowid_create(1, o.data_object_id, e.relative_fno, e.block_id + e.blocks - 1, 32767), " +
+                 "e.blocks " +
+                 "from user_extents e, user_objects o " +
+                 "where e.segment_name = ? and o.object_name = e.segment_name " +
+                 "and o.object_type like 'TABLE%' " +
+                 "and nvl(o.subobject_name, '-') = nvl(e.partition_name, '-') " +
+                 "order by o.data_object_id, e.relative_fno, e.block_id");
+        try {
+            stmt.setString(1, dbUtil.getTableName().toUpperCase());
+            ResultSet rs = stmt.executeQuery();
+            while (rs.next()) {
+                extents.add(new String[]{rs.getString(1), rs.getString(2)});
+                blocks.add(rs.getLong(3));
+                total += rs.getLong(3);
+            }
+            rs.close();
+        }
+        finally {
+            stmt.close();
+        }
+
+        String wrapped = "select * from (" + query + ") p";
+        List<Partition> parts = new ArrayList<Partition>();
+        if (extents.isEmpty() || partitions < 2) {
+            parts.add(new Partition(0, wrapped));
+            return parts;
+        }
+        String sql = wrapped + " where rowid between chartorowid(?) and chartorowid(?)";
+        int first = 0;
+        long sum = 0;
+        for (int i = 0; i < extents.size(); i++) {
+            sum += blocks.get(i);
+            boolean last = i == extents.size() - 1;
+            // cut once this run has its share of the blocks
+            if (last || sum >= total * (parts.size() + 1) / partitions) {
+                parts.add(new Partition(parts.size(), sql, extents.get(first)[0], extents.get(i)[1]));
+                first = i + 1;
+            }
+        }
+        return parts;
+    }
+
+    private static void append(File spool, Writer out) throws Exception {
+        Reader in = new InputStreamReader(new FileInputStream(spool), "UTF-8");
+        try {
+            char[] buf = new char[64 * 1024];
+            int n;
+            while ((n = in.read(buf)) > 0) {
+                out.write(buf, 0, n);
+            }
+        }
+        finally {
+            in.close();
+        }
+    }
+
+    static class Partition {
+        final int number;
+        final String sql;
+        final List<Object> values;
+
+        Partition(int number, String sql, Object... values) {
+            this.number = number;
+            this.sql = sql;
+            this.values = Arrays.asList(values);
+        }
+    }
+}
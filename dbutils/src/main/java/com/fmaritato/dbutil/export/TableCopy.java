@@ -0,0 +1,402 @@
+package com.fmaritato.dbutil.export;
+
+import com.fmaritato.dbutil.DBUtil;
+import com.fmaritato.dbutil.Workers;
+import com.fmaritato.dbutil.pipeline.Pipeline;
+import com.fmaritato.dbutil.pipeline.RowRingBuffer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Writer;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Copies the rows of a query into a table of another database, without an
+ * intermediate file.
+ * <p/>
+ * For each part of the query (the --split-by ranges of PartitionedExport,
+ * or the whole query) a fetch thread reads the source result into a
+ * bounded RowRingBuffer (-Ddb.pipeline.depth rows) while the part's worker
+ * takes the rows off it and sends them in JDBC batches to the target,
+ * committing every commitInterval rows. Every part has its own source and
+ * target connection, so fetching and inserting overlap within a part and
+ * the parts run side by side.
+ * <p/>
+ * Source values are fetched as plain Java objects so they can be bound on
+ * another driver: LOBs as strings and bytes, timestamps with
+ * getTimestamp(), and the vendor types getObject() would return as
+ * strings. The insert names the source columns, so the target table only
+ * needs columns of the same names.
+ * <p/>
+ * Progress (rows fetched, committed, the lag between the two and the rate)
+ * is reported every -Ddb.copy.progress seconds, and at the end how long
+ * each side waited for the other, which tells which database held the
+ * copy up.
+ */
+public class TableCopy {
+
+    private final static Log log =
+            LogFactory.getLog(TableCopy.class);
+
+    public static final String PROP_PROGRESS = "db.copy.progress";
+
+    /** how a column is read from the source */
+    private static final int OBJECT = 0;
+    private static final int STRING = 1;
+    private static final int BYTES = 2;
+    private static final int TIMESTAMP = 3;
+
+    private final DBUtil source;
+    private final DBUtil target;
+    private final String query;
+    private final String table;
+    private String column;
+    private int partitions = 1;
+    private int batchSize = 1000;
+    private int commitInterval = 10000;
+    private int depth = Integer.getInteger(Pipeline.PROP_DEPTH, Pipeline.DEFAULT_DEPTH);
+    private long progress = Integer.getInteger(PROP_PROGRESS, 10) * 1000L;
+
+    private final AtomicLong fetched = new AtomicLong();
+    private final AtomicLong committed = new AtomicLong();
+    private final AtomicLong fetchWait = new AtomicLong();
+    private final AtomicLong insertWait = new AtomicLong();
+
+    /**
+     * @param source where the query runs
+     * @param target where the rows go, see DBUtil.createTarget()
+     * @param query  rows to copy
+     * @param table  target table
+     */
+    public TableCopy(DBUtil source, DBUtil target, String query, String table) {
+        this.source = source;
+        this.target = target;
+        this.query = query;
+        this.table = table;
+    }
+
+    /**
+     * @param column     split column (or rowid on Oracle), null to copy the
+     *                   query in one piece
+     * @param partitions number of ranges to copy at once
+     */
+    public void setSplit(String column, int partitions) {
+        this.column = column;
+        this.partitions = Math.max(1, partitions);
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int aValue) {
+        batchSize = Math.max(1, aValue);
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(int aValue) {
+        commitInterval = Math.max(1, aValue);
+    }
+
+    /**
+     * Run the copy.
+     *
+     * @param out where progress and the totals are reported
+     * @throws Exception if a part fails; the parts committed so far stay
+     */
+    public void copy(Writer out) throws Exception {
+        long start = System.currentTimeMillis();
+        final List<PartitionedExport.Partition> parts;
+        Connection c = source.getConnection();
+        try {
+            if (column != null) {
+                parts = new PartitionedExport(source, query, column, partitions).getPartitions(c);
+            }
+            else {
+                parts = new ArrayList<PartitionedExport.Partition>();
+                parts.add(new PartitionedExport.Partition(0, query));
+            }
+        }
+        finally {
+            source.releaseConnection(c);
+        }
+        final PartitionedExport binder = new PartitionedExport(source, query, column, parts.size());
+        log.info("copying " + parts.size() + " parts into " + table);
+
+        // each part holds a connection of both
+        int n = Math.min(source.reserveConnections(parts.size()), target.reserveConnections(parts.size()));
+        ExecutorService workers = Workers.start("copy", n);
+        try {
+            List<Future<Long>> results = new ArrayList<Future<Long>>();
+            for (final PartitionedExport.Partition part : parts) {
+                results.add(workers.submit(new Callable<Long>() {
+                    public Long call() throws Exception {
+                        return copy(binder, part);
+                    }
+                }));
+            }
+            long rows = 0;
+            for (Future<Long> result : results) {
+                while (true) {
+                    try {
+                        rows += result.get(progress, TimeUnit.MILLISECONDS);
+                        break;
+                    }
+                    catch (TimeoutException e) {
+                        report(out, start);
+                    }
+                    catch (ExecutionException e) {
+                        if (e.getCause() instanceof Exception) {
+                            throw (Exception) e.getCause();
+                        }
+                        throw e;
+                    }
+                }
+            }
+            long ms = Math.max(1, System.currentTimeMillis() - start);
+            out.write(rows + " rows copied into " + table + " on " + n + " connection pairs (" + ms +
+                      " ms, " + rows * 1000 / ms + " rows/s); waits: fetch " + fetchWait.get() +
+                      " ms on a full buffer, insert " + insertWait.get() + " ms on an empty one\n");
+            out.flush();
+        }
+        finally {
+            workers.shutdownNow();
+        }
+    }
+
+    private void report(Writer out, long start) throws Exception {
+        long f = fetched.get();
+        long c = committed.get();
+        long ms = Math.max(1, System.currentTimeMillis() - start);
+        out.write(f + " rows fetched, " + c + " committed (" + c * 1000 / ms + " rows/s), lag " +
+                  (f - c) + " rows\n");
+        out.flush();
+    }
+
+    /**
+     * Copy one part on its own pair of connections.
+     *
+     * @return rows copied
+     */
+    private long copy(PartitionedExport binder, PartitionedExport.Partition part) throws Exception {
+        long start = System.currentTimeMillis();
+        Connection from = source.getConnection();
+        Connection to = null;
+        PreparedStatement select = null;
+        PreparedStatement insert = null;
+        RowRingBuffer ring = null;
+        Thread fetcher = null;
+        long rows = 0;
+        try {
+            to = target.getConnection();
+            to.setAutoCommit(false);
+            select = binder.prepare(from, part);
+            final ResultSet rs = source.executeQuery(select, part.sql);
+            ResultSetMetaData meta = rs.getMetaData();
+            final int columns = meta.getColumnCount();
+            final int[] kinds = getKinds(meta);
+            int[] types = getTargetTypes(to, meta);
+            insert = to.prepareStatement(getInsert(meta));
+
+            final RowRingBuffer r = ring = new RowRingBuffer(depth, columns);
+            fetcher = new Thread(new Runnable() {
+                public void run() {
+                    try {
+                        while (rs.next()) {
+                            Object[] row = r.claim();
+                            if (row == null) {
+                                break;
+                            }
+                            for (int i = 0; i < columns; i++) {
+                                row[i] = get(rs, i + 1, kinds[i]);
+                            }
+                            r.publish();
+                            fetched.incrementAndGet();
+                        }
+                        r.finish(null);
+                    }
+                    catch (Throwable e) {
+                        r.finish(e);
+                    }
+                }
+            }, Thread.currentThread().getName() + "-fetch");
+            fetcher.setDaemon(true);
+            fetcher.start();
+
+            int pending = 0;
+            int uncommitted = 0;
+            Object[] row;
+            while ((row = ring.take()) != null) {
+                for (int i = 0; i < columns; i++) {
+                    if (row[i] == null) {
+                        insert.setNull(i + 1, types[i]);
+                    }
+                    else {
+                        insert.setObject(i + 1, row[i]);
+                    }
+                }
+                insert.addBatch();
+                if (++pending >= batchSize) {
+                    insert.executeBatch();
+                    pending = 0;
+                }
+                if (++uncommitted >= commitInterval) {
+                    if (pending > 0) {
+                        insert.executeBatch();
+                        pending = 0;
+                    }
+                    to.commit();
+                    committed.addAndGet(uncommitted);
+                    rows += uncommitted;
+                    uncommitted = 0;
+                }
+            }
+            if (pending > 0) {
+                insert.executeBatch();
+            }
+            to.commit();
+            committed.addAndGet(uncommitted);
+            rows += uncommitted;
+            rs.close();
+        }
+        finally {
+            if (ring != null) {
+                // lets a fetcher waiting for room go
+                ring.close();
+                if (fetcher != null) {
+                    fetcher.join();
+                }
+                fetchWait.addAndGet(ring.getProducerWait());
+                insertWait.addAndGet(ring.getConsumerWait());
+            }
+            close(select);
+            close(insert);
+            source.releaseConnection(from);
+            // rolls back whatever wasn't committed
+            target.releaseConnection(to);
+        }
+        if (log.isInfoEnabled()) {
+            log.info("part " + part.number + ": " + rows + " rows in " +
+                     (System.currentTimeMillis() - start) + " ms");
+        }
+        return rows;
+    }
+
+    private static void close(PreparedStatement stmt) {
+        if (stmt != null) {
+            try {
+                stmt.close();
+            }
+            catch (Exception e) {
+                log.error(e.getMessage(), e);
+            }
+        }
+    }
+
+    /**
+     * Pick the getter for each source column: LOBs and vendor types can't
+     * be bound on another connection, let alone another driver.
+     */
+    private static int[] getKinds(ResultSetMetaData meta) throws Exception {
+        int[] kinds = new int[meta.getColumnCount()];
+        for (int i = 0; i < kinds.length; i++) {
+            int type = meta.getColumnType(i + 1);
+            String className = meta.getColumnClassName(i + 1);
+            if (type == Types.CLOB || type == Types.NCLOB || type == Types.LONGVARCHAR ||
+                type == Types.LONGNVARCHAR || type == Types.SQLXML) {
+                kinds[i] = STRING;
+            }
+            else if (type == Types.BLOB || type == Types.LONGVARBINARY || type == Types.VARBINARY ||
+                     type == Types.BINARY) {
+                kinds[i] = BYTES;
+            }
+            else if (type == Types.TIMESTAMP ||
+                     className != null && className.startsWith("oracle.sql.TIMESTAMP")) {
+                kinds[i] = TIMESTAMP;
+            }
+            else if (className != null && className.startsWith("oracle.sql.")) {
+                kinds[i] = STRING;
+            }
+            else {
+                kinds[i] = OBJECT;
+            }
+        }
+        return kinds;
+    }
+
+    private static Object get(ResultSet rs, int column, int kind) throws Exception {
+        switch (kind) {
+            case STRING:
+                return rs.getString(column);
+            case BYTES:
+                return rs.getBytes(column);
+            case TIMESTAMP:
+                return rs.getTimestamp(column);
+            default:
+                return rs.getObject(column);
+        }
+    }
+
+    /**
+     * @return the target's type for each source column, for setNull()
+     * @throws IllegalArgumentException if the target table is missing one
+     */
+    private int[] getTargetTypes(Connection c, ResultSetMetaData meta) throws Exception {
+        Map<String, Integer> byName = new HashMap<String, Integer>();
+        PreparedStatement stmt = c.prepareStatement("select * from " + table + " where 1 = 0");
+        try {
+            ResultSet rs = stmt.executeQuery();
+            ResultSetMetaData targetMeta = rs.getMetaData();
+            for (int i = 1; i <= targetMeta.getColumnCount(); i++) {
+                byName.put(targetMeta.getColumnName(i).toUpperCase(), targetMeta.getColumnType(i));
+            }
+            rs.close();
+        }
+        finally {
+            stmt.close();
+        }
+        int[] types = new int[meta.getColumnCount()];
+        for (int i = 0; i < types.length; i++) {
+            Integer type = byName.get(meta.getColumnLabel(i + 1).toUpperCase());
+            if (type == null) {
+                throw new IllegalArgumentException(table + " has no column " + meta.getColumnLabel(i + 1));
+            }
+            types[i] = type;
+        }
+        return types;
+    }
+
+    private String getInsert(ResultSetMetaData meta) throws Exception {
+        StringBuilder sql = new StringBuilder("insert into ").append(table).append(" (");
+        StringBuilder values = new StringBuilder(") values (");
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if (i > 1) {
+                sql.append(", ");
+                values.append(", ");
+            }
+            sql.append(meta.getColumnLabel(i));
+            values.append('?');
+        }
+        String s = sql.append(values).append(')').toString();
+        log.debug(s);
+        return s;
+    }
+}
@@ -0,0 +1,198 @@
+package com.fmaritato.dbutil.pipeline;
+
+import java.io.IOException;
+import java.io.Writer;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Writer that collects output in fixed size chunks and writes them to the
+ * real writer on a thread of its own, so formatting carries on while the
+ * output is written.
+ * <p/>
+ * flush() doesn't wait for the writer thread (a formatter that flushes
+ * often would serialize the two stages again); close() does, and flushes
+ * the real writer without closing it.
+ */
+public class AsyncWriter extends Writer {
+
+    public static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final Chunk END = new Chunk();
+
+    private final Writer out;
+    private final BlockingQueue<Chunk> full;
+    private final BlockingQueue<Chunk> free;
+    private final Thread thread;
+
+    private Chunk chunk = new Chunk();
+    private boolean closed = false;
+    private volatile Throwable error;
+
+    private long producerWait = 0;
+    private volatile long consumerWait = 0;
+
+    /**
+     * @param out   the real writer
+     * @param depth chunks that can be waiting for the writer thread
+     */
+    public AsyncWriter(Writer out, int depth) {
+        this.out = out;
+        full = new ArrayBlockingQueue<Chunk>(depth + 1);
+        free = new ArrayBlockingQueue<Chunk>(depth + 1);
+        thread = new Thread(new Runnable() {
+            public void run() {
+                drain();
+            }
+        }, "pipeline-writer");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        check();
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE - chunk.length);
+            System.arraycopy(cbuf, off, chunk.buf, chunk.length, n);
+            chunk.length += n;
+            off += n;
+            len -= n;
+            if (chunk.length == CHUNK_SIZE) {
+                send();
+            }
+        }
+    }
+
+    public void write(String str, int off, int len) throws IOException {
+        check();
+        while (len > 0) {
+            int n = Math.min(len, CHUNK_SIZE - chunk.length);
+            str.getChars(off, off + n, chunk.buf, chunk.length);
+            chunk.length += n;
+            off += n;
+            len -= n;
+            if (chunk.length == CHUNK_SIZE) {
+                send();
+            }
+        }
+    }
+
+    public void write(int c) throws IOException {
+        check();
+        chunk.buf[chunk.length++] = (char) c;
+        if (chunk.length == CHUNK_SIZE) {
+            send();
+        }
+    }
+
+    /**
+     * Doesn't wait, see the class comment.
+     */
+    public void flush() throws IOException {
+        check();
+    }
+
+    /**
+     * Write out everything and wait for the writer thread to finish.
+     *
+     * @throws IOException if writing failed
+     */
+    public void close() throws IOException {
+        if (closed) {
+            return;
+        }
+        closed = true;
+        try {
+            if (error == null) {
+                if (chunk.length > 0) {
+                    send();
+                }
+                put(END);
+            }
+            thread.join();
+        }
+        catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+        check();
+        out.flush();
+    }
+
+    /**
+     * Stop the writer thread without writing what is still queued.
+     */
+    public void abort() {
+        closed = true;
+        thread.interrupt();
+    }
+
+    /**
+     * @return ms the formatting side waited for the writer thread
+     */
+    public long getProducerWait() {
+        return producerWait / 1000000;
+    }
+
+    /**
+     * @return ms the writer thread waited for output
+     */
+    public long getConsumerWait() {
+        return consumerWait / 1000000;
+    }
+
+    private void send() throws IOException {
+        try {
+            put(chunk);
+        }
+        catch (InterruptedException e) {
+            throw new IOException("interrupted");
+        }
+        chunk = free.poll();
+        if (chunk == null) {
+            chunk = new Chunk();
+        }
+        chunk.length = 0;
+    }
+
+    private void put(Chunk c) throws InterruptedException, IOException {
+        long start = System.nanoTime();
+        // don't block for good on a writer thread that died
+        while (!full.offer(c, 100, TimeUnit.MILLISECONDS)) {
+            check();
+        }
+        producerWait += System.nanoTime() - start;
+    }
+
+    private void check() throws IOException {
+        if (error instanceof IOException) {
+            throw (IOException) error;
+        }
+        else if (error != null) {
+            throw new IOException(error.toString());
+        }
+    }
+
+    private void drain() {
+        try {
+            while (true) {
+                long start = System.nanoTime();
+                Chunk c = full.take();
+                consumerWait += System.nanoTime() - start;
+                if (c == END) {
+                    break;
+                }
+                out.write(c.buf, 0, c.length);
+                free.offer(c);
+            }
+        }
+        catch (Throwable e) {
+            error = e;
+        }
+    }
+
+    private static class Chunk {
+        final char[] buf = new char[CHUNK_SIZE];
+        int length = 0;
+    }
+}
@@ -0,0 +1,444 @@
+package com.fmaritato.dbutil.pipeline;
+
+import com.fmaritato.dbutil.text.Formatter;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.io.Writer;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.Blob;
+import java.sql.Clob;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.util.IdentityHashMap;
+import java.util.Map;
+
+/**
+ * Runs fetch, format and write as three stages on their own threads, so the
+ * JDBC round trips overlap with formatting and with output I/O:
+ * <p/>
+ * fetch thread -> ring of rows -> formatter -> chunk queue -> writer thread
+ * <p/>
+ * The fetch thread copies each row's column values into a
+ * {@link RowRingBuffer}; the formatter runs on the calling thread against
+ * a ResultSet view of that ring and writes into an {@link AsyncWriter}.
+ * Both queues are bounded, so a slow stage holds the others back instead of
+ * letting memory grow.
+ * <p/>
+ * The view supports what formatters use: next(), getMetaData(), the getXxx
+ * methods by index or label, wasNull(), findColumn() and close(). Values
+ * are whatever getObject() returned on the fetch thread, except that
+ * oracle.sql.TIMESTAMPs are copied as java.sql.Timestamps. LOBs stay
+ * locators and are read on the formatter thread.
+ * <p/>
+ * When it is done the time each stage spent blocked on its neighbours is
+ * logged at INFO, which shows which one is the bottleneck.
+ */
+public class Pipeline {
+
+    private final static Log log =
+            LogFactory.getLog(Pipeline.class);
+
+    public static final String PROP_DEPTH = "db.pipeline.depth";
+    public static final int DEFAULT_DEPTH = 1024;
+
+    private static final int WRITE_DEPTH = 8;
+
+    private final int depth;
+
+    public Pipeline() {
+        this(Integer.getInteger(PROP_DEPTH, DEFAULT_DEPTH));
+    }
+
+    /**
+     * @param depth rows the fetch thread can get ahead of the formatter
+     */
+    public Pipeline(int depth) {
+        this.depth = Math.max(depth, 1);
+    }
+
+    public int getDepth() {
+        return depth;
+    }
+
+    /**
+     * Format rs into out through the pipeline. out is flushed but not
+     * closed.
+     *
+     * @param rs          result to format, closed when done
+     * @param formatter   formatter to run
+     * @param out         where the output goes
+     * @param writeHeader passed on to the formatter
+     * @throws Exception if fetching, formatting or writing fails
+     */
+    public void format(final ResultSet rs, Formatter formatter, Writer out, boolean writeHeader)
+            throws Exception {
+        long start = System.currentTimeMillis();
+        final ResultSetMetaData meta = rs.getMetaData();
+        final int columns = meta.getColumnCount();
+        final RowRingBuffer ring = new RowRingBuffer(depth, columns);
+        final long[] rows = new long[1];
+        // so getTimestamp() works on the view
+        final boolean[] timestamp = new boolean[columns];
+        for (int i = 0; i < columns; i++) {
+            String className = meta.getColumnClassName(i + 1);
+            timestamp[i] = className != null && className.startsWith("oracle.sql.TIMESTAMP");
+        }
+
+        Thread fetcher = new Thread(new Runnable() {
+            public void run() {
+                try {
+                    while (rs.next()) {
+                        Object[] row = ring.claim();
+                        if (row == null) {
+                            break;
+                        }
+                        for (int i = 0; i < columns; i++) {
+                            row[i] = timestamp[i] ? rs.getTimestamp(i + 1) : rs.getObject(i + 1);
+                        }
+                        ring.publish();
+                        rows[0]++;
+                    }
+                    ring.finish(null);
+                }
+                catch (Throwable e) {
+                    ring.finish(e);
+                }
+            }
+        }, "pipeline-fetch");
+        fetcher.setDaemon(true);
+        fetcher.start();
+
+        AsyncWriter writer = new AsyncWriter(out, WRITE_DEPTH);
+        boolean done = false;
+        try {
+            formatter.format(view(rs, meta, ring), writer, writeHeader);
+            writer.close();
+            done = true;
+        }
+        finally {
+            ring.close();
+            if (!done) {
+                writer.abort();
+            }
+            fetcher.join();
+        }
+
+        if (log.isInfoEnabled()) {
+            long end = System.currentTimeMillis();
+            log.info("pipeline: " + rows[0] + " rows in " + (end - start) + " ms; stalls: " +
+                     "fetch " + ring.getProducerWait() + " ms on a full buffer, " +
+                     "format " + ring.getConsumerWait() + " ms waiting for rows and " +
+                     writer.getProducerWait() + " ms waiting for the writer, " +
+                     "write " + writer.getConsumerWait() + " ms waiting for output");
+        }
+    }
+
+    private static ResultSet view(ResultSet rs, ResultSetMetaData meta, RowRingBuffer ring) {
+        return (ResultSet) Proxy.newProxyInstance(ResultSet.class.getClassLoader(),
+                                                  new Class[]{ResultSet.class},
+                                                  new RingResultSet(rs, meta, ring));
+    }
+
+    /**
+     * ResultSet over the rows in the ring.
+     * <p/>
+     * Each method the proxy is called with is sorted out once, into a
+     * {@link Call} kept in an identity map (the proxy passes the same Method
+     * every time), so a cell getter costs a map lookup and, when the value
+     * the fetch thread boxed is already of the type asked for, returns it
+     * as is. Only mismatched types go through convert().
+     */
+    private static class RingResultSet implements InvocationHandler {
+
+        private static final int NEXT = 0;
+        private static final int GET_META_DATA = 1;
+        private static final int WAS_NULL = 2;
+        private static final int FIND_COLUMN = 3;
+        private static final int CLOSE = 4;
+        private static final int IS_CLOSED = 5;
+        /** passed on to the real result */
+        private static final int DELEGATE = 6;
+        private static final int EQUALS = 7;
+        private static final int HASH_CODE = 8;
+        private static final int TO_STRING = 9;
+        /** a getter by column index */
+        private static final int GET = 10;
+        /** a getter by column label */
+        private static final int GET_BY_LABEL = 11;
+        private static final int UNSUPPORTED = 12;
+
+        private final ResultSet rs;
+        private final ResultSetMetaData meta;
+        private final RowRingBuffer ring;
+        private final Map<Method, Call> calls = new IdentityHashMap<Method, Call>();
+        private Object[] row;
+        private boolean wasNull = false;
+
+        RingResultSet(ResultSet rs, ResultSetMetaData meta, RowRingBuffer ring) {
+            this.rs = rs;
+            this.meta = meta;
+            this.ring = ring;
+        }
+
+        /**
+         * What a method does on the view, and for getters the type it
+         * returns, boxed.
+         */
+        private static class Call {
+            final int kind;
+            final Class<?> type;
+
+            Call(int kind, Class<?> type) {
+                this.kind = kind;
+                this.type = type;
+            }
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+            Call call = calls.get(method);
+            if (call == null) {
+                call = sort(method);
+                calls.put(method, call);
+            }
+            switch (call.kind) {
+                case GET:
+                case GET_BY_LABEL:
+                    int column = call.kind == GET ? (Integer) args[0] : findColumn((String) args[0]);
+                    if (row == null) {
+                        throw new SQLException("no current row");
+                    }
+                    Object value = row[column - 1];
+                    wasNull = value == null;
+                    if (value != null && (call.type == Object.class || call.type.isInstance(value))) {
+                        return value;
+                    }
+                    return convert(value, method.getReturnType());
+                case NEXT:
+                    row = ring.take();
+                    return row != null;
+                case WAS_NULL:
+                    return wasNull;
+                case GET_META_DATA:
+                    return meta;
+                case FIND_COLUMN:
+                    return findColumn((String) args[0]);
+                case CLOSE:
+                    ring.close();
+                    return null;
+                case IS_CLOSED:
+                    return false;
+                case DELEGATE:
+                    try {
+                        return method.invoke(rs, args);
+                    }
+                    catch (InvocationTargetException e) {
+                        throw e.getCause();
+                    }
+                case EQUALS:
+                    return proxy == args[0];
+                case HASH_CODE:
+                    return System.identityHashCode(proxy);
+                case TO_STRING:
+                    return "pipelined " + rs;
+                default:
+                    throw new SQLException(method.getName() + " is not supported on a pipelined result");
+            }
+        }
+
+        private static Call sort(Method method) {
+            String name = method.getName();
+            Class<?>[] params = method.getParameterTypes();
+            if ("next".equals(name)) {
+                return new Call(NEXT, null);
+            }
+            if ("getMetaData".equals(name)) {
+                return new Call(GET_META_DATA, null);
+            }
+            if ("wasNull".equals(name)) {
+                return new Call(WAS_NULL, null);
+            }
+            if ("findColumn".equals(name)) {
+                return new Call(FIND_COLUMN, null);
+            }
+            if ("close".equals(name)) {
+                return new Call(CLOSE, null);
+            }
+            if ("isClosed".equals(name)) {
+                return new Call(IS_CLOSED, null);
+            }
+            if ("getFetchSize".equals(name) || "setFetchSize".equals(name) ||
+                "getStatement".equals(name) || "getType".equals(name) ||
+                "getConcurrency".equals(name) || "getWarnings".equals(name)) {
+                return new Call(DELEGATE, null);
+            }
+            if ("equals".equals(name)) {
+                return new Call(EQUALS, null);
+            }
+            if ("hashCode".equals(name)) {
+                return new Call(HASH_CODE, null);
+            }
+            if ("toString".equals(name)) {
+                return new Call(TO_STRING, null);
+            }
+            if (name.startsWith("get") && params.length >= 1) {
+                return new Call(params[0] == int.class ? GET : GET_BY_LABEL, box(method.getReturnType()));
+            }
+            return new Call(UNSUPPORTED, null);
+        }
+
+        private static Class<?> box(Class<?> type) {
+            if (!type.isPrimitive()) {
+                return type;
+            }
+            if (type == int.class) {
+                return Integer.class;
+            }
+            if (type == long.class) {
+                return Long.class;
+            }
+            if (type == double.class) {
+                return Double.class;
+            }
+            if (type == float.class) {
+                return Float.class;
+            }
+            if (type == short.class) {
+                return Short.class;
+            }
+            if (type == byte.class) {
+                return Byte.class;
+            }
+            return Boolean.class;
+        }
+
+        private int findColumn(String label) throws SQLException {
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                if (meta.getColumnLabel(i).equalsIgnoreCase(label)) {
+                    return i;
+                }
+            }
+            throw new SQLException("no column " + label);
+        }
+
+        private static Object convert(Object value, Class<?> type) throws SQLException {
+            if (type == Object.class) {
+                return value;
+            }
+            if (value == null) {
+                if (!type.isPrimitive()) {
+                    return null;
+                }
+                return type == boolean.class ? Boolean.FALSE : convert(0, type);
+            }
+            if (type.isInstance(value)) {
+                return value;
+            }
+            if (type == String.class) {
+                return value.toString();
+            }
+            if (type == Reader.class) {
+                return value instanceof Clob
+                       ? ((Clob) value).getCharacterStream()
+                       : new StringReader(value.toString());
+            }
+            if (type == InputStream.class) {
+                if (value instanceof Blob) {
+                    return ((Blob) value).getBinaryStream();
+                }
+                if (value instanceof byte[]) {
+                    return new ByteArrayInputStream((byte[]) value);
+                }
+            }
+            if (value instanceof Long || value instanceof Integer ||
+                value instanceof Short || value instanceof Byte) {
+                long l = ((Number) value).longValue();
+                if (type == int.class) {
+                    return (int) l;
+                }
+                if (type == long.class) {
+                    return l;
+                }
+                if (type == double.class) {
+                    return (double) l;
+                }
+                if (type == float.class) {
+                    return (float) l;
+                }
+                if (type == short.class) {
+                    return (short) l;
+                }
+                if (type == byte.class) {
+                    return (byte) l;
+                }
+                if (type == boolean.class) {
+                    return l != 0;
+                }
+                if (type == BigDecimal.class) {
+                    return BigDecimal.valueOf(l);
+                }
+            }
+            if ((value instanceof Double || value instanceof Float) &&
+                (type == double.class || type == float.class)) {
+                // NaN and the infinities have no BigDecimal
+                double d = ((Number) value).doubleValue();
+                return type == double.class ? (Object) d : (Object) (float) d;
+            }
+            if (value instanceof Number || value instanceof String) {
+                BigDecimal d = value instanceof BigDecimal
+                               ? (BigDecimal) value
+                               : new BigDecimal(value.toString().trim());
+                if (type == int.class) {
+                    return d.intValue();
+                }
+                if (type == long.class) {
+                    return d.longValue();
+                }
+                if (type == double.class) {
+                    return d.doubleValue();
+                }
+                if (type == float.class) {
+                    return d.floatValue();
+                }
+                if (type == short.class) {
+                    return d.shortValue();
+                }
+                if (type == byte.class) {
+                    return d.byteValue();
+                }
+                if (type == boolean.class) {
+                    return d.signum() != 0;
+                }
+                if (type == BigDecimal.class) {
+                    return d;
+                }
+            }
+            if (value instanceof Boolean && type == boolean.class) {
+                return value;
+            }
+            if (value instanceof java.util.Date) {
+                long time = ((java.util.Date) value).getTime();
+                if (type == java.sql.Timestamp.class) {
+                    return new java.sql.Timestamp(time);
+                }
+                if (type == java.sql.Date.class) {
+                    return new java.sql.Date(time);
+                }
+                if (type == java.sql.Time.class) {
+                    return new java.sql.Time(time);
+                }
+            }
+            throw new SQLException("can't read a " + value.getClass().getName() +
+                                   " as " + type.getName());
+        }
+    }
+}
@@ -0,0 +1,172 @@
+package com.fmaritato.dbutil.pipeline;
+
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded ring of rows between one fetch thread and one consumer. The row
+ * arrays are allocated once and reused: the producer claims a free slot,
+ * fills it in place and publishes it; the consumer takes the oldest
+ * published slot and frees it when it moves on to the next one.
+ * <p/>
+ * Both sides keep track of how long they were blocked, the producer on a
+ * full ring and the consumer on an empty one.
+ */
+public class RowRingBuffer {
+
+    private final Object[][] slots;
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notFull = lock.newCondition();
+    private final Condition notEmpty = lock.newCondition();
+
+    /** next slot the producer fills */
+    private long head = 0;
+    /** next slot the consumer takes */
+    private long tail = 0;
+    /** slots handed to the consumer and not freed yet */
+    private long taken = 0;
+    private boolean finished = false;
+    private boolean closed = false;
+    private Throwable error;
+
+    private long producerWait = 0;
+    private long consumerWait = 0;
+
+    public RowRingBuffer(int depth, int columns) {
+        slots = new Object[depth][columns];
+    }
+
+    public int getDepth() {
+        return slots.length;
+    }
+
+    /**
+     * Wait for a free slot.
+     *
+     * @return the row array to fill, null if the consumer closed the ring
+     * @throws InterruptedException if interrupted while waiting
+     */
+    public Object[] claim() throws InterruptedException {
+        lock.lock();
+        try {
+            if (head - taken >= slots.length && !closed) {
+                long start = System.nanoTime();
+                while (head - taken >= slots.length && !closed) {
+                    notFull.await();
+                }
+                producerWait += System.nanoTime() - start;
+            }
+            return closed ? null : slots[(int) (head % slots.length)];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Hand the slot from claim() to the consumer.
+     */
+    public void publish() {
+        lock.lock();
+        try {
+            head++;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * No more rows are coming, because the result ended or because of error.
+     *
+     * @param e why the producer stopped, null at the end of the result
+     */
+    public void finish(Throwable e) {
+        lock.lock();
+        try {
+            finished = true;
+            error = e;
+            notEmpty.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Free the previous row and wait for the next one.
+     *
+     * @return the next row, null at the end
+     * @throws Exception what the producer failed with, if it did
+     */
+    public Object[] take() throws Exception {
+        lock.lock();
+        try {
+            if (taken < tail) {
+                taken = tail;
+                notFull.signal();
+            }
+            if (tail == head && !finished) {
+                long start = System.nanoTime();
+                while (tail == head && !finished) {
+                    notEmpty.await();
+                }
+                consumerWait += System.nanoTime() - start;
+            }
+            if (tail == head) {
+                if (error instanceof Exception) {
+                    throw (Exception) error;
+                }
+                else if (error != null) {
+                    throw new RuntimeException(error);
+                }
+                return null;
+            }
+            return slots[(int) (tail++ % slots.length)];
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * The consumer is done, release a producer waiting for room.
+     */
+    public void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notFull.signal();
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return ms the producer waited on a full ring
+     */
+    public long getProducerWait() {
+        lock.lock();
+        try {
+            return producerWait / 1000000;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * @return ms the consumer waited on an empty ring
+     */
+    public long getConsumerWait() {
+        lock.lock();
+        try {
+            return consumerWait / 1000000;
+        }
+        finally {
+            lock.unlock();
+        }
+    }
+}
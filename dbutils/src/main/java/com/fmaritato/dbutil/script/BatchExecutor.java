@@ -0,0 +1,214 @@
+package com.fmaritato.dbutil.script;
+
+import com.fmaritato.dbutil.DBUtil;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Writer;
+import java.sql.BatchUpdateException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.sql.Statement;
+
+/**
+ * Runs the statements of an --input script on one connection, grouping runs
+ * of INSERT/UPDATE/DELETE/MERGE statements into JDBC batches and committing
+ * every commitInterval statements instead of after each one.
+ * <p/>
+ * Anything that isn't DML (queries, DDL, PL/SQL) ends the current batch,
+ * commits and is run on its own through DBUtil.query so its output looks
+ * the same as in the non batched mode.
+ * <p/>
+ * When a batch fails everything since the last commit is rolled back and
+ * reported, then execution carries on with the next statement.
+ */
+public class BatchExecutor {
+
+    private final static Log log =
+            LogFactory.getLog(BatchExecutor.class);
+
+    private final DBUtil dbUtil;
+    private final Connection connection;
+    private final Writer out;
+
+    private int batchSize = 500;
+    private int commitInterval = 500;
+
+    private Statement batch;
+    private int pending = 0;
+    private int firstNumber = 0;
+    private int uncommitted = 0;
+    private long uncommittedUpdates = 0;
+
+    private int batchCount = 0;
+    private long statementCount = 0;
+    private long updateCount = 0;
+    private long failedCount = 0;
+    private long start;
+
+    public BatchExecutor(DBUtil dbUtil, Connection connection, Writer out) throws SQLException {
+        this.dbUtil = dbUtil;
+        this.connection = connection;
+        this.out = out;
+        connection.setAutoCommit(false);
+        start = System.currentTimeMillis();
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int aValue) {
+        batchSize = Math.max(1, aValue);
+    }
+
+    public int getCommitInterval() {
+        return commitInterval;
+    }
+
+    public void setCommitInterval(int aValue) {
+        commitInterval = Math.max(1, aValue);
+    }
+
+    /**
+     * Queue or run a single script statement.
+     *
+     * @param statement statement from the script
+     * @throws Exception if writing the report fails
+     */
+    public void execute(ScriptStatement statement) throws Exception {
+        if (statement.isBarrier()) {
+            return;
+        }
+        String sql = statement.getSql();
+        if (isDML(sql)) {
+            if (batch == null) {
+                batch = connection.createStatement();
+            }
+            if (pending == 0) {
+                firstNumber = statement.getNumber();
+            }
+            batch.addBatch(sql);
+            pending++;
+            if (pending >= batchSize) {
+                executeBatch();
+            }
+        }
+        else {
+            executeBatch();
+            commit();
+            try {
+                dbUtil.query(connection, sql, out);
+                connection.commit();
+            }
+            catch (Exception e) {
+                log.error(e.getMessage(), e);
+                rollback();
+            }
+        }
+    }
+
+    /**
+     * Run whatever is still queued, commit and print the totals.
+     *
+     * @throws Exception if writing the report fails
+     */
+    public void finish() throws Exception {
+        executeBatch();
+        commit();
+        if (batch != null) {
+            batch.close();
+            batch = null;
+        }
+        long end = System.currentTimeMillis();
+        out.write(statementCount + " statements in " + batchCount + " batches, " +
+                  updateCount + " records updated, " + failedCount +
+                  " statements rolled back (" + (end - start) + " ms)\n");
+        out.flush();
+    }
+
+    private void executeBatch() throws Exception {
+        if (pending == 0) {
+            return;
+        }
+        batchCount++;
+        int size = pending;
+        pending = 0;
+        long t0 = System.currentTimeMillis();
+        try {
+            int[] counts = batch.executeBatch();
+            long t1 = System.currentTimeMillis();
+            long updated = sum(counts);
+            statementCount += size;
+            updateCount += updated;
+            uncommitted += size;
+            uncommittedUpdates += updated;
+            out.write("batch " + batchCount + ": " + size + " statements, " +
+                      updated + " records updated (" + (t1 - t0) + " ms)\n");
+            if (uncommitted >= commitInterval) {
+                commit();
+            }
+        }
+        catch (BatchUpdateException e) {
+            int[] counts = e.getUpdateCounts();
+            int done = counts == null ? 0 : counts.length;
+            for (int i = 0; counts != null && i < counts.length; i++) {
+                if (counts[i] == Statement.EXECUTE_FAILED) {
+                    done = i;
+                    break;
+                }
+            }
+            statementCount += size;
+            out.write("batch " + batchCount + " failed at statement #" +
+                      (firstNumber + done) + " (" + (done + 1) + " of " + size + "): " +
+                      e.getMessage() + "\n");
+            log.error(e.getMessage(), e);
+            batch.clearBatch();
+            rollback();
+            failedCount += size;
+        }
+        out.flush();
+    }
+
+    private void commit() throws SQLException {
+        if (uncommitted > 0) {
+            connection.commit();
+            log.debug("commit after " + uncommitted + " statements");
+            uncommitted = 0;
+            uncommittedUpdates = 0;
+        }
+    }
+
+    private void rollback() throws Exception {
+        if (uncommitted > 0) {
+            out.write(uncommitted + " uncommitted statements rolled back\n");
+            failedCount += uncommitted;
+            updateCount -= uncommittedUpdates;
+        }
+        connection.rollback();
+        uncommitted = 0;
+        uncommittedUpdates = 0;
+    }
+
+    private static long sum(int[] counts) {
+        long total = 0;
+        for (int count : counts) {
+            if (count > 0) {
+                total += count;
+            }
+        }
+        return total;
+    }
+
+    /**
+     * @param sql statement text
+     * @return true for statements that can go into a JDBC batch
+     */
+    public static boolean isDML(String sql) {
+        String lower = sql.trim().toLowerCase();
+        return lower.startsWith("insert") ||
+               lower.startsWith("update") ||
+               lower.startsWith("delete") ||
+               lower.startsWith("merge");
+    }
+}
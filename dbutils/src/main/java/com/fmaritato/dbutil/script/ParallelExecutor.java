@@ -0,0 +1,153 @@
+package com.fmaritato.dbutil.script;
+
+import com.fmaritato.dbutil.DBUtil;
+import com.fmaritato.dbutil.Workers;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.StringWriter;
+import java.io.Writer;
+import java.sql.Connection;
+import java.util.ArrayList;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * Runs independent script statements on a fixed number of worker threads,
+ * each with its own pooled connection.
+ * <p/>
+ * Output is buffered per statement and written in script order, tagged with
+ * the statement number, so it reads the same from run to run whatever order
+ * the statements actually finish in. A --@barrier directive in the script
+ * waits for everything before it to finish before anything after it starts.
+ */
+public class ParallelExecutor {
+
+    private final static Log log =
+            LogFactory.getLog(ParallelExecutor.class);
+
+    private final DBUtil dbUtil;
+    private final Writer out;
+    private final int threads;
+    private final ExecutorService workers;
+
+    private final ThreadLocal<Connection> connection = new ThreadLocal<Connection>();
+    private final List<Connection> connections = new ArrayList<Connection>();
+    private final LinkedList<Future<String>> pending = new LinkedList<Future<String>>();
+
+    private int statementCount = 0;
+    private int barrierCount = 0;
+    private int failedCount = 0;
+    private long start;
+
+    public ParallelExecutor(DBUtil dbUtil, int threads, Writer out) throws Exception {
+        this.dbUtil = dbUtil;
+        this.out = out;
+        // each worker keeps its connection until finish()
+        this.threads = dbUtil.reserveConnections(threads);
+        workers = Workers.start("script-worker", this.threads);
+        start = System.currentTimeMillis();
+    }
+
+    /**
+     * Queue a statement, or wait for all queued ones if it is a barrier.
+     *
+     * @param statement statement from the script
+     * @throws Exception if writing the output fails
+     */
+    public void execute(final ScriptStatement statement) throws Exception {
+        if (statement.isBarrier()) {
+            log.debug(statement);
+            barrierCount++;
+            drain(0);
+            return;
+        }
+        statementCount++;
+        pending.add(workers.submit(new Callable<String>() {
+            public String call() throws Exception {
+                return run(statement);
+            }
+        }));
+        // keep a few statements per worker queued but don't read the whole
+        // script into memory ahead of the slowest statement
+        drain(threads * 4);
+    }
+
+    /**
+     * Wait for every statement, release the worker connections and print
+     * the totals.
+     *
+     * @throws Exception if writing the output fails
+     */
+    public void finish() throws Exception {
+        try {
+            drain(0);
+        }
+        finally {
+            workers.shutdown();
+            synchronized (connections) {
+                for (Connection c : connections) {
+                    dbUtil.releaseConnection(c);
+                }
+                connections.clear();
+            }
+        }
+        long end = System.currentTimeMillis();
+        out.write(statementCount + " statements on " + threads + " connections, " +
+                  failedCount + " failed, " + barrierCount + " barriers (" +
+                  (end - start) + " ms)\n");
+        out.flush();
+    }
+
+    /**
+     * Write out finished results in script order until at most max are
+     * still outstanding, blocking on the oldest one when needed.
+     */
+    private void drain(int max) throws Exception {
+        while (!pending.isEmpty() &&
+               (pending.size() > max || pending.getFirst().isDone())) {
+            Future<String> f = pending.removeFirst();
+            String result;
+            try {
+                result = f.get();
+            }
+            catch (ExecutionException e) {
+                result = e.getCause().toString() + "\n";
+            }
+            out.write(result);
+        }
+        out.flush();
+    }
+
+    private String run(ScriptStatement statement) throws Exception {
+        StringWriter sw = new StringWriter();
+        sw.write("-- #" + statement.getNumber() + " (line " + statement.getLine() + ")\n");
+        try {
+            dbUtil.query(getConnection(), statement.getSql(), sw, dbUtil.newFormatter());
+        }
+        catch (Exception e) {
+            log.error(statement, e);
+            synchronized (this) {
+                failedCount++;
+            }
+            sw.write("-- #" + statement.getNumber() + " failed: " + e.getMessage() + "\n");
+        }
+        return sw.toString();
+    }
+
+    private Connection getConnection() throws Exception {
+        Connection c = connection.get();
+        if (c == null) {
+            c = dbUtil.getConnection();
+            connection.set(c);
+            synchronized (connections) {
+                connections.add(c);
+            }
+        }
+        return c;
+    }
+}
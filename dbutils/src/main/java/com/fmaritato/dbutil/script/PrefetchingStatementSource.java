@@ -0,0 +1,83 @@
+package com.fmaritato.dbutil.script;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+
+/**
+ * Parses a script on a background thread, keeping up to depth complete
+ * statements queued, so the next statement is usually ready by the time
+ * the previous one has finished executing.
+ */
+public class PrefetchingStatementSource implements StatementSource, Runnable {
+
+    public static final String PROP_DEPTH = "db.script.prefetch";
+
+    private static final ScriptStatement END = new ScriptStatement(null, 0, 0);
+
+    private final StatementSource source;
+    private final BlockingQueue<ScriptStatement> queue;
+    private final Thread thread;
+    private volatile IOException error;
+    private boolean done = false;
+
+    public PrefetchingStatementSource(StatementSource source) {
+        this(source, Integer.getInteger(PROP_DEPTH, 64));
+    }
+
+    public PrefetchingStatementSource(StatementSource source, int depth) {
+        this.source = source;
+        this.queue = new ArrayBlockingQueue<ScriptStatement>(Math.max(1, depth));
+        this.thread = new Thread(this, "script-reader");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    public void run() {
+        try {
+            try {
+                ScriptStatement s;
+                while ((s = source.next()) != null) {
+                    queue.put(s);
+                }
+            }
+            catch (IOException e) {
+                error = e;
+            }
+            catch (RuntimeException e) {
+                error = new IOException(e);
+            }
+            queue.put(END);
+        }
+        catch (InterruptedException e) {
+            // closed while the queue was full, nobody is reading any more
+        }
+    }
+
+    public ScriptStatement next() throws IOException {
+        if (done) {
+            return null;
+        }
+        ScriptStatement s;
+        try {
+            s = queue.take();
+        }
+        catch (InterruptedException e) {
+            throw new InterruptedIOException(e.getMessage());
+        }
+        if (s == END) {
+            done = true;
+            if (error != null) {
+                throw error;
+            }
+            return null;
+        }
+        return s;
+    }
+
+    public void close() throws IOException {
+        thread.interrupt();
+        source.close();
+    }
+}
@@ -0,0 +1,69 @@
+package com.fmaritato.dbutil.script;
+
+/**
+ * One complete statement read from an --input script.
+ */
+public class ScriptStatement {
+
+    private final String sql;
+    private final int number;
+    private final int line;
+    private final boolean barrier;
+
+    public ScriptStatement(String sql, int number, int line) {
+        this(sql, number, line, false);
+    }
+
+    private ScriptStatement(String sql, int number, int line, boolean barrier) {
+        this.sql = sql;
+        this.number = number;
+        this.line = line;
+        this.barrier = barrier;
+    }
+
+    /**
+     * A "--@barrier" directive: everything before it has to finish before
+     * anything after it starts when the script runs in parallel.
+     *
+     * @param line line of the directive
+     * @return a barrier marker
+     */
+    public static ScriptStatement barrier(int line) {
+        return new ScriptStatement(null, 0, line, true);
+    }
+
+    /**
+     * @return true for a barrier directive, which has no sql
+     */
+    public boolean isBarrier() {
+        return barrier;
+    }
+
+    /**
+     * @return statement text without the ';' or '/' terminator
+     */
+    public String getSql() {
+        return sql;
+    }
+
+    /**
+     * @return 1 based position of the statement in the script
+     */
+    public int getNumber() {
+        return number;
+    }
+
+    /**
+     * @return line the statement starts on
+     */
+    public int getLine() {
+        return line;
+    }
+
+    public String toString() {
+        if (barrier) {
+            return "barrier (line " + line + ")";
+        }
+        return "#" + number + " (line " + line + "): " + sql;
+    }
+}
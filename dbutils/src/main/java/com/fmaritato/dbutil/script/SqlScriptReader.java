@@ -0,0 +1,455 @@
+package com.fmaritato.dbutil.script;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Streaming lexer that splits a SQL script into statements.
+ * <p/>
+ * Files are read through memory mapped windows of the file channel (stdin,
+ * given as "-", through a plain channel) and decoded a chunk at a time, so
+ * memory use is bounded by the longest statement and not by the script.
+ * <p/>
+ * What it understands:
+ * - ';' ends a statement, unless it is inside a '...' literal, a "..."
+ * identifier, a -- or /* *&#47; comment, or a PL/SQL block.
+ * - PL/SQL blocks (DECLARE/BEGIN and CREATE [OR REPLACE] PROCEDURE, FUNCTION,
+ * PACKAGE, TRIGGER, TYPE...) keep their ';'s and end at a line holding just '/'.
+ * - A line holding just '/' or GO ends whatever statement is open.
+ * - Comments in front of a statement are dropped, comments inside one
+ * (optimizer hints for instance) are kept.
+ * - A "--@barrier" comment line between statements comes back as a
+ * {@link ScriptStatement#barrier barrier} for the parallel executor.
+ * <p/>
+ * The returned statement text doesn't include the ';' or '/' terminator.
+ * The encoding is UTF-8 unless -Ddb.script.encoding says otherwise.
+ */
+public class SqlScriptReader implements StatementSource {
+
+    private final static Log log =
+            LogFactory.getLog(SqlScriptReader.class);
+
+    public static final String PROP_ENCODING = "db.script.encoding";
+    public static final String DIRECTIVE_BARRIER = "@barrier";
+
+    private static final int WINDOW_SIZE = 64 * 1024 * 1024;
+    private static final int CHUNK_SIZE = 64 * 1024;
+
+    private static final int NORMAL = 0;
+    private static final int DASH = 1;
+    private static final int SLASH = 2;
+    private static final int LINE_COMMENT = 3;
+    private static final int BLOCK_COMMENT = 4;
+    private static final int BLOCK_STAR = 5;
+    private static final int SINGLE_QUOTE = 6;
+    private static final int DOUBLE_QUOTE = 7;
+
+    private final ReadableByteChannel channel;
+    private final FileChannel file;
+    private final int windowSize;
+    private long fileSize;
+    private long filePosition = 0;
+
+    private final CharsetDecoder decoder;
+    private ByteBuffer bytes;
+    private final CharBuffer chars = CharBuffer.allocate(CHUNK_SIZE);
+    private boolean endOfInput = false;
+    private boolean drained = false;
+
+    private final StringBuilder buf = new StringBuilder(1024);
+    private int state = NORMAL;
+    private boolean keepComment = false;
+    private final StringBuilder directive = new StringBuilder(16);
+    private boolean barrier = false;
+    private int lineNumber = 1;
+    private int lineStart = 0;
+    private int statementLine = 1;
+    private boolean block = false;
+    private boolean blockChecked = false;
+    private int count = 0;
+
+    public SqlScriptReader(String filename) throws IOException {
+        this(filename, WINDOW_SIZE);
+    }
+
+    /**
+     * @param windowSize bytes mapped at a time, at least 4 so a window
+     *                   always holds a whole UTF-8 character
+     */
+    SqlScriptReader(String filename, int windowSize) throws IOException {
+        this.windowSize = Math.max(4, windowSize);
+        if ("-".equals(filename)) {
+            file = null;
+            channel = Channels.newChannel(System.in);
+        }
+        else {
+            file = new RandomAccessFile(filename, "r").getChannel();
+            fileSize = file.size();
+            channel = file;
+        }
+        decoder = Charset.forName(System.getProperty(PROP_ENCODING, "UTF-8"))
+                         .newDecoder()
+                         .onMalformedInput(CodingErrorAction.REPLACE)
+                         .onUnmappableCharacter(CodingErrorAction.REPLACE);
+        chars.limit(0);
+    }
+
+    public ScriptStatement next() throws IOException {
+        while (true) {
+            if (!chars.hasRemaining() && !fill()) {
+                return finish();
+            }
+            if (accept(chars.get())) {
+                return emit();
+            }
+        }
+    }
+
+    public void close() throws IOException {
+        channel.close();
+    }
+
+    /**
+     * Run one character through the state machine.
+     *
+     * @return true when c completed a statement
+     */
+    private boolean accept(char c) {
+        if (c == '\n') {
+            lineNumber++;
+        }
+        switch (state) {
+            case DASH:
+                if (c == '-') {
+                    keepComment = buf.length() > 0;
+                    if (keepComment) {
+                        buf.append("--");
+                    }
+                    directive.setLength(0);
+                    state = LINE_COMMENT;
+                    return false;
+                }
+                append('-');
+                state = NORMAL;
+                return normal(c);
+            case SLASH:
+                if (c == '*') {
+                    keepComment = buf.length() > 0;
+                    if (keepComment) {
+                        buf.append("/*");
+                    }
+                    state = BLOCK_COMMENT;
+                    return false;
+                }
+                append('/');
+                state = NORMAL;
+                return normal(c);
+            case LINE_COMMENT:
+                if (c == '\n') {
+                    state = NORMAL;
+                    if (!keepComment && isBarrier()) {
+                        barrier = true;
+                        return true;
+                    }
+                    return normal(c);
+                }
+                if (keepComment) {
+                    buf.append(c);
+                }
+                else if (directive.length() < 64) {
+                    directive.append(c);
+                }
+                return false;
+            case BLOCK_COMMENT:
+            case BLOCK_STAR:
+                if (keepComment) {
+                    buf.append(c);
+                }
+                if (c == '/' && state == BLOCK_STAR) {
+                    state = NORMAL;
+                }
+                else {
+                    state = c == '*' ? BLOCK_STAR : BLOCK_COMMENT;
+                }
+                return false;
+            case SINGLE_QUOTE:
+                // '' inside a literal reads as closing and reopening it, which
+                // is all the splitter needs to know.
+                buf.append(c);
+                if (c == '\'') {
+                    state = NORMAL;
+                }
+                return false;
+            case DOUBLE_QUOTE:
+                buf.append(c);
+                if (c == '"') {
+                    state = NORMAL;
+                }
+                return false;
+            default:
+                return normal(c);
+        }
+    }
+
+    private boolean normal(char c) {
+        switch (c) {
+            case '-':
+                state = DASH;
+                return false;
+            case '/':
+                state = SLASH;
+                return false;
+            case '\'':
+                append(c);
+                state = SINGLE_QUOTE;
+                return false;
+            case '"':
+                append(c);
+                state = DOUBLE_QUOTE;
+                return false;
+            case ';':
+                if (!blockChecked) {
+                    blockChecked = true;
+                    block = isBlockStart();
+                }
+                if (block) {
+                    append(c);
+                    return false;
+                }
+                return buf.length() > 0;
+            case '\n':
+                if (endOfLine()) {
+                    return true;
+                }
+                append(c);
+                lineStart = buf.length();
+                return false;
+            default:
+                append(c);
+                return false;
+        }
+    }
+
+    private boolean isBarrier() {
+        return DIRECTIVE_BARRIER.equalsIgnoreCase(directive.toString().trim());
+    }
+
+    private void append(char c) {
+        if (buf.length() == 0) {
+            if (Character.isWhitespace(c)) {
+                return;
+            }
+            statementLine = lineNumber;
+        }
+        buf.append(c);
+    }
+
+    /**
+     * A line holding just '/' or GO ends the open statement.
+     *
+     * @return true if there is a statement to hand out
+     */
+    private boolean endOfLine() {
+        if (lineIs("/") || lineIs("go")) {
+            buf.setLength(lineStart);
+            if (isBlank()) {
+                reset();
+                return false;
+            }
+            return true;
+        }
+        return false;
+    }
+
+    private boolean lineIs(String token) {
+        int start = lineStart;
+        int end = buf.length();
+        while (start < end && Character.isWhitespace(buf.charAt(start))) {
+            start++;
+        }
+        while (end > start && Character.isWhitespace(buf.charAt(end - 1))) {
+            end--;
+        }
+        if (end - start != token.length()) {
+            return false;
+        }
+        for (int i = 0; i < token.length(); i++) {
+            if (Character.toLowerCase(buf.charAt(start + i)) != token.charAt(i)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private boolean isBlank() {
+        for (int i = 0; i < buf.length(); i++) {
+            if (!Character.isWhitespace(buf.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Looks at the first words of the statement to decide whether it is a
+     * PL/SQL block, whose ';'s don't end the statement.
+     */
+    private boolean isBlockStart() {
+        String[] words = buf.substring(0, Math.min(buf.length(), 200))
+                            .toLowerCase().trim().split("[\\s(]+", 6);
+        if (words.length < 2) {
+            return false;
+        }
+        if ("declare".equals(words[0])) {
+            // T-SQL variables are declared with an @name, that's not a block
+            return !words[1].startsWith("@");
+        }
+        if ("begin".equals(words[0])) {
+            return !words[1].startsWith("tran") && !words[1].startsWith("work");
+        }
+        if (!"create".equals(words[0])) {
+            return false;
+        }
+        int i = 1;
+        if (i + 1 < words.length && "or".equals(words[i]) && "replace".equals(words[i + 1])) {
+            i += 2;
+        }
+        if (i < words.length && words[i].endsWith("editionable")) {
+            i++;
+        }
+        if (i >= words.length) {
+            return false;
+        }
+        String type = words[i];
+        return "procedure".equals(type) ||
+               "function".equals(type) ||
+               "package".equals(type) ||
+               "trigger".equals(type) ||
+               "type".equals(type) ||
+               "library".equals(type) ||
+               "java".equals(type);
+    }
+
+    private ScriptStatement emit() {
+        if (barrier) {
+            barrier = false;
+            return ScriptStatement.barrier(lineNumber - 1);
+        }
+        String sql = buf.toString().trim();
+        reset();
+        count++;
+        return new ScriptStatement(sql, count, statementLine);
+    }
+
+    private void reset() {
+        if (buf.capacity() > 1024 * 1024) {
+            // don't hang on to the buffer of one huge statement
+            buf.setLength(0);
+            buf.trimToSize();
+        }
+        buf.setLength(0);
+        lineStart = 0;
+        block = false;
+        blockChecked = false;
+    }
+
+    /**
+     * End of input, hand out whatever is left over.
+     */
+    private ScriptStatement finish() {
+        if (state == DASH) {
+            append('-');
+        }
+        else if (state == SLASH) {
+            append('/');
+        }
+        state = NORMAL;
+        if (lineIs("/") || lineIs("go")) {
+            buf.setLength(lineStart);
+        }
+        if (isBlank()) {
+            reset();
+            return null;
+        }
+        return emit();
+    }
+
+    /**
+     * Decode the next chunk of characters.
+     *
+     * @return false once the input is exhausted
+     */
+    private boolean fill() throws IOException {
+        if (drained) {
+            return false;
+        }
+        chars.clear();
+        while (chars.position() == 0) {
+            if (bytes != null) {
+                CoderResult r = decoder.decode(bytes, chars, endOfInput);
+                if (r.isError()) {
+                    r.throwException();
+                }
+                if (chars.position() > 0) {
+                    break;
+                }
+            }
+            if (endOfInput) {
+                decoder.flush(chars);
+                drained = true;
+                break;
+            }
+            if (!read()) {
+                endOfInput = true;
+                if (bytes == null) {
+                    bytes = ByteBuffer.allocate(0);
+                }
+            }
+        }
+        chars.flip();
+        return chars.hasRemaining();
+    }
+
+    /**
+     * Map (or read) the next window of the input, keeping any bytes of a
+     * partially decoded character.
+     *
+     * @return false at the end of the input
+     */
+    private boolean read() throws IOException {
+        if (file != null) {
+            int leftover = bytes == null ? 0 : bytes.remaining();
+            long position = filePosition - leftover;
+            if (filePosition >= fileSize) {
+                return false;
+            }
+            long size = Math.min(windowSize, fileSize - position);
+            bytes = file.map(FileChannel.MapMode.READ_ONLY, position, size);
+            filePosition = position + size;
+            if (log.isDebugEnabled()) {
+                log.debug("mapped " + size + " bytes at " + position);
+            }
+            return true;
+        }
+        if (bytes == null) {
+            bytes = ByteBuffer.allocateDirect(CHUNK_SIZE);
+            bytes.limit(0);
+        }
+        bytes.compact();
+        int n = channel.read(bytes);
+        bytes.flip();
+        return n >= 0;
+    }
+}
@@ -0,0 +1,17 @@
+package com.fmaritato.dbutil.script;
+
+import java.io.IOException;
+
+/**
+ * Something that hands out script statements one at a time.
+ */
+public interface StatementSource {
+
+    /**
+     * @return the next complete statement, or null at the end of the script
+     * @throws IOException if the script can't be read
+     */
+    public ScriptStatement next() throws IOException;
+
+    public void close() throws IOException;
+}
@@ -0,0 +1,419 @@
+package com.fmaritato.dbutil.sink;
+
+import com.fmaritato.dbutil.FetchSizer;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.BufferedOutputStream;
+import java.io.FileDescriptor;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writer for command output that encodes to UTF-8 straight into a large
+ * direct buffer and hands that to a FileChannel (a file, or stdout), so a
+ * big extract costs one write per buffer instead of one per row.
+ * <p/>
+ * The buffer (-Ddb.out.bufferSize, default 1m) is written out when it is
+ * full, on flush() and close(), and while output keeps coming at least
+ * every -Ddb.out.flushMillis (default 1000, 0 for never), so someone
+ * tailing the output still sees rows as they arrive.
+ * <p/>
+ * File output can be gzip compressed, or zstd or lz4 compressed when
+ * zstd-jni or lz4-java is on the classpath, and can be rolled over to a new
+ * file after a number of bytes or lines. Files are only cut after a newline.
+ */
+public class OutputSink extends Writer {
+
+    private final static Log log =
+            LogFactory.getLog(OutputSink.class);
+
+    public static final String PROP_BUFFER_SIZE = "db.out.bufferSize";
+    public static final String PROP_FLUSH_MILLIS = "db.out.flushMillis";
+
+    /** between a compressor and the file, compressors write in small pieces */
+    private static final int COMPRESSED_BUFFER_SIZE = 256 * 1024;
+
+    /** file name or String.format() pattern, null when writing to a channel we don't own */
+    private final String pattern;
+    /** null for no compression */
+    private final Constructor<?> compressor;
+    private final long rollBytes;
+    private final long rollLines;
+    private final long flushMillis;
+    private final ByteBuffer bytes;
+    private final boolean append;
+
+    private WritableByteChannel channel;
+    /** compressor over channel, or null */
+    private OutputStream stream;
+    private int fileCount = 0;
+    /** bytes already written to the current file, before compression */
+    private long fileBytes = 0;
+    private long fileLines = 0;
+    /** the current file is full, the next char starts a new one */
+    private boolean rollPending = false;
+    private long lastWrite = System.currentTimeMillis();
+    private char highSurrogate = 0;
+    private boolean closed = false;
+
+    /**
+     * Output to a channel that is left open on close().
+     *
+     * @param channel where the output goes
+     */
+    public OutputSink(WritableByteChannel channel) {
+        this.pattern = null;
+        this.compressor = null;
+        this.rollBytes = 0;
+        this.rollLines = 0;
+        this.flushMillis = Long.getLong(PROP_FLUSH_MILLIS, 1000);
+        this.bytes = ByteBuffer.allocateDirect(getBufferSize());
+        this.append = false;
+        this.channel = channel;
+    }
+
+    /**
+     * Output to a file, or a numbered series of them.
+     *
+     * @param file        file name; when rolling, a String.format() pattern
+     *                    for the file number, or -0000 style numbers are added
+     *                    before the extension
+     * @param compression gzip, zstd, lz4 or none; null to go by the extension
+     *                    (.gz, .zst, .lz4)
+     * @param rollBytes   start a new file after this many bytes (before
+     *                    compression), 0 for never
+     * @param rollLines   start a new file after this many lines, 0 for never
+     * @throws IOException if the first file can't be created
+     */
+    public OutputSink(String file, String compression, long rollBytes, long rollLines)
+            throws IOException {
+        this(file, compression, rollBytes, rollLines, false);
+    }
+
+    /**
+     * Output to a file, or a numbered series of them, added to the end of
+     * what is there if append is set. Appended compressed output is a new
+     * gzip member or zstd/lz4 frame, which their readers take as one stream.
+     */
+    public OutputSink(String file, String compression, long rollBytes, long rollLines, boolean append)
+            throws IOException {
+        this.append = append;
+        boolean rolling = rollBytes > 0 || rollLines > 0;
+        this.pattern = rolling && file.indexOf('%') < 0 ? numbered(file) : file;
+        this.compressor = getCompressor(compression == null ? fromExtension(file) : compression);
+        this.rollBytes = rollBytes;
+        this.rollLines = rollLines;
+        this.flushMillis = Long.getLong(PROP_FLUSH_MILLIS, 1000);
+        // compressors take byte arrays, a direct buffer would only be copied
+        this.bytes = compressor == null
+                     ? ByteBuffer.allocateDirect(getBufferSize())
+                     : ByteBuffer.allocate(getBufferSize());
+        open();
+    }
+
+    /**
+     * @return a sink over file descriptor 1, which close() leaves open
+     */
+    public static OutputSink stdout() {
+        return new OutputSink(new FileOutputStream(FileDescriptor.out).getChannel());
+    }
+
+    /**
+     * @return files written so far, 0 for a channel
+     */
+    public int getFileCount() {
+        return fileCount;
+    }
+
+    public void write(int c) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            encode((char) c);
+        }
+    }
+
+    public void write(char[] cbuf, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            for (int i = off, end = off + len; i < end; i++) {
+                encode(cbuf[i]);
+            }
+            checkFlush();
+        }
+    }
+
+    public void write(String s, int off, int len) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            for (int i = off, end = off + len; i < end; i++) {
+                encode(s.charAt(i));
+            }
+            checkFlush();
+        }
+    }
+
+    /**
+     * Write bytes as they are, for formatters with a binary format. Lines
+     * are not counted, so --roll-rows doesn't apply to them.
+     *
+     * @param src bytes from its position to its limit, all consumed
+     */
+    public void write(ByteBuffer src) throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            if (stream == null && src.remaining() >= bytes.capacity()) {
+                // too big to be worth copying
+                drain();
+                fileBytes += src.remaining();
+                while (src.hasRemaining()) {
+                    channel.write(src);
+                }
+            }
+            while (src.hasRemaining()) {
+                if (!bytes.hasRemaining()) {
+                    drain();
+                }
+                int limit = src.limit();
+                src.limit(src.position() + Math.min(src.remaining(), bytes.remaining()));
+                bytes.put(src);
+                src.limit(limit);
+            }
+            checkFlush();
+        }
+    }
+
+    public void flush() throws IOException {
+        synchronized (lock) {
+            ensureOpen();
+            drain();
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+    }
+
+    /**
+     * Write out what is buffered and close the file; a channel passed to
+     * the constructor is left open.
+     */
+    public void close() throws IOException {
+        synchronized (lock) {
+            if (closed) {
+                return;
+            }
+            if (highSurrogate != 0) {
+                highSurrogate = 0;
+                encode('?');
+            }
+            drain();
+            closed = true;
+            if (pattern != null) {
+                closeFile();
+                log.debug("wrote " + fileCount + " file(s) to " + pattern);
+            }
+        }
+    }
+
+    private void encode(char c) throws IOException {
+        if (rollPending) {
+            roll();
+        }
+        if (bytes.remaining() < 4) {
+            drain();
+        }
+        if (highSurrogate != 0) {
+            char high = highSurrogate;
+            highSurrogate = 0;
+            if (Character.isLowSurrogate(c)) {
+                int cp = Character.toCodePoint(high, c);
+                bytes.put((byte) (0xf0 | (cp >> 18)))
+                     .put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+                     .put((byte) (0x80 | ((cp >> 6) & 0x3f)))
+                     .put((byte) (0x80 | (cp & 0x3f)));
+                return;
+            }
+            // unpaired, like String.getBytes() does
+            bytes.put((byte) '?');
+        }
+        if (c < 0x80) {
+            bytes.put((byte) c);
+            if (c == '\n') {
+                fileLines++;
+                // rolled lazily, so the last file is never empty
+                rollPending = (rollLines > 0 && fileLines >= rollLines) ||
+                              (rollBytes > 0 && fileBytes + bytes.position() >= rollBytes);
+            }
+        }
+        else if (c < 0x800) {
+            bytes.put((byte) (0xc0 | (c >> 6)))
+                 .put((byte) (0x80 | (c & 0x3f)));
+        }
+        else if (Character.isHighSurrogate(c)) {
+            highSurrogate = c;
+        }
+        else if (Character.isLowSurrogate(c)) {
+            bytes.put((byte) '?');
+        }
+        else {
+            bytes.put((byte) (0xe0 | (c >> 12)))
+                 .put((byte) (0x80 | ((c >> 6) & 0x3f)))
+                 .put((byte) (0x80 | (c & 0x3f)));
+        }
+    }
+
+    /**
+     * Time based flushing, checked once per write call.
+     */
+    private void checkFlush() throws IOException {
+        if (flushMillis > 0 && bytes.position() > 0 &&
+            System.currentTimeMillis() - lastWrite >= flushMillis) {
+            drain();
+            if (stream != null) {
+                stream.flush();
+            }
+        }
+    }
+
+    private void drain() throws IOException {
+        bytes.flip();
+        fileBytes += bytes.remaining();
+        if (stream != null) {
+            stream.write(bytes.array(), bytes.arrayOffset(), bytes.remaining());
+        }
+        else {
+            while (bytes.hasRemaining()) {
+                channel.write(bytes);
+            }
+        }
+        bytes.clear();
+        lastWrite = System.currentTimeMillis();
+    }
+
+    private void roll() throws IOException {
+        rollPending = false;
+        drain();
+        closeFile();
+        open();
+    }
+
+    private void open() throws IOException {
+        String name = rollBytes > 0 || rollLines > 0 ? String.format(pattern, fileCount) : pattern;
+        FileChannel file = new FileOutputStream(name, append).getChannel();
+        channel = file;
+        stream = null;
+        if (compressor != null) {
+            OutputStream out = new BufferedOutputStream(Channels.newOutputStream(file),
+                                                        COMPRESSED_BUFFER_SIZE);
+            try {
+                stream = (OutputStream) compressor.newInstance(out);
+            }
+            catch (InvocationTargetException e) {
+                file.close();
+                throw new IOException("can't compress " + name, e.getCause());
+            }
+            catch (Exception e) {
+                file.close();
+                throw new IOException("can't compress " + name, e);
+            }
+        }
+        fileCount++;
+        fileBytes = 0;
+        fileLines = 0;
+        if (log.isDebugEnabled()) {
+            log.debug("writing " + name);
+        }
+    }
+
+    private void closeFile() throws IOException {
+        if (stream != null) {
+            // finishes the compressed stream and closes the file under it
+            stream.close();
+        }
+        else {
+            channel.close();
+        }
+    }
+
+    private void ensureOpen() throws IOException {
+        if (closed) {
+            throw new IOException("output is closed");
+        }
+    }
+
+    private static int getBufferSize() {
+        return (int) Math.max(64 * 1024,
+                              FetchSizer.parseBytes(PROP_BUFFER_SIZE,
+                                                    System.getProperty(PROP_BUFFER_SIZE),
+                                                    1024 * 1024));
+    }
+
+    /**
+     * orders.csv.gz becomes orders-%04d.csv.gz
+     */
+    static String numbered(String file) {
+        int slash = Math.max(file.lastIndexOf('/'), file.lastIndexOf('\\'));
+        int dot = file.indexOf('.', slash + 1);
+        if (dot <= slash + 1) {
+            // no extension, or a dot file
+            return file + "-%04d";
+        }
+        return file.substring(0, dot) + "-%04d" + file.substring(dot);
+    }
+
+    private static String fromExtension(String file) {
+        String name = file.toLowerCase();
+        if (name.endsWith(".gz")) {
+            return "gzip";
+        }
+        if (name.endsWith(".zst")) {
+            return "zstd";
+        }
+        if (name.endsWith(".lz4")) {
+            return "lz4";
+        }
+        return "none";
+    }
+
+    /**
+     * @param compression gzip, zstd, lz4 or none
+     * @return the compressing stream's (OutputStream) constructor, null for none
+     */
+    private static Constructor<?> getCompressor(String compression) {
+        String name = compression.toLowerCase();
+        String className;
+        if ("none".equals(name)) {
+            return null;
+        }
+        else if ("gzip".equals(name) || "gz".equals(name)) {
+            className = GZIPOutputStream.class.getName();
+        }
+        else if ("zstd".equals(name)) {
+            className = "com.github.luben.zstd.ZstdOutputStream";
+        }
+        else if ("lz4".equals(name)) {
+            className = "net.jpountz.lz4.LZ4FrameOutputStream";
+        }
+        else {
+            throw new IllegalArgumentException("Unknown compression: " + compression);
+        }
+        try {
+            return Class.forName(className).getConstructor(OutputStream.class);
+        }
+        catch (ClassNotFoundException e) {
+            throw new IllegalArgumentException(name + " output needs " + className + " on the classpath");
+        }
+        catch (NoSuchMethodException e) {
+            throw new IllegalArgumentException(className + " has no (OutputStream) constructor");
+        }
+    }
+}
@@ -0,0 +1,734 @@
+package com.fmaritato.dbutil.text;
+
+import com.fmaritato.dbutil.sink.OutputSink;
+
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.RoundingMode;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Apache Arrow IPC output: the stream format, or with "arrow-file" (or
+ * -DArrowFormatter.file=true) the file format, which readers can memory
+ * map. There is no Arrow dependency; the metadata is written with a small
+ * {@link FlatBufferBuilder}.
+ * <p/>
+ * Rows are read with typed getters straight into per column buffers and
+ * written as record batches of -DArrowFormatter.batchSize rows (default
+ * 10000). Types come from the ResultSetMetaData:
+ * <ul>
+ * <li>BIT, BOOLEAN - Bool</li>
+ * <li>TINYINT, SMALLINT, INTEGER, BIGINT - Int 16, 32 and 64 bit</li>
+ * <li>NUMERIC/DECIMAL - Int64 for up to 18 digits without a scale,
+ * Decimal128(p, s) when p is at most 38, else Decimal128(38, 10)</li>
+ * <li>REAL, FLOAT, DOUBLE - single and double precision</li>
+ * <li>DATE - Date32 days, or a Timestamp if the driver returns Timestamps
+ * for it (Oracle)</li>
+ * <li>TIME - Time32 milliseconds</li>
+ * <li>TIMESTAMP - Timestamp microseconds, wall clock; UTC for the time
+ * zone types</li>
+ * <li>binaries and BLOBs - Binary, everything else Utf8</li>
+ * </ul>
+ * The output is binary, so it has to go to the output sink directly: stdout
+ * or --out, not --pipeline or a --split-by merge.
+ */
+public class ArrowFormatter implements Formatter {
+
+    public static final String PROP_BATCH_SIZE = "ArrowFormatter.batchSize";
+    public static final String PROP_FILE = "ArrowFormatter.file";
+
+    private static final byte[] MAGIC = {'A', 'R', 'R', 'O', 'W', '1', 0, 0};
+
+    /** MetadataVersion.V5 */
+    private static final int VERSION = 4;
+    private static final int HEADER_SCHEMA = 1;
+    private static final int HEADER_RECORD_BATCH = 3;
+
+    // Type union
+    private static final int TYPE_INT = 2;
+    private static final int TYPE_FLOAT = 3;
+    private static final int TYPE_BINARY = 4;
+    private static final int TYPE_UTF8 = 5;
+    private static final int TYPE_BOOL = 6;
+    private static final int TYPE_DECIMAL = 7;
+    private static final int TYPE_DATE = 8;
+    private static final int TYPE_TIME = 9;
+    private static final int TYPE_TIMESTAMP = 10;
+
+    private int batchSize = Integer.getInteger(PROP_BATCH_SIZE, 10000);
+    private boolean file = Boolean.getBoolean(PROP_FILE);
+
+    public ArrowFormatter() {
+    }
+
+    /**
+     * @param file the file format instead of the stream format
+     */
+    public ArrowFormatter(boolean file) {
+        this.file = file;
+    }
+
+    public int getBatchSize() {
+        return batchSize;
+    }
+
+    public void setBatchSize(int aValue) {
+        batchSize = Math.max(1, aValue);
+    }
+
+    public boolean isFile() {
+        return file;
+    }
+
+    public void setFile(boolean aValue) {
+        file = aValue;
+    }
+
+    @Override
+    public void format(DatabaseMetaData meta, String schema, String table, Writer out) throws Exception {
+        throw new RuntimeException("Not implemented");
+    }
+
+    public void format(ResultSet rs, Writer out) throws Exception {
+        format(rs, out, true);
+    }
+
+    public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
+        if (!(out instanceof OutputSink)) {
+            throw new IllegalArgumentException("arrow output is binary and has to go to stdout or --out " +
+                                               "directly, not through --pipeline or --split-by");
+        }
+        new Stream((OutputSink) out, rs.getMetaData()).write(rs);
+    }
+
+    /**
+     * Arrow has no header apart from the schema.
+     */
+    public void format(ResultSetMetaData meta, Writer out) throws Exception {
+    }
+
+    public void setTableName(String tableName) {
+        ; //do nothing
+    }
+
+    /**
+     * One result written as one stream or file.
+     */
+    private class Stream {
+        private final OutputSink out;
+        private final Vector[] vectors;
+        /** bytes written, for the file footer */
+        private long position = 0;
+        private final List<long[]> blocks = new ArrayList<long[]>();
+        private ByteBuffer body = ByteBuffer.allocate(64 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+
+        Stream(OutputSink out, ResultSetMetaData meta) throws Exception {
+            this.out = out;
+            vectors = new Vector[meta.getColumnCount()];
+            for (int i = 0; i < vectors.length; i++) {
+                vectors[i] = createVector(meta, i + 1, batchSize);
+            }
+        }
+
+        void write(ResultSet rs) throws Exception {
+            if (file) {
+                write(ByteBuffer.wrap(MAGIC));
+            }
+            FlatBufferBuilder fb = new FlatBufferBuilder(1024);
+            writeMessage(message(fb, HEADER_SCHEMA, schema(fb), 0), 0);
+
+            int rows = 0;
+            while (rs.next()) {
+                for (Vector v : vectors) {
+                    v.read(rs, rows);
+                }
+                if (++rows == batchSize) {
+                    writeBatch(rows);
+                    rows = 0;
+                }
+            }
+            if (rows > 0) {
+                writeBatch(rows);
+            }
+            // end of stream
+            ByteBuffer end = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            end.putInt(-1).putInt(0).flip();
+            write(end);
+
+            if (file) {
+                fb = new FlatBufferBuilder(1024);
+                int schema = schema(fb);
+                fb.startVector(24, 0, 8);
+                int dictionaries = fb.endVector();
+                fb.startVector(24, blocks.size(), 8);
+                for (int i = blocks.size() - 1; i >= 0; i--) {
+                    long[] block = blocks.get(i);
+                    fb.putBlock(block[0], (int) block[1], block[2]);
+                }
+                int batches = fb.endVector();
+                fb.startTable(5);
+                fb.addOffset(1, schema);
+                fb.addOffset(2, dictionaries);
+                fb.addOffset(3, batches);
+                fb.addShort(0, VERSION, 0);
+                byte[] footer = fb.finish(fb.endTable());
+                ByteBuffer length = ByteBuffer.allocate(4).order(ByteOrder.LITTLE_ENDIAN);
+                length.putInt(footer.length).flip();
+                write(ByteBuffer.wrap(footer));
+                write(length);
+                write(ByteBuffer.wrap(MAGIC, 0, 6));
+            }
+            out.flush();
+        }
+
+        private void writeBatch(int rows) throws Exception {
+            body.clear();
+            List<long[]> buffers = new ArrayList<long[]>();
+            for (Vector v : vectors) {
+                v.writeBuffers(this, rows, buffers);
+            }
+            FlatBufferBuilder fb = new FlatBufferBuilder(1024);
+            fb.startVector(16, vectors.length, 8);
+            for (int i = vectors.length - 1; i >= 0; i--) {
+                fb.putStruct(rows, vectors[i].nullCount);
+            }
+            int nodes = fb.endVector();
+            fb.startVector(16, buffers.size(), 8);
+            for (int i = buffers.size() - 1; i >= 0; i--) {
+                fb.putStruct(buffers.get(i)[0], buffers.get(i)[1]);
+            }
+            int bufferVector = fb.endVector();
+            fb.startTable(4);
+            fb.addLong(0, rows, 0);
+            fb.addOffset(1, nodes);
+            fb.addOffset(2, bufferVector);
+            int batch = fb.endTable();
+            body.flip();
+            writeMessage(message(fb, HEADER_RECORD_BATCH, batch, body.remaining()), body.remaining());
+            for (Vector v : vectors) {
+                v.reset();
+            }
+        }
+
+        /**
+         * Append a buffer to the batch body, padded to 8 bytes.
+         */
+        void addBuffer(ByteBuffer src, int length, List<long[]> buffers) {
+            int padded = (length + 7) & ~7;
+            if (body.remaining() < padded) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(body.capacity() * 2, body.position() + padded))
+                                              .order(ByteOrder.LITTLE_ENDIAN);
+                body.flip();
+                bigger.put(body);
+                body = bigger;
+            }
+            buffers.add(new long[]{body.position(), length});
+            ByteBuffer slice = src.duplicate();
+            slice.clear().limit(length);
+            body.put(slice);
+            for (int i = length; i < padded; i++) {
+                body.put((byte) 0);
+            }
+        }
+
+        private int schema(FlatBufferBuilder fb) throws Exception {
+            int[] fields = new int[vectors.length];
+            for (int i = 0; i < vectors.length; i++) {
+                Vector v = vectors[i];
+                int name = fb.createString(v.name);
+                int type = v.type(fb);
+                fb.startVector(4, 0, 4);
+                int children = fb.endVector();
+                fb.startTable(7);
+                fb.addOffset(0, name);
+                fb.addByte(1, v.nullable ? 1 : 0, 0);
+                fb.addByte(2, v.typeId, 0);
+                fb.addOffset(3, type);
+                fb.addOffset(5, children);
+                fields[i] = fb.endTable();
+            }
+            fb.startVector(4, fields.length, 4);
+            for (int i = fields.length - 1; i >= 0; i--) {
+                fb.addOffset(fields[i]);
+            }
+            int fieldVector = fb.endVector();
+            fb.startTable(4);
+            fb.addOffset(1, fieldVector);
+            return fb.endTable();
+        }
+
+        private byte[] message(FlatBufferBuilder fb, int headerType, int header, long bodyLength) {
+            fb.startTable(5);
+            fb.addLong(3, bodyLength, 0);
+            fb.addOffset(2, header);
+            fb.addShort(0, VERSION, 0);
+            fb.addByte(1, headerType, 0);
+            return fb.finish(fb.endTable());
+        }
+
+        /**
+         * Continuation marker, metadata length, metadata padded to 8, body.
+         */
+        private void writeMessage(byte[] metadata, long bodyLength) throws Exception {
+            int padded = (metadata.length + 7) & ~7;
+            ByteBuffer prefix = ByteBuffer.allocate(8 + padded).order(ByteOrder.LITTLE_ENDIAN);
+            prefix.putInt(-1).putInt(padded).put(metadata);
+            prefix.clear();
+            if (bodyLength > 0) {
+                blocks.add(new long[]{position, 8 + padded, bodyLength});
+            }
+            write(prefix);
+            if (bodyLength > 0) {
+                write(body);
+            }
+        }
+
+        private void write(ByteBuffer buf) throws Exception {
+            position += buf.remaining();
+            out.write(buf);
+        }
+    }
+
+    private static Vector createVector(ResultSetMetaData meta, int column, int capacity)
+            throws Exception {
+        int type = meta.getColumnType(column);
+        String className = meta.getColumnClassName(column);
+        Vector v;
+        switch (type) {
+            case Types.BIT:
+            case Types.BOOLEAN:
+                v = new BoolVector(capacity);
+                break;
+            case Types.TINYINT:
+            case Types.SMALLINT:
+                // SMALLINT UNSIGNED is read as an Integer
+                v = new FixedVector("java.lang.Integer".equals(className) ? FixedVector.INT32 : FixedVector.INT16,
+                                    capacity);
+                break;
+            case Types.INTEGER:
+                v = new FixedVector("java.lang.Long".equals(className) ? FixedVector.INT64 : FixedVector.INT32,
+                                    capacity);
+                break;
+            case Types.BIGINT:
+                v = "java.math.BigInteger".equals(className)
+                    ? new FixedVector(FixedVector.DECIMAL, capacity, 20, 0)
+                    : new FixedVector(FixedVector.INT64, capacity);
+                break;
+            case Types.NUMERIC:
+            case Types.DECIMAL:
+                int precision = meta.getPrecision(column);
+                int scale = meta.getScale(column);
+                if (scale == 0 && precision > 0 && precision <= 18) {
+                    v = new FixedVector(FixedVector.INT64, capacity);
+                }
+                else if (precision > 0 && precision <= 38 && scale >= 0 && scale <= precision) {
+                    v = new FixedVector(FixedVector.DECIMAL, capacity, precision, scale);
+                }
+                else {
+                    // NUMBER without a precision
+                    v = new FixedVector(FixedVector.DECIMAL, capacity, 38, 10);
+                }
+                break;
+            case Types.REAL:
+                v = new FixedVector(FixedVector.FLOAT32, capacity);
+                break;
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                v = new FixedVector(FixedVector.FLOAT64, capacity);
+                break;
+            case Types.DATE:
+                v = "java.sql.Timestamp".equals(className)
+                    ? new FixedVector(FixedVector.TIMESTAMP, capacity)
+                    : new FixedVector(FixedVector.DATE32, capacity);
+                break;
+            case Types.TIME:
+                v = new FixedVector(FixedVector.TIME32, capacity);
+                break;
+            case Types.TIMESTAMP:
+                v = new FixedVector(FixedVector.TIMESTAMP, capacity);
+                break;
+            case 2014: // TIMESTAMP_WITH_TIMEZONE
+            case -101: // oracle TIMESTAMPTZ
+            case -102: // oracle TIMESTAMPLTZ
+                v = new FixedVector(FixedVector.TIMESTAMP_UTC, capacity);
+                break;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+            case Types.BLOB:
+                v = new VarVector(false, capacity);
+                break;
+            default:
+                v = new VarVector(true, capacity);
+        }
+        v.column = column;
+        v.name = meta.getColumnLabel(column);
+        v.nullable = meta.isNullable(column) != ResultSetMetaData.columnNoNulls;
+        return v;
+    }
+
+    /**
+     * The values of one column for one batch, in Arrow's layout.
+     */
+    private abstract static class Vector {
+        int column;
+        String name;
+        boolean nullable;
+        final int typeId;
+        int nullCount = 0;
+        final ByteBuffer validity;
+
+        Vector(int typeId, int capacity) {
+            this.typeId = typeId;
+            validity = ByteBuffer.allocate((capacity + 7) / 8);
+        }
+
+        /**
+         * Read the current row's value as row number row of the batch.
+         */
+        abstract void read(ResultSet rs, int row) throws Exception;
+
+        /**
+         * @return the offset of the type table
+         */
+        abstract int type(FlatBufferBuilder fb);
+
+        /**
+         * Add the validity bitmap and the value buffers to the body.
+         */
+        void writeBuffers(Stream stream, int rows, List<long[]> buffers) {
+            // the bitmap can be left out when there are no nulls
+            stream.addBuffer(validity, nullCount == 0 ? 0 : (rows + 7) / 8, buffers);
+        }
+
+        void reset() {
+            nullCount = 0;
+            Arrays.fill(validity.array(), (byte) 0);
+        }
+
+        /**
+         * Mark the value valid unless the last getter saw a null.
+         *
+         * @return true if the value is null
+         */
+        boolean checkNull(ResultSet rs, int row) throws SQLException {
+            if (rs.wasNull()) {
+                nullCount++;
+                return true;
+            }
+            validity.put(row >> 3, (byte) (validity.get(row >> 3) | (1 << (row & 7))));
+            return false;
+        }
+    }
+
+    private static class FixedVector extends Vector {
+        static final int INT16 = 0;
+        static final int INT32 = 1;
+        static final int INT64 = 2;
+        static final int FLOAT32 = 3;
+        static final int FLOAT64 = 4;
+        static final int DECIMAL = 5;
+        static final int DATE32 = 6;
+        static final int TIME32 = 7;
+        static final int TIMESTAMP = 8;
+        static final int TIMESTAMP_UTC = 9;
+
+        private static final int[] TYPE_IDS = {TYPE_INT, TYPE_INT, TYPE_INT, TYPE_FLOAT, TYPE_FLOAT,
+                                               TYPE_DECIMAL, TYPE_DATE, TYPE_TIME, TYPE_TIMESTAMP,
+                                               TYPE_TIMESTAMP};
+        private static final int[] WIDTHS = {2, 4, 8, 4, 8, 16, 4, 4, 8, 8};
+        private static final long DAY = 24 * 60 * 60 * 1000L;
+
+        private final int kind;
+        private final int width;
+        private final int precision;
+        private final int scale;
+        private final ByteBuffer values;
+        private final TimeZone zone = TimeZone.getDefault();
+
+        FixedVector(int kind, int capacity) {
+            this(kind, capacity, 0, 0);
+        }
+
+        FixedVector(int kind, int capacity, int precision, int scale) {
+            super(TYPE_IDS[kind], capacity);
+            this.kind = kind;
+            this.width = WIDTHS[kind];
+            this.precision = precision;
+            this.scale = scale;
+            values = ByteBuffer.allocate(capacity * width).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void read(ResultSet rs, int row) throws Exception {
+            int at = row * width;
+            switch (kind) {
+                case INT16:
+                    short s = rs.getShort(column);
+                    if (!checkNull(rs, row)) {
+                        values.putShort(at, s);
+                    }
+                    break;
+                case INT32:
+                    int i = rs.getInt(column);
+                    if (!checkNull(rs, row)) {
+                        values.putInt(at, i);
+                    }
+                    break;
+                case INT64:
+                    long l = rs.getLong(column);
+                    if (!checkNull(rs, row)) {
+                        values.putLong(at, l);
+                    }
+                    break;
+                case FLOAT32:
+                    float f = rs.getFloat(column);
+                    if (!checkNull(rs, row)) {
+                        values.putFloat(at, f);
+                    }
+                    break;
+                case FLOAT64:
+                    double d = rs.getDouble(column);
+                    if (!checkNull(rs, row)) {
+                        values.putDouble(at, d);
+                    }
+                    break;
+                case DECIMAL:
+                    BigDecimal decimal = rs.getBigDecimal(column);
+                    if (!checkNull(rs, row)) {
+                        putDecimal(at, decimal);
+                    }
+                    break;
+                case DATE32:
+                    java.sql.Date date = rs.getDate(column);
+                    if (!checkNull(rs, row)) {
+                        values.putInt(at, (int) floorDiv(local(date.getTime()), DAY));
+                    }
+                    break;
+                case TIME32:
+                    java.sql.Time time = rs.getTime(column);
+                    if (!checkNull(rs, row)) {
+                        values.putInt(at, (int) (local(time.getTime()) - floorDiv(local(time.getTime()), DAY) * DAY));
+                    }
+                    break;
+                default:
+                    Timestamp t = rs.getTimestamp(column);
+                    if (!checkNull(rs, row)) {
+                        long millis = kind == TIMESTAMP ? local(t.getTime()) : t.getTime();
+                        values.putLong(at, floorDiv(millis, 1000) * 1000000 + t.getNanos() / 1000);
+                    }
+            }
+        }
+
+        int type(FlatBufferBuilder fb) {
+            switch (kind) {
+                case INT16:
+                case INT32:
+                case INT64:
+                    fb.startTable(2);
+                    fb.addInt(0, width * 8, 0);
+                    fb.addByte(1, 1, 0);
+                    return fb.endTable();
+                case FLOAT32:
+                case FLOAT64:
+                    fb.startTable(1);
+                    // SINGLE, DOUBLE
+                    fb.addShort(0, kind == FLOAT32 ? 1 : 2, 0);
+                    return fb.endTable();
+                case DECIMAL:
+                    fb.startTable(3);
+                    fb.addInt(0, precision, 0);
+                    fb.addInt(1, scale, 0);
+                    fb.addInt(2, 128, 128);
+                    return fb.endTable();
+                case DATE32:
+                    fb.startTable(1);
+                    // DAY, the default is MILLISECOND
+                    fb.addShort(0, 0, 1);
+                    return fb.endTable();
+                case TIME32:
+                    // MILLISECOND and 32 bits are the defaults
+                    fb.startTable(2);
+                    return fb.endTable();
+                default:
+                    int timezone = kind == TIMESTAMP_UTC ? fb.createString("UTC") : 0;
+                    fb.startTable(2);
+                    // MICROSECOND
+                    fb.addShort(0, 2, 0);
+                    fb.addOffset(1, timezone);
+                    return fb.endTable();
+            }
+        }
+
+        void writeBuffers(Stream stream, int rows, List<long[]> buffers) {
+            super.writeBuffers(stream, rows, buffers);
+            stream.addBuffer(values, rows * width, buffers);
+        }
+
+        void reset() {
+            super.reset();
+            // null slots are written as they were left otherwise
+            Arrays.fill(values.array(), (byte) 0);
+        }
+
+        /**
+         * 128 bit two's complement, little endian.
+         */
+        private void putDecimal(int at, BigDecimal value) throws SQLException {
+            BigInteger unscaled = value.setScale(scale, RoundingMode.HALF_UP).unscaledValue();
+            if (unscaled.bitLength() > 127) {
+                throw new SQLException(value + " doesn't fit decimal(" + precision + "," + scale +
+                                       ") in column " + column);
+            }
+            byte[] bigEndian = unscaled.toByteArray();
+            byte fill = (byte) (unscaled.signum() < 0 ? -1 : 0);
+            for (int i = 0; i < 16; i++) {
+                int from = bigEndian.length - 1 - i;
+                values.put(at + i, from >= 0 ? bigEndian[from] : fill);
+            }
+        }
+
+        /**
+         * Wall clock millis, as if the local time were UTC.
+         */
+        private long local(long millis) {
+            return millis + zone.getOffset(millis);
+        }
+
+        private static long floorDiv(long x, long y) {
+            long q = x / y;
+            return (x % y != 0 && (x < 0) != (y < 0)) ? q - 1 : q;
+        }
+    }
+
+    private static class BoolVector extends Vector {
+        private final ByteBuffer bits;
+
+        BoolVector(int capacity) {
+            super(TYPE_BOOL, capacity);
+            bits = ByteBuffer.allocate((capacity + 7) / 8);
+        }
+
+        void read(ResultSet rs, int row) throws Exception {
+            boolean b = rs.getBoolean(column);
+            if (!checkNull(rs, row) && b) {
+                bits.put(row >> 3, (byte) (bits.get(row >> 3) | (1 << (row & 7))));
+            }
+        }
+
+        int type(FlatBufferBuilder fb) {
+            fb.startTable(0);
+            return fb.endTable();
+        }
+
+        void writeBuffers(Stream stream, int rows, List<long[]> buffers) {
+            super.writeBuffers(stream, rows, buffers);
+            stream.addBuffer(bits, (rows + 7) / 8, buffers);
+        }
+
+        void reset() {
+            super.reset();
+            Arrays.fill(bits.array(), (byte) 0);
+        }
+    }
+
+    /**
+     * Utf8 or Binary: int32 offsets and the bytes.
+     */
+    private static class VarVector extends Vector {
+        private final boolean utf8;
+        private final ByteBuffer offsets;
+        private ByteBuffer data = ByteBuffer.allocate(64 * 1024);
+
+        VarVector(boolean utf8, int capacity) {
+            super(utf8 ? TYPE_UTF8 : TYPE_BINARY, capacity);
+            this.utf8 = utf8;
+            offsets = ByteBuffer.allocate((capacity + 1) * 4).order(ByteOrder.LITTLE_ENDIAN);
+        }
+
+        void read(ResultSet rs, int row) throws Exception {
+            if (utf8) {
+                String s = rs.getString(column);
+                if (!checkNull(rs, row)) {
+                    encode(s);
+                }
+            }
+            else {
+                byte[] b = rs.getBytes(column);
+                if (!checkNull(rs, row)) {
+                    ensure(b.length);
+                    data.put(b);
+                }
+            }
+            offsets.putInt((row + 1) * 4, data.position());
+        }
+
+        int type(FlatBufferBuilder fb) {
+            fb.startTable(0);
+            return fb.endTable();
+        }
+
+        void writeBuffers(Stream stream, int rows, List<long[]> buffers) {
+            super.writeBuffers(stream, rows, buffers);
+            stream.addBuffer(offsets, (rows + 1) * 4, buffers);
+            stream.addBuffer(data, data.position(), buffers);
+        }
+
+        void reset() {
+            super.reset();
+            data.clear();
+        }
+
+        /**
+         * UTF-8 without a byte[] per value.
+         */
+        private void encode(String s) {
+            int n = s.length();
+            ensure(n * 3);
+            for (int i = 0; i < n; i++) {
+                char c = s.charAt(i);
+                if (c < 0x80) {
+                    data.put((byte) c);
+                }
+                else if (c < 0x800) {
+                    data.put((byte) (0xc0 | (c >> 6))).put((byte) (0x80 | (c & 0x3f)));
+                }
+                else if (Character.isHighSurrogate(c) && i + 1 < n && Character.isLowSurrogate(s.charAt(i + 1))) {
+                    int cp = Character.toCodePoint(c, s.charAt(++i));
+                    data.put((byte) (0xf0 | (cp >> 18)))
+                        .put((byte) (0x80 | ((cp >> 12) & 0x3f)))
+                        .put((byte) (0x80 | ((cp >> 6) & 0x3f)))
+                        .put((byte) (0x80 | (cp & 0x3f)));
+                }
+                else if (c >= Character.MIN_SURROGATE && c <= Character.MAX_SURROGATE) {
+                    data.put((byte) '?');
+                }
+                else {
+                    data.put((byte) (0xe0 | (c >> 12)))
+                        .put((byte) (0x80 | ((c >> 6) & 0x3f)))
+                        .put((byte) (0x80 | (c & 0x3f)));
+                }
+            }
+        }
+
+        private void ensure(int n) {
+            if (data.remaining() < n) {
+                ByteBuffer bigger = ByteBuffer.allocate(Math.max(data.capacity() * 2, data.position() + n));
+                data.flip();
+                bigger.put(data);
+                data = bigger;
+            }
+        }
+    }
+}
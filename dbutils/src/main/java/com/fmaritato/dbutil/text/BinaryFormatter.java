@@ -0,0 +1,298 @@
+package com.fmaritato.dbutil.text;
+
+import com.fmaritato.dbutil.FetchSizer;
+import com.fmaritato.dbutil.dump.DumpFormat;
+import com.fmaritato.dbutil.sink.OutputSink;
+
+import java.io.Writer;
+import java.math.BigDecimal;
+import java.nio.ByteBuffer;
+import java.sql.DatabaseMetaData;
+import java.sql.Date;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.zip.Deflater;
+
+/**
+ * Binary dump of a result, for copying tables between databases with
+ * --restore: a typed header, then the rows in length prefixed blocks of
+ * about -DBinaryFormatter.blockSize bytes (default 1m), deflated at
+ * -DBinaryFormatter.compress level (default 1, 0 stores them as they are),
+ * then an index of the blocks. See {@link DumpFormat} for the layout.
+ * <p/>
+ * The table name in the header is -t, or the table all the columns come
+ * from if the driver says so; --restore loads into it unless given another
+ * one with -t.
+ * <p/>
+ * The output is binary, so it has to go to the output sink directly: stdout
+ * or --out without --compress (the blocks are compressed already, and
+ * --restore maps the file), not --pipeline or a --split-by merge.
+ */
+public class BinaryFormatter implements Formatter {
+
+    public static final String PROP_BLOCK_SIZE = "BinaryFormatter.blockSize";
+    public static final String PROP_COMPRESS = "BinaryFormatter.compress";
+
+    private int blockSize = (int) FetchSizer.parseBytes(PROP_BLOCK_SIZE,
+                                                       System.getProperty(PROP_BLOCK_SIZE),
+                                                       1024 * 1024);
+    private int level = Integer.getInteger(PROP_COMPRESS, 1);
+    private String tableName;
+
+    public int getBlockSize() {
+        return blockSize;
+    }
+
+    public void setBlockSize(int aValue) {
+        blockSize = Math.max(1024, aValue);
+    }
+
+    public int getLevel() {
+        return level;
+    }
+
+    /**
+     * @param aValue deflate level of the blocks, 0 to leave them
+     *               uncompressed
+     */
+    public void setLevel(int aValue) {
+        level = aValue;
+    }
+
+    @Override
+    public void format(DatabaseMetaData meta, String schema, String table, Writer out) throws Exception {
+        throw new RuntimeException("Not implemented");
+    }
+
+    public void format(ResultSet rs, Writer out) throws Exception {
+        format(rs, out, true);
+    }
+
+    /**
+     * The header is part of the format, so it is always written.
+     */
+    public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
+        if (!(out instanceof OutputSink)) {
+            throw new IllegalArgumentException("binary output has to go to stdout or --out " +
+                                               "directly, not through --pipeline or --split-by");
+        }
+        Deflater deflater = level > 0 ? new Deflater(level) : null;
+        try {
+            new Dump((OutputSink) out, rs.getMetaData(), deflater).write(rs);
+        }
+        finally {
+            if (deflater != null) {
+                deflater.end();
+            }
+        }
+    }
+
+    /**
+     * The header goes with the rows.
+     */
+    public void format(ResultSetMetaData meta, Writer out) throws Exception {
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    /**
+     * One result written as one dump.
+     */
+    private class Dump {
+        private final OutputSink out;
+        private final Deflater deflater;
+        private final int[] types;
+        private final int bitmapSize;
+        private final DumpFormat.Header header;
+        private ByteBuffer block;
+        private byte[] deflated = new byte[0];
+        private int blockRows = 0;
+        /** bytes written, for the index */
+        private long position = 0;
+        private final List<long[]> index = new ArrayList<long[]>();
+
+        Dump(OutputSink out, ResultSetMetaData meta, Deflater deflater) throws Exception {
+            this.out = out;
+            this.deflater = deflater;
+            String table = tableName != null ? tableName : ColumnRenderer.getTableName(meta);
+            header = DumpFormat.Header.from(meta, table);
+            types = new int[header.columns.size()];
+            for (int i = 0; i < types.length; i++) {
+                types[i] = header.columns.get(i).type;
+            }
+            bitmapSize = (types.length + 7) / 8;
+            block = ByteBuffer.allocate(blockSize + 64 * 1024);
+        }
+
+        void write(ResultSet rs) throws Exception {
+            write(header.encode());
+            while (rs.next()) {
+                writeRow(rs);
+                if (block.position() >= blockSize) {
+                    writeBlock();
+                }
+            }
+            writeBlock();
+
+            ByteBuffer buf = ByteBuffer.allocate(5 + index.size() * 12 + DumpFormat.TRAILER_SIZE);
+            DumpFormat.putVarint(buf, index.size());
+            for (long[] entry : index) {
+                buf.putLong(entry[0]);
+                buf.putInt((int) entry[1]);
+            }
+            buf.putLong(position);
+            buf.put(DumpFormat.INDEX_MAGIC);
+            buf.flip();
+            write(buf);
+            out.flush();
+        }
+
+        private void writeRow(ResultSet rs) throws Exception {
+            block = DumpFormat.ensure(block, bitmapSize);
+            int nulls = block.position();
+            for (int i = 0; i < bitmapSize; i++) {
+                block.put((byte) 0);
+            }
+            for (int i = 0; i < types.length; i++) {
+                int column = i + 1;
+                boolean isNull = false;
+                switch (types[i]) {
+                    case DumpFormat.BOOLEAN:
+                        boolean b = rs.getBoolean(column);
+                        if (!(isNull = rs.wasNull())) {
+                            block = DumpFormat.ensure(block, 1);
+                            block.put((byte) (b ? 1 : 0));
+                        }
+                        break;
+                    case DumpFormat.INT:
+                        int n = rs.getInt(column);
+                        if (!(isNull = rs.wasNull())) {
+                            block = DumpFormat.ensure(block, 4);
+                            block.putInt(n);
+                        }
+                        break;
+                    case DumpFormat.LONG:
+                        long l = rs.getLong(column);
+                        if (!(isNull = rs.wasNull())) {
+                            block = DumpFormat.ensure(block, 8);
+                            block.putLong(l);
+                        }
+                        break;
+                    case DumpFormat.FLOAT:
+                        float f = rs.getFloat(column);
+                        if (!(isNull = rs.wasNull())) {
+                            block = DumpFormat.ensure(block, 4);
+                            block.putFloat(f);
+                        }
+                        break;
+                    case DumpFormat.DOUBLE:
+                        double d = rs.getDouble(column);
+                        if (!(isNull = rs.wasNull())) {
+                            block = DumpFormat.ensure(block, 8);
+                            block.putDouble(d);
+                        }
+                        break;
+                    case DumpFormat.DECIMAL:
+                        BigDecimal decimal = rs.getBigDecimal(column);
+                        if (!(isNull = decimal == null)) {
+                            byte[] unscaled = decimal.unscaledValue().toByteArray();
+                            block = DumpFormat.ensure(block, 10 + unscaled.length);
+                            DumpFormat.putZigzag(block, decimal.scale());
+                            DumpFormat.putVarint(block, unscaled.length);
+                            block.put(unscaled);
+                        }
+                        break;
+                    case DumpFormat.BYTES:
+                        byte[] bytes = rs.getBytes(column);
+                        if (!(isNull = bytes == null)) {
+                            block = DumpFormat.ensure(block, 5 + bytes.length);
+                            DumpFormat.putVarint(block, bytes.length);
+                            block.put(bytes);
+                        }
+                        break;
+                    case DumpFormat.DATE:
+                        Date date = rs.getDate(column);
+                        if (!(isNull = date == null)) {
+                            block = DumpFormat.ensure(block, 8);
+                            block.putLong(date.getTime());
+                        }
+                        break;
+                    case DumpFormat.TIME:
+                        Time time = rs.getTime(column);
+                        if (!(isNull = time == null)) {
+                            block = DumpFormat.ensure(block, 8);
+                            block.putLong(time.getTime());
+                        }
+                        break;
+                    case DumpFormat.TIMESTAMP:
+                        Timestamp ts = rs.getTimestamp(column);
+                        if (!(isNull = ts == null)) {
+                            block = DumpFormat.ensure(block, 13);
+                            block.putLong(ts.getTime());
+                            DumpFormat.putVarint(block, ts.getNanos());
+                        }
+                        break;
+                    default:
+                        String s = rs.getString(column);
+                        if (!(isNull = s == null)) {
+                            block = DumpFormat.ensure(block, 5 + s.length() * 3);
+                            DumpFormat.putVarint(block, s.length());
+                            DumpFormat.putChars(block, s);
+                        }
+                }
+                if (isNull) {
+                    int at = nulls + (i >> 3);
+                    block.put(at, (byte) (block.get(at) | (1 << (i & 7))));
+                }
+            }
+            blockRows++;
+        }
+
+        private void writeBlock() throws Exception {
+            if (blockRows == 0) {
+                return;
+            }
+            int raw = block.position();
+            byte[] data = block.array();
+            int stored = raw;
+            int codec = DumpFormat.CODEC_NONE;
+            if (deflater != null) {
+                if (deflated.length < raw) {
+                    deflated = new byte[raw];
+                }
+                deflater.reset();
+                deflater.setInput(data, 0, raw);
+                deflater.finish();
+                int n = 0;
+                while (!deflater.finished() && n < raw) {
+                    n += deflater.deflate(deflated, n, raw - n);
+                }
+                // kept as it is when it doesn't get any smaller
+                if (deflater.finished() && n < raw) {
+                    data = deflated;
+                    stored = n;
+                    codec = DumpFormat.CODEC_DEFLATE;
+                }
+            }
+            ByteBuffer head = ByteBuffer.allocate(DumpFormat.BLOCK_HEADER_SIZE);
+            head.putInt(raw).putInt(stored).put((byte) codec).putInt(blockRows);
+            head.flip();
+            index.add(new long[]{position, blockRows});
+            write(head);
+            write(ByteBuffer.wrap(data, 0, stored));
+            block.clear();
+            blockRows = 0;
+        }
+
+        private void write(ByteBuffer buf) throws Exception {
+            position += buf.remaining();
+            out.write(buf);
+        }
+    }
+}
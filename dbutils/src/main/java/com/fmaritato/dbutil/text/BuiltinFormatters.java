@@ -0,0 +1,54 @@
+package com.fmaritato.dbutil.text;
+
+/**
+ * The formatters that ship with dbutils.
+ */
+public class BuiltinFormatters implements FormatterProvider {
+
+    public String[] getNames() {
+        return new String[]{"tabular", "tabular-fit", "csv", "tsv", "jsonl", "arrow", "arrow-file", "binary", "insert", "space", "tab", "dataset", "hibernate"};
+    }
+
+    public Formatter create(String name) {
+        if ("tabular".equals(name)) {
+            return new TabularFormatter();
+        }
+        else if ("tabular-fit".equals(name)) {
+            return new TabularFormatter(true);
+        }
+        else if ("csv".equals(name)) {
+            return new CsvFormatter();
+        }
+        else if ("tsv".equals(name)) {
+            return new CsvFormatter('\t');
+        }
+        else if ("jsonl".equals(name)) {
+            return new JsonLinesFormatter();
+        }
+        else if ("arrow".equals(name)) {
+            return new ArrowFormatter();
+        }
+        else if ("arrow-file".equals(name)) {
+            return new ArrowFormatter(true);
+        }
+        else if ("binary".equals(name)) {
+            return new BinaryFormatter();
+        }
+        else if ("insert".equals(name)) {
+            return new InsertFormatter();
+        }
+        else if ("space".equals(name)) {
+            return new SimpleFormatter(" ");
+        }
+        else if ("tab".equals(name)) {
+            return new SimpleFormatter("\t");
+        }
+        else if ("dataset".equals(name)) {
+            return new DatasetFormatter();
+        }
+        else if ("hibernate".equals(name)) {
+            return new HibernateObjectFormatter();
+        }
+        throw new IllegalArgumentException("Unknown formatter: " + name);
+    }
+}
@@ -0,0 +1,130 @@
+package com.fmaritato.dbutil.text;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.CharBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Temp file of chars that is written once and then read back once, both
+ * through memory mapped windows, so a spooled result costs page cache and
+ * not heap.
+ * <p/>
+ * Used by the two pass tabular output: the first pass spools every cell as
+ * its length followed by its chars, the second reads them back in order.
+ */
+public class CharSpool {
+
+    private static final long WINDOW_SIZE = 64 * 1024 * 1024;
+
+    private final File file;
+    private final RandomAccessFile raf;
+    private final FileChannel channel;
+
+    private CharBuffer window;
+    private long windowPosition = 0;
+    /** chars written, or read when reading */
+    private long length = 0;
+    private long written = -1;
+
+    public CharSpool() throws IOException {
+        file = File.createTempFile("dbutil-spool-", ".tmp");
+        file.deleteOnExit();
+        raf = new RandomAccessFile(file, "rw");
+        channel = raf.getChannel();
+    }
+
+    public void writeInt(int v) throws IOException {
+        write((char) (v >>> 16));
+        write((char) v);
+    }
+
+    public void write(char c) throws IOException {
+        if (window == null || !window.hasRemaining()) {
+            map(FileChannel.MapMode.READ_WRITE);
+        }
+        window.put(c);
+        length++;
+    }
+
+    public void write(char[] buf, int off, int len) throws IOException {
+        while (len > 0) {
+            if (window == null || !window.hasRemaining()) {
+                map(FileChannel.MapMode.READ_WRITE);
+            }
+            int n = Math.min(len, window.remaining());
+            window.put(buf, off, n);
+            off += n;
+            len -= n;
+            length += n;
+        }
+    }
+
+    /**
+     * Switch from writing to reading from the start.
+     */
+    public void rewind() {
+        written = length;
+        length = 0;
+        windowPosition = 0;
+        window = null;
+    }
+
+    public boolean hasMore() {
+        return length < written;
+    }
+
+    public int readInt() throws IOException {
+        return (read() << 16) | read();
+    }
+
+    public char read() throws IOException {
+        if (window == null || !window.hasRemaining()) {
+            map(FileChannel.MapMode.READ_ONLY);
+        }
+        length++;
+        return window.get();
+    }
+
+    /**
+     * Read len chars into buf.
+     */
+    public void read(RowBuffer buf, int len) throws IOException {
+        while (len > 0) {
+            if (window == null || !window.hasRemaining()) {
+                map(FileChannel.MapMode.READ_ONLY);
+            }
+            int n = Math.min(len, window.remaining());
+            int start = buf.grow(n);
+            window.get(buf.array(), start, n);
+            len -= n;
+            length += n;
+        }
+    }
+
+    /**
+     * Close and delete the file.
+     */
+    public void close() {
+        window = null;
+        try {
+            raf.close();
+        }
+        catch (IOException e) {
+            // nothing to do about it
+        }
+        file.delete();
+    }
+
+    private void map(FileChannel.MapMode mode) throws IOException {
+        // the next window starts where this one ended
+        long position = window == null ? windowPosition : windowPosition + window.capacity() * 2L;
+        long size = WINDOW_SIZE;
+        if (mode == FileChannel.MapMode.READ_ONLY) {
+            size = Math.min(size, (written - length) * 2);
+        }
+        window = channel.map(mode, position, size).asCharBuffer();
+        windowPosition = position;
+    }
+}
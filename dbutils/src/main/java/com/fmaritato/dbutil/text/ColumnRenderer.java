@@ -0,0 +1,365 @@
+package com.fmaritato.dbutil.text;
+
+import java.io.InputStream;
+import java.io.Reader;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.Calendar;
+
+/**
+ * Renders one column of the current row into a {@link RowBuffer}.
+ * <p/>
+ * {@link #plan} picks a renderer per column once per result, from the class
+ * the driver says getObject() would return, so the per row work is a typed
+ * getter and writing chars: integers and timestamps are rendered without
+ * boxing or building Strings. The text is the same as String.valueOf() of
+ * the getObject() value, "null" included.
+ * <p/>
+ * LOB and binary columns are the exception: they are read through the
+ * standard getCharacterStream()/getBinaryStream() in CHUNK_SIZE pieces and
+ * spilled to the output as they go. -Ddb.lob.maxLength cuts them off after
+ * that many chars (CLOBs) or bytes (binaries), and binaries are written as
+ * hex, or base64 with -Ddb.lob.binaryEncoding=base64.
+ */
+public abstract class ColumnRenderer {
+
+    public static final String PROP_LOB_MAX_LENGTH = "db.lob.maxLength";
+    public static final String PROP_BINARY_ENCODING = "db.lob.binaryEncoding";
+
+    private static final int CHUNK_SIZE = 32 * 1024;
+
+    protected final int column;
+
+    protected ColumnRenderer(int column) {
+        this.column = column;
+    }
+
+    /**
+     * Append the column's value in the current row.
+     *
+     * @param rs  result positioned on a row
+     * @param buf where the text goes
+     * @throws Exception if the value can't be read
+     */
+    public abstract void render(ResultSet rs, RowBuffer buf) throws Exception;
+
+    /**
+     * Escaping for values that are spilled as they are read and so can't be
+     * escaped once they are in the buffer.
+     */
+    public interface Escaper {
+        void append(RowBuffer buf, char[] c, int off, int len);
+    }
+
+    /**
+     * @param meta result metadata
+     * @return a renderer per column, in column order
+     * @throws Exception if the metadata can't be read
+     */
+    public static ColumnRenderer[] plan(ResultSetMetaData meta) throws Exception {
+        ColumnRenderer[] plan = new ColumnRenderer[meta.getColumnCount()];
+        for (int i = 1; i <= plan.length; i++) {
+            plan[i - 1] = create(meta, i);
+        }
+        return plan;
+    }
+
+    /**
+     * @param meta result metadata
+     * @return the table all the columns come from, null if the driver
+     *         doesn't say or they come from more than one
+     * @throws Exception if the metadata can't be read
+     */
+    public static String getTableName(ResultSetMetaData meta) throws Exception {
+        String table = null;
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            String t = meta.getTableName(i);
+            if (t == null || t.length() == 0 || (table != null && !table.equals(t))) {
+                return null;
+            }
+            table = t;
+        }
+        return table;
+    }
+
+    static ColumnRenderer create(ResultSetMetaData meta, int column) throws Exception {
+        String className = getColumnClassName(meta, column);
+        int type = meta.getColumnType(column);
+        long maxLength = Long.getLong(PROP_LOB_MAX_LENGTH, 0);
+        if (type == Types.CLOB || type == Types.NCLOB ||
+            className.startsWith("oracle.sql.CLOB") || className.startsWith("oracle.sql.NCLOB")) {
+            return new ClobRenderer(column, maxLength);
+        }
+        if (type == Types.BLOB || type == Types.BINARY ||
+            type == Types.VARBINARY || type == Types.LONGVARBINARY ||
+            className.startsWith("oracle.sql.BLOB") || "[B".equals(className)) {
+            // [B: MySQL BIT(n) and other byte[] columns
+            return new BinaryRenderer(column, maxLength,
+                                      "base64".equalsIgnoreCase(System.getProperty(PROP_BINARY_ENCODING)));
+        }
+        if ("java.lang.Long".equals(className) ||
+            "java.lang.Integer".equals(className) ||
+            "java.lang.Short".equals(className) ||
+            "java.lang.Byte".equals(className)) {
+            return new LongRenderer(column);
+        }
+        if ("java.math.BigDecimal".equals(className) &&
+            (type == Types.NUMERIC || type == Types.DECIMAL) &&
+            meta.getScale(column) == 0 &&
+            meta.getPrecision(column) > 0 && meta.getPrecision(column) <= 18) {
+            // NUMBER(n) of up to 18 digits always fits a long
+            return new LongRenderer(column);
+        }
+        if ("java.sql.Timestamp".equals(className) ||
+            className.startsWith("oracle.sql.TIMESTAMP")) {
+            return new TimestampRenderer(column);
+        }
+        if ("java.lang.String".equals(className)) {
+            return new StringRenderer(column);
+        }
+        return new ObjectRenderer(column);
+    }
+
+    static String getColumnClassName(ResultSetMetaData meta, int column) {
+        try {
+            String name = meta.getColumnClassName(column);
+            return name == null ? "" : name;
+        }
+        catch (Exception e) {
+            // not every driver implements it
+            return "";
+        }
+    }
+
+    static class LongRenderer extends ColumnRenderer {
+        LongRenderer(int column) {
+            super(column);
+        }
+
+        public void render(ResultSet rs, RowBuffer buf) throws Exception {
+            long v = rs.getLong(column);
+            if (rs.wasNull()) {
+                buf.appendNull();
+            }
+            else {
+                buf.append(v);
+            }
+        }
+    }
+
+    static class StringRenderer extends ColumnRenderer {
+        StringRenderer(int column) {
+            super(column);
+        }
+
+        public void render(ResultSet rs, RowBuffer buf) throws Exception {
+            buf.append(rs.getString(column));
+        }
+    }
+
+    /**
+     * Same text as Timestamp.toString(): yyyy-mm-dd hh:mm:ss.f..., the wall
+     * clock time in the JVM's time zone, optionally followed by that zone's
+     * offset at the time (Z or +hh:mm).
+     */
+    static class TimestampRenderer extends ColumnRenderer {
+        private final Calendar calendar = Calendar.getInstance();
+        private boolean offset = false;
+
+        TimestampRenderer(int column) {
+            super(column);
+        }
+
+        /**
+         * @param aValue whether to append the zone offset, for columns that
+         *               are an instant rather than a wall clock time
+         */
+        void setOffset(boolean aValue) {
+            offset = aValue;
+        }
+
+        public void render(ResultSet rs, RowBuffer buf) throws Exception {
+            Timestamp t = rs.getTimestamp(column);
+            if (t == null) {
+                buf.appendNull();
+                return;
+            }
+            calendar.setTimeInMillis(t.getTime());
+            buf.append(calendar.get(Calendar.YEAR), 4).append('-')
+               .append(calendar.get(Calendar.MONTH) + 1, 2).append('-')
+               .append(calendar.get(Calendar.DAY_OF_MONTH), 2).append(' ')
+               .append(calendar.get(Calendar.HOUR_OF_DAY), 2).append(':')
+               .append(calendar.get(Calendar.MINUTE), 2).append(':')
+               .append(calendar.get(Calendar.SECOND), 2).append('.');
+            int nanos = t.getNanos();
+            if (nanos == 0) {
+                buf.append('0');
+            }
+            else {
+                int digits = 9;
+                while (nanos % 10 == 0) {
+                    nanos /= 10;
+                    digits--;
+                }
+                buf.append(nanos, digits);
+            }
+            if (offset) {
+                int minutes = (calendar.get(Calendar.ZONE_OFFSET) + calendar.get(Calendar.DST_OFFSET)) / 60000;
+                if (minutes == 0) {
+                    buf.append('Z');
+                }
+                else {
+                    buf.append(minutes < 0 ? '-' : '+').append(Math.abs(minutes) / 60, 2).append(':')
+                       .append(Math.abs(minutes) % 60, 2);
+                }
+            }
+        }
+    }
+
+    /**
+     * CLOBs, in chunks.
+     */
+    static class ClobRenderer extends ColumnRenderer {
+        private final long maxLength;
+        private final char[] chunk = new char[CHUNK_SIZE];
+        private Escaper escaper;
+
+        /**
+         * @param maxLength chars to write at most, 0 for all of them
+         */
+        ClobRenderer(int column, long maxLength) {
+            super(column);
+            this.maxLength = maxLength > 0 ? maxLength : Long.MAX_VALUE;
+        }
+
+        /**
+         * @param escaper how the value's chars are written, null for as is
+         */
+        void setEscaper(Escaper escaper) {
+            this.escaper = escaper;
+        }
+
+        public void render(ResultSet rs, RowBuffer buf) throws Exception {
+            Reader r = rs.getCharacterStream(column);
+            if (r == null) {
+                buf.appendNull();
+                return;
+            }
+            try {
+                long left = maxLength;
+                int n;
+                while (left > 0 &&
+                       (n = r.read(chunk, 0, (int) Math.min(chunk.length, left))) != -1) {
+                    if (escaper == null) {
+                        buf.append(chunk, 0, n);
+                    }
+                    else {
+                        escaper.append(buf, chunk, 0, n);
+                    }
+                    buf.spill();
+                    left -= n;
+                }
+            }
+            finally {
+                r.close();
+            }
+        }
+    }
+
+    /**
+     * BLOBs and (VAR)BINARY/RAW columns, in chunks, as hex or base64.
+     */
+    static class BinaryRenderer extends ColumnRenderer {
+        private static final char[] HEX = "0123456789ABCDEF".toCharArray();
+        private static final char[] BASE64 =
+                "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/".toCharArray();
+
+        private final long maxLength;
+        private final boolean base64;
+        private final byte[] chunk = new byte[CHUNK_SIZE];
+
+        /**
+         * @param maxLength bytes to write at most, 0 for all of them
+         * @param base64    base64 instead of hex
+         */
+        BinaryRenderer(int column, long maxLength, boolean base64) {
+            super(column);
+            this.maxLength = maxLength > 0 ? maxLength : Long.MAX_VALUE;
+            this.base64 = base64;
+        }
+
+        public void render(ResultSet rs, RowBuffer buf) throws Exception {
+            InputStream in = rs.getBinaryStream(column);
+            if (in == null) {
+                buf.appendNull();
+                return;
+            }
+            try {
+                long left = maxLength;
+                // base64 works on groups of 3 bytes, the rest of a chunk
+                // is carried over to the front of the next one
+                int carry = 0;
+                int n;
+                while (left > 0 &&
+                       (n = in.read(chunk, carry, (int) Math.min(chunk.length - carry, left))) != -1) {
+                    left -= n;
+                    int end = carry + n;
+                    if (base64) {
+                        int whole = end - end % 3;
+                        encodeBase64(chunk, whole, buf);
+                        carry = end - whole;
+                        System.arraycopy(chunk, whole, chunk, 0, carry);
+                    }
+                    else {
+                        for (int i = 0; i < end; i++) {
+                            buf.append(HEX[(chunk[i] >> 4) & 0xf]).append(HEX[chunk[i] & 0xf]);
+                        }
+                    }
+                    buf.spill();
+                }
+                encodeBase64(chunk, carry, buf);
+            }
+            finally {
+                in.close();
+            }
+        }
+
+        /**
+         * Encode the first len bytes of b, padding a last group of 1 or 2.
+         */
+        private static void encodeBase64(byte[] b, int len, RowBuffer buf) {
+            int i = 0;
+            for (; i + 2 < len; i += 3) {
+                int v = (b[i] & 0xff) << 16 | (b[i + 1] & 0xff) << 8 | (b[i + 2] & 0xff);
+                buf.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 0x3f])
+                   .append(BASE64[(v >>> 6) & 0x3f]).append(BASE64[v & 0x3f]);
+            }
+            if (i < len) {
+                int v = (b[i] & 0xff) << 16 | (i + 1 < len ? (b[i + 1] & 0xff) << 8 : 0);
+                buf.append(BASE64[v >>> 18]).append(BASE64[(v >>> 12) & 0x3f])
+                   .append(i + 1 < len ? BASE64[(v >>> 6) & 0x3f] : '=').append('=');
+            }
+        }
+    }
+
+    /**
+     * Anything else, through getObject().
+     */
+    static class ObjectRenderer extends ColumnRenderer {
+        ObjectRenderer(int column) {
+            super(column);
+        }
+
+        public void render(ResultSet rs, RowBuffer buf) throws Exception {
+            Object o = rs.getObject(column);
+            if (o instanceof oracle.sql.TIMESTAMP) {
+                buf.append(((oracle.sql.TIMESTAMP) o).timestampValue().toString());
+            }
+            else {
+                buf.append(String.valueOf(o));
+            }
+        }
+    }
+}
@@ -0,0 +1,234 @@
+package com.fmaritato.dbutil.text;
+
+import java.io.Writer;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+/**
+ * RFC 4180 CSV (or TSV): values holding the delimiter, a quote, CR or LF
+ * are quoted and their quotes doubled.
+ * <p/>
+ * Each value is rendered into the row buffer, scanned once and, only if it
+ * needs it, quoted in place, so a row costs no Strings; the chars go to the
+ * output's UTF-8 encoder in one piece. CLOBs are streamed, so they are
+ * always quoted and their quotes doubled on the way through; BLOBs are
+ * streamed too and only quoted with quoteAll, or when empty.
+ * <p/>
+ * Options, as system properties or setters:
+ * <ul>
+ * <li>CsvFormatter.delimiter - a single char, "," by default</li>
+ * <li>CsvFormatter.header - false to leave out the column names</li>
+ * <li>CsvFormatter.null - what a null is written as, empty by default; an
+ * empty string is then written as "" to tell the two apart</li>
+ * <li>CsvFormatter.quoteAll - quote every value, not just the ones that
+ * need it</li>
+ * <li>CsvFormatter.crlf - end lines with CRLF as the RFC says instead of LF</li>
+ * </ul>
+ */
+public class CsvFormatter implements Formatter {
+
+    public static final String PROP_DELIM = "CsvFormatter.delimiter";
+    public static final String PROP_HEADER = "CsvFormatter.header";
+    public static final String PROP_NULL = "CsvFormatter.null";
+    public static final String PROP_QUOTE_ALL = "CsvFormatter.quoteAll";
+    public static final String PROP_CRLF = "CsvFormatter.crlf";
+
+    private static final char QUOTE = '"';
+
+    private static final ColumnRenderer.Escaper QUOTE_ESCAPER = new ColumnRenderer.Escaper() {
+        public void append(RowBuffer buf, char[] c, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                if (c[i] == QUOTE) {
+                    buf.append(QUOTE);
+                }
+                buf.append(c[i]);
+            }
+        }
+    };
+
+    private char delim;
+    private boolean header = !"false".equalsIgnoreCase(System.getProperty(PROP_HEADER));
+    private String nullText = System.getProperty(PROP_NULL, "");
+    private boolean quoteAll = Boolean.getBoolean(PROP_QUOTE_ALL);
+    private boolean crlf = Boolean.getBoolean(PROP_CRLF);
+
+    public CsvFormatter() {
+        this(System.getProperty(PROP_DELIM, ",").charAt(0));
+    }
+
+    public CsvFormatter(char delim) {
+        this.delim = delim;
+    }
+
+    public char getDelim() {
+        return delim;
+    }
+
+    public void setDelim(char aValue) {
+        delim = aValue;
+    }
+
+    public boolean isHeader() {
+        return header;
+    }
+
+    public void setHeader(boolean aValue) {
+        header = aValue;
+    }
+
+    public String getNullText() {
+        return nullText;
+    }
+
+    public void setNullText(String aValue) {
+        nullText = aValue;
+    }
+
+    public boolean isQuoteAll() {
+        return quoteAll;
+    }
+
+    public void setQuoteAll(boolean aValue) {
+        quoteAll = aValue;
+    }
+
+    public boolean isCrlf() {
+        return crlf;
+    }
+
+    public void setCrlf(boolean aValue) {
+        crlf = aValue;
+    }
+
+    @Override
+    public void format(DatabaseMetaData meta, String schema, String table, Writer out) throws Exception {
+        throw new RuntimeException("Not implemented");
+    }
+
+    public void format(ResultSet rs, Writer out) throws Exception {
+        format(rs, out, true);
+    }
+
+    public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
+        ResultSetMetaData meta = rs.getMetaData();
+        if (writeHeader) {
+            format(meta, out);
+        }
+
+        ColumnRenderer[] plan = ColumnRenderer.plan(meta);
+        boolean[] streamed = new boolean[plan.length];
+        boolean[] binary = new boolean[plan.length];
+        for (int i = 0; i < plan.length; i++) {
+            if (plan[i] instanceof ColumnRenderer.ClobRenderer) {
+                ((ColumnRenderer.ClobRenderer) plan[i]).setEscaper(QUOTE_ESCAPER);
+                streamed[i] = true;
+            }
+            else if (plan[i] instanceof ColumnRenderer.BinaryRenderer) {
+                // spilled too, but hex and base64 never need escaping
+                binary[i] = true;
+                streamed[i] = quoteAll;
+            }
+        }
+        RowBuffer buf = new RowBuffer(256);
+        buf.setSink(out);
+        while (rs.next()) {
+            buf.clear();
+            for (int i = 0; i < plan.length; i++) {
+                if (i > 0) {
+                    buf.append(delim);
+                }
+                int cellStart = buf.length();
+                long cellPosition = buf.position();
+                if (streamed[i]) {
+                    buf.append(QUOTE);
+                }
+                plan[i].render(rs, buf);
+                if (rs.wasNull()) {
+                    // nothing was spilled for a null
+                    buf.setLength(cellStart);
+                    buf.append(nullText);
+                }
+                else if (streamed[i]) {
+                    buf.append(QUOTE);
+                }
+                else if (binary[i]) {
+                    if (buf.position() == cellPosition && nullText.length() == 0) {
+                        buf.append(QUOTE).append(QUOTE);
+                    }
+                }
+                else {
+                    quote(buf, cellStart);
+                }
+            }
+            endLine(buf);
+            buf.writeTo(out);
+        }
+        out.flush();
+    }
+
+    public void format(ResultSetMetaData meta, Writer out) throws Exception {
+        if (!header) {
+            return;
+        }
+        RowBuffer buf = new RowBuffer(256);
+        for (int i = 1; i <= meta.getColumnCount(); i++) {
+            if (i > 1) {
+                buf.append(delim);
+            }
+            int cellStart = buf.length();
+            buf.append(meta.getColumnName(i));
+            quote(buf, cellStart);
+        }
+        endLine(buf);
+        buf.writeTo(out);
+        out.flush();
+    }
+
+    /**
+     * Quote the value from start to the end of buf if it needs it, doubling
+     * its quotes. The value is moved right from the back, so this is one
+     * scan and, for the values that need it, one copy.
+     */
+    private void quote(RowBuffer buf, int start) {
+        char[] a = buf.array();
+        int end = buf.length();
+        boolean needed = quoteAll || (start == end && nullText.length() == 0);
+        int quotes = 0;
+        for (int i = start; i < end; i++) {
+            char c = a[i];
+            if (c == QUOTE) {
+                quotes++;
+                needed = true;
+            }
+            else if (c == delim || c == '\n' || c == '\r') {
+                needed = true;
+            }
+        }
+        if (!needed) {
+            return;
+        }
+        buf.grow(quotes + 2);
+        a = buf.array();
+        int to = buf.length() - 1;
+        a[to--] = QUOTE;
+        for (int i = end - 1; i >= start; i--) {
+            a[to--] = a[i];
+            if (a[i] == QUOTE) {
+                a[to--] = QUOTE;
+            }
+        }
+        a[to] = QUOTE;
+    }
+
+    private void endLine(RowBuffer buf) {
+        if (crlf) {
+            buf.append('\r');
+        }
+        buf.append('\n');
+    }
+
+    public void setTableName(String tableName) {
+        ; //do nothing
+    }
+}
@@ -1,25 +1,55 @@
 package com.fmaritato.dbutil.text;
 
-import org.apache.commons.logging.Log;
-import org.apache.commons.logging.LogFactory;
-
 import java.io.Writer;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
-import java.util.LinkedList;
-import java.util.List;
 
 /**
- * User: fmaritato
- * Date: Jul 17, 2007
+ * DBUnit flat XML dataset: one element per row, named after the table,
+ * with an attribute per non null column. Nulls are left out, as DBUnit
+ * reads them; load with column sensing on if the first row of a table can
+ * have nulls.
+ * <p/>
+ * The XML is written as it is read: values are rendered with positional
+ * getters into the row buffer and escaped there in one pass (newlines and
+ * tabs as character references, so they survive attribute normalization;
+ * the control chars XML 1.0 has no room for as '?'), CLOBs while they are
+ * streamed and binaries as base64, and each row goes to the output in one
+ * piece.
+ * <p/>
+ * format() writes a whole dataset for one table, -t or the table all the
+ * columns come from. For several tables in one dataset call start(), then
+ * format(rs, table, out) per table, then end(); see DBUtil.dataset().
  */
 public class DatasetFormatter implements Formatter {
 
-    private transient Log log = LogFactory.getLog(DatasetFormatter.class);
+    /** what each char below '?' is written as, null for itself */
+    private static final char[][] ESCAPES = new char['?'][];
+
+    static {
+        for (char c = 0; c < 0x20; c++) {
+            // no place for these in XML 1.0
+            ESCAPES[c] = new char[]{'?'};
+        }
+        ESCAPES['\t'] = "&#9;".toCharArray();
+        ESCAPES['\n'] = "&#10;".toCharArray();
+        ESCAPES['\r'] = "&#13;".toCharArray();
+        ESCAPES['&'] = "&amp;".toCharArray();
+        ESCAPES['<'] = "&lt;".toCharArray();
+        ESCAPES['>'] = "&gt;".toCharArray();
+        ESCAPES['"'] = "&quot;".toCharArray();
+    }
+
+    private static final ColumnRenderer.Escaper ESCAPER = new ColumnRenderer.Escaper() {
+        public void append(RowBuffer buf, char[] c, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                appendEscaped(buf, c[i]);
+            }
+        }
+    };
 
     private String tableName = null;
-    private List<String> columns = new LinkedList<String>();
 
     public void format(ResultSet rs, Writer out) throws Exception {
         format(rs, out, true);
@@ -30,60 +60,140 @@ public class DatasetFormatter implements Formatter {
         throw new RuntimeException("Not implemented");
     }
 
+    /**
+     * The column names go in every row, there is no header.
+     */
     public void format(ResultSetMetaData meta, Writer out) throws Exception {
-        int count = meta.getColumnCount();
-        for (int i = 1; i < count + 1; i++) {
-            String n = meta.getColumnName(i);
-            if (log.isInfoEnabled()) {
-                log.info("column: " + n);
-            }
-            columns.add(n);
-        }
     }
 
     public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
+        String table = tableName != null ? tableName : ColumnRenderer.getTableName(rs.getMetaData());
+        if (table == null) {
+            throw new IllegalArgumentException("dataset output needs the table name (-t)");
+        }
+        start(out);
+        format(rs, table, out);
+        end(out);
+    }
+
+    /**
+     * Open the dataset.
+     */
+    public void start(Writer out) throws Exception {
+        out.write("<?xml version=\"1.0\" encoding=\"UTF-8\"?>\n<dataset>\n");
+    }
+
+    /**
+     * Write the rows of one table.
+     *
+     * @param rs    the table's rows
+     * @param table element name for them
+     * @param out   where the output goes
+     * @throws Exception if reading or writing fails
+     */
+    public void format(ResultSet rs, String table, Writer out) throws Exception {
         ResultSetMetaData meta = rs.getMetaData();
-        format(meta, out);
+        ColumnRenderer[] plan = ColumnRenderer.plan(meta);
+        boolean[] escaped = new boolean[plan.length];
+        char[][] prefixes = new char[plan.length][];
+        for (int i = 0; i < plan.length; i++) {
+            int column = i + 1;
+            if (plan[i] instanceof ColumnRenderer.ClobRenderer) {
+                // the whole value, whatever db.lob.maxLength says
+                ColumnRenderer.ClobRenderer clob = new ColumnRenderer.ClobRenderer(column, 0);
+                clob.setEscaper(ESCAPER);
+                plan[i] = clob;
+            }
+            else if (plan[i] instanceof ColumnRenderer.BinaryRenderer) {
+                // DBUnit reads binary columns as base64
+                plan[i] = new ColumnRenderer.BinaryRenderer(column, 0, true);
+            }
+            else {
+                escaped[i] = true;
+            }
+            prefixes[i] = (" " + meta.getColumnName(column) + "=\"").toCharArray();
+        }
+        char[] open = ("  <" + table).toCharArray();
 
-        out.write("<dataset>");
+        RowBuffer buf = new RowBuffer(256);
+        buf.setSink(out);
         while (rs.next()) {
-            out.write("<");
-            if (tableName != null) {
-                if (log.isWarnEnabled()) {
-                    log.warn("no table name set...try -t option");
+            buf.clear();
+            buf.append(open, 0, open.length);
+            for (int i = 0; i < plan.length; i++) {
+                int cellStart = buf.length();
+                buf.append(prefixes[i], 0, prefixes[i].length);
+                int valueStart = buf.length();
+                plan[i].render(rs, buf);
+                if (rs.wasNull()) {
+                    // nothing was spilled for a null
+                    buf.setLength(cellStart);
+                    continue;
                 }
-                out.write(tableName);
-            }
-            out.write("\n");
-            for (String column : columns) {
-                out.write(column);
-                out.write("=\"");
-                Object v = rs.getObject(column);
-                if (v != null) {
-                    String value;
-                    if (v instanceof oracle.sql.TIMESTAMP) {
-                        value = ((oracle.sql.TIMESTAMP) v).timestampValue().toString();
-                    }
-                    else {
-                        value = v.toString();
-                    }
-                    value = value.replace("<", "&lt;")
-                                 .replace(">", "&gt;")
-                                 .replace("\"", "&quot;")
-                                 .replace("\'", "&apos;");
-                    out.write(value);
+                if (escaped[i]) {
+                    escape(buf, valueStart);
                 }
-                out.write("\"");
-                out.write("\n");
-                out.flush();
+                buf.append('"');
             }
-            out.write("/>\n");
-            out.flush();
+            buf.append("/>\n");
+            buf.writeTo(out);
         }
-        out.write("</dataset>");
         out.flush();
     }
 
+    /**
+     * Close the dataset.
+     */
+    public void end(Writer out) throws Exception {
+        out.write("</dataset>\n");
+        out.flush();
+    }
+
+    /**
+     * Escape the value from start to the end of buf in place: one scan, and
+     * for the values that need it, one copy from the back.
+     */
+    private static void escape(RowBuffer buf, int start) {
+        char[] a = buf.array();
+        int end = buf.length();
+        boolean found = false;
+        int extra = 0;
+        for (int i = start; i < end; i++) {
+            char c = a[i];
+            if (c < ESCAPES.length && ESCAPES[c] != null) {
+                found = true;
+                extra += ESCAPES[c].length - 1;
+            }
+        }
+        if (!found) {
+            return;
+        }
+        buf.grow(extra);
+        a = buf.array();
+        int to = buf.length() - 1;
+        for (int i = end - 1; i >= start; i--) {
+            char c = a[i];
+            if (c < ESCAPES.length && ESCAPES[c] != null) {
+                char[] e = ESCAPES[c];
+                for (int j = e.length - 1; j >= 0; j--) {
+                    a[to--] = e[j];
+                }
+            }
+            else {
+                a[to--] = c;
+            }
+        }
+    }
+
+    private static void appendEscaped(RowBuffer buf, char c) {
+        if (c < ESCAPES.length && ESCAPES[c] != null) {
+            buf.append(ESCAPES[c], 0, ESCAPES[c].length);
+        }
+        else {
+            buf.append(c);
+        }
+    }
+
     public String getTableName() {
         return tableName;
     }
@@ -0,0 +1,233 @@
+package com.fmaritato.dbutil.text;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Just enough of a FlatBuffers builder for the Arrow IPC metadata: tables
+ * of scalars and offsets, strings, and vectors of offsets or structs,
+ * little endian. Like the real one it builds the buffer back to front, so
+ * children have to be finished before the table that points at them is
+ * started, and vector elements are added last first.
+ */
+class FlatBufferBuilder {
+
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    private byte[] buf;
+    /** index of the first byte in use, the buffer grows down from the end */
+    private int space;
+    private int minAlign = 1;
+    private int[] vtable = new int[16];
+    private int vtableSize = -1;
+    private int objectStart;
+    private int vectorElements;
+
+    FlatBufferBuilder(int capacity) {
+        buf = new byte[capacity];
+        space = capacity;
+    }
+
+    /**
+     * @return bytes written so far; what offsets to objects are measured in
+     */
+    int offset() {
+        return buf.length - space;
+    }
+
+    void startTable(int fields) {
+        if (vtable.length < fields) {
+            vtable = new int[fields];
+        }
+        Arrays.fill(vtable, 0, fields, 0);
+        vtableSize = fields;
+        objectStart = offset();
+    }
+
+    /**
+     * Fields equal to their schema default are left out, as FlatBuffers
+     * does.
+     */
+    void addByte(int field, int value, int defaultValue) {
+        if (value != defaultValue) {
+            prep(1, 0);
+            putByte(value);
+            vtable[field] = offset();
+        }
+    }
+
+    void addShort(int field, int value, int defaultValue) {
+        if (value != defaultValue) {
+            addShort(value);
+            vtable[field] = offset();
+        }
+    }
+
+    void addInt(int field, int value, int defaultValue) {
+        if (value != defaultValue) {
+            addInt(value);
+            vtable[field] = offset();
+        }
+    }
+
+    void addLong(int field, long value, long defaultValue) {
+        if (value != defaultValue) {
+            prep(8, 0);
+            putLong(value);
+            vtable[field] = offset();
+        }
+    }
+
+    /**
+     * @param object offset of a string, vector or table, 0 for none
+     */
+    void addOffset(int field, int object) {
+        if (object != 0) {
+            addOffset(object);
+            vtable[field] = offset();
+        }
+    }
+
+    /**
+     * @return the table's offset
+     */
+    int endTable() {
+        addInt(0);
+        int table = offset();
+        int fields = vtableSize;
+        while (fields > 0 && vtable[fields - 1] == 0) {
+            fields--;
+        }
+        for (int i = fields - 1; i >= 0; i--) {
+            addShort(vtable[i] != 0 ? table - vtable[i] : 0);
+        }
+        addShort(table - objectStart);
+        addShort((fields + 2) * 2);
+        // the table starts with the distance back to its vtable
+        putIntAt(buf.length - table, offset() - table);
+        vtableSize = -1;
+        return table;
+    }
+
+    int createString(String s) {
+        byte[] bytes = s.getBytes(UTF8);
+        prep(4, bytes.length + 1);
+        putByte(0);
+        space -= bytes.length;
+        System.arraycopy(bytes, 0, buf, space, bytes.length);
+        putInt(bytes.length);
+        return offset();
+    }
+
+    /**
+     * Follow with count addOffset() or putStruct calls, last element first.
+     */
+    void startVector(int elementSize, int count, int alignment) {
+        vectorElements = count;
+        prep(4, elementSize * count);
+        prep(alignment, elementSize * count);
+    }
+
+    int endVector() {
+        putInt(vectorElements);
+        return offset();
+    }
+
+    /**
+     * An element of a vector of offsets.
+     */
+    void addOffset(int object) {
+        prep(4, 0);
+        putInt(offset() - object + 4);
+    }
+
+    /**
+     * A struct of two longs, e.g. Arrow's FieldNode and Buffer.
+     */
+    void putStruct(long first, long second) {
+        prep(8, 16);
+        putLong(second);
+        putLong(first);
+    }
+
+    /**
+     * Arrow's Block: long offset, int metaDataLength, 4 bytes padding,
+     * long bodyLength.
+     */
+    void putBlock(long offset, int metaDataLength, long bodyLength) {
+        prep(8, 24);
+        putLong(bodyLength);
+        pad(4);
+        putInt(metaDataLength);
+        putLong(offset);
+    }
+
+    /**
+     * @return the finished buffer, starting with the offset of root
+     */
+    byte[] finish(int root) {
+        prep(minAlign, 4);
+        addOffset(root);
+        return Arrays.copyOfRange(buf, space, buf.length);
+    }
+
+    private void addShort(int value) {
+        prep(2, 0);
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    private void addInt(int value) {
+        prep(4, 0);
+        putInt(value);
+    }
+
+    /**
+     * Align so that after additional more bytes a value of size bytes is
+     * aligned, and make room for all of it.
+     */
+    private void prep(int size, int additional) {
+        if (size > minAlign) {
+            minAlign = size;
+        }
+        int alignSize = -(offset() + additional) & (size - 1);
+        int needed = alignSize + size + additional;
+        while (space < needed) {
+            byte[] bigger = new byte[buf.length * 2];
+            int used = offset();
+            System.arraycopy(buf, space, bigger, bigger.length - used, used);
+            space += bigger.length - buf.length;
+            buf = bigger;
+        }
+        pad(alignSize);
+    }
+
+    private void pad(int n) {
+        for (int i = 0; i < n; i++) {
+            buf[--space] = 0;
+        }
+    }
+
+    private void putByte(int value) {
+        buf[--space] = (byte) value;
+    }
+
+    private void putInt(int value) {
+        putByte(value >> 24);
+        putByte(value >> 16);
+        putByte(value >> 8);
+        putByte(value);
+    }
+
+    private void putLong(long value) {
+        putInt((int) (value >>> 32));
+        putInt((int) value);
+    }
+
+    private void putIntAt(int index, int value) {
+        buf[index] = (byte) value;
+        buf[index + 1] = (byte) (value >> 8);
+        buf[index + 2] = (byte) (value >> 16);
+        buf[index + 3] = (byte) (value >> 24);
+    }
+}
@@ -0,0 +1,20 @@
+package com.fmaritato.dbutil.text;
+
+/**
+ * Supplies Formatters by the short names used with --formatter. Found with
+ * java.util.ServiceLoader through
+ * META-INF/services/com.fmaritato.dbutil.text.FormatterProvider.
+ */
+public interface FormatterProvider {
+
+    /**
+     * @return the formatter names this provider knows, e.g. "csv"
+     */
+    public String[] getNames();
+
+    /**
+     * @param name one of getNames()
+     * @return a new formatter
+     */
+    public Formatter create(String name);
+}
@@ -0,0 +1,59 @@
+package com.fmaritato.dbutil.text;
+
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.ServiceLoader;
+
+/**
+ * Looks up formatters by the short names registered by FormatterProviders,
+ * falling back to treating the name as a Formatter class name.
+ */
+public class FormatterRegistry {
+
+    private final static Log log =
+            LogFactory.getLog(FormatterRegistry.class);
+
+    public static final String DEFAULT_FORMATTER = "tabular";
+
+    private static Map<String, FormatterProvider> providers;
+
+    private FormatterRegistry() {
+    }
+
+    /**
+     * @param name a registered name (csv, tab, tabular...), a fully
+     *             qualified Formatter class name, or null for the default
+     * @return a new formatter
+     * @throws Exception if the formatter can't be created
+     */
+    public static Formatter create(String name) throws Exception {
+        if (name == null) {
+            name = DEFAULT_FORMATTER;
+        }
+        FormatterProvider provider = getProviders().get(name);
+        if (provider != null) {
+            return provider.create(name);
+        }
+        // assume its a fully qualified formatter name and use reflection.
+        Class classdef = Class.forName(name);
+        return (Formatter) classdef.newInstance();
+    }
+
+    private static synchronized Map<String, FormatterProvider> getProviders() {
+        if (providers == null) {
+            providers = new HashMap<String, FormatterProvider>();
+            for (FormatterProvider provider : ServiceLoader.load(FormatterProvider.class)) {
+                for (String name : provider.getNames()) {
+                    providers.put(name, provider);
+                }
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("formatters: " + providers.keySet());
+            }
+        }
+        return providers;
+    }
+}
@@ -0,0 +1,444 @@
+package com.fmaritato.dbutil.text;
+
+import com.fmaritato.dbutil.DialectRegistry;
+import org.apache.commons.logging.Log;
+import org.apache.commons.logging.LogFactory;
+
+import java.io.Writer;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+/**
+ * INSERT statements for replaying a result into a table, with a COMMIT
+ * every -DInsertFormatter.commit rows (default 10000, 0 for none).
+ * <p/>
+ * -DInsertFormatter.rows rows (default 100) go in one statement, written
+ * the way the target dialect (-DInsertFormatter.dialect, by default the one
+ * of the database being read) takes them:
+ * <ul>
+ * <li>oracle - INSERT ALL INTO ... SELECT * FROM dual; strings are cut into
+ * pieces joined with || to stay under the literal length limit, CLOBs with
+ * to_clob(), binaries with hextoraw() (so at most 2000 bytes)</li>
+ * <li>sqlserver - multi row VALUES, at most 1000 rows, N'' strings, 0x
+ * binaries and ISO 8601 timestamps, in BEGIN TRANSACTION ... COMMIT</li>
+ * <li>sybase - INSERT ... SELECT ... UNION ALL SELECT, 0x binaries, in
+ * BEGIN TRANSACTION ... COMMIT</li>
+ * <li>mysql - multi row VALUES, backslashes doubled (so not for
+ * NO_BACKSLASH_ESCAPES)</li>
+ * <li>generic - multi row VALUES, DATE/TIME/TIMESTAMP and X'' literals</li>
+ * </ul>
+ * The table is -t, or the table all the columns come from. Values are
+ * rendered into the row buffer like the other text formats and CLOBs are
+ * streamed, quoted on the way through. Scripts can be replayed with
+ * --input, in --batch mode for speed.
+ */
+public class InsertFormatter implements Formatter {
+
+    private final static Log log =
+            LogFactory.getLog(InsertFormatter.class);
+
+    public static final String PROP_DIALECT = "InsertFormatter.dialect";
+    public static final String PROP_ROWS = "InsertFormatter.rows";
+    public static final String PROP_COMMIT = "InsertFormatter.commit";
+
+    private static final int NUMBER = 0;
+    private static final int BOOLEAN = 1;
+    private static final int STRING = 2;
+    private static final int CLOB = 3;
+    private static final int BINARY = 4;
+    private static final int DATE = 5;
+    private static final int TIME = 6;
+    private static final int TIMESTAMP = 7;
+
+    /** chars per Oracle string literal piece, 4000 bytes in any character set */
+    private static final int ORACLE_PIECE = 1000;
+    private static final int SQLSERVER_MAX_ROWS = 1000;
+
+    private String dialect = System.getProperty(PROP_DIALECT);
+    private int rows = Integer.getInteger(PROP_ROWS, 100);
+    private int commit = Integer.getInteger(PROP_COMMIT, 10000);
+    private String tableName;
+
+    public String getDialect() {
+        return dialect;
+    }
+
+    /**
+     * @param aValue dialect of the database the script is for, null for
+     *               the one being read
+     */
+    public void setDialect(String aValue) {
+        dialect = aValue;
+    }
+
+    public int getRows() {
+        return rows;
+    }
+
+    public void setRows(int aValue) {
+        rows = Math.max(1, aValue);
+    }
+
+    public int getCommit() {
+        return commit;
+    }
+
+    /**
+     * @param aValue rows between COMMITs, 0 for none
+     */
+    public void setCommit(int aValue) {
+        commit = aValue;
+    }
+
+    @Override
+    public void format(DatabaseMetaData meta, String schema, String table, Writer out) throws Exception {
+        throw new RuntimeException("Not implemented");
+    }
+
+    public void format(ResultSet rs, Writer out) throws Exception {
+        format(rs, out, true);
+    }
+
+    public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
+        ResultSetMetaData meta = rs.getMetaData();
+        String table = tableName != null ? tableName : ColumnRenderer.getTableName(meta);
+        if (table == null) {
+            throw new IllegalArgumentException("insert output needs the table name (-t)");
+        }
+        new Script(dialect != null ? dialect : getDialect(rs), table, meta).write(rs, out);
+    }
+
+    /**
+     * INSERT scripts have no header.
+     */
+    public void format(ResultSetMetaData meta, Writer out) throws Exception {
+    }
+
+    public void setTableName(String tableName) {
+        this.tableName = tableName;
+    }
+
+    private static String getDialect(ResultSet rs) {
+        try {
+            return DialectRegistry.fromProductName(
+                    rs.getStatement().getConnection().getMetaData().getDatabaseProductName());
+        }
+        catch (Exception e) {
+            log.debug("can't tell the dialect, using generic", e);
+            return DialectRegistry.GENERIC_DIALECT;
+        }
+    }
+
+    /**
+     * Quotes string values, cutting Oracle's into pieces as it goes.
+     */
+    private static class Quoter implements ColumnRenderer.Escaper {
+        private final boolean backslash;
+        private final int piece;
+        private final String join;
+        private int count = 0;
+
+        /**
+         * @param backslash double backslashes too
+         * @param piece     chars per literal, 0 for no limit
+         * @param join      what goes between two pieces
+         */
+        Quoter(boolean backslash, int piece, String join) {
+            this.backslash = backslash;
+            this.piece = piece;
+            this.join = join;
+        }
+
+        void reset() {
+            count = 0;
+        }
+
+        public void append(RowBuffer buf, char[] c, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                append(buf, c[i]);
+            }
+        }
+
+        void append(RowBuffer buf, String s) {
+            for (int i = 0, n = s.length(); i < n; i++) {
+                append(buf, s.charAt(i));
+            }
+        }
+
+        private void append(RowBuffer buf, char c) {
+            if (piece > 0 && count++ == piece) {
+                buf.append(join);
+                count = 1;
+            }
+            if (c == '\'' || (backslash && c == '\\')) {
+                buf.append(c);
+            }
+            buf.append(c);
+        }
+    }
+
+    /**
+     * One result written as INSERT statements.
+     */
+    private class Script {
+        private final boolean sqlserver;
+        private final boolean sybase;
+        private final int perStatement;
+        private final String start;
+        private final String separator;
+        private final String end;
+        private final boolean transactions;
+        /** TRUE and FALSE, or 1 and 0 */
+        private final boolean booleans;
+
+        private final ColumnRenderer[] plan;
+        private final int[] kinds;
+        private final String[] prefixes;
+        private final String[] suffixes;
+        private final Quoter[] quoters;
+        /** sqlserver and sybase fractions of a second, digits kept */
+        private final int[] fractions;
+
+        Script(String dialect, String table, ResultSetMetaData meta) throws Exception {
+            boolean oracle = "oracle".equals(dialect);
+            boolean mysql = "mysql".equals(dialect);
+            sqlserver = "sqlserver".equals(dialect);
+            sybase = "sybase".equals(dialect);
+            perStatement = sqlserver ? Math.min(rows, SQLSERVER_MAX_ROWS) : rows;
+            transactions = commit > 0 && (sqlserver || sybase);
+            booleans = !oracle && !sqlserver && !sybase;
+
+            StringBuilder target = new StringBuilder(table).append(" (");
+            for (int i = 1; i <= meta.getColumnCount(); i++) {
+                target.append(i > 1 ? ", " : "").append(meta.getColumnName(i));
+            }
+            target.append(")");
+            String into = "insert into " + target;
+            if (oracle && perStatement > 1) {
+                start = "insert all\ninto " + target + " values (";
+                separator = ")\ninto " + target + " values (";
+                end = ")\nselect * from dual;\n";
+            }
+            else if (sybase && perStatement > 1) {
+                start = into + "\nselect ";
+                separator = "\nunion all select ";
+                end = ";\n";
+            }
+            else {
+                start = into + " values (";
+                separator = "),\n(";
+                end = ");\n";
+            }
+
+            plan = ColumnRenderer.plan(meta);
+            kinds = new int[plan.length];
+            prefixes = new String[plan.length];
+            suffixes = new String[plan.length];
+            quoters = new Quoter[plan.length];
+            fractions = new int[plan.length];
+            for (int i = 0; i < plan.length; i++) {
+                int column = i + 1;
+                kinds[i] = getKind(meta, column, plan[i]);
+                prefixes[i] = "";
+                suffixes[i] = "";
+                switch (kinds[i]) {
+                    case STRING:
+                    case CLOB:
+                        boolean clob = kinds[i] == CLOB;
+                        if (clob) {
+                            // streamed in full, whatever db.lob.maxLength says
+                            plan[i] = new ColumnRenderer.ClobRenderer(column, 0);
+                        }
+                        if (oracle) {
+                            prefixes[i] = clob ? "to_clob('" : "'";
+                            suffixes[i] = clob ? "')" : "'";
+                            quoters[i] = new Quoter(false, ORACLE_PIECE, clob ? "') || to_clob('" : "' || '");
+                        }
+                        else {
+                            prefixes[i] = sqlserver ? "N'" : "'";
+                            suffixes[i] = "'";
+                            quoters[i] = new Quoter(mysql, 0, null);
+                        }
+                        if (clob) {
+                            ((ColumnRenderer.ClobRenderer) plan[i]).setEscaper(quoters[i]);
+                        }
+                        break;
+                    case BINARY:
+                        plan[i] = new ColumnRenderer.BinaryRenderer(column, 0, false);
+                        if (oracle) {
+                            prefixes[i] = "hextoraw('";
+                            suffixes[i] = "')";
+                        }
+                        else if (sqlserver || sybase) {
+                            prefixes[i] = "0x";
+                        }
+                        else {
+                            prefixes[i] = "X'";
+                            suffixes[i] = "'";
+                        }
+                        break;
+                    case DATE:
+                    case TIME:
+                    case TIMESTAMP:
+                        if (oracle || (!mysql && !sqlserver && !sybase)) {
+                            prefixes[i] = kinds[i] == DATE ? "date '" : kinds[i] == TIME ? "time '" : "timestamp '";
+                        }
+                        else {
+                            prefixes[i] = "'";
+                        }
+                        suffixes[i] = "'";
+                        if (kinds[i] == TIMESTAMP && (sqlserver || sybase)) {
+                            String typeName = String.valueOf(meta.getColumnTypeName(column)).toLowerCase();
+                            // datetime has milliseconds, datetime2 100ns
+                            fractions[i] = typeName.startsWith("datetime2") ? 7 : 3;
+                        }
+                        break;
+                }
+            }
+        }
+
+        void write(ResultSet rs, Writer out) throws Exception {
+            RowBuffer buf = new RowBuffer(256);
+            buf.setSink(out);
+            int inStatement = 0;
+            long uncommitted = 0;
+            while (rs.next()) {
+                buf.clear();
+                if (inStatement == 0) {
+                    if (transactions && uncommitted == 0) {
+                        buf.append("begin transaction;\n");
+                    }
+                    buf.append(start);
+                }
+                else {
+                    buf.append(separator);
+                }
+                for (int i = 0; i < plan.length; i++) {
+                    if (i > 0) {
+                        buf.append(", ");
+                    }
+                    appendValue(rs, i, buf);
+                }
+                uncommitted++;
+                if (++inStatement == perStatement) {
+                    buf.append(end);
+                    inStatement = 0;
+                    if (commit > 0 && uncommitted >= commit) {
+                        buf.append("commit;\n");
+                        uncommitted = 0;
+                    }
+                }
+                buf.writeTo(out);
+            }
+            buf.clear();
+            if (inStatement > 0) {
+                buf.append(end);
+            }
+            if (commit > 0 && uncommitted > 0) {
+                buf.append("commit;\n");
+            }
+            buf.writeTo(out);
+            out.flush();
+        }
+
+        private void appendValue(ResultSet rs, int i, RowBuffer buf) throws Exception {
+            int cellStart = buf.length();
+            int kind = kinds[i];
+            buf.append(prefixes[i]);
+            int valueStart = buf.length();
+            if (kind == STRING) {
+                String s = rs.getString(i + 1);
+                if (s == null) {
+                    buf.setLength(cellStart);
+                    buf.append("null");
+                    return;
+                }
+                quoters[i].reset();
+                quoters[i].append(buf, s);
+                buf.append(suffixes[i]);
+                buf.spill();
+                return;
+            }
+            if (kind == CLOB) {
+                quoters[i].reset();
+            }
+            plan[i].render(rs, buf);
+            if (rs.wasNull()) {
+                // nothing was spilled for a null
+                buf.setLength(cellStart);
+                buf.append("null");
+                return;
+            }
+            switch (kind) {
+                case NUMBER:
+                    char last = buf.charAt(buf.length() - 1);
+                    if (last == 'N' || last == 'y') {
+                        // NaN and Infinity have no literals, quoted for the
+                        // databases that convert them from strings
+                        String v = new String(buf.array(), valueStart, buf.length() - valueStart);
+                        buf.setLength(valueStart);
+                        buf.append('\'').append(v).append('\'');
+                    }
+                    break;
+                case BOOLEAN:
+                    if (!booleans) {
+                        boolean b = buf.charAt(valueStart) == 't' || buf.charAt(valueStart) == '1';
+                        buf.setLength(valueStart);
+                        buf.append(b ? '1' : '0');
+                    }
+                    break;
+                case TIMESTAMP:
+                    if (fractions[i] > 0) {
+                        if (sqlserver) {
+                            // yyyy-mm-ddThh:mm:ss reads the same whatever the session's
+                            // date format
+                            buf.array()[valueStart + 10] = 'T';
+                        }
+                        int dot = valueStart + 19;
+                        if (buf.length() > dot + 1 + fractions[i]) {
+                            buf.setLength(dot + 1 + fractions[i]);
+                        }
+                    }
+                    break;
+            }
+            buf.append(suffixes[i]);
+            buf.spill();
+        }
+    }
+
+    private static int getKind(ResultSetMetaData meta, int column, ColumnRenderer renderer)
+            throws Exception {
+        if (renderer instanceof ColumnRenderer.ClobRenderer) {
+            return CLOB;
+        }
+        if (renderer instanceof ColumnRenderer.BinaryRenderer) {
+            return BINARY;
+        }
+        if (renderer instanceof ColumnRenderer.TimestampRenderer) {
+            return TIMESTAMP;
+        }
+        switch (meta.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return NUMBER;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                return BOOLEAN;
+            case Types.DATE:
+                return DATE;
+            case Types.TIME:
+                return TIME;
+            default:
+                return STRING;
+        }
+    }
+}
@@ -0,0 +1,248 @@
+package com.fmaritato.dbutil.text;
+
+import java.io.Writer;
+import java.sql.DatabaseMetaData;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.Types;
+
+/**
+ * JSON Lines: one object per row, keyed by column label.
+ * <p/>
+ * Numbers and booleans are written bare (NaN and the infinities, which JSON
+ * has no numbers for, as strings), timestamps as ISO-8601 strings in the
+ * JVM's time zone, without a zone for plain TIMESTAMP and DATE columns and
+ * with its offset for the ones WITH (LOCAL) TIME ZONE, SQL NULL as null,
+ * binaries (byte[] BIT columns too) as hex or base64 strings (see
+ * {@link ColumnRenderer}) and everything else as a string. The "key": prefixes are built once per result and values are
+ * escaped in place in the row buffer, CLOBs while they are streamed, so
+ * memory per row doesn't grow with the size of the result.
+ */
+public class JsonLinesFormatter implements Formatter {
+
+    private static final int STRING = 0;
+    private static final int NUMBER = 1;
+    private static final int BOOLEAN = 2;
+    private static final int TIMESTAMP = 3;
+    /** a CLOB, escaped while it is streamed */
+    private static final int STREAMED = 4;
+    /** a string that never needs escaping */
+    private static final int RAW = 5;
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+    /** the short escape for each control char, 0 for \\u00XX */
+    private static final char[] ESCAPES = new char[0x20];
+
+    static {
+        ESCAPES['\b'] = 'b';
+        ESCAPES['\t'] = 't';
+        ESCAPES['\n'] = 'n';
+        ESCAPES['\f'] = 'f';
+        ESCAPES['\r'] = 'r';
+    }
+
+    private static final ColumnRenderer.Escaper ESCAPER = new ColumnRenderer.Escaper() {
+        public void append(RowBuffer buf, char[] c, int off, int len) {
+            for (int i = off; i < off + len; i++) {
+                char ch = c[i];
+                if (ch == '"' || ch == '\\') {
+                    buf.append('\\').append(ch);
+                }
+                else if (ch < 0x20) {
+                    if (ESCAPES[ch] != 0) {
+                        buf.append('\\').append(ESCAPES[ch]);
+                    }
+                    else {
+                        buf.append("\\u00").append(HEX[ch >> 4]).append(HEX[ch & 0xf]);
+                    }
+                }
+                else {
+                    buf.append(ch);
+                }
+            }
+        }
+    };
+
+    @Override
+    public void format(DatabaseMetaData meta, String schema, String table, Writer out) throws Exception {
+        throw new RuntimeException("Not implemented");
+    }
+
+    public void format(ResultSet rs, Writer out) throws Exception {
+        format(rs, out, true);
+    }
+
+    public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
+        ResultSetMetaData meta = rs.getMetaData();
+        ColumnRenderer[] plan = ColumnRenderer.plan(meta);
+        int[] kinds = new int[plan.length];
+        char[][] prefixes = new char[plan.length][];
+        RowBuffer buf = new RowBuffer(256);
+        for (int i = 0; i < plan.length; i++) {
+            kinds[i] = getKind(meta, i + 1, plan[i]);
+            if (kinds[i] == STREAMED) {
+                ((ColumnRenderer.ClobRenderer) plan[i]).setEscaper(ESCAPER);
+            }
+            buf.clear();
+            buf.append(i == 0 ? "{\"" : ",\"");
+            int start = buf.length();
+            buf.append(meta.getColumnLabel(i + 1));
+            escape(buf, start);
+            buf.append("\":");
+            prefixes[i] = buf.toString().toCharArray();
+        }
+
+        buf.setSink(out);
+        while (rs.next()) {
+            buf.clear();
+            for (int i = 0; i < plan.length; i++) {
+                buf.append(prefixes[i], 0, prefixes[i].length);
+                int cellStart = buf.length();
+                int kind = kinds[i];
+                boolean quoted = kind != NUMBER && kind != BOOLEAN;
+                if (quoted) {
+                    buf.append('"');
+                }
+                plan[i].render(rs, buf);
+                if (rs.wasNull()) {
+                    // nothing was spilled for a null
+                    buf.setLength(cellStart);
+                    buf.append("null");
+                    continue;
+                }
+                if (kind == NUMBER) {
+                    char last = buf.charAt(buf.length() - 1);
+                    if (last == 'N' || last == 'y') {
+                        // NaN, Infinity
+                        buf.grow(2);
+                        char[] a = buf.array();
+                        System.arraycopy(a, cellStart, a, cellStart + 1, buf.length() - 2 - cellStart);
+                        a[cellStart] = '"';
+                        a[buf.length() - 1] = '"';
+                    }
+                }
+                else if (kind == TIMESTAMP) {
+                    // yyyy-mm-dd hh:mm:ss... to yyyy-mm-ddThh:mm:ss...
+                    int space = cellStart + 11;
+                    if (buf.length() > space && buf.charAt(space) == ' ' &&
+                        buf.charAt(cellStart + 5) == '-') {
+                        buf.array()[space] = 'T';
+                    }
+                }
+                else if (kind == STRING) {
+                    escape(buf, cellStart + 1);
+                }
+                if (quoted) {
+                    buf.append('"');
+                }
+            }
+            if (plan.length == 0) {
+                buf.append('{');
+            }
+            buf.append("}\n");
+            buf.writeTo(out);
+        }
+        out.flush();
+    }
+
+    /**
+     * JSON Lines has no header.
+     */
+    public void format(ResultSetMetaData meta, Writer out) throws Exception {
+    }
+
+    private static int getKind(ResultSetMetaData meta, int column, ColumnRenderer renderer)
+            throws Exception {
+        if (renderer instanceof ColumnRenderer.ClobRenderer) {
+            return STREAMED;
+        }
+        if (renderer instanceof ColumnRenderer.BinaryRenderer) {
+            // hex or base64
+            return RAW;
+        }
+        switch (meta.getColumnType(column)) {
+            case Types.TINYINT:
+            case Types.SMALLINT:
+            case Types.INTEGER:
+            case Types.BIGINT:
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+            case Types.REAL:
+            case Types.FLOAT:
+            case Types.DOUBLE:
+                return NUMBER;
+            case Types.BIT:
+            case Types.BOOLEAN:
+                if ("java.lang.Boolean".equals(ColumnRenderer.getColumnClassName(meta, column))) {
+                    return BOOLEAN;
+                }
+                // BIT(n) read as a number; byte[] ones are binaries above
+                return renderer instanceof ColumnRenderer.LongRenderer ? NUMBER : STRING;
+            case Types.DATE:
+            case Types.TIMESTAMP:
+                return TIMESTAMP;
+            case 2014: // TIMESTAMP_WITH_TIMEZONE
+            case -101: // oracle TIMESTAMPTZ
+            case -102: // oracle TIMESTAMPLTZ
+                if (renderer instanceof ColumnRenderer.TimestampRenderer) {
+                    // read as an instant, so the offset goes with it
+                    ((ColumnRenderer.TimestampRenderer) renderer).setOffset(true);
+                }
+                return TIMESTAMP;
+            default:
+                return STRING;
+        }
+    }
+
+    /**
+     * Escape the string from start to the end of buf in place: one scan, and
+     * for the values that need it, one copy from the back.
+     */
+    private static void escape(RowBuffer buf, int start) {
+        char[] a = buf.array();
+        int end = buf.length();
+        int extra = 0;
+        for (int i = start; i < end; i++) {
+            char c = a[i];
+            if (c == '"' || c == '\\') {
+                extra++;
+            }
+            else if (c < 0x20) {
+                extra += ESCAPES[c] != 0 ? 1 : 5;
+            }
+        }
+        if (extra == 0) {
+            return;
+        }
+        buf.grow(extra);
+        a = buf.array();
+        int to = buf.length() - 1;
+        for (int i = end - 1; i >= start; i--) {
+            char c = a[i];
+            if (c == '"' || c == '\\') {
+                a[to--] = c;
+                a[to--] = '\\';
+            }
+            else if (c < 0x20) {
+                if (ESCAPES[c] != 0) {
+                    a[to--] = ESCAPES[c];
+                }
+                else {
+                    a[to--] = HEX[c & 0xf];
+                    a[to--] = HEX[c >> 4];
+                    a[to--] = '0';
+                    a[to--] = '0';
+                    a[to--] = 'u';
+                }
+                a[to--] = '\\';
+            }
+            else {
+                a[to--] = c;
+            }
+        }
+    }
+
+    public void setTableName(String tableName) {
+        ; //do nothing
+    }
+}
@@ -0,0 +1,193 @@
+package com.fmaritato.dbutil.text;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Reusable character buffer a row is rendered into before it is written.
+ * Numbers are written digit by digit and the array only grows, so
+ * rendering a row doesn't allocate once the buffer is big enough.
+ * <p/>
+ * With a sink set, renderers of long values call {@link #spill} as they go
+ * and the buffer is written out whenever it passes SPILL_SIZE, so a row
+ * with a multi megabyte LOB is never held whole.
+ */
+public class RowBuffer {
+
+    private static final char[] NULL = "null".toCharArray();
+    private static final char[] MIN_LONG = Long.toString(Long.MIN_VALUE).toCharArray();
+
+    public static final int SPILL_SIZE = 64 * 1024;
+
+    private char[] buf;
+    private int length = 0;
+    private Writer sink;
+    /** chars of the current row already written to the sink */
+    private long spilled = 0;
+
+    public RowBuffer(int capacity) {
+        buf = new char[capacity];
+    }
+
+    public int length() {
+        return length;
+    }
+
+    /**
+     * @return chars appended since the last clear(), spilled ones included
+     */
+    public long position() {
+        return spilled + length;
+    }
+
+    public void clear() {
+        length = 0;
+        spilled = 0;
+    }
+
+    /**
+     * Drop what was appended after the first newLength chars.
+     */
+    public void setLength(int newLength) {
+        length = newLength;
+    }
+
+    /**
+     * @param sink where spill() writes to, null to never spill
+     */
+    public void setSink(Writer sink) {
+        this.sink = sink;
+    }
+
+    /**
+     * Write out and drop what is buffered if there is a sink and the buffer
+     * has grown past SPILL_SIZE.
+     */
+    public void spill() throws IOException {
+        if (sink != null && length >= SPILL_SIZE) {
+            sink.write(buf, 0, length);
+            spilled += length;
+            length = 0;
+        }
+    }
+
+    public char charAt(int i) {
+        return buf[i];
+    }
+
+    public char[] array() {
+        return buf;
+    }
+
+    public RowBuffer append(char c) {
+        ensure(1);
+        buf[length++] = c;
+        return this;
+    }
+
+    /**
+     * @param s text, "null" is written for null like StringBuffer does
+     * @return this
+     */
+    public RowBuffer append(String s) {
+        if (s == null) {
+            return append(NULL, 0, NULL.length);
+        }
+        int n = s.length();
+        ensure(n);
+        s.getChars(0, n, buf, length);
+        length += n;
+        return this;
+    }
+
+    public RowBuffer append(char[] c, int off, int len) {
+        ensure(len);
+        System.arraycopy(c, off, buf, length, len);
+        length += len;
+        return this;
+    }
+
+    public RowBuffer appendNull() {
+        return append(NULL, 0, NULL.length);
+    }
+
+    public RowBuffer append(long v) {
+        if (v == Long.MIN_VALUE) {
+            return append(MIN_LONG, 0, MIN_LONG.length);
+        }
+        ensure(20);
+        if (v < 0) {
+            buf[length++] = '-';
+            v = -v;
+        }
+        int start = length;
+        do {
+            buf[length++] = (char) ('0' + (int) (v % 10));
+            v /= 10;
+        } while (v != 0);
+        // digits came out backwards
+        for (int i = start, j = length - 1; i < j; i++, j--) {
+            char c = buf[i];
+            buf[i] = buf[j];
+            buf[j] = c;
+        }
+        return this;
+    }
+
+    /**
+     * Write v with at least width digits, zero padded.
+     */
+    public RowBuffer append(int v, int width) {
+        ensure(width + 11);
+        int start = length;
+        append(v);
+        int digits = length - start;
+        if (digits < width) {
+            int pad = width - digits;
+            System.arraycopy(buf, start, buf, start + pad, digits);
+            for (int i = 0; i < pad; i++) {
+                buf[start + i] = '0';
+            }
+            length += pad;
+        }
+        return this;
+    }
+
+    public RowBuffer pad(char c, int count) {
+        if (count > 0) {
+            ensure(count);
+            for (int i = 0; i < count; i++) {
+                buf[length++] = c;
+            }
+        }
+        return this;
+    }
+
+    /**
+     * Make room for n chars to be filled in through array().
+     *
+     * @return offset of the first of them
+     */
+    public int grow(int n) {
+        ensure(n);
+        int start = length;
+        length += n;
+        return start;
+    }
+
+    public void writeTo(Writer out) throws IOException {
+        out.write(buf, 0, length);
+    }
+
+    public String toString() {
+        return new String(buf, 0, length);
+    }
+
+    private void ensure(int n) {
+        if (length + n > buf.length) {
+            char[] bigger = new char[Math.max(buf.length * 2, length + n)];
+            System.arraycopy(buf, 0, bigger, 0, length);
+            buf = bigger;
+        }
+    }
+}
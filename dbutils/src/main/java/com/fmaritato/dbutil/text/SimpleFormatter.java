@@ -3,7 +3,6 @@ package com.fmaritato.dbutil.text;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.io.Reader;
 import java.io.Writer;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
@@ -51,35 +50,21 @@ public class SimpleFormatter implements Formatter {
         int numberOfColumns = meta.getColumnCount();
         logger.debug("number of columns: " + numberOfColumns);
 
-        StringBuffer buf = new StringBuffer(256);
+        ColumnRenderer[] plan = ColumnRenderer.plan(meta);
+        RowBuffer buf = new RowBuffer(256);
+        buf.setSink(out);
         while (rs.next()) {
-            buf.delete(0, buf.length());
-            for (int i = 1; i < numberOfColumns + 1; i++) {
-                Object o = rs.getObject(i);
-
-                if (o instanceof oracle.sql.CLOB) {
-                    Reader r = ((oracle.sql.CLOB) o).getCharacterStream();
-                    int c;
-                    while ((c = r.read()) > 0) {
-                        buf.append((char) c);
-                    }
-                    r.close();
-                }
-                else if (o instanceof oracle.sql.TIMESTAMP) {
-                    buf.append(((oracle.sql.TIMESTAMP) o).timestampValue().toString());
-                }
-                else {
-                    buf.append(o);
-                }
-
-                if ((i + 1) <= numberOfColumns) {
+            buf.clear();
+            for (int i = 0; i < plan.length; i++) {
+                if (i > 0) {
                     buf.append(delim);
                 }
+                plan[i].render(rs, buf);
             }
-            buf.append("\n");
-            out.write(buf.toString());
-            out.flush();
+            buf.append('\n');
+            buf.writeTo(out);
         }
+        out.flush();
     }
 
     public void format(ResultSetMetaData meta, Writer out) throws Exception {
@@ -3,18 +3,30 @@ package com.fmaritato.dbutil.text;
 import org.apache.commons.logging.Log;
 import org.apache.commons.logging.LogFactory;
 
-import java.io.Reader;
 import java.io.Writer;
 import java.sql.DatabaseMetaData;
 import java.sql.ResultSet;
 import java.sql.ResultSetMetaData;
 
+/**
+ * Fixed width table output. Columns are padded to their declared precision
+ * (capped at 1000), which costs one pass over the result but pads wide
+ * VARCHAR columns with mostly spaces.
+ * <p/>
+ * In two pass mode (-DTabularFormatter.twoPass=true, or the "tabular-fit"
+ * formatter) the rendered rows are spooled to a memory mapped temp file
+ * first and the columns are sized to the widest value actually in them, so
+ * memory use stays flat while the output is as narrow as the data allows.
+ */
 public class TabularFormatter implements Formatter {
 
     private final static Log log =
             LogFactory.getLog(TabularFormatter.class);
 
+    public static final String PROP_TWO_PASS = "TabularFormatter.twoPass";
+
     private String delim = "|";
+    private boolean twoPass = Boolean.getBoolean(PROP_TWO_PASS);
 
     /**
      * Add a maximum column size to avoid OOME's
@@ -24,6 +36,18 @@ public class TabularFormatter implements Formatter {
     public TabularFormatter() {
     }
 
+    public TabularFormatter(boolean twoPass) {
+        this.twoPass = twoPass;
+    }
+
+    public boolean isTwoPass() {
+        return twoPass;
+    }
+
+    public void setTwoPass(boolean aValue) {
+        twoPass = aValue;
+    }
+
     @Override
     public void format(DatabaseMetaData meta, String schema, String table, Writer out) throws Exception {
         throw new RuntimeException("Not implemented");
@@ -35,97 +59,150 @@ public class TabularFormatter implements Formatter {
 
     public void format(ResultSet rs, Writer out, boolean writeHeader) throws Exception {
         ResultSetMetaData meta = rs.getMetaData();
+        String[] names = getColumnNames(meta);
+        ColumnRenderer[] plan = ColumnRenderer.plan(meta);
+        if (twoPass) {
+            formatTwoPass(rs, plan, names, out, writeHeader);
+            return;
+        }
+        int[] widths = getWidths(meta, names);
         if (writeHeader) {
-            format(meta, out);
+            format(names, widths, out);
         }
-        int numberOfColumns = meta.getColumnCount();
 
         int rowCount = 0;
-        StringBuffer buf = new StringBuffer(256);
+        RowBuffer buf = new RowBuffer(256);
+        buf.setSink(out);
         while (rs.next()) {
-            buf.delete(0, buf.length());
-            for (int i = 1; i < numberOfColumns + 1; i++) {
-                int precision = Math.max(meta.getPrecision(i),
-                                         meta.getColumnName(i).length() + 1);
-                precision = Math.min(maxColumnPrecision,
-                                     precision);
-                if (i == 1) {
-                    buf.append(delim).append(" ");
-                }
-                Object o = rs.getObject(i);
-                if (o instanceof oracle.sql.TIMESTAMP) {
-                    buf.append(((oracle.sql.TIMESTAMP) o).timestampValue());
-                }
-                else if (o instanceof oracle.sql.CLOB) {
-                    Reader r = ((oracle.sql.CLOB) o).getCharacterStream();
-                    int c;
-                    while ((c = r.read()) > 0) {
-                        buf.append((char) c);
-                    }
-                    r.close();
-                }
-                else {
+            buf.clear();
+            buf.append(delim).append(' ');
+            for (int i = 0; i < plan.length; i++) {
+                long cellStart = buf.position();
+                plan[i].render(rs, buf);
+                endCell(buf, cellStart, widths[i], i == plan.length - 1);
+            }
+            buf.append('\n');
+            buf.writeTo(out);
+            rowCount++;
+        }
+        writeFooter(out, buf, rowCount);
+    }
 
-                    buf.append(o);
-                }
-                if ((i + 1) <= numberOfColumns) {
-                    for (int j = ("" + o).length(); j < precision; j++) {
-                        buf.append(" ");
-                    }
-                    buf.append(delim).append(" ");
+    /**
+     * First pass renders every cell into the spool and keeps the widest
+     * value per column, the second lays the spooled cells out.
+     */
+    private void formatTwoPass(ResultSet rs, ColumnRenderer[] plan, String[] names,
+                               Writer out, boolean writeHeader) throws Exception {
+        int[] widths = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            widths[i] = names[i].length() + 1;
+        }
+        CharSpool spool = new CharSpool();
+        try {
+            long start = System.currentTimeMillis();
+            int rowCount = 0;
+            RowBuffer cell = new RowBuffer(256);
+            while (rs.next()) {
+                for (int i = 0; i < plan.length; i++) {
+                    cell.clear();
+                    plan[i].render(rs, cell);
+                    widths[i] = Math.max(widths[i], Math.min(cell.length(), maxColumnPrecision));
+                    spool.writeInt(cell.length());
+                    spool.write(cell.array(), 0, cell.length());
                 }
-                else {
-                    for (int j = ("" + o).length(); j < precision; j++) {
-                        buf.append(" ");
-                    }
-                    buf.append(delim);
+                rowCount++;
+            }
+            if (log.isDebugEnabled()) {
+                log.debug("spooled " + rowCount + " rows in " +
+                          (System.currentTimeMillis() - start) + " ms");
+            }
+            spool.rewind();
+
+            if (writeHeader) {
+                format(names, widths, out);
+            }
+            RowBuffer buf = new RowBuffer(256);
+            for (int row = 0; row < rowCount; row++) {
+                buf.clear();
+                buf.append(delim).append(' ');
+                for (int i = 0; i < plan.length; i++) {
+                    long cellStart = buf.position();
+                    spool.read(buf, spool.readInt());
+                    endCell(buf, cellStart, widths[i], i == plan.length - 1);
                 }
+                buf.append('\n');
+                buf.writeTo(out);
             }
-            buf.append("\n");
-            out.write(buf.toString());
-            out.flush();
-            rowCount++;
+            writeFooter(out, buf, rowCount);
+        }
+        finally {
+            spool.close();
         }
+    }
+
+    public void format(ResultSetMetaData meta, Writer out) throws Exception {
+        String[] names = getColumnNames(meta);
+        format(names, getWidths(meta, names), out);
+    }
+
+    private void format(String[] names, int[] widths, Writer out) throws Exception {
+        RowBuffer buf = new RowBuffer(256);
+        buf.append(delim).append(' ');
+        for (int i = 0; i < names.length; i++) {
+            long cellStart = buf.position();
+            buf.append(names[i]);
+            endCell(buf, cellStart, widths[i], i == names.length - 1);
+        }
+        buf.append('\n');
+        writeSeparator(out, buf.length());
+        buf.writeTo(out);
+        writeSeparator(out, buf.length());
+        out.flush();
+    }
+
+    /**
+     * Pad the cell that starts at cellStart and close it.
+     */
+    private void endCell(RowBuffer buf, long cellStart, int width, boolean last) {
+        buf.pad(' ', (int) Math.max(0, width - (buf.position() - cellStart)));
+        buf.append(delim);
+        if (!last) {
+            buf.append(' ');
+        }
+    }
+
+    private void writeFooter(Writer out, RowBuffer buf, int rowCount) throws Exception {
         writeSeparator(out, buf.length());
         out.flush();
 
-        buf.delete(0, buf.length());
+        buf.clear();
         buf.append(rowCount).append(" matching rows\n");
-        out.write(buf.toString());
+        buf.writeTo(out);
         out.flush();
     }
 
-    public void format(ResultSetMetaData meta, Writer out) throws Exception {
-        StringBuffer buf = new StringBuffer(256);
-        int numberOfColumns = meta.getColumnCount();
+    private static String[] getColumnNames(ResultSetMetaData meta) throws Exception {
+        String[] names = new String[meta.getColumnCount()];
+        for (int i = 0; i < names.length; i++) {
+            names[i] = meta.getColumnName(i + 1);
+        }
+        return names;
+    }
 
-        for (int i = 1; i < numberOfColumns + 1; i++) {
-            int precision = Math.max(meta.getPrecision(i),
-                                     meta.getColumnName(i).length() + 1);
-            precision = Math.min(maxColumnPrecision,
+    /**
+     * Declared precision of each column, at least its name plus one and at
+     * most maxColumnPrecision.
+     */
+    private static int[] getWidths(ResultSetMetaData meta, String[] names) throws Exception {
+        int[] widths = new int[names.length];
+        for (int i = 0; i < names.length; i++) {
+            int precision = Math.max(meta.getPrecision(i + 1),
+                                     names[i].length() + 1);
+            widths[i] = Math.min(maxColumnPrecision,
                                  precision);
-            if (i == 1) {
-                buf.append(delim).append(" ");
-            }
-            buf.append(meta.getColumnName(i));
-            if ((i + 1) <= numberOfColumns) {
-                for (int j = meta.getColumnName(i).length(); j < precision; j++) {
-                    buf.append(" ");
-                }
-                buf.append(delim).append(" ");
-            }
-            else {
-                for (int j = meta.getColumnName(i).length(); j < precision; j++) {
-                    buf.append(" ");
-                }
-                buf.append(delim);
-            }
         }
-        buf.append("\n");
-        writeSeparator(out, buf.length());
-        out.write(buf.toString());
-        writeSeparator(out, buf.length());
-        out.flush();
+        return widths;
     }
 
     public void writeSeparator(Writer out, int length) throws Exception {
@@ -134,6 +211,7 @@ public class TabularFormatter implements Formatter {
         }
         out.write("\n");
     }
+
     public void setTableName(String tableName) {
         ; //do nothing
     }
@@ -0,0 +1,425 @@
+package com.fmaritato.dbutil.dump;
+
+import com.fmaritato.dbutil.ConnectionPool;
+import com.fmaritato.dbutil.GenericDBUtil;
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+public class CsvImportTest extends TestCase {
+
+    private File file;
+    private File rejects;
+
+    public CsvImportTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        file = File.createTempFile("import", ".csv");
+        rejects = new File(file.getPath() + ".rejects");
+    }
+
+    protected void tearDown() {
+        file.delete();
+        rejects.delete();
+    }
+
+    /**
+     * Quoted fields keep delimiters, doubled quotes and line ends; an empty
+     * field is null and "" an empty string; CRLF ends a record like LF.
+     */
+    public void testQuoting() throws Exception {
+        write("id,name,note\r\n" +
+              "1,plain,\"a, b\"\r\n" +
+              "2,\"say \"\"hi\"\"\",\"two\nlines\"\n" +
+              "3,\"\",\n" +
+              "\n" +
+              "4,\"crlf\r\ninside\",\\N\r\n" +
+              "5,\u00e9t\u00e9,\"\"\"\"");
+        Database db = new Database(new String[]{"ID", "NAME", "NOTE"},
+                                   new int[]{Types.INTEGER, Types.VARCHAR, Types.VARCHAR});
+        CsvImport csv = newImport(db);
+        csv.setNullText("\\N");
+        String totals = load(csv);
+
+        assertTrue(totals, totals.startsWith("5 rows imported into t, 0 rejected, on 1 connections"));
+        assertEquals("insert into t (id, name, note) values (?, ?, ?)", db.sql);
+        List<Object[]> rows = db.sorted();
+        assertRow(rows.get(0), 1L, "plain", "a, b");
+        assertRow(rows.get(1), 2L, "say \"hi\"", "two\nlines");
+        assertRow(rows.get(2), 3L, "", null);
+        assertRow(rows.get(3), 4L, "crlf\r\ninside", null);
+        assertRow(rows.get(4), 5L, "\u00e9t\u00e9", "\"");
+        assertFalse(rejects.exists());
+    }
+
+    /**
+     * Binary columns are read as hex, with or without 0x.
+     */
+    public void testHex() throws Exception {
+        write("id,data\n" +
+              "1,0x00ff7F\n" +
+              "2,DEADbeef\n" +
+              "3,\n" +
+              "4,0x\n" +
+              "5,abc\n" +
+              "6,0xzz\n");
+        Database db = new Database(new String[]{"ID", "DATA"}, new int[]{Types.INTEGER, Types.VARBINARY});
+        String totals = load(newImport(db));
+
+        assertTrue(totals, totals.startsWith("4 rows imported into t, 2 rejected"));
+        List<Object[]> rows = db.sorted();
+        assertTrue(Arrays.equals(new byte[]{0, -1, 127}, (byte[]) rows.get(0)[1]));
+        assertTrue(Arrays.equals(new byte[]{-34, -83, -66, -17}, (byte[]) rows.get(1)[1]));
+        assertNull(rows.get(2)[1]);
+        assertEquals(0, ((byte[]) rows.get(3)[1]).length);
+        assertEquals("id,data\n5,abc\n6,0xzz\n", read(rejects));
+    }
+
+    /**
+     * Records that don't parse or convert, and the ones the database
+     * refuses, go to the rejects file after the header as they were read;
+     * the rest of their batch still loads.
+     */
+    public void testRejects() throws Exception {
+        write("id,name\n" +
+              "1,one\n" +
+              "2\n" +
+              "3,\"unclosed\" quote\n" +
+              "x,four\n" +
+              "5,refuse\r\n" +
+              "6,six,extra\n" +
+              "7,\"seven\n" +
+              "still seven\"\n" +
+              "8,\"no end");
+        Database db = new Database(new String[]{"ID", "NAME"}, new int[]{Types.BIGINT, Types.VARCHAR});
+        CsvImport csv = newImport(db);
+        csv.setBatchSize(2);
+        String totals = load(csv);
+
+        assertTrue(totals, totals.startsWith("2 rows imported into t, 6 rejected to " + rejects.getPath()));
+        List<Object[]> rows = db.sorted();
+        assertRow(rows.get(0), 1L, "one");
+        assertRow(rows.get(1), 7L, "seven\nstill seven");
+        assertEquals("id,name\n" +
+                     "2\n" +
+                     "3,\"unclosed\" quote\n" +
+                     "x,four\n" +
+                     "5,refuse\r\n" +
+                     "6,six,extra\n" +
+                     "8,\"no end\n", read(rejects));
+    }
+
+    /**
+     * A file big enough for several connections is split on record
+     * boundaries only, never at a newline inside quotes, and every record
+     * is loaded once.
+     */
+    public void testSplit() throws Exception {
+        int count = 120000;
+        StringBuilder csv = new StringBuilder("id,note\n");
+        for (int i = 0; i < count; i++) {
+            // every record has quoted newlines and quotes, one even starts a line
+            csv.append(i).append(",\"line\n\"\"").append(i).append("\"\"\n,\nend\"\n");
+        }
+        write(csv.toString());
+        assertTrue(file.length() > 3 * 1024 * 1024);
+        Database db = new Database(new String[]{"ID", "NOTE"}, new int[]{Types.INTEGER, Types.VARCHAR});
+        CsvImport imp = newImport(db);
+        imp.setThreads(8);
+        imp.setCommitInterval(1000);
+        String totals = load(imp);
+
+        assertTrue(totals, totals.startsWith(count + " rows imported into t, 0 rejected, on 3 connections"));
+        assertEquals(3, db.connections);
+        List<Object[]> rows = db.sorted();
+        assertEquals(count, rows.size());
+        for (int i = 0; i < count; i++) {
+            assertRow(rows.get(i), (long) i, "line\n\"" + i + "\"\n,\nend");
+        }
+    }
+
+    /**
+     * A quote inside an unquoted value is just a char, to the split as to
+     * the parser, so it doesn't put the split out of step with the quoted
+     * newlines after it.
+     */
+    public void testSplitAfterStrayQuote() throws Exception {
+        int count = 150000;
+        StringBuilder csv = new StringBuilder("id,size,note\n");
+        for (int i = 0; i < count; i++) {
+            csv.append(i).append(i == 0 ? ",5\" pipe," : ",,").append("\"line\n").append(i).append("\"\n");
+        }
+        write(csv.toString());
+        assertTrue(file.length() > 2 * 1024 * 1024);
+        Database db = new Database(new String[]{"ID", "SIZE", "NOTE"},
+                                   new int[]{Types.INTEGER, Types.VARCHAR, Types.VARCHAR});
+        CsvImport imp = newImport(db);
+        imp.setThreads(4);
+        String totals = load(imp);
+
+        assertTrue(totals, totals.startsWith(count + " rows imported into t, 0 rejected, on 2 connections"));
+        List<Object[]> rows = db.sorted();
+        assertEquals(count, rows.size());
+        assertRow(rows.get(0), 0L, "5\" pipe", "line\n0");
+        for (int i = 1; i < count; i++) {
+            assertRow(rows.get(i), (long) i, null, "line\n" + i);
+        }
+    }
+
+    /**
+     * A shared pool (the daemon's) keeps its limit, fewer workers run.
+     */
+    public void testSharedPoolLimit() throws Exception {
+        StringBuilder csv = new StringBuilder("id,note\n");
+        int count = 150000;
+        for (int i = 0; i < count; i++) {
+            csv.append(i).append(",\"line ").append(i).append("\"\n");
+        }
+        write(csv.toString());
+        Database db = new Database(new String[]{"ID", "NOTE"}, new int[]{Types.INTEGER, Types.VARCHAR});
+        CsvImport imp = newImport(db);
+        imp.setThreads(4);
+        db.pool.setMaxActive(1);
+        String totals = load(imp);
+
+        assertTrue(totals, totals.startsWith(count + " rows imported into t, 0 rejected, on 1 connections"));
+        assertEquals(1, db.pool.getMaxActive());
+        assertEquals(count, db.sorted().size());
+    }
+
+    private CsvImport newImport(Database db) throws Exception {
+        GenericDBUtil u = new GenericDBUtil();
+        u.setPool(db.pool());
+        CsvImport csv = new CsvImport(u, file.getPath());
+        csv.setTable("t");
+        csv.setHeader(true);
+        csv.setRejectsFile(rejects.getPath());
+        return csv;
+    }
+
+    private static String load(CsvImport csv) throws Exception {
+        StringWriter out = new StringWriter();
+        csv.load(out);
+        return out.toString();
+    }
+
+    private static void assertRow(Object[] row, Object... expected) {
+        assertEquals(Arrays.asList(expected), Arrays.asList(row));
+    }
+
+    private void write(String s) throws IOException {
+        OutputStream out = new FileOutputStream(file);
+        try {
+            out.write(s.getBytes("UTF-8"));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private static String read(File f) throws IOException {
+        byte[] bytes = new byte[(int) f.length()];
+        InputStream in = new FileInputStream(f);
+        try {
+            int n = 0;
+            while (n < bytes.length) {
+                n += in.read(bytes, n, bytes.length - n);
+            }
+        }
+        finally {
+            in.close();
+        }
+        return new String(bytes, "UTF-8");
+    }
+
+    /**
+     * A table behind connections that keep what is bound: executed rows
+     * are kept on commit and dropped on rollback. A row whose text is
+     * "refuse" fails its batch and its own insert.
+     */
+    private static class Database {
+        private final String[] names;
+        private final int[] types;
+        private final List<Object[]> committed = Collections.synchronizedList(new ArrayList<Object[]>());
+        private volatile String sql;
+        private volatile int connections = 0;
+        private ConnectionPool pool;
+
+        Database(String[] names, int[] types) {
+            this.names = names;
+            this.types = types;
+        }
+
+        ConnectionPool pool() throws Exception {
+            // the driver class is only loaded, nothing connects through it
+            pool = new ConnectionPool(CsvImportTest.class.getName(), "jdbc:none", new Properties()) {
+                protected Connection open() {
+                    synchronized (Database.this) {
+                        connections++;
+                    }
+                    return connection();
+                }
+            };
+            return pool;
+        }
+
+        /**
+         * @return the committed rows by their first column
+         */
+        List<Object[]> sorted() {
+            List<Object[]> rows = new ArrayList<Object[]>(committed);
+            Collections.sort(rows, new Comparator<Object[]>() {
+                public int compare(Object[] a, Object[] b) {
+                    return Long.valueOf(((Number) a[0]).longValue()).compareTo(((Number) b[0]).longValue());
+                }
+            });
+            return rows;
+        }
+
+        private Connection connection() {
+            final List<Object[]> batch = new ArrayList<Object[]>();
+            final List<Object[]> executed = new ArrayList<Object[]>();
+            final Object[][] row = {new Object[names.length]};
+            final PreparedStatement stmt = (PreparedStatement) proxy(PreparedStatement.class, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) throws SQLException {
+                    String name = method.getName();
+                    if ("setNull".equals(name)) {
+                        row[0][(Integer) args[0] - 1] = null;
+                    }
+                    else if (name.startsWith("set")) {
+                        row[0][(Integer) args[0] - 1] = args[1];
+                    }
+                    else if ("addBatch".equals(name)) {
+                        batch.add(row[0]);
+                        row[0] = new Object[names.length];
+                    }
+                    else if ("clearBatch".equals(name)) {
+                        batch.clear();
+                    }
+                    else if ("executeBatch".equals(name)) {
+                        for (Object[] r : batch) {
+                            if (Arrays.asList(r).contains("refuse")) {
+                                batch.clear();
+                                throw new SQLException("refused");
+                            }
+                        }
+                        executed.addAll(batch);
+                        batch.clear();
+                        return new int[0];
+                    }
+                    else if ("executeUpdate".equals(name)) {
+                        if (Arrays.asList(row[0]).contains("refuse")) {
+                            throw new SQLException("refused");
+                        }
+                        executed.add(row[0].clone());
+                        return 1;
+                    }
+                    return defaultValue(method);
+                }
+            });
+            return (Connection) proxy(Connection.class, new InvocationHandler() {
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("prepareStatement".equals(name)) {
+                        sql = (String) args[0];
+                        return stmt;
+                    }
+                    if ("getMetaData".equals(name)) {
+                        return proxy(DatabaseMetaData.class, new InvocationHandler() {
+                            public Object invoke(Object proxy, Method method, Object[] args) {
+                                if ("getColumns".equals(method.getName())) {
+                                    return columns();
+                                }
+                                return defaultValue(method);
+                            }
+                        });
+                    }
+                    if ("commit".equals(name)) {
+                        committed.addAll(executed);
+                        executed.clear();
+                    }
+                    else if ("rollback".equals(name)) {
+                        executed.clear();
+                    }
+                    else if ("isValid".equals(name)) {
+                        return true;
+                    }
+                    return defaultValue(method);
+                }
+            });
+        }
+
+        /**
+         * @return the DatabaseMetaData.getColumns() rows of the table
+         */
+        private ResultSet columns() {
+            return (ResultSet) proxy(ResultSet.class, new InvocationHandler() {
+                private int row = -1;
+
+                public Object invoke(Object proxy, Method method, Object[] args) {
+                    String name = method.getName();
+                    if ("next".equals(name)) {
+                        return ++row < names.length;
+                    }
+                    if ("getString".equals(name) && "TABLE_SCHEM".equals(args[0])) {
+                        return "PUBLIC";
+                    }
+                    if ("getString".equals(name) && "TABLE_NAME".equals(args[0])) {
+                        return "T";
+                    }
+                    if ("getString".equals(name) && "COLUMN_NAME".equals(args[0])) {
+                        return names[row];
+                    }
+                    if ("getInt".equals(name) && "DATA_TYPE".equals(args[0])) {
+                        return types[row];
+                    }
+                    if ("close".equals(name)) {
+                        return null;
+                    }
+                    throw new UnsupportedOperationException(name);
+                }
+            });
+        }
+    }
+
+    private static Object proxy(Class<?> type, InvocationHandler handler) {
+        return Proxy.newProxyInstance(CsvImportTest.class.getClassLoader(), new Class[]{type}, handler);
+    }
+
+    private static Object defaultValue(Method method) {
+        Class<?> type = method.getReturnType();
+        if (type == boolean.class) {
+            return false;
+        }
+        if (type == int.class) {
+            return 0;
+        }
+        if (type == long.class) {
+            return 0L;
+        }
+        return null;
+    }
+}
@@ -0,0 +1,103 @@
+package com.fmaritato.dbutil.dump;
+
+import com.fmaritato.dbutil.text.DatasetFormatter;
+import com.fmaritato.dbutil.text.Rows;
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.sql.PreparedStatement;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+public class DatasetLoaderTest extends TestCase {
+
+    public DatasetLoaderTest(String name) {
+        super(name);
+    }
+
+    /**
+     * The RFC 4648 test vectors.
+     */
+    public void testBase64Vectors() throws Exception {
+        String[] encoded = {"", "Zg==", "Zm8=", "Zm9v", "Zm9vYg==", "Zm9vYmE=", "Zm9vYmFy"};
+        String[] decoded = {"", "f", "fo", "foo", "foob", "fooba", "foobar"};
+        for (int i = 0; i < encoded.length; i++) {
+            assertEquals(decoded[i], new String(DatasetLoader.decodeBase64(encoded[i]), "US-ASCII"));
+        }
+    }
+
+    public void testBase64PaddingAndWhitespace() throws Exception {
+        assertEquals("f", new String(DatasetLoader.decodeBase64("Zg"), "US-ASCII"));
+        assertEquals("fo", new String(DatasetLoader.decodeBase64("Zm8"), "US-ASCII"));
+        assertEquals("foobar", new String(DatasetLoader.decodeBase64(" Zm9v\r\n\tYmFy\n"), "US-ASCII"));
+        byte[] all = DatasetLoader.decodeBase64("+/8A");
+        assertTrue(Arrays.equals(new byte[]{(byte) 0xfb, (byte) 0xff, 0}, all));
+    }
+
+    public void testNotBase64() {
+        String[] bad = {"Zm9v!", "Zm9v-_", "Z", "Zm9vY", "Zm\u00e9v"};
+        for (String s : bad) {
+            try {
+                DatasetLoader.decodeBase64(s);
+                fail(s);
+            }
+            catch (IllegalArgumentException e) {
+                // expected
+            }
+        }
+    }
+
+    /**
+     * What the dataset formatter writes for a BLOB, chunk boundaries
+     * included, decodes to the same bytes.
+     */
+    public void testFormatterRoundTrip() throws Exception {
+        Random random = new Random(42);
+        int[] lengths = {0, 1, 2, 3, 4, 5, 255, 8191, 8192, 8193, 100000};
+        Object[][] rows = new Object[lengths.length][];
+        for (int i = 0; i < lengths.length; i++) {
+            byte[] b = new byte[lengths[i]];
+            random.nextBytes(b);
+            rows[i] = new Object[]{i, b};
+        }
+        DatasetFormatter dataset = new DatasetFormatter();
+        dataset.setTableName("t");
+        StringWriter out = new StringWriter();
+        dataset.format(Rows.create(new String[]{"ID", "DATA"}, new int[]{Types.INTEGER, Types.BLOB}, rows), out);
+
+        Matcher m = Pattern.compile("DATA=\"([^\"]*)\"").matcher(out.toString());
+        for (Object[] row : rows) {
+            assertTrue(m.find());
+            assertTrue(Arrays.equals((byte[]) row[1], DatasetLoader.decodeBase64(m.group(1))));
+        }
+        assertFalse(m.find());
+    }
+
+    public void testBind() throws Exception {
+        List<Object> bound = new ArrayList<Object>();
+        PreparedStatement stmt = recorder(bound);
+        DatasetLoader.bind(stmt, 1, Types.BLOB, "Zm9v");
+        assertTrue(Arrays.equals("foo".getBytes("US-ASCII"), (byte[]) bound.get(0)));
+        // not base64, the database gets the string
+        DatasetLoader.bind(stmt, 1, Types.BLOB, "foo!");
+        assertEquals("foo!", bound.get(1));
+    }
+
+    private static PreparedStatement recorder(final List<Object> bound) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                DatasetLoaderTest.class.getClassLoader(), new Class[]{PreparedStatement.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        bound.add(args[1]);
+                        return null;
+                    }
+                });
+    }
+}
@@ -0,0 +1,267 @@
+package com.fmaritato.dbutil.dump;
+
+import com.fmaritato.dbutil.ConnectionPool;
+import com.fmaritato.dbutil.GenericDBUtil;
+import com.fmaritato.dbutil.sink.OutputSink;
+import com.fmaritato.dbutil.text.BinaryFormatter;
+import com.fmaritato.dbutil.text.Rows;
+import junit.framework.TestCase;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.StringWriter;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.ResultSetMetaData;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Properties;
+
+public class DumpFormatTest extends TestCase {
+
+    public DumpFormatTest(String name) {
+        super(name);
+    }
+
+    public void testVarint() {
+        int[] values = {0, 1, 127, 128, 300, 16383, 16384, Integer.MAX_VALUE, -1, Integer.MIN_VALUE};
+        int[] sizes = {1, 1, 1, 2, 2, 2, 3, 5, 5, 5};
+        for (int i = 0; i < values.length; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            DumpFormat.putVarint(buf, values[i]);
+            assertEquals("size of " + values[i], sizes[i], buf.position());
+            buf.flip();
+            assertEquals(values[i], DumpFormat.getVarint(buf));
+            assertFalse(buf.hasRemaining());
+        }
+    }
+
+    public void testZigzag() {
+        int[] values = {0, -1, 1, -2, 63, -64, 64, -65, Integer.MAX_VALUE, Integer.MIN_VALUE};
+        int[] sizes = {1, 1, 1, 1, 1, 1, 2, 2, 5, 5};
+        for (int i = 0; i < values.length; i++) {
+            ByteBuffer buf = ByteBuffer.allocate(8);
+            DumpFormat.putZigzag(buf, values[i]);
+            assertEquals("size of " + values[i], sizes[i], buf.position());
+            buf.flip();
+            assertEquals(values[i], DumpFormat.getZigzag(buf));
+        }
+    }
+
+    /**
+     * The chars are encoded like DataOutput.writeUTF does: NUL as two bytes
+     * and surrogates one at a time, so unpaired ones survive too.
+     */
+    public void testModifiedUtf8() throws Exception {
+        String s = "a\u0000\u007f\u0080\u07ff\u0800\uffff\ud83d\ude00\udc00\ud800x";
+        ByteBuffer buf = ByteBuffer.allocate(s.length() * 3);
+        DumpFormat.putChars(buf, s);
+        buf.flip();
+
+        ByteArrayOutputStream reference = new ByteArrayOutputStream();
+        new DataOutputStream(reference).writeUTF(s);
+        byte[] expected = Arrays.copyOfRange(reference.toByteArray(), 2, reference.size());
+        byte[] actual = new byte[buf.remaining()];
+        buf.duplicate().get(actual);
+        assertTrue(Arrays.equals(expected, actual));
+
+        // scratch space too small is replaced, one big enough is used
+        assertEquals(s, DumpFormat.getChars(buf.duplicate(), s.length(), new char[1]));
+        assertEquals(s, DumpFormat.getChars(buf, s.length(), new char[64]));
+        assertFalse(buf.hasRemaining());
+    }
+
+    public void testStrings() {
+        ByteBuffer buf = ByteBuffer.allocate(4);
+        buf = DumpFormat.putString(buf, null);
+        buf = DumpFormat.putString(buf, "");
+        buf = DumpFormat.putString(buf, "longer than the buffer \u00e9");
+        buf.flip();
+        assertNull(DumpFormat.getString(buf, null));
+        assertEquals("", DumpFormat.getString(buf, null));
+        assertEquals("longer than the buffer \u00e9", DumpFormat.getString(buf, null));
+        assertFalse(buf.hasRemaining());
+    }
+
+    public void testHeader() {
+        DumpFormat.Header header = new DumpFormat.Header();
+        header.table = "orders";
+        DumpFormat.Column c = new DumpFormat.Column();
+        c.name = "AMOUNT";
+        c.typeName = "NUMBER";
+        c.jdbcType = Types.NUMERIC;
+        c.type = DumpFormat.DECIMAL;
+        c.precision = 12;
+        c.scale = -2;
+        c.nullable = true;
+        header.columns.add(c);
+
+        ByteBuffer buf = header.encode();
+        assertEquals(buf.limit() - DumpFormat.MAGIC.length - 4, buf.getInt(DumpFormat.MAGIC.length));
+        DumpFormat.Header decoded = DumpFormat.Header.decode(buf);
+        assertFalse(buf.hasRemaining());
+        assertEquals("orders", decoded.table);
+        assertEquals(1, decoded.columns.size());
+        DumpFormat.Column d = decoded.columns.get(0);
+        assertEquals("AMOUNT", d.name);
+        assertEquals("NUMBER", d.typeName);
+        assertEquals(Types.NUMERIC, d.jdbcType);
+        assertEquals(DumpFormat.DECIMAL, d.type);
+        assertEquals(12, d.precision);
+        assertEquals(-2, d.scale);
+        assertTrue(d.nullable);
+
+        buf.rewind();
+        buf.put(0, (byte) 'X');
+        try {
+            DumpFormat.Header.decode(buf);
+            fail("bad magic");
+        }
+        catch (IllegalArgumentException e) {
+            // expected
+        }
+    }
+
+    /**
+     * MySQL's unsigned INT and BIGINT don't fit the JDBC type's Java type,
+     * the driver says so with the column class.
+     */
+    public void testUnsignedTypes() throws Exception {
+        ResultSetMetaData meta = Rows.create(
+                new String[]{"I", "UI", "L", "UL", "B", "BITS"},
+                new int[]{Types.INTEGER, Types.INTEGER, Types.BIGINT, Types.BIGINT, Types.BIT, Types.BIT},
+                new Object[][]{{1, 4294967295L, 1L, new BigInteger("18446744073709551615"), true, new byte[]{1}}})
+                .getMetaData();
+        int[] expected = {DumpFormat.INT, DumpFormat.LONG, DumpFormat.LONG, DumpFormat.DECIMAL,
+                          DumpFormat.BOOLEAN, DumpFormat.BYTES};
+        for (int i = 0; i < expected.length; i++) {
+            assertEquals(meta.getColumnName(i + 1), expected[i], DumpFormat.getType(meta, i + 1));
+        }
+    }
+
+    /**
+     * Rows dumped by the binary formatter come back the same through
+     * Restore, in several blocks, compressed or not.
+     */
+    public void testFormatterToRestore() throws Exception {
+        String[] names = {"B", "I", "L", "D", "N", "S", "BIN", "DT", "TS"};
+        int[] types = {Types.BOOLEAN, Types.INTEGER, Types.BIGINT, Types.DOUBLE, Types.DECIMAL,
+                       Types.VARCHAR, Types.VARBINARY, Types.DATE, Types.TIMESTAMP};
+        Timestamp ts = Timestamp.valueOf("2021-06-30 12:34:56.123456789");
+        List<Object[]> rows = new ArrayList<Object[]>();
+        for (int i = 0; i < 500; i++) {
+            rows.add(new Object[]{i % 2 == 0, i, -1L << (i % 63), i / 3d,
+                                  new BigDecimal("-12345678901234567890.5").movePointLeft(i % 7),
+                                  "row \u00e9\u0000\ud83d\ude00 " + i, new byte[]{(byte) i, 0, -1},
+                                  new Date(86400000L * i), ts});
+        }
+        // a row of nulls, and a negative scale
+        rows.add(new Object[names.length]);
+        rows.add(new Object[]{true, 0, 0L, 0d, new BigDecimal("1E+5"), "", new byte[0], new Date(0), ts});
+
+        for (int level = 0; level <= 1; level++) {
+            File file = File.createTempFile("dump", ".bin");
+            try {
+                BinaryFormatter binary = new BinaryFormatter();
+                binary.setBlockSize(1024);
+                binary.setLevel(level);
+                binary.setTableName("t");
+                OutputSink out = new OutputSink(file.getPath(), "none", 0, 0);
+                binary.format(Rows.create(names, types, rows.toArray(new Object[rows.size()][])), out);
+                out.close();
+
+                List<Object[]> restored = restore(file);
+                assertEquals(rows.size(), restored.size());
+                for (int i = 0; i < rows.size(); i++) {
+                    assertRow(i, rows.get(i), restored.get(i));
+                }
+            }
+            finally {
+                file.delete();
+            }
+        }
+    }
+
+    private static void assertRow(int i, Object[] expected, Object[] actual) {
+        for (int j = 0; j < expected.length; j++) {
+            String at = "row " + i + " column " + j;
+            if (expected[j] instanceof byte[]) {
+                assertTrue(at, Arrays.equals((byte[]) expected[j], (byte[]) actual[j]));
+            }
+            else if (expected[j] instanceof Timestamp) {
+                assertEquals(at, expected[j], actual[j]);
+                assertEquals(at, ((Timestamp) expected[j]).getNanos(), ((Timestamp) actual[j]).getNanos());
+            }
+            else {
+                assertEquals(at, expected[j], actual[j]);
+            }
+        }
+    }
+
+    /**
+     * Run a Restore against a connection that records what is bound.
+     */
+    private static List<Object[]> restore(File file) throws Exception {
+        final List<Object[]> rows = new ArrayList<Object[]>();
+        final Connection c = (Connection) Proxy.newProxyInstance(
+                DumpFormatTest.class.getClassLoader(), new Class[]{Connection.class}, new InvocationHandler() {
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        if ("prepareStatement".equals(method.getName())) {
+                            assertEquals("insert into t (B, I, L, D, N, S, BIN, DT, TS) " +
+                                         "values (?, ?, ?, ?, ?, ?, ?, ?, ?)", args[0]);
+                            return recorder(rows, 9);
+                        }
+                        if ("isValid".equals(method.getName())) {
+                            return true;
+                        }
+                        // setAutoCommit, commit, rollback, close
+                        return method.getReturnType() == boolean.class ? (Object) false : null;
+                    }
+                });
+        GenericDBUtil u = new GenericDBUtil();
+        // the driver class is only loaded, nothing connects through it
+        u.setPool(new ConnectionPool(DumpFormatTest.class.getName(), "jdbc:none", new Properties()) {
+            protected Connection open() {
+                return c;
+            }
+        });
+        new Restore(u, file.getPath()).restore(new StringWriter());
+        return rows;
+    }
+
+    private static PreparedStatement recorder(final List<Object[]> rows, final int columns) {
+        return (PreparedStatement) Proxy.newProxyInstance(
+                DumpFormatTest.class.getClassLoader(), new Class[]{PreparedStatement.class}, new InvocationHandler() {
+                    private Object[] row = new Object[columns];
+
+                    public Object invoke(Object proxy, Method method, Object[] args) {
+                        String name = method.getName();
+                        if ("setNull".equals(name)) {
+                            row[(Integer) args[0] - 1] = null;
+                        }
+                        else if (name.startsWith("set")) {
+                            row[(Integer) args[0] - 1] = args[1];
+                        }
+                        else if ("addBatch".equals(name)) {
+                            rows.add(row);
+                            row = new Object[columns];
+                        }
+                        else if ("executeBatch".equals(name)) {
+                            return new int[0];
+                        }
+                        return null;
+                    }
+                });
+    }
+}
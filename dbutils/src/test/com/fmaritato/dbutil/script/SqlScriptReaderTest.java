@@ -0,0 +1,147 @@
+package com.fmaritato.dbutil.script;
+
+import junit.framework.TestCase;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.List;
+
+public class SqlScriptReaderTest extends TestCase {
+
+    private File script;
+
+    public SqlScriptReaderTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        script = File.createTempFile("script", ".sql");
+    }
+
+    protected void tearDown() throws Exception {
+        script.delete();
+        super.tearDown();
+    }
+
+    public void testSemicolonsInQuotesAndComments() throws Exception {
+        List<String> sql = split("select 'a;b', \"c;d\" from t;\n" +
+                                 "-- not; a statement\n" +
+                                 "/* nor; this */\n" +
+                                 "select 'it''s;' from t;\n" +
+                                 "select /*+ full(t) */ x -- tail;\n" +
+                                 "from t;\n");
+        assertEquals(3, sql.size());
+        assertEquals("select 'a;b', \"c;d\" from t", sql.get(0));
+        assertEquals("select 'it''s;' from t", sql.get(1));
+        assertEquals("select /*+ full(t) */ x -- tail;\nfrom t", sql.get(2));
+    }
+
+    public void testDivisionAndMinusAreNotComments() throws Exception {
+        List<String> sql = split("select 4/2, 3-1 from t;select 1 -");
+        assertEquals(2, sql.size());
+        assertEquals("select 4/2, 3-1 from t", sql.get(0));
+        assertEquals("select 1 -", sql.get(1));
+    }
+
+    public void testBlocksEndAtSlash() throws Exception {
+        List<String> sql = split("create or replace procedure p as\n" +
+                                 "begin\n" +
+                                 "  null;\n" +
+                                 "end;\n" +
+                                 "/\n" +
+                                 "begin transaction;\n" +
+                                 "select 1\n" +
+                                 "go\n");
+        assertEquals(3, sql.size());
+        assertEquals("create or replace procedure p as\nbegin\n  null;\nend;", sql.get(0));
+        assertEquals("begin transaction", sql.get(1));
+        assertEquals("select 1", sql.get(2));
+    }
+
+    public void testBarrier() throws Exception {
+        write("insert into a values (1);\n--@barrier\ninsert into b values (2);\n", "UTF-8");
+        SqlScriptReader reader = new SqlScriptReader(script.getPath());
+        try {
+            ScriptStatement first = reader.next();
+            assertEquals("insert into a values (1)", first.getSql());
+            assertEquals(1, first.getLine());
+            assertTrue(reader.next().isBarrier());
+            ScriptStatement second = reader.next();
+            assertEquals("insert into b values (2)", second.getSql());
+            assertEquals(2, second.getNumber());
+            assertEquals(3, second.getLine());
+            assertNull(reader.next());
+        }
+        finally {
+            reader.close();
+        }
+    }
+
+    /**
+     * Every window size from 4 bytes up cuts the script somewhere else,
+     * through quotes, comments and multi byte characters alike.
+     */
+    public void testWindowBoundaries() throws Exception {
+        String text = "insert into t values ('caf\u00e9; \u20ac', \"\u00fc;\");\n" +
+                      "-- \u00e9t\u00e9; comment\n" +
+                      "insert into t values ('\ud83d\ude00;x') /* \u4e2d; */;\n" +
+                      "begin\n  x := '\u00e9';\nend;\n/\n";
+        write(text, "UTF-8");
+        List<String> expected = read(Integer.MAX_VALUE);
+        assertEquals(3, expected.size());
+        assertEquals("insert into t values ('caf\u00e9; \u20ac', \"\u00fc;\")", expected.get(0));
+        assertEquals("insert into t values ('\ud83d\ude00;x') /* \u4e2d; */", expected.get(1));
+        int length = (int) script.length();
+        for (int window = 4; window <= length; window++) {
+            assertEquals("window of " + window, expected, read(window));
+        }
+    }
+
+    public void testStatementLongerThanAChunk() throws Exception {
+        StringBuilder values = new StringBuilder();
+        while (values.length() < 200 * 1024) {
+            values.append("'x;\u00e9', ");
+        }
+        String big = "insert into t values (" + values + "1)";
+        List<String> sql = split(big + ";\nselect 1;\n");
+        assertEquals(2, sql.size());
+        assertEquals(big, sql.get(0));
+        assertEquals("select 1", sql.get(1));
+    }
+
+    private List<String> split(String text) throws IOException {
+        write(text, "UTF-8");
+        return read(Integer.MAX_VALUE);
+    }
+
+    private void write(String text, String encoding) throws IOException {
+        OutputStream out = new FileOutputStream(script);
+        try {
+            out.write(text.getBytes(encoding));
+        }
+        finally {
+            out.close();
+        }
+    }
+
+    private List<String> read(int windowSize) throws IOException {
+        List<String> sql = new ArrayList<String>();
+        SqlScriptReader reader = new SqlScriptReader(script.getPath(), windowSize);
+        try {
+            ScriptStatement s;
+            while ((s = reader.next()) != null) {
+                if (!s.isBarrier()) {
+                    sql.add(s.getSql());
+                }
+            }
+        }
+        finally {
+            reader.close();
+        }
+        return sql;
+    }
+}
@@ -0,0 +1,316 @@
+package com.fmaritato.dbutil.text;
+
+import com.fmaritato.dbutil.sink.OutputSink;
+import junit.framework.TestCase;
+import org.apache.arrow.flatbuf.Block;
+import org.apache.arrow.flatbuf.Decimal;
+import org.apache.arrow.flatbuf.Field;
+import org.apache.arrow.flatbuf.FieldNode;
+import org.apache.arrow.flatbuf.FloatingPoint;
+import org.apache.arrow.flatbuf.Footer;
+import org.apache.arrow.flatbuf.Int;
+import org.apache.arrow.flatbuf.Message;
+import org.apache.arrow.flatbuf.MessageHeader;
+import org.apache.arrow.flatbuf.MetadataVersion;
+import org.apache.arrow.flatbuf.Precision;
+import org.apache.arrow.flatbuf.RecordBatch;
+import org.apache.arrow.flatbuf.Schema;
+import org.apache.arrow.flatbuf.TimeUnit;
+import org.apache.arrow.flatbuf.Timestamp;
+import org.apache.arrow.flatbuf.Type;
+
+import java.io.ByteArrayOutputStream;
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.channels.Channels;
+import java.sql.ResultSet;
+import java.sql.Types;
+import java.util.TimeZone;
+
+/**
+ * Reads the output back with Arrow's own generated flatbuffer classes
+ * (org.apache.arrow:arrow-format), so the metadata is checked against the
+ * real schema and not against our FlatBufferBuilder.
+ */
+public class ArrowFormatterTest extends TestCase {
+
+    private static final String[] NAMES = {"ID", "NAME", "PRICE", "RATIO", "FLAG", "AT"};
+    private static final int[] TYPES = {Types.INTEGER, Types.VARCHAR, Types.DECIMAL,
+                                        Types.DOUBLE, Types.BOOLEAN, Types.TIMESTAMP};
+    private static final String ETE = "\u00e9t\u00e9";
+
+    private TimeZone zone;
+
+    public ArrowFormatterTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() throws Exception {
+        super.setUp();
+        // timestamps are written as wall clock time
+        zone = TimeZone.getDefault();
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+    }
+
+    protected void tearDown() throws Exception {
+        TimeZone.setDefault(zone);
+        super.tearDown();
+    }
+
+    public void testStream() throws Exception {
+        ByteBuffer in = format(false);
+
+        Message message = readMessage(in);
+        assertEquals(MetadataVersion.V5, message.version());
+        assertEquals(MessageHeader.Schema, message.headerType());
+        assertEquals(0, message.bodyLength());
+        checkSchema((Schema) message.header(new Schema()));
+
+        message = readMessage(in);
+        assertEquals(MessageHeader.RecordBatch, message.headerType());
+        checkFirstBatch((RecordBatch) message.header(new RecordBatch()), readBody(in, message));
+
+        message = readMessage(in);
+        assertEquals(MessageHeader.RecordBatch, message.headerType());
+        checkSecondBatch((RecordBatch) message.header(new RecordBatch()), readBody(in, message));
+
+        // end of stream
+        assertEquals(-1, in.getInt());
+        assertEquals(0, in.getInt());
+        assertFalse(in.hasRemaining());
+    }
+
+    public void testFile() throws Exception {
+        ByteBuffer in = format(true);
+        byte[] magic = "ARROW1".getBytes("US-ASCII");
+        for (int i = 0; i < magic.length; i++) {
+            assertEquals(magic[i], in.get(i));
+            assertEquals(magic[i], in.get(in.limit() - magic.length + i));
+        }
+
+        int footerLength = in.getInt(in.limit() - magic.length - 4);
+        ByteBuffer footerBytes = slice(in, in.limit() - magic.length - 4 - footerLength, footerLength);
+        Footer footer = Footer.getRootAsFooter(footerBytes);
+        assertEquals(MetadataVersion.V5, footer.version());
+        checkSchema(footer.schema());
+        assertEquals(0, footer.dictionariesLength());
+        assertEquals(2, footer.recordBatchesLength());
+
+        // the blocks point at the batch messages
+        for (int i = 0; i < 2; i++) {
+            Block block = footer.recordBatches(i);
+            in.position((int) block.offset());
+            Message message = readMessage(in);
+            assertEquals(block.offset() + block.metaDataLength(), in.position());
+            assertEquals(block.bodyLength(), message.bodyLength());
+            RecordBatch batch = (RecordBatch) message.header(new RecordBatch());
+            if (i == 0) {
+                checkFirstBatch(batch, readBody(in, message));
+            }
+            else {
+                checkSecondBatch(batch, readBody(in, message));
+            }
+        }
+    }
+
+    /**
+     * MySQL's unsigned integers are read as the next bigger Java type, and
+     * get the vector that holds it.
+     */
+    public void testUnsigned() throws Exception {
+        ResultSet rs = Rows.create(new String[]{"S", "US", "UI", "UL"},
+                                   new int[]{Types.SMALLINT, Types.SMALLINT, Types.INTEGER, Types.BIGINT},
+                                   new Object[][]{{(short) -1, 65535, 4294967295L,
+                                                   new BigInteger("18446744073709551615")}});
+        ByteBuffer in = format(rs, false);
+        Schema schema = (Schema) readMessage(in).header(new Schema());
+        int[] widths = {16, 32, 64};
+        for (int i = 0; i < widths.length; i++) {
+            assertEquals(Type.Int, schema.fields(i).typeType());
+            assertEquals(widths[i], ((Int) schema.fields(i).type(new Int())).bitWidth());
+        }
+        assertEquals(Type.Decimal, schema.fields(3).typeType());
+        Decimal ul = (Decimal) schema.fields(3).type(new Decimal());
+        assertEquals(20, ul.precision());
+        assertEquals(0, ul.scale());
+
+        Message message = readMessage(in);
+        RecordBatch batch = (RecordBatch) message.header(new RecordBatch());
+        ByteBuffer body = readBody(in, message);
+        assertEquals(-1, buffer(batch, body, 1).getShort(0));
+        assertEquals(65535, buffer(batch, body, 3).getInt(0));
+        assertEquals(4294967295L, buffer(batch, body, 5).getLong(0));
+        assertEquals(new BigDecimal("18446744073709551615"), decimal(buffer(batch, body, 7), 0, 0));
+    }
+
+    private ByteBuffer format(boolean file) throws Exception {
+        return format(Rows.create(NAMES, TYPES, new Object[][]{
+                {1, "a", new BigDecimal("12.5"), 0.5d, true, java.sql.Timestamp.valueOf("2020-01-02 03:04:05.123456")},
+                {2, null, new BigDecimal("-1"), 1.5d, false, java.sql.Timestamp.valueOf("1969-12-31 23:59:59.5")},
+                {3, ETE, null, -2d, true, null}}), file);
+    }
+
+    private ByteBuffer format(ResultSet rs, boolean file) throws Exception {
+        ArrowFormatter arrow = new ArrowFormatter(file);
+        arrow.setBatchSize(2);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+        OutputSink out = new OutputSink(Channels.newChannel(bytes));
+        arrow.format(rs, out);
+        out.close();
+        return ByteBuffer.wrap(bytes.toByteArray()).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    private static void checkSchema(Schema schema) {
+        assertEquals(NAMES.length, schema.fieldsLength());
+        for (int i = 0; i < NAMES.length; i++) {
+            Field field = schema.fields(i);
+            assertEquals(NAMES[i], field.name());
+            assertTrue(field.nullable());
+            assertEquals(0, field.childrenLength());
+        }
+
+        assertEquals(Type.Int, schema.fields(0).typeType());
+        Int id = (Int) schema.fields(0).type(new Int());
+        assertEquals(32, id.bitWidth());
+        assertTrue(id.isSigned());
+
+        assertEquals(Type.Utf8, schema.fields(1).typeType());
+
+        assertEquals(Type.Decimal, schema.fields(2).typeType());
+        Decimal price = (Decimal) schema.fields(2).type(new Decimal());
+        assertEquals(38, price.precision());
+        assertEquals(10, price.scale());
+        assertEquals(128, price.bitWidth());
+
+        assertEquals(Type.FloatingPoint, schema.fields(3).typeType());
+        assertEquals(Precision.DOUBLE, ((FloatingPoint) schema.fields(3).type(new FloatingPoint())).precision());
+
+        assertEquals(Type.Bool, schema.fields(4).typeType());
+
+        assertEquals(Type.Timestamp, schema.fields(5).typeType());
+        Timestamp at = (Timestamp) schema.fields(5).type(new Timestamp());
+        assertEquals(TimeUnit.MICROSECOND, at.unit());
+        assertNull(at.timezone());
+    }
+
+    private static void checkFirstBatch(RecordBatch batch, ByteBuffer body) {
+        assertEquals(2, batch.length());
+        checkLayout(batch, body, new int[]{0, 1, 0, 0, 0, 0});
+
+        ByteBuffer ids = buffer(batch, body, 1);
+        assertEquals(1, ids.getInt(0));
+        assertEquals(2, ids.getInt(4));
+
+        // NAME: "a", null
+        assertEquals(1, buffer(batch, body, 2).get(0));
+        ByteBuffer offsets = buffer(batch, body, 3);
+        assertEquals(0, offsets.getInt(0));
+        assertEquals(1, offsets.getInt(4));
+        assertEquals(1, offsets.getInt(8));
+        assertEquals('a', buffer(batch, body, 4).get(0));
+
+        ByteBuffer prices = buffer(batch, body, 6);
+        assertEquals(new BigDecimal("12.5000000000"), decimal(prices, 0, 10));
+        assertEquals(new BigDecimal("-1.0000000000"), decimal(prices, 1, 10));
+
+        ByteBuffer ratios = buffer(batch, body, 8);
+        assertEquals(0.5d, ratios.getDouble(0), 0d);
+        assertEquals(1.5d, ratios.getDouble(8), 0d);
+
+        // true, false
+        assertEquals(1, buffer(batch, body, 10).get(0));
+
+        ByteBuffer at = buffer(batch, body, 12);
+        assertEquals(1577934245123456L, at.getLong(0));
+        assertEquals(-500000L, at.getLong(8));
+    }
+
+    private static void checkSecondBatch(RecordBatch batch, ByteBuffer body) {
+        assertEquals(1, batch.length());
+        checkLayout(batch, body, new int[]{0, 0, 1, 0, 0, 1});
+
+        assertEquals(3, buffer(batch, body, 1).getInt(0));
+
+        ByteBuffer offsets = buffer(batch, body, 3);
+        assertEquals(0, offsets.getInt(0));
+        int end = offsets.getInt(4);
+        ByteBuffer data = buffer(batch, body, 4);
+        assertEquals(end, data.remaining());
+        byte[] name = new byte[end];
+        data.get(name);
+        assertEquals(ETE, new String(name, java.nio.charset.Charset.forName("UTF-8")));
+
+        // PRICE and AT are null
+        assertEquals(0, buffer(batch, body, 5).get(0) & 1);
+        assertEquals(0, buffer(batch, body, 11).get(0) & 1);
+
+        assertEquals(-2d, buffer(batch, body, 8).getDouble(0), 0d);
+        assertEquals(1, buffer(batch, body, 10).get(0));
+    }
+
+    /**
+     * One node per column, two buffers per column and three for Utf8, all
+     * 8 byte aligned inside the body; the validity bitmap is left out of
+     * columns without nulls.
+     */
+    private static void checkLayout(RecordBatch batch, ByteBuffer body, int[] nullCounts) {
+        assertEquals(NAMES.length, batch.nodesLength());
+        for (int i = 0; i < NAMES.length; i++) {
+            FieldNode node = batch.nodes(i);
+            assertEquals(batch.length(), node.length());
+            assertEquals(nullCounts[i], node.nullCount());
+        }
+        assertEquals(13, batch.buffersLength());
+        int[] validity = {0, 2, 5, 7, 9, 11};
+        for (int i = 0; i < validity.length; i++) {
+            long length = batch.buffers(validity[i]).length();
+            assertEquals(nullCounts[i] == 0 ? 0 : (batch.length() + 7) / 8, length);
+        }
+        for (int i = 0; i < batch.buffersLength(); i++) {
+            long offset = batch.buffers(i).offset();
+            assertEquals(0, offset % 8);
+            assertTrue(offset + batch.buffers(i).length() <= body.limit());
+        }
+    }
+
+    /**
+     * Continuation marker, metadata length, metadata.
+     */
+    private static Message readMessage(ByteBuffer in) {
+        assertEquals(-1, in.getInt());
+        int length = in.getInt();
+        assertEquals(0, length % 8);
+        Message message = Message.getRootAsMessage(slice(in, in.position(), length));
+        in.position(in.position() + length);
+        return message;
+    }
+
+    private static ByteBuffer readBody(ByteBuffer in, Message message) {
+        ByteBuffer body = slice(in, in.position(), (int) message.bodyLength());
+        in.position(in.position() + (int) message.bodyLength());
+        return body;
+    }
+
+    private static ByteBuffer buffer(RecordBatch batch, ByteBuffer body, int i) {
+        return slice(body, (int) batch.buffers(i).offset(), (int) batch.buffers(i).length());
+    }
+
+    private static ByteBuffer slice(ByteBuffer in, int offset, int length) {
+        ByteBuffer b = in.duplicate();
+        b.limit(offset + length).position(offset);
+        return b.slice().order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    /**
+     * 128 bit little endian two's complement.
+     */
+    private static BigDecimal decimal(ByteBuffer values, int row, int scale) {
+        byte[] bigEndian = new byte[16];
+        for (int i = 0; i < 16; i++) {
+            bigEndian[15 - i] = values.get(row * 16 + i);
+        }
+        return new BigDecimal(new BigInteger(bigEndian), scale);
+    }
+}
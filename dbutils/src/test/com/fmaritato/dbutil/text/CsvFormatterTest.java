@@ -0,0 +1,116 @@
+package com.fmaritato.dbutil.text;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.sql.ResultSet;
+import java.sql.Types;
+
+public class CsvFormatterTest extends TestCase {
+
+    private static final String[] NAMES = {"ID", "NAME"};
+    private static final int[] TYPES = {Types.INTEGER, Types.VARCHAR};
+
+    public CsvFormatterTest(String name) {
+        super(name);
+    }
+
+    public void testPlainValuesAreNotQuoted() throws Exception {
+        assertEquals("ID,NAME\n1,abc\n2,a b\n",
+                     format(new CsvFormatter(), new Object[][]{{1, "abc"}, {2, "a b"}}));
+    }
+
+    public void testQuoting() throws Exception {
+        assertEquals("ID,NAME\n" +
+                     "1,\"a,b\"\n" +
+                     "2,\"say \"\"hi\"\"\"\n" +
+                     "3,\"two\nlines\"\n" +
+                     "4,\"cr\rhere\"\n" +
+                     "5,\"\"\"\"\n",
+                     format(new CsvFormatter(), new Object[][]{{1, "a,b"},
+                                                                {2, "say \"hi\""},
+                                                                {3, "two\nlines"},
+                                                                {4, "cr\rhere"},
+                                                                {5, "\""}}));
+    }
+
+    public void testNullAndEmptyString() throws Exception {
+        CsvFormatter csv = new CsvFormatter();
+        assertEquals("ID,NAME\n1,\n2,\"\"\n", format(csv, new Object[][]{{1, null}, {2, ""}}));
+        csv.setNullText("\\N");
+        assertEquals("ID,NAME\n1,\\N\n2,\n", format(csv, new Object[][]{{1, null}, {2, ""}}));
+    }
+
+    public void testTabDelimiter() throws Exception {
+        // a comma needs no quotes in TSV, a tab does
+        assertEquals("ID\tNAME\n1\ta,b\n2\t\"a\tb\"\n",
+                     format(new CsvFormatter('\t'), new Object[][]{{1, "a,b"}, {2, "a\tb"}}));
+    }
+
+    public void testQuoteAllCrlfNoHeader() throws Exception {
+        CsvFormatter csv = new CsvFormatter();
+        csv.setQuoteAll(true);
+        csv.setCrlf(true);
+        csv.setHeader(false);
+        assertEquals("\"1\",\"x\"\r\n", format(csv, new Object[][]{{1, "x"}}));
+    }
+
+    public void testClobsAreAlwaysQuoted() throws Exception {
+        ResultSet rs = Rows.create(new String[]{"DOC"}, new int[]{Types.CLOB},
+                                   new Object[][]{{"plain"}, {"with \"quotes\""}, {null}});
+        StringWriter out = new StringWriter();
+        new CsvFormatter().format(rs, out, false);
+        assertEquals("\"plain\"\n\"with \"\"quotes\"\"\"\n\n", out.toString());
+    }
+
+    public void testLongValues() throws Exception {
+        StringBuilder big = new StringBuilder();
+        while (big.length() < RowBuffer.SPILL_SIZE * 2) {
+            big.append("\"x,y\" ");
+        }
+        String quoted = "\"" + big.toString().replace("\"", "\"\"") + "\"";
+        assertEquals("ID,NAME\n1," + quoted + "\n",
+                     format(new CsvFormatter(), new Object[][]{{1, big.toString()}}));
+
+        // a CLOB this long is spilled to the output while it is read
+        ResultSet rs = Rows.create(new String[]{"DOC"}, new int[]{Types.CLOB},
+                                   new Object[][]{{big.toString()}});
+        StringWriter out = new StringWriter();
+        new CsvFormatter().format(rs, out, false);
+        assertEquals(quoted + "\n", out.toString());
+    }
+
+    /**
+     * A BLOB long enough to be spilled keeps its opening quote with
+     * quoteAll; without it only an empty one is quoted.
+     */
+    public void testLongBlobs() throws Exception {
+        byte[] blob = new byte[100 * 1024];
+        blob[blob.length - 1] = (byte) 0xab;
+        StringBuilder hex = new StringBuilder();
+        for (int i = 0; i < blob.length - 1; i++) {
+            hex.append("00");
+        }
+        hex.append("AB");
+        String[] names = {"ID", "DATA"};
+        int[] types = {Types.INTEGER, Types.BLOB};
+        Object[][] rows = {{1, blob}, {2, new byte[0]}, {3, null}};
+
+        CsvFormatter csv = new CsvFormatter();
+        csv.setHeader(false);
+        StringWriter out = new StringWriter();
+        csv.format(Rows.create(names, types, rows), out);
+        assertEquals("1," + hex + "\n2,\"\"\n3,\n", out.toString());
+
+        csv.setQuoteAll(true);
+        out = new StringWriter();
+        csv.format(Rows.create(names, types, rows), out);
+        assertEquals("\"1\",\"" + hex + "\"\n\"2\",\"\"\n\"3\",\n", out.toString());
+    }
+
+    private static String format(CsvFormatter csv, Object[][] rows) throws Exception {
+        StringWriter out = new StringWriter();
+        csv.format(Rows.create(NAMES, TYPES, rows), out);
+        return out.toString();
+    }
+}
@@ -0,0 +1,92 @@
+package com.fmaritato.dbutil.text;
+
+import junit.framework.TestCase;
+
+import java.io.StringWriter;
+import java.sql.Timestamp;
+import java.sql.Types;
+import java.util.TimeZone;
+
+public class JsonLinesFormatterTest extends TestCase {
+
+    private TimeZone zone;
+
+    public JsonLinesFormatterTest(String name) {
+        super(name);
+    }
+
+    protected void setUp() {
+        zone = TimeZone.getDefault();
+    }
+
+    protected void tearDown() {
+        TimeZone.setDefault(zone);
+    }
+
+    public void testNumbers() throws Exception {
+        assertEquals("{\"I\":1,\"D\":1.5}\n" +
+                     "{\"I\":null,\"D\":\"NaN\"}\n" +
+                     "{\"I\":-2,\"D\":\"Infinity\"}\n" +
+                     "{\"I\":3,\"D\":\"-Infinity\"}\n",
+                     format(new String[]{"I", "D"}, new int[]{Types.INTEGER, Types.DOUBLE},
+                            new Object[][]{{1, 1.5},
+                                           {null, Double.NaN},
+                                           {-2, Double.POSITIVE_INFINITY},
+                                           {3, Double.NEGATIVE_INFINITY}}));
+    }
+
+    /**
+     * BIT is a boolean only when the driver reads it as one; MySQL's
+     * BIT(n) comes as a byte[] and is written like a binary.
+     */
+    public void testBit() throws Exception {
+        assertEquals("{\"FLAG\":true,\"BITS\":\"0A01\",\"N\":1}\n" +
+                     "{\"FLAG\":false,\"BITS\":null,\"N\":0}\n",
+                     format(new String[]{"FLAG", "BITS", "N"}, new int[]{Types.BIT, Types.BIT, Types.BIT},
+                            new Object[][]{{true, new byte[]{10, 1}, 1},
+                                           {false, null, 0}}));
+    }
+
+    /**
+     * Timestamps are local time; the ones WITH TIME ZONE carry the offset
+     * of the JVM's zone, which getTimestamp() converted them to.
+     */
+    public void testTimestamps() throws Exception {
+        String[] names = {"TS", "TSTZ", "TSLTZ"};
+        int[] types = {Types.TIMESTAMP, -101, -102};
+
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT+05:30"));
+        Timestamp t = Timestamp.valueOf("2021-06-30 12:34:56.5");
+        assertEquals("{\"TS\":\"2021-06-30T12:34:56.5\",\"TSTZ\":\"2021-06-30T12:34:56.5+05:30\"," +
+                     "\"TSLTZ\":\"2021-06-30T12:34:56.5+05:30\"}\n" +
+                     "{\"TS\":null,\"TSTZ\":null,\"TSLTZ\":null}\n",
+                     format(names, types, new Object[][]{{t, t, t}, {null, null, null}}));
+
+        TimeZone.setDefault(TimeZone.getTimeZone("GMT-03:00"));
+        t = Timestamp.valueOf("1999-12-31 23:59:59");
+        assertEquals("{\"TS\":\"1999-12-31T23:59:59.0\",\"TSTZ\":\"1999-12-31T23:59:59.0-03:00\"," +
+                     "\"TSLTZ\":\"1999-12-31T23:59:59.0-03:00\"}\n",
+                     format(names, types, new Object[][]{{t, t, t}}));
+
+        TimeZone.setDefault(TimeZone.getTimeZone("UTC"));
+        t = Timestamp.valueOf("2000-01-01 00:00:00.000000001");
+        assertEquals("{\"TS\":\"2000-01-01T00:00:00.000000001\",\"TSTZ\":\"2000-01-01T00:00:00.000000001Z\"," +
+                     "\"TSLTZ\":\"2000-01-01T00:00:00.000000001Z\"}\n",
+                     format(names, types, new Object[][]{{t, t, t}}));
+    }
+
+    public void testEscaping() throws Exception {
+        assertEquals("{\"a \\\"b\\\"\":\"say \\\"hi\\\" \\\\ \\n\\t\\r\\b\\f \\u0001\\u001f \u00e9\"," +
+                     "\"DOC\":\"x\\\"\\n\\\\y\"}\n" +
+                     "{\"a \\\"b\\\"\":\"\",\"DOC\":null}\n",
+                     format(new String[]{"a \"b\"", "DOC"}, new int[]{Types.VARCHAR, Types.CLOB},
+                            new Object[][]{{"say \"hi\" \\ \n\t\r\b\f \u0001\u001f \u00e9", "x\"\n\\y"},
+                                           {"", null}}));
+    }
+
+    private static String format(String[] names, int[] types, Object[][] rows) throws Exception {
+        StringWriter out = new StringWriter();
+        new JsonLinesFormatter().format(Rows.create(names, types, rows), out);
+        return out.toString();
+    }
+}
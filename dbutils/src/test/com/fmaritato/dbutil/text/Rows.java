@@ -0,0 +1,140 @@
+package com.fmaritato.dbutil.text;
+
+import java.io.ByteArrayInputStream;
+import java.io.StringReader;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.math.BigDecimal;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+
+/**
+ * A ResultSet over rows held in memory, for testing formatters without a
+ * database. Getters convert the way drivers do for the values tests use;
+ * the column class is the class of the column's first non null value.
+ */
+public class Rows implements InvocationHandler {
+
+    private final String[] names;
+    private final int[] types;
+    private final Object[][] rows;
+    private int row = -1;
+    private boolean wasNull = false;
+
+    private Rows(String[] names, int[] types, Object[][] rows) {
+        this.names = names;
+        this.types = types;
+        this.rows = rows;
+    }
+
+    /**
+     * @param names column names
+     * @param types java.sql.Types of the columns
+     * @param rows  values, row by row
+     * @return a forward only ResultSet over them
+     */
+    public static ResultSet create(String[] names, int[] types, Object[][] rows) {
+        return (ResultSet) Proxy.newProxyInstance(Rows.class.getClassLoader(),
+                                                  new Class[]{ResultSet.class},
+                                                  new Rows(names, types, rows));
+    }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable {
+        String name = method.getName();
+        if ("next".equals(name)) {
+            return ++row < rows.length;
+        }
+        if ("getMetaData".equals(name)) {
+            return Proxy.newProxyInstance(Rows.class.getClassLoader(),
+                                          new Class[]{ResultSetMetaData.class},
+                                          new InvocationHandler() {
+                                              public Object invoke(Object proxy, Method method, Object[] args) {
+                                                  return meta(method.getName(), args);
+                                              }
+                                          });
+        }
+        if ("wasNull".equals(name)) {
+            return wasNull;
+        }
+        if ("close".equals(name)) {
+            return null;
+        }
+        if (name.startsWith("get") && args != null && args[0] instanceof Integer) {
+            Object value = rows[row][(Integer) args[0] - 1];
+            wasNull = value == null;
+            return get(name, value);
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private Object meta(String name, Object[] args) {
+        if ("getColumnCount".equals(name)) {
+            return names.length;
+        }
+        int column = (Integer) args[0] - 1;
+        if ("getColumnName".equals(name) || "getColumnLabel".equals(name)) {
+            return names[column];
+        }
+        if ("getColumnType".equals(name)) {
+            return types[column];
+        }
+        if ("getColumnClassName".equals(name)) {
+            for (Object[] r : rows) {
+                if (r[column] != null) {
+                    return r[column].getClass().getName();
+                }
+            }
+            return Object.class.getName();
+        }
+        if ("getPrecision".equals(name) || "getScale".equals(name)) {
+            return 0;
+        }
+        if ("isNullable".equals(name)) {
+            return ResultSetMetaData.columnNullable;
+        }
+        if ("getTableName".equals(name) || "getColumnTypeName".equals(name)) {
+            return "";
+        }
+        throw new UnsupportedOperationException(name);
+    }
+
+    private static Object get(String getter, Object value) {
+        if ("getObject".equals(getter)) {
+            return value;
+        }
+        if ("getString".equals(getter)) {
+            return value == null ? null : value.toString();
+        }
+        if ("getCharacterStream".equals(getter)) {
+            return value == null ? null : new StringReader(value.toString());
+        }
+        if ("getBinaryStream".equals(getter)) {
+            return value == null ? null : new ByteArrayInputStream((byte[]) value);
+        }
+        if ("getBoolean".equals(getter)) {
+            return value != null && (Boolean) value;
+        }
+        if ("getBigDecimal".equals(getter)) {
+            return value == null || value instanceof BigDecimal ? value : new BigDecimal(value.toString());
+        }
+        Number n = value instanceof Number ? (Number) value : null;
+        if ("getLong".equals(getter)) {
+            return n == null ? 0L : n.longValue();
+        }
+        if ("getInt".equals(getter)) {
+            return n == null ? 0 : n.intValue();
+        }
+        if ("getShort".equals(getter)) {
+            return n == null ? (short) 0 : n.shortValue();
+        }
+        if ("getDouble".equals(getter)) {
+            return n == null ? 0d : n.doubleValue();
+        }
+        if ("getFloat".equals(getter)) {
+            return n == null ? 0f : n.floatValue();
+        }
+        // getBytes, getDate, getTime, getTimestamp
+        return value;
+    }
+}